@@ -1,10 +1,34 @@
 package hk.edu.polyu.comp.comp2021.tms.model;
 
 import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.function.Predicate;
 
 class BasicCriterion implements Serializable {
     private static final long serialVersionUID = 1L;
 
+    enum Property { NAME, DESCRIPTION, DURATION, PREREQUISITES, SUBTASKS }
+
+    enum Op {
+        GT(">"), LT("<"), GE(">="), LE("<="), EQ("=="), NE("!="), CONTAINS("contains");
+
+        private final String symbol;
+
+        Op(String symbol) {
+            this.symbol = symbol;
+        }
+
+        static Op parse(String symbol) {
+            for (Op op : values()) {
+                if (op.symbol.equals(symbol.trim())) {
+                    return op;
+                }
+            }
+            throw new IllegalArgumentException("Unknown operator " + symbol);
+        }
+    }
+
     private String name;
     private String property;
     private String op;
@@ -32,4 +56,95 @@ class BasicCriterion implements Serializable {
     public String getValue() {
         return value;
     }
+
+    /**
+     * Parses the property, operator and value once and returns the matching test, for tasks
+     * whose symbols are in the given table.
+     */
+    public Predicate<Task> toPredicate(SymbolTable symbols) {
+        Property parsedProperty = Property.valueOf(property.toUpperCase());
+        switch (parsedProperty) {
+            case NAME: {
+                byte[] needle = unquote(value).getBytes(StandardCharsets.UTF_8);
+                return task -> task.getSymbols().contains(task.getNameSymbol(), needle);
+            }
+            case DESCRIPTION: {
+                byte[] needle = unquote(value).getBytes(StandardCharsets.UTF_8);
+                return task -> task.getSymbols().contains(task.getDescriptionSymbol(), needle);
+            }
+            case DURATION:
+                return durationPredicate(Op.parse(op), Double.parseDouble(value));
+            case PREREQUISITES:
+                return edgePredicate(false, symbols, intern(symbols, parseNames(value)));
+            case SUBTASKS:
+                return edgePredicate(true, symbols, intern(symbols, parseNames(value)));
+            default:
+                throw new IllegalStateException("Unhandled property " + parsedProperty);
+        }
+    }
+
+    private static Predicate<Task> durationPredicate(Op op, double threshold) {
+        switch (op) {
+            case GT: return task -> task.getDuration() > threshold;
+            case LT: return task -> task.getDuration() < threshold;
+            case GE: return task -> task.getDuration() >= threshold;
+            case LE: return task -> task.getDuration() <= threshold;
+            case EQ: return task -> task.getDuration() == threshold;
+            case NE: return task -> task.getDuration() != threshold;
+            default: throw new IllegalArgumentException("Operator " + op + " does not apply to duration");
+        }
+    }
+
+    // The task must list every one of the given names as a prerequisite (or as a subtask)
+    private static Predicate<Task> edgePredicate(boolean composite, SymbolTable symbols, int[] required) {
+        return task -> {
+            if (task.isComposite() != composite) {
+                return false;
+            }
+            for (int requiredName : required) {
+                if (!hasPrerequisite(task, symbols, requiredName)) {
+                    return false;
+                }
+            }
+            return true;
+        };
+    }
+
+    // Handles are only compared within one table; a task from another is compared by text
+    private static boolean hasPrerequisite(Task task, SymbolTable symbols, int name) {
+        for (Task prerequisite : task.getPrerequisites()) {
+            if (prerequisite.getSymbols() == symbols ? prerequisite.getNameSymbol() == name
+                    : symbols.get(name).equals(prerequisite.getName())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Interned rather than looked up, so that tasks created after compiling still match
+    private static int[] intern(SymbolTable symbols, Set<String> names) {
+        int[] handles = new int[names.size()];
+        int i = 0;
+        for (String name : names) {
+            handles[i++] = symbols.intern(name);
+        }
+        return handles;
+    }
+
+    private static Set<String> parseNames(String value) {
+        Set<String> names = new HashSet<>();
+        for (String part : unquote(value).split(",")) {
+            if (!part.trim().isEmpty()) {
+                names.add(part.trim());
+            }
+        }
+        return names;
+    }
+
+    static String unquote(String value) {
+        if (value.length() >= 2 && value.startsWith("\"") && value.endsWith("\"")) {
+            return value.substring(1, value.length() - 1);
+        }
+        return value;
+    }
 }
@@ -0,0 +1,267 @@
+package hk.edu.polyu.comp.comp2021.tms.model;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.*;
+import java.util.function.Function;
+import java.util.function.ToDoubleFunction;
+import java.util.stream.IntStream;
+
+/**
+ * Builds a batch of tasks in a few passes instead of one createPrimitiveTask call at a time.
+ * First the specs are validated in parallel. Then the tasks are created, interning names and
+ * descriptions in the SymbolTable of the TMS. A second pass links prerequisites, so they may refer
+ * forward within the batch. Finally one topological sort rejects cycles and computes the
+ * composite durations.
+ *
+ * <p>The line format has one task per line; blank lines and lines starting with # are skipped:
+ * <pre>
+ * primitive,name,description,duration,prerequisite;prerequisite;...
+ * composite,name,description,subtask;subtask;...
+ * </pre>
+ */
+class BulkImporter {
+
+    /** One task to import. */
+    static class TaskSpec {
+        final boolean composite;
+        final String name;
+        final String description;
+        final double duration;
+        final List<String> prerequisites;
+
+        private TaskSpec(boolean composite, String name, String description, double duration, List<String> prerequisites) {
+            this.composite = composite;
+            this.name = name;
+            this.description = description;
+            this.duration = duration;
+            this.prerequisites = prerequisites;
+        }
+
+        static TaskSpec primitive(String name, String description, double duration, List<String> prerequisites) {
+            return new TaskSpec(false, name, description, duration, prerequisites);
+        }
+
+        static TaskSpec composite(String name, String description, List<String> subtasks) {
+            return new TaskSpec(true, name, description, 0, subtasks);
+        }
+    }
+
+    /** What an import did: how many tasks were added and why the others were not. */
+    static class Result {
+        private int imported;
+        private final List<String> errors = new ArrayList<>();
+
+        public int getImported() {
+            return imported;
+        }
+
+        public List<String> getErrors() {
+            return errors;
+        }
+    }
+
+    /** The tasks of a batch in topological order, with their durations as calculateDuration gives them. */
+    static class Batch {
+        final List<Task> tasks = new ArrayList<>();
+        final List<Double> durations = new ArrayList<>();
+        final Result result = new Result();
+    }
+
+    public static Batch prepare(List<TaskSpec> specs, TaskStore store, Function<String, Task> existing,
+                                ToDoubleFunction<Task> existingDuration) {
+        Batch batch = new Batch();
+        int n = specs.size();
+
+        // Pass 1: validate in parallel
+        String[] errors = new String[n];
+        IntStream.range(0, n).parallel().forEach(i -> errors[i] = error(specs.get(i)));
+
+        // Create the tasks; a later spec replaces an earlier one of the same name
+        Map<String, Integer> byName = new HashMap<>(n * 2);
+        Task[] created = new Task[n];
+        for (int i = 0; i < n; i++) {
+            TaskSpec spec = specs.get(i);
+            if (errors[i] != null) {
+                batch.result.errors.add(spec.name + ": " + errors[i]);
+                continue;
+            }
+            Task task = new Task(store, spec.name, spec.description, spec.duration);
+            task.setComposite(spec.composite);
+            created[i] = task;
+            Integer replaced = byName.put(spec.name, i);
+            if (replaced != null) {
+                created[replaced] = null;
+            }
+        }
+
+        // Pass 2: link prerequisites, to batch tasks first and then to tasks already defined
+        int[][] edges = new int[n][];
+        int[] inDegree = new int[n];
+        List<List<Integer>> successors = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) {
+            successors.add(null);
+        }
+        for (int i = 0; i < n; i++) {
+            if (created[i] == null) {
+                continue;
+            }
+            List<String> names = specs.get(i).prerequisites;
+            edges[i] = new int[names.size()];
+            for (int e = 0; e < names.size(); e++) {
+                String name = names.get(e);
+                Integer target = byName.get(name);
+                edges[i][e] = target != null ? target : -1;
+                if (target != null) {
+                    inDegree[i]++;
+                    if (successors.get(target) == null) {
+                        successors.set(target, new ArrayList<>(2));
+                    }
+                    successors.get(target).add(i);
+                } else if (existing.apply(name) == null) {
+                    batch.result.errors.add(created[i].getName() + ": prerequisite " + name + " not found");
+                }
+            }
+        }
+
+        // Pass 3: one topological sort; what it cannot order is on or behind a cycle
+        int[] order = new int[n];
+        int head = 0;
+        int tail = 0;
+        for (int i = 0; i < n; i++) {
+            if (created[i] != null && inDegree[i] == 0) {
+                order[tail++] = i;
+            }
+        }
+        while (head < tail) {
+            List<Integer> next = successors.get(order[head++]);
+            if (next != null) {
+                for (int s : next) {
+                    if (--inDegree[s] == 0) {
+                        order[tail++] = s;
+                    }
+                }
+            }
+        }
+        for (int i = 0; i < n; i++) {
+            if (created[i] != null && inDegree[i] > 0) {
+                batch.result.errors.add(created[i].getName() + ": on or behind a prerequisite cycle");
+            }
+        }
+
+        double[] duration = new double[n];
+        for (int k = 0; k < tail; k++) {
+            int i = order[k];
+            Task task = created[i];
+            double longest = 0;
+            List<String> names = specs.get(i).prerequisites;
+            for (int e = 0; e < edges[i].length; e++) {
+                Task prerequisite = edges[i][e] >= 0 ? created[edges[i][e]] : existing.apply(names.get(e));
+                if (prerequisite != null) {
+                    task.addPrerequisite(prerequisite);
+                    longest = Math.max(longest, edges[i][e] >= 0 ? duration[edges[i][e]]
+                            : existingDuration.applyAsDouble(prerequisite));
+                }
+            }
+            if (task.isComposite()) {
+                // Same rule as createCompositeTask: as long as the longest subtask, and at least 1
+                task.setDuration(Math.max(1, longest));
+            }
+            duration[i] = task.getPrerequisites().isEmpty() ? task.getDuration() : longest;
+            batch.tasks.add(task);
+            batch.durations.add(duration[i]);
+        }
+        batch.result.imported = batch.tasks.size();
+        return batch;
+    }
+
+    private static String error(TaskSpec spec) {
+        if (!fitsFormat(spec)) {
+            return "names, descriptions and prerequisites cannot contain , ; or line breaks";
+        }
+        if (spec.composite) {
+            return spec.name.isEmpty() ? "name cannot be empty" : null;
+        }
+        String error = TMS.primitiveTaskError(spec.name, spec.description, spec.duration);
+        return error == null ? null : error.replace('\n', ' ');
+    }
+
+    /** Parses the line format; malformed lines are reported in the errors and skipped. */
+    public static List<TaskSpec> parse(BufferedReader reader, List<String> errors) throws IOException {
+        List<TaskSpec> specs = new ArrayList<>();
+        String line;
+        int lineNumber = 0;
+        while ((line = reader.readLine()) != null) {
+            lineNumber++;
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            String[] fields = line.split(",", -1);
+            try {
+                if (fields[0].equals("primitive") && fields.length == 5) {
+                    specs.add(TaskSpec.primitive(fields[1], fields[2], Double.parseDouble(fields[3]), names(fields[4])));
+                } else if (fields[0].equals("composite") && fields.length == 4) {
+                    specs.add(TaskSpec.composite(fields[1], fields[2], names(fields[3])));
+                } else {
+                    errors.add("line " + lineNumber + ": malformed");
+                }
+            } catch (NumberFormatException e) {
+                errors.add("line " + lineNumber + ": bad duration " + fields[3]);
+            }
+        }
+        return specs;
+    }
+
+    public static List<TaskSpec> parse(String text) {
+        try {
+            return parse(new BufferedReader(new StringReader(text)), new ArrayList<>());
+        } catch (IOException e) {
+            throw new IllegalStateException(e);  // cannot happen when reading a string
+        }
+    }
+
+    /**
+     * Writes the specs in the line format. Specs with a field the format cannot hold are left
+     * out; importing rejects them anyway.
+     */
+    public static String format(List<TaskSpec> specs) {
+        StringBuilder text = new StringBuilder();
+        for (TaskSpec spec : specs) {
+            if (!fitsFormat(spec)) {
+                continue;
+            }
+            text.append(spec.composite ? "composite" : "primitive").append(',')
+                    .append(spec.name).append(',').append(spec.description).append(',');
+            if (!spec.composite) {
+                text.append(spec.duration).append(',');
+            }
+            text.append(String.join(";", spec.prerequisites)).append('\n');
+        }
+        return text.toString();
+    }
+
+    // Whether every field survives the line format, which the journal records imports in
+    private static boolean fitsFormat(TaskSpec spec) {
+        List<String> fields = new ArrayList<>(spec.prerequisites);
+        fields.add(spec.name);
+        fields.add(spec.description);
+        for (String field : fields) {
+            if (field.indexOf(',') >= 0 || field.indexOf(';') >= 0 || field.indexOf('\n') >= 0
+                    || field.indexOf('\r') >= 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static List<String> names(String field) {
+        List<String> names = new ArrayList<>();
+        for (String name : field.split(";")) {
+            if (!name.trim().isEmpty()) {
+                names.add(name.trim());
+            }
+        }
+        return names;
+    }
+}
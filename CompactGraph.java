@@ -0,0 +1,556 @@
+package hk.edu.polyu.comp.comp2021.tms.model;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.IntPredicate;
+
+/**
+ * A frozen copy of a task graph held in primitive arrays instead of Task objects.
+ * Tasks are numbered 0..n-1 and every property is a column indexed by that id. The
+ * prerequisites of task i are targets[offsets[i]] .. targets[offsets[i + 1] - 1], and names
+ * are found through an open-addressing table, so durations, finish times and searches walk
+ * plain int and double arrays without allocating anything per task or per edge.
+ *
+ * <p>A TMS keeps its tasks in the same layout, in a {@link TaskStore} that mutations write
+ * to. This class is the frozen form: a graph opened with {@link #read} creates no Task
+ * objects at all, and one taken from a live TMS with {@link TMS#getCompactGraph} renumbers
+ * only the tasks reachable from a name, with their edges in one contiguous array, and adds
+ * its derived results (order, finish times, bitmaps) for repeated whole-graph queries.
+ */
+class CompactGraph {
+    private static final IntPredicate NEVER = id -> false;
+    // Below this many tasks the per-task program is always used
+    private static final int BITMAP_MIN_TASKS = 1024;
+    // Ids sampled to estimate how many leaf tests the program takes per task
+    private static final int SAMPLE = 256;
+    // What an AND, OR or AND NOT of two bitmaps costs, in leaf tests per task
+    private static final double BITMAP_OP_COST = 0.05;
+
+    private final int size;
+    // Name the task is stored under, or null for a task only reachable as a prerequisite
+    private final String[] keys;
+    // Handles into symbols
+    private final SymbolTable symbols;
+    private final int[] names;
+    private final int[] descriptions;
+    private final double[] durations;
+    private final boolean[] composite;
+    private final int[] offsets;
+    private final int[] targets;
+    // Open-addressing table of key -> id + 1, 0 marking an empty slot
+    private final int[] slots;
+
+    // Derived lazily: reverse edges, topological order and the per-task results over it
+    private int[] dependentOffsets;
+    private int[] dependents;
+    private int[] order;
+    private int ordered;
+    private double[] totalDurations;
+    private double[] earliestFinish;
+    private int[] depths;
+    // The tasks stored under a name, and those satisfying each basic criterion searched so far
+    private volatile TaskBitmap keyed;
+    private final Map<BasicCriterion, TaskBitmap> leafBitmaps = new ConcurrentHashMap<>();
+
+    private CompactGraph(String[] keys, SymbolTable symbols, int[] names, int[] descriptions, double[] durations,
+                         boolean[] composite, int[] offsets, int[] targets) {
+        this.size = names.length;
+        this.keys = keys;
+        this.symbols = symbols;
+        this.names = names;
+        this.descriptions = descriptions;
+        this.durations = durations;
+        this.composite = composite;
+        this.offsets = offsets;
+        this.targets = targets;
+        this.slots = new int[tableSize(size)];
+        for (int id = 0; id < size; id++) {
+            if (keys[id] != null) {
+                slots[slot(keys[id])] = id + 1;
+            }
+        }
+    }
+
+    /** A graph over columns laid out as above; the arrays are taken as they are, not copied. */
+    static CompactGraph of(String[] keys, SymbolTable symbols, int[] names, int[] descriptions, double[] durations,
+                           boolean[] composite, int[] offsets, int[] targets) {
+        return new CompactGraph(keys, symbols, names, descriptions, durations, composite, offsets, targets);
+    }
+
+    /**
+     * Numbers the tasks of the map in iteration order, followed by any prerequisites not in it.
+     * The names and descriptions stay in the given table; a task with symbols in another table
+     * has them interned into this one.
+     */
+    public static CompactGraph of(Map<String, Task> tasks, SymbolTable symbols) {
+        Map<Task, Integer> ids = new IdentityHashMap<>(tasks.size() * 2);
+        List<Task> byId = new ArrayList<>(tasks.size());
+        List<String> keys = new ArrayList<>(tasks.size());
+        for (Map.Entry<String, Task> entry : tasks.entrySet()) {
+            if (ids.putIfAbsent(entry.getValue(), byId.size()) == null) {
+                byId.add(entry.getValue());
+                keys.add(entry.getKey());
+            }
+        }
+        int edgeCount = 0;
+        for (int i = 0; i < byId.size(); i++) {
+            for (Task prerequisite : byId.get(i).getPrerequisites()) {
+                if (ids.putIfAbsent(prerequisite, byId.size()) == null) {
+                    byId.add(prerequisite);
+                    keys.add(null);
+                }
+                edgeCount++;
+            }
+        }
+
+        int n = byId.size();
+        int[] names = new int[n];
+        int[] descriptions = new int[n];
+        double[] durations = new double[n];
+        boolean[] composite = new boolean[n];
+        int[] offsets = new int[n + 1];
+        int[] targets = new int[edgeCount];
+        int edge = 0;
+        for (int i = 0; i < n; i++) {
+            Task task = byId.get(i);
+            names[i] = task.getSymbols().transfer(task.getNameSymbol(), symbols);
+            descriptions[i] = task.getSymbols().transfer(task.getDescriptionSymbol(), symbols);
+            durations[i] = task.getDuration();
+            composite[i] = task.isComposite();
+            offsets[i] = edge;
+            for (Task prerequisite : task.getPrerequisites()) {
+                targets[edge++] = ids.get(prerequisite);
+            }
+        }
+        offsets[n] = edge;
+        return new CompactGraph(keys.toArray(new String[0]), symbols, names, descriptions, durations, composite,
+                offsets, targets);
+    }
+
+    /** Reads a snapshot written by {@link TMS#store} straight into arrays, creating no Task objects. */
+    public static CompactGraph read(Path path) throws IOException {
+        MappedSnapshot snapshot = MappedSnapshot.open(path);
+        int n = snapshot.getTaskCount();
+        String[] keys = new String[n];
+        int[] names = new int[n];
+        int[] descriptions = new int[n];
+        double[] durations = new double[n];
+        boolean[] composite = new boolean[n];
+        int[] offsets = new int[n + 1];
+        int[][] edges = new int[n][];
+        for (int i = 0; i < n; i++) {
+            keys[i] = snapshot.key(i);
+            names[i] = snapshot.nameSymbol(i);
+            descriptions[i] = snapshot.descriptionSymbol(i);
+            durations[i] = snapshot.duration(i);
+            composite[i] = snapshot.isComposite(i);
+            edges[i] = snapshot.prerequisites(i);
+            offsets[i + 1] = offsets[i] + edges[i].length;
+        }
+        int[] targets = new int[offsets[n]];
+        for (int i = 0; i < n; i++) {
+            System.arraycopy(edges[i], 0, targets, offsets[i], edges[i].length);
+        }
+        return new CompactGraph(keys, snapshot.getSymbols(), names, descriptions, durations, composite, offsets,
+                targets);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int edgeCount() {
+        return targets.length;
+    }
+
+    /** The id of the task stored under the name, or -1. */
+    public int id(String key) {
+        return slots[slot(key)] - 1;
+    }
+
+    public String key(int id) {
+        return keys[id];
+    }
+
+    public String name(int id) {
+        return symbols.get(names[id]);
+    }
+
+    public String description(int id) {
+        return symbols.get(descriptions[id]);
+    }
+
+    public double ownDuration(int id) {
+        return durations[id];
+    }
+
+    public boolean isComposite(int id) {
+        return composite[id];
+    }
+
+    public int prerequisiteCount(int id) {
+        return offsets[id + 1] - offsets[id];
+    }
+
+    public int prerequisite(int id, int k) {
+        return targets[offsets[id] + k];
+    }
+
+    /**
+     * The duration reportDuration gives for the task: its own duration without prerequisites,
+     * otherwise the longest of theirs. NaN for a task that depends on a prerequisite cycle.
+     */
+    public double duration(int id) {
+        if (totalDurations == null) {
+            computeDurations();
+        }
+        return totalDurations[id];
+    }
+
+    /** The earliest finish time under the critical-path schedule, or NaN behind a cycle. */
+    public double earliestFinish(int id) {
+        if (earliestFinish == null) {
+            computeDurations();
+        }
+        return earliestFinish[id];
+    }
+
+    /** The number of tasks on the longest prerequisite chain ending in the task, or 0 behind a cycle. */
+    public int depth(int id) {
+        if (depths == null) {
+            computeDurations();
+        }
+        return depths[id];
+    }
+
+    /**
+     * Computes the derived columns now rather than on first use. Nothing is written to the
+     * graph afterwards, so once prepared it can be read from any number of threads.
+     */
+    public CompactGraph prepare() {
+        if (totalDurations == null) {
+            computeDurations();
+        }
+        return this;
+    }
+
+    // One pass over the topological order fills all three columns
+    private void computeDurations() {
+        topologicalOrder();
+        double[] total = new double[size];
+        double[] finish = new double[size];
+        int[] depth = new int[size];
+        Arrays.fill(total, Double.NaN);
+        Arrays.fill(finish, Double.NaN);
+        for (int k = 0; k < ordered; k++) {
+            int i = order[k];
+            int from = offsets[i];
+            int to = offsets[i + 1];
+            if (from == to) {
+                total[i] = durations[i];
+                finish[i] = durations[i];
+                depth[i] = 1;
+                continue;
+            }
+            double longest = 0;
+            double start = 0;
+            int deepest = 0;
+            for (int e = from; e < to; e++) {
+                longest = Math.max(longest, total[targets[e]]);
+                start = Math.max(start, finish[targets[e]]);
+                deepest = Math.max(deepest, depth[targets[e]]);
+            }
+            depth[i] = deepest + 1;
+            total[i] = longest;
+            // A composite spans its subtasks, so it adds nothing of its own
+            finish[i] = composite[i] ? start : start + durations[i];
+        }
+        totalDurations = total;
+        earliestFinish = finish;
+        depths = depth;
+    }
+
+    // Kahn's algorithm over the reverse edges; tasks on or behind a cycle are left out
+    private void topologicalOrder() {
+        if (order != null) {
+            return;
+        }
+        int[] dependentCount = new int[size + 1];
+        for (int target : targets) {
+            dependentCount[target + 1]++;
+        }
+        for (int i = 0; i < size; i++) {
+            dependentCount[i + 1] += dependentCount[i];
+        }
+        dependentOffsets = dependentCount.clone();
+        dependents = new int[targets.length];
+        for (int i = 0; i < size; i++) {
+            for (int e = offsets[i]; e < offsets[i + 1]; e++) {
+                dependents[dependentCount[targets[e]]++] = i;
+            }
+        }
+
+        int[] pending = new int[size];
+        int[] topo = new int[size];
+        int tail = 0;
+        for (int i = 0; i < size; i++) {
+            pending[i] = offsets[i + 1] - offsets[i];
+            if (pending[i] == 0) {
+                topo[tail++] = i;
+            }
+        }
+        for (int head = 0; head < tail; head++) {
+            int i = topo[head];
+            for (int e = dependentOffsets[i]; e < dependentOffsets[i + 1]; e++) {
+                if (--pending[dependents[e]] == 0) {
+                    topo[tail++] = dependents[e];
+                }
+            }
+        }
+        order = topo;
+        ordered = tail;
+    }
+
+    /** Ids of the tasks stored under a name that satisfy the predicate, in id order. */
+    public int[] select(IntPredicate predicate) {
+        int[] result = new int[16];
+        int count = 0;
+        for (int id = 0; id < size; id++) {
+            if (keys[id] != null && predicate.test(id)) {
+                if (count == result.length) {
+                    result = Arrays.copyOf(result, count * 2);
+                }
+                result[count++] = id;
+            }
+        }
+        return Arrays.copyOf(result, count);
+    }
+
+    /**
+     * Ids of the tasks stored under a name that satisfy the criterion, in id order. Depending
+     * on what {@link #prefersBitmaps} estimates, the compiled program is run on every task or
+     * the criterion is evaluated with bitmaps.
+     */
+    public int[] select(String criterionName, Map<String, BasicCriterion> basicCriteria,
+                        Map<String, CompositeCriterion> compositeCriteria, CriterionProgram.OnIds program) {
+        return prefersBitmaps(criterionName, basicCriteria, compositeCriteria, program)
+                ? bitmap(criterionName, basicCriteria, compositeCriteria).toArray()
+                : select(program);
+    }
+
+    /**
+     * The tasks stored under a name that satisfy the criterion. Each basic criterion is tested
+     * once per task into a bitmap, kept for later searches; &&, || and negation are then
+     * AND, OR and AND NOT of whole bitmaps.
+     */
+    public TaskBitmap bitmap(String criterionName, Map<String, BasicCriterion> basicCriteria,
+                             Map<String, CompositeCriterion> compositeCriteria) {
+        return PostOrder.fold(criterionName, name -> CriterionCompiler.operandNames(name, compositeCriteria),
+                new HashMap<>(), TaskBitmap.EMPTY,
+                (name, operands) -> combine(name, operands, basicCriteria, compositeCriteria));
+    }
+
+    // Mirrors CriterionCompiler.combine
+    private TaskBitmap combine(String name, List<TaskBitmap> operands, Map<String, BasicCriterion> basicCriteria,
+                               Map<String, CompositeCriterion> compositeCriteria) {
+        CompositeCriterion composite = compositeCriteria.get(name);
+        if (composite == null) {
+            BasicCriterion basic = basicCriteria.get(name);
+            return basic != null ? leafBitmap(basic) : TaskBitmap.EMPTY;
+        }
+        if (composite.getNegatedCriterion() != null) {
+            return operands.isEmpty() ? TaskBitmap.EMPTY : keyed().andNot(operands.get(0));
+        }
+        if (operands.isEmpty() || composite.getLogicOp() == null) {
+            return TaskBitmap.EMPTY;
+        }
+        TaskBitmap result = operands.get(0);
+        for (int i = 1; i < operands.size(); i++) {
+            switch (composite.getLogicOp().trim()) {
+                case "&&":
+                    result = result.and(operands.get(i));
+                    break;
+                case "||":
+                    result = result.or(operands.get(i));
+                    break;
+                default:
+                    return TaskBitmap.EMPTY;
+            }
+        }
+        return result;
+    }
+
+    private TaskBitmap leafBitmap(BasicCriterion criterion) {
+        return leafBitmaps.computeIfAbsent(criterion, basic -> {
+            IntPredicate test = compile(basic);
+            return TaskBitmap.of(size, id -> keys[id] != null && test.test(id));
+        });
+    }
+
+    private TaskBitmap keyed() {
+        TaskBitmap built = keyed;
+        if (built == null) {
+            built = TaskBitmap.of(size, id -> keys[id] != null);
+            keyed = built;
+        }
+        return built;
+    }
+
+    /*
+     * The program stops at the first leaf that decides a task, so the leaf tests it takes per
+     * task depend on how selective each leaf is; a sample of the tasks estimates that. Bitmaps
+     * cost one test per task for each basic criterion without a bitmap yet, and a fraction of
+     * one for each operation combining them, whatever the selectivity.
+     */
+    boolean prefersBitmaps(String criterionName, Map<String, BasicCriterion> basicCriteria,
+                           Map<String, CompositeCriterion> compositeCriteria, CriterionProgram.OnIds program) {
+        if (size < BITMAP_MIN_TASKS || program.isNever()) {
+            return false;
+        }
+        double bitmapCost = 0;
+        Deque<String> pending = new ArrayDeque<>();
+        Set<String> seen = new HashSet<>();
+        pending.push(criterionName);
+        while (!pending.isEmpty()) {
+            String name = pending.pop();
+            if (!seen.add(name)) {
+                continue;
+            }
+            BasicCriterion basic = basicCriteria.get(name);
+            if (!compositeCriteria.containsKey(name) && basic != null && !leafBitmaps.containsKey(basic)) {
+                bitmapCost += 1;
+            }
+            List<String> operands = CriterionCompiler.operandNames(name, compositeCriteria);
+            bitmapCost += BITMAP_OP_COST * Math.max(1, operands.size() - 1);
+            pending.addAll(operands);
+        }
+
+        long steps = 0;
+        int sampled = 0;
+        int stride = Math.max(1, size / SAMPLE);
+        for (int id = 0; id < size; id += stride) {
+            if (keys[id] != null) {
+                steps += program.steps(id);
+                sampled++;
+            }
+        }
+        return sampled > 0 && bitmapCost < (double) steps / sampled;
+    }
+
+    /**
+     * Compiles the named criterion into a test on ids, resolving composite criteria the same
+     * way {@link CriterionCompiler} does: an undefined or self-referring operand never matches.
+     */
+    public CriterionProgram.OnIds compile(String criterionName, Map<String, BasicCriterion> basicCriteria,
+                                          Map<String, CompositeCriterion> compositeCriteria) {
+        return CriterionCompiler.compile(criterionName, basicCriteria, compositeCriteria,
+                basic -> CriterionProgram.ofId(compile(basic)), CriterionProgram.OnIds.NEVER);
+    }
+
+    /** The test of a basic criterion on ids; it reads the columns directly. */
+    public IntPredicate compile(BasicCriterion criterion) {
+        String value = criterion.getValue();
+        switch (BasicCriterion.Property.valueOf(criterion.getProperty().toUpperCase())) {
+            case NAME: {
+                byte[] needle = BasicCriterion.unquote(value).getBytes(StandardCharsets.UTF_8);
+                return id -> symbols.contains(names[id], needle);
+            }
+            case DESCRIPTION: {
+                byte[] needle = BasicCriterion.unquote(value).getBytes(StandardCharsets.UTF_8);
+                return id -> symbols.contains(descriptions[id], needle);
+            }
+            case DURATION:
+                return durationPredicate(BasicCriterion.Op.parse(criterion.getOp()), Double.parseDouble(value));
+            case PREREQUISITES:
+                return edgePredicate(false, value);
+            case SUBTASKS:
+                return edgePredicate(true, value);
+            default:
+                return NEVER;
+        }
+    }
+
+    private IntPredicate durationPredicate(BasicCriterion.Op op, double threshold) {
+        switch (op) {
+            case GT: return id -> durations[id] > threshold;
+            case LT: return id -> durations[id] < threshold;
+            case GE: return id -> durations[id] >= threshold;
+            case LE: return id -> durations[id] <= threshold;
+            case EQ: return id -> durations[id] == threshold;
+            case NE: return id -> durations[id] != threshold;
+            default: throw new IllegalArgumentException("Operator " + op + " does not apply to duration");
+        }
+    }
+
+    /*
+     * Every required name gets a bit; the ids carrying that name are tagged with it up front,
+     * so testing a task is one OR per edge and a comparison with the full mask. Past 64 names
+     * the bits of a task's edges are gathered into a bitmap of its own while it is tested.
+     */
+    private IntPredicate edgePredicate(boolean wantComposite, String value) {
+        // A name never interned is carried by no task; its NULL handle matches no id
+        Map<Integer, Integer> bitOf = new HashMap<>();
+        for (String part : BasicCriterion.unquote(value).split(",")) {
+            if (!part.trim().isEmpty()) {
+                bitOf.putIfAbsent(symbols.find(part.trim()), bitOf.size());
+            }
+        }
+        int required = bitOf.size();
+        int[] bits = new int[size];
+        for (int id = 0; id < size; id++) {
+            bits[id] = bitOf.getOrDefault(names[id], -1);
+        }
+        if (required > Long.SIZE) {
+            return id -> {
+                if (composite[id] != wantComposite || offsets[id + 1] - offsets[id] < required) {
+                    return false;
+                }
+                long[] seen = new long[(required + Long.SIZE - 1) / Long.SIZE];
+                int found = 0;
+                for (int e = offsets[id]; e < offsets[id + 1]; e++) {
+                    int bit = bits[targets[e]];
+                    if (bit >= 0 && (seen[bit / Long.SIZE] & 1L << bit) == 0) {
+                        seen[bit / Long.SIZE] |= 1L << bit;
+                        found++;
+                    }
+                }
+                return found == required;
+            };
+        }
+        long[] tags = new long[size];
+        for (int id = 0; id < size; id++) {
+            if (bits[id] >= 0) {
+                tags[id] = 1L << bits[id];
+            }
+        }
+        long all = required == Long.SIZE ? -1L : (1L << required) - 1;
+        return id -> {
+            if (composite[id] != wantComposite) {
+                return false;
+            }
+            long seen = 0;
+            for (int e = offsets[id]; e < offsets[id + 1]; e++) {
+                seen |= tags[targets[e]];
+            }
+            return seen == all;
+        };
+    }
+
+    private static int tableSize(int entries) {
+        return Integer.highestOneBit(Math.max(2, entries) * 2 - 1) << 1;
+    }
+
+    // Linear probing; returns the slot holding the key or the empty slot where it belongs
+    private int slot(String key) {
+        int mask = slots.length - 1;
+        int hash = key.hashCode() * 0x9E3779B9;
+        int slot = (hash ^ (hash >>> 16)) & mask;
+        while (slots[slot] != 0 && !keys[slots[slot] - 1].equals(key)) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+}
@@ -11,6 +11,8 @@ class CompositeCriterion implements Serializable {
     private String logicOp;
     private List<CompositeCriterion> subCriteria;
     private CompositeCriterion negatedCriterion;
+    // Names of the criteria this one is built from, basic or composite
+    private List<String> operandNames;
 
     public CompositeCriterion(String name) {
         this.name = name;
@@ -34,6 +36,26 @@ class CompositeCriterion implements Serializable {
         return negatedCriterion;
     }
 
+    public List<String> getOperandNames() {
+        if (operandNames != null) {
+            return operandNames;
+        }
+        // Criteria stored before operand names were recorded only hold the composite operands
+        List<String> names = new ArrayList<>();
+        if (negatedCriterion != null) {
+            names.add(negatedCriterion.getName());
+        } else {
+            for (CompositeCriterion subCriterion : subCriteria) {
+                names.add(subCriterion == null ? null : subCriterion.getName());
+            }
+        }
+        return names;
+    }
+
+    public void setOperandNames(List<String> operandNames) {
+        this.operandNames = operandNames;
+    }
+
     public void setLogicOp(String logicOp) {
         this.logicOp = logicOp;
     }
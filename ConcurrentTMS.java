@@ -0,0 +1,342 @@
+package hk.edu.polyu.comp.comp2021.tms.model;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Predicate;
+
+/**
+ * A TMS that can be shared between threads.
+ * Writers that change the prerequisite graph lock only the stripes of the tasks involved,
+ * always in ascending stripe order. The tasks live in a {@link TaskStore}, which publishes each
+ * change to a task's prerequisites whole. So readers (printTask, reportDuration, search) never
+ * take a lock and never see a half-built list.
+ */
+class ConcurrentTMS {
+    private static final int STRIPES = 64;
+
+    private final SymbolTable symbols = new SymbolTable();
+    private final TaskStore store = new TaskStore(symbols);
+    private final Map<String, Task> tasks = new ConcurrentHashMap<>();
+    private final Map<String, CompositeCriterion> compositeCriteria = new ConcurrentHashMap<>();
+    private final Map<String, BasicCriterion> basicCriteria = new ConcurrentHashMap<>();
+    // Reverse prerequisite edges (task -> tasks that list it as a prerequisite or subtask)
+    private final Map<Task, Set<Task>> dependents = new ConcurrentHashMap<>();
+    private final ReentrantLock[] stripes = new ReentrantLock[STRIPES];
+    // Criteria definitions are rare, so they are serialized and republish every compiled predicate
+    private final Object criteriaLock = new Object();
+    private volatile Map<String, Predicate<Task>> compiledCriteria = Collections.emptyMap();
+    // Per thread, so that a writer reads the reason of its own refused mutation
+    private final ThreadLocal<String> lastError = new ThreadLocal<>();
+
+    public ConcurrentTMS() {
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new ReentrantLock();
+        }
+    }
+
+    public Map<String, Task> getTasks() {
+        return Collections.unmodifiableMap(tasks);
+    }
+
+    public boolean createPrimitiveTask(String name, String description, double d, List<String> prerequisiteNames) {
+        String error = TMS.primitiveTaskError(name, description, d);
+        if (error != null) {
+            return refuse(error);
+        }
+        publish(name, new Task(store, name, description, d), prerequisiteNames);
+        return true;
+    }
+
+    public boolean createCompositeTask(String name, String description, List<String> subtaskNames) {
+        Task newTask = new Task(store, name, description, 0);
+        newTask.setComposite(true);
+
+        // Same rule as TMS: the composite lasts as long as its longest subtask, and at least 1
+        double compositeDuration = 1;
+        Map<Task, Double> memo = new HashMap<>();
+        for (Task subtask : resolve(subtaskNames).values()) {
+            compositeDuration = Math.max(compositeDuration, calculateDuration(subtask, memo));
+        }
+        newTask.setDuration(compositeDuration);
+        publish(name, newTask, subtaskNames);
+        return true;
+    }
+
+    // Links the new task to its prerequisites and makes it visible to readers
+    private void publish(String name, Task newTask, List<String> prerequisiteNames) {
+        Map<String, Task> candidates = resolve(prerequisiteNames);
+        List<ReentrantLock> held = lock(newTask, candidates.values());
+        try {
+            List<Task> linked = stillRegistered(candidates);
+            newTask.setPrerequisites(linked);
+            for (Task prerequisite : linked) {
+                dependents.computeIfAbsent(prerequisite, k -> ConcurrentHashMap.newKeySet()).add(newTask);
+            }
+            tasks.put(name, newTask);
+        } finally {
+            unlock(held);
+        }
+    }
+
+    /** Returns false if there is no such task. */
+    public boolean deleteTask(String name) {
+        Task taskToDelete = tasks.get(name);
+        if (taskToDelete == null) {
+            return fail("Task " + name + " not found.");
+        }
+        // Once the task is unregistered under its stripe, no writer can link a new edge to it
+        ReentrantLock own = stripeOf(taskToDelete);
+        own.lock();
+        try {
+            if (!tasks.remove(name, taskToDelete)) {
+                return fail("Task " + name + " not found.");
+            }
+        } finally {
+            own.unlock();
+        }
+
+        Set<Task> parents = dependents.remove(taskToDelete);
+        if (parents != null) {
+            for (Task parent : parents) {
+                ReentrantLock lock = stripeOf(parent);
+                lock.lock();
+                try {
+                    List<Task> remaining = new ArrayList<>(parent.getPrerequisites());
+                    remaining.removeIf(prerequisite -> prerequisite == taskToDelete);
+                    parent.setPrerequisites(remaining);
+                } finally {
+                    lock.unlock();
+                }
+            }
+        }
+        for (Task prerequisite : taskToDelete.getPrerequisites()) {
+            Set<Task> siblings = dependents.get(prerequisite);
+            if (siblings != null) {
+                siblings.remove(taskToDelete);
+            }
+        }
+        return true;
+    }
+
+    /** Returns false if there is no such task or the change was refused, as TMS.changeTask does. */
+    public boolean changeTask(String name, String property, String newValue) {
+        Task taskToChange = tasks.get(name);
+        if (taskToChange == null) {
+            return fail("Task " + name + " not found.");
+        }
+        switch (property.toLowerCase()) {
+            case "name":
+                taskToChange.setName(newValue);
+                return true;
+            case "description":
+                taskToChange.setDescription(newValue);
+                return true;
+            case "duration":
+                double newDuration;
+                try {
+                    newDuration = Double.parseDouble(newValue);
+                } catch (NumberFormatException e) {
+                    return refuse("Duration must be a number, not " + newValue);
+                }
+                taskToChange.setDuration(newDuration);
+                return true;
+            case "prerequisites":
+            case "subtasks":
+                return relink(name, taskToChange, Arrays.asList(newValue.split(",")))
+                        || fail("Task " + name + " not found.");
+            default:
+                return refuse("Unknown property " + property);
+        }
+    }
+
+    // Returns false if the task was deleted or replaced before its stripe was locked
+    private boolean relink(String name, Task task, List<String> prerequisiteNames) {
+        List<String> trimmed = new ArrayList<>();
+        for (String prerequisiteName : prerequisiteNames) {
+            trimmed.add(prerequisiteName.trim());
+        }
+        Map<String, Task> candidates = resolve(trimmed);
+        List<ReentrantLock> held = lock(task, candidates.values());
+        try {
+            if (tasks.get(name) != task) {
+                return false;
+            }
+            for (Task old : task.getPrerequisites()) {
+                Set<Task> siblings = dependents.get(old);
+                if (siblings != null) {
+                    siblings.remove(task);
+                }
+            }
+            List<Task> linked = stillRegistered(candidates);
+            for (Task prerequisite : linked) {
+                dependents.computeIfAbsent(prerequisite, k -> ConcurrentHashMap.newKeySet()).add(task);
+            }
+            task.setPrerequisites(linked);
+            return true;
+        } finally {
+            unlock(held);
+        }
+    }
+
+    private boolean refuse(String reason) {
+        System.out.println(reason);
+        return fail(reason);
+    }
+
+    private boolean fail(String reason) {
+        lastError.set(reason);
+        return false;
+    }
+
+    /** Why the last mutation this thread made that returned false was not applied. */
+    public String getLastError() {
+        return lastError.get();
+    }
+
+    private Map<String, Task> resolve(List<String> names) {
+        Map<String, Task> resolved = new LinkedHashMap<>();
+        for (String name : names) {
+            Task task = tasks.get(name);
+            if (task != null) {
+                resolved.put(name, task);
+            }
+        }
+        return resolved;
+    }
+
+    // Must be called with the stripes of the candidates held
+    private List<Task> stillRegistered(Map<String, Task> candidates) {
+        List<Task> registered = new ArrayList<>(candidates.size());
+        for (Map.Entry<String, Task> candidate : candidates.entrySet()) {
+            if (tasks.get(candidate.getKey()) == candidate.getValue()) {
+                registered.add(candidate.getValue());
+            }
+        }
+        return registered;
+    }
+
+    private ReentrantLock stripeOf(Task task) {
+        return stripes[stripeIndex(task)];
+    }
+
+    private static int stripeIndex(Task task) {
+        int h = System.identityHashCode(task);
+        return (h ^ (h >>> 16)) & (STRIPES - 1);
+    }
+
+    private List<ReentrantLock> lock(Task task, Collection<Task> others) {
+        SortedSet<Integer> ordered = new TreeSet<>();
+        ordered.add(stripeIndex(task));
+        for (Task other : others) {
+            ordered.add(stripeIndex(other));
+        }
+        List<ReentrantLock> held = new ArrayList<>(ordered.size());
+        for (int i : ordered) {
+            stripes[i].lock();
+            held.add(stripes[i]);
+        }
+        return held;
+    }
+
+    private static void unlock(List<ReentrantLock> held) {
+        for (int i = held.size() - 1; i >= 0; i--) {
+            held.get(i).unlock();
+        }
+    }
+
+    public String printTask(String name) {
+        Task task = tasks.get(name);
+        return task != null ? ReportRenderer.describe(task) : "Task " + name + " not found.";
+    }
+
+    public String reportDuration(String name) {
+        Task task = tasks.get(name);
+        if (task != null) {
+            return "Duration of task " + name + ": " + calculateDuration(task, new HashMap<>()) + " hours";
+        } else {
+            return "Task " + name + " not found.";
+        }
+    }
+
+    // Same rule as TMS.calculateDuration, memoized for the duration of one read
+    private double calculateDuration(Task task, Map<Task, Double> memo) {
+        return PostOrder.fold(task, Task::getPrerequisites, memo, 0.0, TMS::combineDuration);
+    }
+
+    /** The tasks satisfying the criterion, evaluated over a weakly consistent view of the tasks. */
+    public List<Task> search(String criterionName) {
+        Predicate<Task> criterion = compiledCriteria.get(criterionName);
+        if (criterion == null) {
+            return Collections.emptyList();
+        }
+        List<Task> result = new ArrayList<>();
+        for (Task task : tasks.values()) {
+            if (criterion.test(task)) {
+                result.add(task);
+            }
+        }
+        return Collections.unmodifiableList(result);
+    }
+
+    public boolean defineBasicCriterion(String criterionName, String property, String op, String value) {
+        BasicCriterion basicCriterion = TMS.newBasicCriterion(criterionName, property, op, value);
+        if (basicCriterion == null) {
+            return fail("Invalid criterion " + criterionName + ": " + property + " " + op + " " + value);
+        }
+        synchronized (criteriaLock) {
+            compositeCriteria.remove(criterionName);
+            basicCriteria.put(criterionName, basicCriterion);
+            recompile();
+        }
+        return true;
+    }
+
+    // Like TMS, an undefined operand is still recorded, to be resolved once it is defined
+    public boolean defineNegatedCriterion(String name1, String name2) {
+        CompositeCriterion negatedCriterion = new CompositeCriterion(name1);
+        negatedCriterion.setOperandNames(Collections.singletonList(name2));
+        synchronized (criteriaLock) {
+            CompositeCriterion criterion2 = compositeCriteria.get(name2);
+            negatedCriterion.setNegatedCriterion(criterion2 != null ? criterion2 : new CompositeCriterion(name2));
+            basicCriteria.remove(name1);
+            compositeCriteria.put(name1, negatedCriterion);
+            recompile();
+            return isDefined(name2) || refuse("Base Criterion " + name2 + " not found.");
+        }
+    }
+
+    public boolean defineBinaryCriterion(String name1, String name2, String logicOp, String name3) {
+        CompositeCriterion binaryCriterion = new CompositeCriterion(name1);
+        binaryCriterion.setLogicOp(logicOp);
+        binaryCriterion.setOperandNames(Arrays.asList(name2, name3));
+        synchronized (criteriaLock) {
+            binaryCriterion.setSubCriteria(Arrays.asList(compositeCriteria.get(name2), compositeCriteria.get(name3)));
+            basicCriteria.remove(name1);
+            compositeCriteria.put(name1, binaryCriterion);
+            recompile();
+            for (String operand : Arrays.asList(name2, name3)) {
+                if (!isDefined(operand)) {
+                    return fail("Criterion " + operand + " not found.");
+                }
+            }
+        }
+        return logicOp.trim().equals("&&") || logicOp.trim().equals("||") || fail("Unknown operator " + logicOp);
+    }
+
+    private boolean isDefined(String criterionName) {
+        return basicCriteria.containsKey(criterionName) || compositeCriteria.containsKey(criterionName);
+    }
+
+    private void recompile() {
+        CriterionCompiler compiler = new CriterionCompiler(basicCriteria, compositeCriteria, symbols);
+        Map<String, Predicate<Task>> compiled = new HashMap<>();
+        for (String name : basicCriteria.keySet()) {
+            compiled.put(name, compiler.compile(name));
+        }
+        for (String name : compositeCriteria.keySet()) {
+            compiled.put(name, compiler.compile(name));
+        }
+        compiledCriteria = Collections.unmodifiableMap(compiled);
+    }
+}
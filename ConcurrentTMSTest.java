@@ -0,0 +1,98 @@
+package hk.edu.polyu.comp.comp2021.tms.model;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.*;
+
+public class ConcurrentTMSTest {
+
+    @Test
+    public void testSingleThreadedOperations() {
+        ConcurrentTMS taskManager = new ConcurrentTMS();
+        taskManager.createPrimitiveTask("Task1", "boil-water", 0.3, Collections.emptyList());
+        taskManager.createPrimitiveTask("Task2", "boil-milk", 2, Collections.singletonList("Task1"));
+        taskManager.createCompositeTask("comp1", "make-tea", Arrays.asList("Task1", "Task2"));
+
+        assertEquals("Duration of task comp1: 0.3 hours", taskManager.reportDuration("comp1"));
+        taskManager.changeTask("Task2", "prerequisites", "");
+        assertEquals("Duration of task comp1: 2.0 hours", taskManager.reportDuration("comp1"));
+
+        taskManager.defineBasicCriterion("milk", "description", "contains", "\"milk\"");
+        taskManager.defineNegatedCriterion("noMilk", "milk");
+        assertEquals(Collections.singletonList(taskManager.getTasks().get("Task2")), taskManager.search("milk"));
+        assertEquals(2, taskManager.search("noMilk").size());
+
+        taskManager.deleteTask("Task2");
+        assertEquals(1, taskManager.getTasks().get("comp1").getPrerequisites().size());
+        assertEquals("Task Task2 not found.", taskManager.printTask("Task2"));
+    }
+
+    @Test
+    public void testRefusedChangesReportWhy() {
+        ConcurrentTMS taskManager = new ConcurrentTMS();
+        assertTrue(taskManager.createPrimitiveTask("Task1", "boil-water", 0.3, Collections.emptyList()));
+
+        assertFalse(taskManager.changeTask("Task1", "duration", "long"));
+        assertEquals("Duration must be a number, not long", taskManager.getLastError());
+        assertEquals(0.3, taskManager.getTasks().get("Task1").getDuration(), 0);
+        assertFalse(taskManager.changeTask("Task1", "colour", "red"));
+        assertEquals("Unknown property colour", taskManager.getLastError());
+        assertFalse(taskManager.changeTask("Ghost", "duration", "1"));
+        assertEquals("Task Ghost not found.", taskManager.getLastError());
+        assertFalse(taskManager.deleteTask("Ghost"));
+        assertFalse(taskManager.createPrimitiveTask("1Task", "boil-water", 1, Collections.emptyList()));
+        assertFalse(taskManager.defineBasicCriterion("long", "duration", ">", "NaN"));
+
+        assertTrue(taskManager.changeTask("Task1", "duration", "2"));
+        assertEquals(2, taskManager.getTasks().get("Task1").getDuration(), 0);
+    }
+
+    @Test
+    public void testReadersRunAlongsideWriters() throws InterruptedException {
+        ConcurrentTMS taskManager = new ConcurrentTMS();
+        taskManager.createPrimitiveTask("root", "base", 1, Collections.emptyList());
+        taskManager.defineBasicCriterion("long", "duration", ">", "0.5");
+        AtomicBoolean failed = new AtomicBoolean();
+
+        List<Thread> threads = new ArrayList<>();
+        for (int w = 0; w < 4; w++) {
+            int writer = w;
+            threads.add(new Thread(() -> {
+                for (int i = 0; i < 500; i++) {
+                    String name = "w" + writer + "t" + i;
+                    taskManager.createPrimitiveTask(name, "step", 1, Collections.singletonList("root"));
+                    if (i % 3 == 0) {
+                        taskManager.deleteTask(name);
+                    }
+                }
+            }));
+        }
+        threads.add(new Thread(() -> {
+            for (int i = 0; i < 200; i++) {
+                try {
+                    for (Task task : taskManager.search("long")) {
+                        taskManager.reportDuration(task.getName());
+                    }
+                } catch (RuntimeException e) {
+                    failed.set(true);
+                }
+            }
+        }));
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertFalse(failed.get());
+        assertEquals(1 + 4 * 333, taskManager.getTasks().size());
+        assertEquals(4 * 333, taskManager.search("long").size() - 1);
+    }
+}
@@ -0,0 +1,218 @@
+package hk.edu.polyu.comp.comp2021.tms.model;
+
+import java.util.*;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+/**
+ * Compiles named criteria into {@link CriterionProgram}s and caches them by name.
+ * Composite criteria refer to their operands by name, so redefining an operand
+ * drops the cached form of every criterion that (transitively) uses it.
+ * A reference to an undefined criterion is never satisfied.
+ */
+class CriterionCompiler {
+    private static final Set<Task> UNINDEXED = Collections.unmodifiableSet(new HashSet<>());
+
+    private final Map<String, BasicCriterion> basicCriteria;
+    private final Map<String, CompositeCriterion> compositeCriteria;
+    private final SymbolTable symbols;
+    private final Map<String, CriterionProgram.OnTasks> compiled = new HashMap<>();
+    // operand name -> names of the composite criteria that refer to it
+    private final Map<String, Set<String>> usedBy = new HashMap<>();
+
+    public CriterionCompiler(Map<String, BasicCriterion> basicCriteria,
+                             Map<String, CompositeCriterion> compositeCriteria, SymbolTable symbols) {
+        this.basicCriteria = basicCriteria;
+        this.compositeCriteria = compositeCriteria;
+        this.symbols = symbols;
+    }
+
+    public boolean isDefined(String name) {
+        return basicCriteria.containsKey(name) || compositeCriteria.containsKey(name);
+    }
+
+    public CriterionProgram.OnTasks compile(String name) {
+        return PostOrder.fold(name, this::operands, compiled, CriterionProgram.OnTasks.NEVER,
+                (current, operands) -> combine(current, operands, basicCriteria, compositeCriteria,
+                        basic -> CriterionProgram.ofTask(basic.toPredicate(symbols)), CriterionProgram.OnTasks.NEVER));
+    }
+
+    /**
+     * Compiles the named criterion without caching, turning each basic criterion into a
+     * program with the given function; used to run criteria over other task representations.
+     * Undefined criteria compile to never.
+     */
+    public static <P extends CriterionProgram<?, P>> P compile(String name, Map<String, BasicCriterion> basicCriteria,
+                                                              Map<String, CompositeCriterion> compositeCriteria,
+                                                              Function<BasicCriterion, P> leaf, P never) {
+        return PostOrder.fold(name, current -> operandNames(current, compositeCriteria), new HashMap<>(), never,
+                (current, operands) -> combine(current, operands, basicCriteria, compositeCriteria, leaf, never));
+    }
+
+    private List<String> operands(String name) {
+        List<String> operands = operandNames(name, compositeCriteria);
+        for (String operand : operands) {
+            usedBy.computeIfAbsent(operand, k -> new HashSet<>()).add(name);
+        }
+        return operands;
+    }
+
+    static List<String> operandNames(String name, Map<String, CompositeCriterion> compositeCriteria) {
+        CompositeCriterion composite = compositeCriteria.get(name);
+        return composite == null ? Collections.emptyList() : composite.getOperandNames();
+    }
+
+    private static <P extends CriterionProgram<?, P>> P combine(String name, List<P> operands,
+                                                               Map<String, BasicCriterion> basicCriteria,
+                                                               Map<String, CompositeCriterion> compositeCriteria,
+                                                               Function<BasicCriterion, P> leaf, P never) {
+        CompositeCriterion composite = compositeCriteria.get(name);
+        if (composite == null) {
+            BasicCriterion basic = basicCriteria.get(name);
+            return basic != null ? leaf.apply(basic) : never;
+        }
+        if (composite.getNegatedCriterion() != null) {
+            return operands.isEmpty() ? never : operands.get(0).negate();
+        }
+        if (operands.isEmpty() || composite.getLogicOp() == null) {
+            return never;
+        }
+        P result = operands.get(0);
+        for (int i = 1; i < operands.size(); i++) {
+            switch (composite.getLogicOp().trim()) {
+                case "&&":
+                    result = result.and(operands.get(i));
+                    break;
+                case "||":
+                    result = result.or(operands.get(i));
+                    break;
+                default:
+                    return never;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Forgets the compiled form of the given criterion and of every criterion built on it,
+     * and returns their names.
+     */
+    public Set<String> invalidate(String name) {
+        Deque<String> dirty = new ArrayDeque<>();
+        dirty.push(name);
+        Set<String> seen = new HashSet<>();
+        while (!dirty.isEmpty()) {
+            String current = dirty.pop();
+            if (!seen.add(current)) {
+                continue;
+            }
+            compiled.remove(current);
+            Set<String> users = usedBy.get(current);
+            if (users != null) {
+                dirty.addAll(users);
+            }
+        }
+        return seen;
+    }
+
+    /**
+     * Returns the tasks satisfying the named criterion, answering the indexable parts
+     * from the given index and evaluating the rest only over the candidates they leave.
+     */
+    public Set<Task> select(String name, TaskIndex index, Collection<Task> universe) {
+        Set<Task> result = PostOrder.fold(name, this::indexedOperands, new HashMap<>(), Collections.emptySet(),
+                (current, operands) -> select(current, operands, index, universe));
+        return result != UNINDEXED ? result : scan(compile(name), universe);
+    }
+
+    // The operands select combines; the others are left to the compiled program
+    private List<String> indexedOperands(String name) {
+        CompositeCriterion composite = compositeCriteria.get(name);
+        if (composite == null) {
+            return Collections.emptyList();
+        }
+        List<String> operands = composite.getOperandNames();
+        if (composite.getNegatedCriterion() != null) {
+            return operands.isEmpty() ? operands : operands.subList(0, 1);
+        }
+        return operands.size() == 2 && composite.getLogicOp() != null ? operands : Collections.emptyList();
+    }
+
+    // Combines the selections of the operands; UNINDEXED where only a full scan could answer.
+    // Operand selections may be shared, so they are never modified
+    private Set<Task> select(String name, List<Set<Task>> operands, TaskIndex index, Collection<Task> universe) {
+        CompositeCriterion composite = compositeCriteria.get(name);
+        BasicCriterion basic = basicCriteria.get(name);
+        if (composite == null) {
+            if (basic == null) {
+                return new HashSet<>();
+            }
+            Set<Task> found = index.lookup(basic);
+            return found != null ? found : UNINDEXED;
+        }
+
+        List<String> names = composite.getOperandNames();
+        if (composite.getNegatedCriterion() != null) {
+            if (operands.isEmpty()) {
+                return new HashSet<>(universe);
+            }
+            Set<Task> excluded = operands.get(0);
+            // Each complement copies the universe; a negated negation is cheaper to scan
+            CompositeCriterion operand = compositeCriteria.get(names.get(0));
+            if (excluded == UNINDEXED || operand != null && operand.getNegatedCriterion() != null) {
+                return UNINDEXED;
+            }
+            Set<Task> result = new HashSet<>(universe);
+            result.removeAll(excluded);
+            return result;
+        }
+        if (operands.size() != 2) {
+            return compile(name).isNever() ? new HashSet<>() : UNINDEXED;
+        }
+
+        Set<Task> left = operands.get(0);
+        Set<Task> right = operands.get(1);
+        switch (composite.getLogicOp().trim()) {
+            case "&&":
+                if (left == UNINDEXED && right == UNINDEXED) {
+                    return UNINDEXED;
+                } else if (left == UNINDEXED) {
+                    return scan(compile(names.get(0)), right);
+                } else if (right == UNINDEXED) {
+                    return scan(compile(names.get(1)), left);
+                }
+                return intersect(left, right);
+            case "||":
+                if (left == UNINDEXED || right == UNINDEXED) {
+                    return UNINDEXED;
+                }
+                Set<Task> union = new HashSet<>(left);
+                union.addAll(right);
+                return union;
+            default:
+                return new HashSet<>();
+        }
+    }
+
+    private static Set<Task> intersect(Set<Task> a, Set<Task> b) {
+        Set<Task> smaller = a.size() <= b.size() ? a : b;
+        Set<Task> larger = smaller == a ? b : a;
+        Set<Task> result = new HashSet<>();
+        for (Task task : smaller) {
+            if (larger.contains(task)) {
+                result.add(task);
+            }
+        }
+        return result;
+    }
+
+    private static Set<Task> scan(Predicate<Task> predicate, Collection<Task> candidates) {
+        Set<Task> result = new HashSet<>();
+        for (Task task : candidates) {
+            if (predicate.test(task)) {
+                result.add(task);
+            }
+        }
+        return result;
+    }
+}
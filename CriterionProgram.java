@@ -0,0 +1,311 @@
+package hk.edu.polyu.comp.comp2021.tms.model;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.IntPredicate;
+import java.util.function.Predicate;
+
+/**
+ * A criterion compiled into a flat list of leaf tests with jumps, so evaluating it takes a
+ * loop rather than a call per level of nesting. Each instruction runs one basic test and
+ * continues with the instruction for its outcome, or stops on ACCEPT or REJECT; &&, || and
+ * negation only rewire the jumps. Small operands are copied in; an operand of more than
+ * INLINE instructions is called instead, as one instruction whose outcome is the operand's,
+ * so a program shared by several criteria is held once however often it is used. Calls are
+ * followed with an explicit stack, so nesting of any depth is evaluated in a loop too, and a
+ * program called twice while testing one task answers the second time from the first.
+ * Programs run on tasks are {@link OnTasks}, with Predicate&lt;Task&gt; leaves; programs run on
+ * {@link CompactGraph} ids are {@link OnIds}, with IntPredicate leaves.
+ *
+ * @param <L> the type of the leaf tests
+ * @param <P> the type of program, which combining two programs gives again
+ */
+abstract class CriterionProgram<L, P extends CriterionProgram<L, P>> {
+    private static final int ACCEPT = -1;
+    private static final int REJECT = -2;
+    // Operands up to this many instructions are copied rather than called
+    private static final int INLINE = 8;
+
+    // Instruction i tests leaves.get(i), or runs calls.get(i) where that leaf is null; calls
+    // is null in a program that calls nothing
+    final List<L> leaves;
+    final List<P> calls;
+    final int[] onTrue;
+    final int[] onFalse;
+    final int entry;
+
+    private CriterionProgram(List<L> leaves, List<P> calls, int[] onTrue, int[] onFalse, int entry) {
+        this.leaves = leaves;
+        this.calls = calls;
+        this.onTrue = onTrue;
+        this.onFalse = onFalse;
+        this.entry = entry;
+    }
+
+    public static OnTasks ofTask(Predicate<Task> test) {
+        return new OnTasks(Collections.singletonList(test), null, new int[] {ACCEPT}, new int[] {REJECT}, 0);
+    }
+
+    public static OnIds ofId(IntPredicate test) {
+        return new OnIds(Collections.singletonList(test), null, new int[] {ACCEPT}, new int[] {REJECT}, 0);
+    }
+
+    // A program of the same type with the given instructions
+    abstract P with(List<L> leaves, List<P> calls, int[] onTrue, int[] onFalse, int entry);
+
+    @SuppressWarnings("unchecked")
+    private P self() {
+        return (P) this;
+    }
+
+    public boolean isNever() {
+        return entry == REJECT;
+    }
+
+    /** Instructions in this program, not counting those of the programs it calls. */
+    public int size() {
+        return leaves.size();
+    }
+
+    public P negate() {
+        if (size() > INLINE) {
+            return call(self(), REJECT, ACCEPT);
+        }
+        return with(leaves, calls, swap(onTrue), swap(onFalse), swap(entry));
+    }
+
+    public P and(P next) {
+        return concat(next, ACCEPT);
+    }
+
+    public P or(P next) {
+        return concat(next, REJECT);
+    }
+
+    // A program of one instruction that runs the callee and continues as given
+    private P call(P callee, int whenTrue, int whenFalse) {
+        return with(Collections.singletonList(null), Collections.singletonList(callee), new int[] {whenTrue},
+                new int[] {whenFalse}, 0);
+    }
+
+    // Runs this program, then next wherever this one would have stopped with the given outcome
+    private P concat(P next, int outcome) {
+        // never && x never matches, and never || x is x
+        if (isNever()) {
+            return outcome == ACCEPT ? self() : next;
+        }
+        if (next.isNever()) {
+            return outcome == ACCEPT ? next : self();
+        }
+        P first = size() > INLINE ? call(self(), ACCEPT, REJECT) : self();
+        P second = next.size() > INLINE ? call(next, ACCEPT, REJECT) : next;
+        return first.link(second, outcome);
+    }
+
+    final P link(P next, int outcome) {
+        int n = leaves.size();
+        int nextEntry = next.entry < 0 ? next.entry : next.entry + n;
+        List<L> joinedLeaves = new ArrayList<>(n + next.leaves.size());
+        joinedLeaves.addAll(leaves);
+        joinedLeaves.addAll(next.leaves);
+        List<P> joinedCalls = null;
+        if (calls != null || next.calls != null) {
+            joinedCalls = new ArrayList<>(joinedLeaves.size());
+            joinedCalls.addAll(calls != null ? calls : Collections.nCopies(n, null));
+            joinedCalls.addAll(next.calls != null ? next.calls : Collections.nCopies(next.leaves.size(), null));
+        }
+        int[] joinedTrue = new int[joinedLeaves.size()];
+        int[] joinedFalse = new int[joinedLeaves.size()];
+        for (int i = 0; i < n; i++) {
+            joinedTrue[i] = onTrue[i] == outcome ? nextEntry : onTrue[i];
+            joinedFalse[i] = onFalse[i] == outcome ? nextEntry : onFalse[i];
+        }
+        for (int i = 0; i < next.leaves.size(); i++) {
+            joinedTrue[n + i] = next.onTrue[i] < 0 ? next.onTrue[i] : next.onTrue[i] + n;
+            joinedFalse[n + i] = next.onFalse[i] < 0 ? next.onFalse[i] : next.onFalse[i] + n;
+        }
+        return with(joinedLeaves, joinedCalls, joinedTrue, joinedFalse, entry == outcome ? nextEntry : entry);
+    }
+
+    // The program called at pc, or null if pc is a leaf test
+    final P callee(int pc) {
+        return calls == null ? null : calls.get(pc);
+    }
+
+    final int next(int pc, boolean outcome) {
+        return outcome ? onTrue[pc] : onFalse[pc];
+    }
+
+    private static int[] swap(int[] targets) {
+        int[] swapped = new int[targets.length];
+        for (int i = 0; i < targets.length; i++) {
+            swapped[i] = swap(targets[i]);
+        }
+        return swapped;
+    }
+
+    private static int swap(int target) {
+        return target == ACCEPT ? REJECT : target == REJECT ? ACCEPT : target;
+    }
+
+    // The callers of the program running, each with the instruction that called it, and the
+    // outcomes of the programs that have returned
+    private static final class CallStack<P> {
+        private Object[] programs = new Object[8];
+        private int[] pcs = new int[8];
+        private int depth;
+        private final Map<Object, Boolean> outcomes = new IdentityHashMap<>();
+
+        Boolean outcome(P program) {
+            return outcomes.get(program);
+        }
+
+        void returned(P program, boolean outcome) {
+            outcomes.put(program, outcome);
+        }
+
+        void push(P program, int pc) {
+            if (depth == pcs.length) {
+                programs = Arrays.copyOf(programs, depth * 2);
+                pcs = Arrays.copyOf(pcs, depth * 2);
+            }
+            programs[depth] = program;
+            pcs[depth++] = pc;
+        }
+
+        boolean isEmpty() {
+            return depth == 0;
+        }
+
+        @SuppressWarnings("unchecked")
+        P program() {
+            return (P) programs[depth - 1];
+        }
+
+        int pop() {
+            return pcs[--depth];
+        }
+    }
+
+    /** A program run on Task objects. */
+    static final class OnTasks extends CriterionProgram<Predicate<Task>, OnTasks> implements Predicate<Task> {
+        static final OnTasks NEVER = new OnTasks(Collections.emptyList(), null, new int[0], new int[0], REJECT);
+
+        private OnTasks(List<Predicate<Task>> leaves, List<OnTasks> calls, int[] onTrue, int[] onFalse, int entry) {
+            super(leaves, calls, onTrue, onFalse, entry);
+        }
+
+        @Override
+        OnTasks with(List<Predicate<Task>> leaves, List<OnTasks> calls, int[] onTrue, int[] onFalse, int entry) {
+            return new OnTasks(leaves, calls, onTrue, onFalse, entry);
+        }
+
+        @Override
+        public OnTasks negate() {
+            return super.negate();
+        }
+
+        @Override
+        public boolean test(Task task) {
+            OnTasks program = this;
+            int pc = entry;
+            CallStack<OnTasks> callers = null;
+            while (true) {
+                while (pc >= 0) {
+                    OnTasks callee = program.callee(pc);
+                    if (callee != null) {
+                        if (callers == null) {
+                            callers = new CallStack<>();
+                        }
+                        Boolean known = callers.outcome(callee);
+                        if (known != null) {
+                            pc = program.next(pc, known);
+                        } else {
+                            callers.push(program, pc);
+                            program = callee;
+                            pc = callee.entry;
+                        }
+                    } else {
+                        pc = program.next(pc, program.leaves.get(pc).test(task));
+                    }
+                }
+                if (callers == null || callers.isEmpty()) {
+                    return pc == ACCEPT;
+                }
+                boolean accepted = pc == ACCEPT;
+                callers.returned(program, accepted);
+                program = callers.program();
+                pc = program.next(callers.pop(), accepted);
+            }
+        }
+    }
+
+    /** A program run on the ids of a {@link CompactGraph}. */
+    static final class OnIds extends CriterionProgram<IntPredicate, OnIds> implements IntPredicate {
+        static final OnIds NEVER = new OnIds(Collections.emptyList(), null, new int[0], new int[0], REJECT);
+
+        private OnIds(List<IntPredicate> leaves, List<OnIds> calls, int[] onTrue, int[] onFalse, int entry) {
+            super(leaves, calls, onTrue, onFalse, entry);
+        }
+
+        @Override
+        OnIds with(List<IntPredicate> leaves, List<OnIds> calls, int[] onTrue, int[] onFalse, int entry) {
+            return new OnIds(leaves, calls, onTrue, onFalse, entry);
+        }
+
+        @Override
+        public OnIds negate() {
+            return super.negate();
+        }
+
+        @Override
+        public boolean test(int id) {
+            return (run(id) & 1) != 0;
+        }
+
+        /** How many leaf tests evaluating the id takes, for estimating what a search will cost. */
+        public int steps(int id) {
+            return (int) (run(id) >>> 1);
+        }
+
+        // The leaf tests taken, shifted left once, with the outcome in the low bit
+        private long run(int id) {
+            long steps = 0;
+            OnIds program = this;
+            int pc = entry;
+            CallStack<OnIds> callers = null;
+            while (true) {
+                while (pc >= 0) {
+                    OnIds callee = program.callee(pc);
+                    if (callee != null) {
+                        if (callers == null) {
+                            callers = new CallStack<>();
+                        }
+                        Boolean known = callers.outcome(callee);
+                        if (known != null) {
+                            pc = program.next(pc, known);
+                        } else {
+                            callers.push(program, pc);
+                            program = callee;
+                            pc = callee.entry;
+                        }
+                    } else {
+                        pc = program.next(pc, program.leaves.get(pc).test(id));
+                        steps++;
+                    }
+                }
+                if (callers == null || callers.isEmpty()) {
+                    return steps << 1 | (pc == ACCEPT ? 1 : 0);
+                }
+                boolean accepted = pc == ACCEPT;
+                callers.returned(program, accepted);
+                program = callers.program();
+                pc = program.next(callers.pop(), accepted);
+            }
+        }
+    }
+}
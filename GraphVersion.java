@@ -0,0 +1,267 @@
+package hk.edu.polyu.comp.comp2021.tms.model;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The tasks and criteria of a TMS as one point in its history left them. A version is a set
+ * of {@link PersistentMap}s, so it shares every task it did not change with the version before
+ * it, and never changes afterwards. Any number of threads can search it and report durations
+ * without locking while the TMS goes on to later versions. Durations and earliest finish
+ * times are folded over the tasks the named one reaches; searches and critical paths run over
+ * a {@link CompactGraph} built from the maps when the version is first searched, which is
+ * released once a later version is published.
+ */
+class GraphVersion {
+    static final GraphVersion EMPTY = new GraphVersion(0, 0, new SymbolTable(2), PersistentMap.empty(),
+            PersistentMap.empty(), PersistentMap.empty(), PersistentMap.empty());
+
+    /**
+     * A task as a version holds it; the name and description are handles into the version's
+     * table, and prerequisites are ids of tasks in the same version.
+     */
+    static final class TaskState {
+        final int name;
+        final int description;
+        final double duration;
+        final boolean composite;
+        final int[] prerequisites;
+
+        TaskState(Task task, int[] prerequisites) {
+            this.name = task.getNameSymbol();
+            this.description = task.getDescriptionSymbol();
+            this.duration = task.getDuration();
+            this.composite = task.isComposite();
+            this.prerequisites = prerequisites;
+        }
+    }
+
+    private final long number;
+    private final long timestamp;
+    private final SymbolTable symbols;
+    private final PersistentMap<String, Integer> keys;
+    private final PersistentMap<Integer, TaskState> tasks;
+    private final PersistentMap<String, BasicCriterion> basicCriteria;
+    private final PersistentMap<String, CompositeCriterion> compositeCriteria;
+    private volatile Prepared prepared;
+
+    GraphVersion(long number, long timestamp, SymbolTable symbols, PersistentMap<String, Integer> keys,
+                 PersistentMap<Integer, TaskState> tasks, PersistentMap<String, BasicCriterion> basicCriteria,
+                 PersistentMap<String, CompositeCriterion> compositeCriteria) {
+        this.number = number;
+        this.timestamp = timestamp;
+        this.symbols = symbols;
+        this.keys = keys;
+        this.tasks = tasks;
+        this.basicCriteria = basicCriteria;
+        this.compositeCriteria = compositeCriteria;
+    }
+
+    /** Counts the versions a TMS has published, starting from 1. */
+    public long getNumber() {
+        return number;
+    }
+
+    /** When the version was published, in milliseconds since the epoch. */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    SymbolTable getSymbols() {
+        return symbols;
+    }
+
+    PersistentMap<String, Integer> getKeys() {
+        return keys;
+    }
+
+    PersistentMap<Integer, TaskState> getTaskStates() {
+        return tasks;
+    }
+
+    PersistentMap<String, BasicCriterion> getBasicCriteria() {
+        return basicCriteria;
+    }
+
+    PersistentMap<String, CompositeCriterion> getCompositeCriteria() {
+        return compositeCriteria;
+    }
+
+    public int size() {
+        return keys.size();
+    }
+
+    public boolean contains(String name) {
+        return keys.containsKey(name);
+    }
+
+    /**
+     * The version as a prepared CompactGraph. Threads that ask at the same time may each build
+     * one; they are equal, and the last one built is kept until the version is released.
+     */
+    public CompactGraph getGraph() {
+        return prepared().graph;
+    }
+
+    // The graph and the criteria compiled for it, which are only valid together
+    private Prepared prepared() {
+        Prepared built = prepared;
+        if (built == null) {
+            built = new Prepared(buildGraph().prepare());
+            prepared = built;
+        }
+        return built;
+    }
+
+    /** Drops the graph built for queries; the version builds it again if it is searched later. */
+    void release() {
+        prepared = null;
+    }
+
+    /** The same report as {@link TMS#reportDuration}, for the task as it was in this version. */
+    public String reportDuration(String name) {
+        if (!contains(name)) {
+            return "Task " + name + " not found.";
+        }
+        return "Duration of task " + name + ": " + times(name)[0] + " hours";
+    }
+
+    /** The earliest finish time of the task, or NaN if it is unknown or cannot be scheduled. */
+    public double getEarliestFinishTime(String name) {
+        if (!contains(name)) {
+            return Double.NaN;
+        }
+        return times(name)[1];
+    }
+
+    /**
+     * The duration and earliest finish time of the task, by the rules of CompactGraph: from
+     * the graph if it is built, otherwise folded over only the tasks the named one reaches.
+     */
+    private double[] times(String name) {
+        Prepared built = prepared;
+        if (built != null) {
+            int id = built.graph.id(name);
+            return new double[] {built.graph.duration(id), built.graph.earliestFinish(id)};
+        }
+        double[] cycle = {Double.NaN, Double.NaN};
+        return PostOrder.fold(keys.get(name), this::prerequisites, new HashMap<>(), cycle, (id, children) -> {
+            TaskState state = tasks.get(id);
+            if (children.isEmpty()) {
+                return new double[] {state.duration, state.duration};
+            }
+            double longest = 0;
+            double start = 0;
+            for (double[] child : children) {
+                longest = Math.max(longest, child[0]);
+                start = Math.max(start, child[1]);
+            }
+            return new double[] {longest, state.composite ? start : start + state.duration};
+        });
+    }
+
+    private List<Integer> prerequisites(int id) {
+        int[] prerequisites = tasks.get(id).prerequisites;
+        List<Integer> list = new ArrayList<>(prerequisites.length);
+        for (int prerequisite : prerequisites) {
+            list.add(prerequisite);
+        }
+        return list;
+    }
+
+    /**
+     * The chain of tasks that decides when the named task can finish at the earliest, from a
+     * task without prerequisites up to the named one. Empty if there is no such task.
+     */
+    public List<String> getCriticalPath(String name) {
+        if (!contains(name)) {
+            return Collections.emptyList();
+        }
+        CompactGraph current = getGraph();
+        LinkedList<String> path = new LinkedList<>();
+        int id = current.id(name);
+        while (id >= 0 && !Double.isNaN(current.earliestFinish(id))) {
+            path.addFirst(current.key(id) != null ? current.key(id) : current.name(id));
+            int latest = -1;
+            for (int k = 0; k < current.prerequisiteCount(id); k++) {
+                int prerequisite = current.prerequisite(id, k);
+                if (latest < 0 || current.earliestFinish(prerequisite) > current.earliestFinish(latest)) {
+                    latest = prerequisite;
+                }
+            }
+            id = latest;
+        }
+        return path;
+    }
+
+    /** The names of the tasks satisfying the criterion, or none if it is not defined in this version. */
+    public List<String> searchTasks(String criterionName) {
+        if (!basicCriteria.containsKey(criterionName) && !compositeCriteria.containsKey(criterionName)) {
+            return Collections.emptyList();
+        }
+        Prepared built = prepared();
+        CompactGraph current = built.graph;
+        CriterionProgram.OnIds program = built.compiled.computeIfAbsent(criterionName,
+                name -> current.compile(name, basicCriteria.asMap(), compositeCriteria.asMap()));
+        List<String> names = new ArrayList<>();
+        for (int id : current.select(criterionName, basicCriteria.asMap(), compositeCriteria.asMap(), program)) {
+            names.add(current.key(id));
+        }
+        return names;
+    }
+
+    // Numbers the tasks stored under a name first, then the prerequisites only reachable from them
+    private CompactGraph buildGraph() {
+        Map<Integer, Integer> dense = new HashMap<>(keys.size() * 2);
+        List<String> keyList = new ArrayList<>(keys.size());
+        List<TaskState> states = new ArrayList<>(keys.size());
+        keys.forEach((key, id) -> {
+            if (dense.putIfAbsent(id, states.size()) == null) {
+                keyList.add(key);
+                states.add(tasks.get(id));
+            }
+        });
+        int edgeCount = 0;
+        for (int i = 0; i < states.size(); i++) {
+            for (int prerequisite : states.get(i).prerequisites) {
+                if (dense.putIfAbsent(prerequisite, states.size()) == null) {
+                    keyList.add(null);
+                    states.add(tasks.get(prerequisite));
+                }
+                edgeCount++;
+            }
+        }
+
+        int n = states.size();
+        int[] names = new int[n];
+        int[] descriptions = new int[n];
+        double[] durations = new double[n];
+        boolean[] composite = new boolean[n];
+        int[] offsets = new int[n + 1];
+        int[] targets = new int[edgeCount];
+        int edge = 0;
+        for (int i = 0; i < n; i++) {
+            TaskState state = states.get(i);
+            names[i] = state.name;
+            descriptions[i] = state.description;
+            durations[i] = state.duration;
+            composite[i] = state.composite;
+            offsets[i] = edge;
+            for (int prerequisite : state.prerequisites) {
+                targets[edge++] = dense.get(prerequisite);
+            }
+        }
+        offsets[n] = edge;
+        return CompactGraph.of(keyList.toArray(new String[0]), symbols, names, descriptions, durations, composite,
+                offsets, targets);
+    }
+
+    private static final class Prepared {
+        final CompactGraph graph;
+        final Map<String, CriterionProgram.OnIds> compiled = new ConcurrentHashMap<>();
+
+        Prepared(CompactGraph graph) {
+            this.graph = graph;
+        }
+    }
+}
@@ -0,0 +1,332 @@
+package hk.edu.polyu.comp.comp2021.tms.model;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only log of TMS mutations, written ahead of applying them.
+ *
+ * <pre>
+ * record   length (int, of what follows up to the checksum), sequence (long), op (byte),
+ *          argument count (int), per argument: length (int), UTF-8 bytes; then CRC32 (int)
+ * </pre>
+ * Appends are buffered in memory and made durable by {@link #sync}: the first caller to arrive
+ * writes and forces everything appended so far, and callers arriving meanwhile wait for it
+ * (group commit). With a flush interval a background thread does this periodically instead,
+ * and appends return without waiting. Replay stops at the first torn or corrupt record.
+ * Once a write or force fails the journal is broken: the failed batch may be partly on disk,
+ * so every later append and sync fails too rather than report records durable that are not.
+ */
+class Journal implements Closeable {
+    static final byte CREATE_PRIMITIVE = 1;
+    static final byte CREATE_COMPOSITE = 2;
+    static final byte CHANGE = 3;
+    static final byte DELETE = 4;
+    static final byte DEFINE_BASIC = 5;
+    static final byte DEFINE_NEGATED = 6;
+    static final byte DEFINE_BINARY = 7;
+    static final byte IMPORT = 8;
+    // A committed transaction; its one argument holds the staged entries, see formatBatch
+    static final byte BATCH = 9;
+
+    /** One decoded journal record. */
+    static class Entry {
+        final long sequence;
+        final byte op;
+        final String[] args;
+
+        Entry(long sequence, byte op, String[] args) {
+            this.sequence = sequence;
+            this.op = op;
+            this.args = args;
+        }
+    }
+
+    private final Path path;
+    private final FileChannel channel;
+    private final ScheduledExecutorService flusher;
+    private final long flushIntervalMillis;
+    private ByteArrayOutputStream pending = new ByteArrayOutputStream();
+    private long nextSequence;
+    private long durable;
+    private boolean flushing;
+    // Why a batch could not be written, after which nothing more is
+    private IOException failure;
+
+    /**
+     * Opens the journal for appending after its last intact record. A flush interval of 0 makes
+     * every append wait until it is durable; otherwise appends are forced in the background.
+     */
+    public static Journal open(Path path, long nextSequence, long flushIntervalMillis) throws IOException {
+        long intact = 0;
+        long last = nextSequence - 1;
+        if (Files.exists(path)) {
+            List<Entry> entries = new ArrayList<>();
+            intact = scan(path, entries);
+            for (Entry entry : entries) {
+                last = Math.max(last, entry.sequence);
+            }
+        }
+        return new Journal(path, intact, last + 1, flushIntervalMillis);
+    }
+
+    private Journal(Path path, long intact, long nextSequence, long flushIntervalMillis) throws IOException {
+        this.path = path;
+        this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        channel.truncate(intact);  // drop a torn tail left by a crash
+        channel.position(intact);
+        this.nextSequence = nextSequence;
+        this.durable = nextSequence - 1;
+        this.flushIntervalMillis = flushIntervalMillis;
+        if (flushIntervalMillis > 0) {
+            flusher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "tms-journal-flusher");
+                thread.setDaemon(true);
+                return thread;
+            });
+            flusher.scheduleWithFixedDelay(this::flushQuietly, flushIntervalMillis, flushIntervalMillis,
+                    TimeUnit.MILLISECONDS);
+        } else {
+            flusher = null;
+        }
+    }
+
+    public Path getPath() {
+        return path;
+    }
+
+    public long getFlushIntervalMillis() {
+        return flushIntervalMillis;
+    }
+
+    /** The sequence number of the last record appended. */
+    public synchronized long getLastSequence() {
+        return nextSequence - 1;
+    }
+
+    public long append(byte op, String... args) throws IOException {
+        long sequence;
+        synchronized (this) {
+            checkFailure();
+            sequence = nextSequence++;
+            encode(pending, sequence, op, args);
+        }
+        if (flusher == null) {
+            sync(sequence);
+        }
+        return sequence;
+    }
+
+    /** Returns once every record up to the given sequence number is on disk. */
+    public void sync(long sequence) throws IOException {
+        byte[] batch;
+        long upTo;
+        synchronized (this) {
+            while (durable < sequence && flushing) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting for the journal");
+                }
+            }
+            if (durable >= sequence) {
+                return;
+            }
+            checkFailure();
+            flushing = true;
+            batch = pending.toByteArray();
+            pending = new ByteArrayOutputStream();
+            upTo = nextSequence - 1;
+        }
+        boolean written = false;
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(batch);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(false);
+            written = true;
+        } catch (IOException e) {
+            synchronized (this) {
+                failure = e;
+            }
+            throw e;
+        } finally {
+            synchronized (this) {
+                if (written) {
+                    durable = upTo;
+                } else if (failure == null) {
+                    failure = new IOException("A journal write did not complete");
+                }
+                flushing = false;
+                notifyAll();
+            }
+        }
+    }
+
+    private void checkFailure() throws IOException {
+        if (failure != null) {
+            throw new IOException("The journal failed to write a batch and takes no more records", failure);
+        }
+    }
+
+    public void syncAll() throws IOException {
+        sync(getLastSequence());
+    }
+
+    private void flushQuietly() {
+        try {
+            syncAll();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /** Discards every record; used once they are all reflected in a snapshot. */
+    public synchronized void truncate() throws IOException {
+        syncAll();
+        channel.truncate(0);
+        channel.position(0);
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (flusher != null) {
+            flusher.shutdown();
+        }
+        try {
+            syncAll();
+        } finally {
+            channel.close();
+        }
+    }
+
+    public static List<Entry> read(Path path) throws IOException {
+        List<Entry> entries = new ArrayList<>();
+        scan(path, entries);
+        return entries;
+    }
+
+    // Reads records until the end or the first damaged one; returns the length of the intact part
+    private static long scan(Path path, List<Entry> entries) throws IOException {
+        long intact = 0;
+        try (FileChannel in = FileChannel.open(path, StandardOpenOption.READ);
+             DataInputStream data = new DataInputStream(new BufferedInputStream(Channels.newInputStream(in)))) {
+            while (true) {
+                int length;
+                try {
+                    length = data.readInt();
+                } catch (EOFException e) {
+                    return intact;
+                }
+                if (length < 13 || length > in.size()) {
+                    return intact;
+                }
+                byte[] body = new byte[length];
+                int checksum;
+                try {
+                    data.readFully(body);
+                    checksum = data.readInt();
+                } catch (EOFException e) {
+                    return intact;
+                }
+                CRC32 crc = new CRC32();
+                crc.update(body);
+                if ((int) crc.getValue() != checksum) {
+                    return intact;
+                }
+                entries.add(decode(body));
+                intact += 8 + length;
+            }
+        }
+    }
+
+    /**
+     * Packs entries into one argument, as op,count, and then length:text per argument, so that
+     * a batch of any size is a single record and is replayed whole or not at all.
+     */
+    static String formatBatch(List<Entry> entries) {
+        StringBuilder text = new StringBuilder();
+        for (Entry entry : entries) {
+            text.append(entry.op).append(',').append(entry.args.length).append(',');
+            for (String arg : entry.args) {
+                text.append(arg.length()).append(':').append(arg);
+            }
+        }
+        return text.toString();
+    }
+
+    static List<Entry> parseBatch(String text) {
+        List<Entry> entries = new ArrayList<>();
+        int at = 0;
+        while (at < text.length()) {
+            int comma = text.indexOf(',', at);
+            byte op = Byte.parseByte(text.substring(at, comma));
+            at = text.indexOf(',', comma + 1);
+            String[] args = new String[Integer.parseInt(text.substring(comma + 1, at))];
+            at++;
+            for (int i = 0; i < args.length; i++) {
+                int colon = text.indexOf(':', at);
+                int length = Integer.parseInt(text.substring(at, colon));
+                args[i] = text.substring(colon + 1, colon + 1 + length);
+                at = colon + 1 + length;
+            }
+            entries.add(new Entry(0, op, args));
+        }
+        return entries;
+    }
+
+    private static void encode(ByteArrayOutputStream out, long sequence, byte op, String[] args) {
+        try {
+            ByteArrayOutputStream bodyBytes = new ByteArrayOutputStream(32);
+            DataOutputStream body = new DataOutputStream(bodyBytes);
+            body.writeLong(sequence);
+            body.writeByte(op);
+            body.writeInt(args.length);
+            for (String arg : args) {
+                byte[] bytes = arg.getBytes(StandardCharsets.UTF_8);
+                body.writeInt(bytes.length);
+                body.write(bytes);
+            }
+            byte[] encoded = bodyBytes.toByteArray();
+            CRC32 crc = new CRC32();
+            crc.update(encoded);
+            DataOutputStream record = new DataOutputStream(out);
+            record.writeInt(encoded.length);
+            record.write(encoded);
+            record.writeInt((int) crc.getValue());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);  // cannot happen with in-memory streams
+        }
+    }
+
+    private static Entry decode(byte[] body) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(body));
+        long sequence = in.readLong();
+        byte op = in.readByte();
+        int count = in.readInt();
+        if (count < 0 || count > body.length) {
+            throw new IOException("Bad argument count " + count);
+        }
+        String[] args = new String[count];
+        for (int i = 0; i < args.length; i++) {
+            byte[] bytes = new byte[in.readInt()];
+            in.readFully(bytes);
+            args[i] = new String(bytes, StandardCharsets.UTF_8);
+        }
+        return new Entry(sequence, op, args);
+    }
+}
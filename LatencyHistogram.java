@@ -0,0 +1,86 @@
+package hk.edu.polyu.comp.comp2021.tms.model;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A histogram of non-negative values with log-linear buckets, in the manner of HdrHistogram.
+ * Values below 64 get a bucket each; above that every power of two is split into 32 buckets,
+ * so a reported percentile is within about 3% of the true value. Recording is a few atomic
+ * adds and never blocks, so any number of threads can record while another one reads.
+ */
+class LatencyHistogram {
+    private static final int LINEAR = 64;
+    private static final int SUB_BUCKETS = 32;
+    private static final int BUCKETS = LINEAR + 58 * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    public void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        counts.incrementAndGet(bucket(value));
+        count.increment();
+        sum.add(value);
+        if (value > max.get()) {
+            max.accumulateAndGet(value, Math::max);
+        }
+    }
+
+    public long getCount() {
+        return count.sum();
+    }
+
+    public double getMean() {
+        long n = count.sum();
+        return n == 0 ? 0 : (double) sum.sum() / n;
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    /** The smallest bucket bound that at least the given percentage of the values lie below. */
+    public long getValueAtPercentile(double percentile) {
+        long total = 0;
+        long[] snapshot = new long[BUCKETS];
+        for (int b = 0; b < BUCKETS; b++) {
+            snapshot[b] = counts.get(b);
+            total += snapshot[b];
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long wanted = Math.max(1, (long) Math.ceil(total * percentile / 100));
+        long seen = 0;
+        for (int b = 0; b < BUCKETS; b++) {
+            seen += snapshot[b];
+            if (seen >= wanted) {
+                return Math.min(highestValue(b), getMax());
+            }
+        }
+        return getMax();
+    }
+
+    static int bucket(long value) {
+        if (value < LINEAR) {
+            return (int) value;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - 5;
+        return LINEAR + (shift - 1) * SUB_BUCKETS + (int) (value >>> shift) - SUB_BUCKETS;
+    }
+
+    static long highestValue(int bucket) {
+        if (bucket < LINEAR) {
+            return bucket;
+        }
+        int shift = (bucket - LINEAR) / SUB_BUCKETS + 1;
+        long mantissa = (bucket - LINEAR) % SUB_BUCKETS + SUB_BUCKETS;
+        return shift == 58 && mantissa == 2 * SUB_BUCKETS - 1 ? Long.MAX_VALUE : ((mantissa + 1) << shift) - 1;
+    }
+}
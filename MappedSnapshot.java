@@ -0,0 +1,497 @@
+package hk.edu.polyu.comp.comp2021.tms.model;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+/**
+ * A snapshot file mapped into memory and read in place.
+ * Opening it reads only the header and the criteria; a task is decoded the first time it is
+ * looked up, together with the prerequisites it reaches. Files larger than 2 GiB are mapped
+ * in several segments.
+ */
+class MappedSnapshot {
+    private static final int SEGMENT_BITS = 30;
+    private static final long SEGMENT_SIZE = 1L << SEGMENT_BITS;
+
+    private final MappedByteBuffer[] segments;
+    private final int stringCount;
+    private final int taskCount;
+    private final int keyCount;
+    private final int indexSlots;
+    private final long stringsOffset;
+    private final long tasksOffset;
+    private final long edgesOffset;
+    private final long indexOffset;
+    private final long journalSequence;
+    private final SnapshotFormat.Contents criteria = new SnapshotFormat.Contents();
+    // Version 1 files have no key index; one is built in memory instead
+    private Map<String, Integer> keyIndex;
+    private final Map<Integer, String> strings = new HashMap<>();
+    // The table names and descriptions are interned into, and the handle + 1 of each string id
+    // there, 0 until first interned
+    private SymbolTable symbolTable = criteria.symbols;
+    private final int[] symbols;
+
+    private MappedSnapshot(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            segments = new MappedByteBuffer[(int) ((size + SEGMENT_SIZE - 1) >>> SEGMENT_BITS)];
+            for (int i = 0; i < segments.length; i++) {
+                long start = (long) i << SEGMENT_BITS;
+                segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(SEGMENT_SIZE, size - start));
+            }
+        }
+        if (segments.length == 0 || getInt(0) != SnapshotFormat.MAGIC) {
+            throw new IOException(path + " is not a TMS snapshot");
+        }
+        int version = getInt(4);
+        if (version < 1 || version > SnapshotFormat.VERSION) {
+            throw new IOException("Unsupported snapshot version " + version);
+        }
+        stringCount = getInt(8);
+        symbols = new int[stringCount];
+        taskCount = getInt(12);
+        int basicCount = getInt(20);
+        int compositeCount = getInt(24);
+        indexSlots = version == 1 ? 0 : getInt(28);
+        stringsOffset = getLong(32);
+        tasksOffset = getLong(40);
+        edgesOffset = getLong(48);
+        long criteriaOffset = getLong(56);
+        indexOffset = version == 1 ? 0 : getLong(64);
+
+        if (version == 1) {
+            keyIndex = new HashMap<>();
+            for (int i = 0; i < taskCount; i++) {
+                String key = key(i);
+                if (key != null) {
+                    keyIndex.put(key, i);
+                }
+            }
+            keyCount = keyIndex.size();
+        } else {
+            keyCount = (int) getLong(72);
+        }
+        journalSequence = version >= 3 ? getLong(80) : 0;
+        readCriteria(criteriaOffset, basicCount, compositeCount);
+    }
+
+    public static MappedSnapshot open(Path path) throws IOException {
+        return new MappedSnapshot(path);
+    }
+
+    public Map<String, CompositeCriterion> getCompositeCriteria() {
+        return criteria.compositeCriteria;
+    }
+
+    public Map<String, BasicCriterion> getBasicCriteria() {
+        return criteria.basicCriteria;
+    }
+
+    public long getJournalSequence() {
+        return journalSequence;
+    }
+
+    /** The table nameSymbol and descriptionSymbol return handles into. */
+    public SymbolTable getSymbols() {
+        return symbolTable;
+    }
+
+    /** Interns names and descriptions into the given table from now on. */
+    void setSymbols(SymbolTable symbols) {
+        symbolTable = symbols;
+        Arrays.fill(this.symbols, 0);
+    }
+
+    public int getTaskCount() {
+        return taskCount;
+    }
+
+    /** Number of tasks stored under a name, as opposed to those only reachable as prerequisites. */
+    public int getKeyCount() {
+        return keyCount;
+    }
+
+    /** The record index of the task stored under the name, or -1. */
+    public int find(String key) {
+        if (keyIndex != null) {
+            return keyIndex.getOrDefault(key, -1);
+        }
+        byte[] wanted = key.getBytes(StandardCharsets.UTF_8);
+        int slot = SnapshotFormat.slot(key, indexSlots);
+        while (true) {
+            int record = getInt(indexOffset + 4L * slot);
+            if (record < 0) {
+                return -1;
+            }
+            int keyId = getInt(record(record));
+            if (keyId >= 0 && stringEquals(keyId, wanted)) {
+                return record;
+            }
+            slot = (slot + 1) & (indexSlots - 1);
+        }
+    }
+
+    /** Whether the task of the record is stored under a name. */
+    public boolean isKeyed(int record) {
+        return getInt(record(record)) >= 0;
+    }
+
+    public String key(int record) {
+        int id = getInt(record(record));
+        return id < 0 ? null : string(id);
+    }
+
+    public String name(int record) {
+        return string(getInt(record(record) + 4));
+    }
+
+    public String description(int record) {
+        return string(getInt(record(record) + 8));
+    }
+
+    public int nameSymbol(int record) {
+        return symbol(getInt(record(record) + 4));
+    }
+
+    public int descriptionSymbol(int record) {
+        return symbol(getInt(record(record) + 8));
+    }
+
+    /** The name interned into the given table instead of this snapshot's, and not cached. */
+    public int nameSymbol(int record, SymbolTable into) {
+        return intern(getInt(record(record) + 4), into);
+    }
+
+    public int descriptionSymbol(int record, SymbolTable into) {
+        return intern(getInt(record(record) + 8), into);
+    }
+
+    public boolean isComposite(int record) {
+        return (getInt(record(record) + 12) & SnapshotFormat.FLAG_COMPOSITE) != 0;
+    }
+
+    public double duration(int record) {
+        return Double.longBitsToDouble(getLong(record(record) + 16));
+    }
+
+    public int[] prerequisites(int record) {
+        long base = record(record);
+        int firstEdge = getInt(base + 24);
+        int[] targets = new int[getInt(base + 28)];
+        for (int e = 0; e < targets.length; e++) {
+            targets[e] = getInt(edgesOffset + 4L * (firstEdge + e));
+        }
+        return targets;
+    }
+
+    private long record(int record) {
+        return tasksOffset + (long) SnapshotFormat.TASK_RECORD * record;
+    }
+
+    // Strings repeat heavily (descriptions especially), so each is decoded only once; id -1 is null
+    private String string(int id) {
+        if (id < 0) {
+            return null;
+        }
+        String value = strings.get(id);
+        if (value == null) {
+            long position = stringPosition(id);
+            value = new String(getBytes(position + 4, getInt(position)), StandardCharsets.UTF_8);
+            strings.put(id, value);
+        }
+        return value;
+    }
+
+    private int symbol(int id) {
+        if (id < 0) {
+            return SymbolTable.NULL;
+        }
+        if (symbols[id] == 0) {
+            symbols[id] = intern(id, symbolTable) + 1;
+        }
+        return symbols[id] - 1;
+    }
+
+    // Interned straight from the file's bytes, without decoding
+    private int intern(int id, SymbolTable into) {
+        if (id < 0) {
+            return SymbolTable.NULL;
+        }
+        long position = stringPosition(id);
+        byte[] bytes = getBytes(position + 4, getInt(position));
+        return into.intern(bytes, 0, bytes.length);
+    }
+
+    private boolean stringEquals(int id, byte[] wanted) {
+        long position = stringPosition(id);
+        return getInt(position) == wanted.length && Arrays.equals(getBytes(position + 4, wanted.length), wanted);
+    }
+
+    private long stringPosition(int id) {
+        return stringsOffset + 4L * stringCount + getInt(stringsOffset + 4L * id);
+    }
+
+    private void readCriteria(long position, int basicCount, int compositeCount) {
+        for (int i = 0; i < basicCount; i++, position += 16) {
+            BasicCriterion criterion = new BasicCriterion(string(getInt(position)), string(getInt(position + 4)),
+                    string(getInt(position + 8)), string(getInt(position + 12)));
+            criteria.basicCriteria.put(criterion.getName(), criterion);
+        }
+        List<CompositeCriterion> negated = new ArrayList<>();
+        for (int i = 0; i < compositeCount; i++) {
+            CompositeCriterion criterion = new CompositeCriterion(string(getInt(position)));
+            int logicOp = getInt(position + 4);
+            criterion.setLogicOp(logicOp < 0 ? null : string(logicOp));
+            if (getInt(position + 8) != 0) {
+                negated.add(criterion);
+            }
+            int operandCount = getInt(position + 12);
+            position += 16;
+            List<String> operands = new ArrayList<>(operandCount);
+            for (int n = 0; n < operandCount; n++, position += 4) {
+                int operand = getInt(position);
+                operands.add(operand < 0 ? null : string(operand));
+            }
+            criterion.setOperandNames(operands);
+            criteria.compositeCriteria.put(criterion.getName(), criterion);
+        }
+        SnapshotFormat.linkComposites(criteria.compositeCriteria, negated);
+    }
+
+    private int getInt(long position) {
+        MappedByteBuffer segment = segments[(int) (position >>> SEGMENT_BITS)];
+        int offset = (int) (position & (SEGMENT_SIZE - 1));
+        if (offset + 4 <= segment.limit()) {
+            return segment.getInt(offset);
+        }
+        byte[] bytes = getBytes(position, 4);
+        return (bytes[0] & 0xff) << 24 | (bytes[1] & 0xff) << 16 | (bytes[2] & 0xff) << 8 | (bytes[3] & 0xff);
+    }
+
+    private long getLong(long position) {
+        return ((long) getInt(position) << 32) | (getInt(position + 4) & 0xffffffffL);
+    }
+
+    private byte[] getBytes(long position, int length) {
+        byte[] bytes = new byte[length];
+        int read = 0;
+        while (read < length) {
+            MappedByteBuffer segment = segments[(int) ((position + read) >>> SEGMENT_BITS)];
+            int offset = (int) ((position + read) & (SEGMENT_SIZE - 1));
+            int n = Math.min(length - read, segment.limit() - offset);
+            segment.get(offset, bytes, read, n);
+            read += n;
+        }
+        return bytes;
+    }
+
+    /**
+     * The tasks of a mapped snapshot as a map that decodes each task on first access.
+     * Changes are kept in memory on top of the snapshot, which is never written to.
+     */
+    static class TaskMap extends AbstractMap<String, Task> {
+        private final MappedSnapshot snapshot;
+        // Where decoded tasks are created, over the table the snapshot interns into
+        private TaskStore store;
+        private final Map<Integer, Task> materialized = new HashMap<>();
+        private final Map<String, Task> added = new HashMap<>();
+        // Snapshot keys that were removed or replaced since the snapshot was opened
+        private final Set<String> masked = new HashSet<>();
+
+        TaskMap(MappedSnapshot snapshot, TaskStore store) {
+            this.snapshot = snapshot;
+            this.store = store;
+        }
+
+        /** Tasks decoded from now on are created in the given store, with symbols from its table. */
+        void setStore(TaskStore store) {
+            this.store = store;
+            snapshot.setSymbols(store.getSymbols());
+        }
+
+        @Override
+        public Task get(Object key) {
+            if (!(key instanceof String)) {
+                return null;
+            }
+            Task task = added.get(key);
+            if (task != null || masked.contains(key)) {
+                return task;
+            }
+            int record = snapshot.find((String) key);
+            return record < 0 ? null : materialize(record);
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            return get(key) != null;
+        }
+
+        @Override
+        public Task put(String key, Task task) {
+            Task previous = get(key);
+            if (snapshot.find(key) >= 0) {
+                masked.add(key);
+            }
+            added.put(key, task);
+            return previous;
+        }
+
+        @Override
+        public Task remove(Object key) {
+            Task previous = get(key);
+            if (previous != null) {
+                added.remove(key);
+                if (snapshot.find((String) key) >= 0) {
+                    masked.add((String) key);
+                }
+            }
+            return previous;
+        }
+
+        @Override
+        public int size() {
+            return snapshot.getKeyCount() - masked.size() + added.size();
+        }
+
+        @Override
+        public Set<Entry<String, Task>> entrySet() {
+            return new AbstractSet<Entry<String, Task>>() {
+                @Override
+                public Iterator<Entry<String, Task>> iterator() {
+                    return new EntryIterator();
+                }
+
+                @Override
+                public int size() {
+                    return TaskMap.this.size();
+                }
+            };
+        }
+
+        /**
+         * The tasks in iteration order, materializing none of them. A task not decoded yet is
+         * read from its record into a detached copy in a store of its own, with its name and
+         * description interned into the given table and its prerequisites as copies that carry
+         * only their names; the copy is enough to test criteria on and export, and is dropped
+         * after use with its store.
+         */
+        Iterable<Task> detached(SymbolTable symbols) {
+            return () -> new Iterator<Task>() {
+                private int record = 0;
+                private final Iterator<Task> overlay = added.values().iterator();
+                private Task next;
+
+                @Override
+                public boolean hasNext() {
+                    while (next == null && record < snapshot.getTaskCount()) {
+                        if (snapshot.isKeyed(record) && (masked.isEmpty() || !masked.contains(snapshot.key(record)))) {
+                            Task known = materialized.get(record);
+                            next = known != null ? known : detach(record, symbols);
+                        }
+                        record++;
+                    }
+                    if (next == null && overlay.hasNext()) {
+                        next = overlay.next();
+                    }
+                    return next != null;
+                }
+
+                @Override
+                public Task next() {
+                    if (!hasNext()) {
+                        throw new NoSuchElementException();
+                    }
+                    Task result = next;
+                    next = null;
+                    return result;
+                }
+            };
+        }
+
+        // A prerequisite decoded since then may have been renamed, so it is named as it is now
+        private Task detach(int record, SymbolTable symbols) {
+            int[] prerequisites = snapshot.prerequisites(record);
+            TaskStore detached = new TaskStore(symbols, 1 + prerequisites.length);
+            Task task = new Task(detached, snapshot.nameSymbol(record, symbols),
+                    snapshot.descriptionSymbol(record, symbols), snapshot.duration(record));
+            task.setComposite(snapshot.isComposite(record));
+            for (int prerequisite : prerequisites) {
+                Task known = materialized.get(prerequisite);
+                int name = known != null ? known.getSymbols().transfer(known.getNameSymbol(), symbols)
+                        : snapshot.nameSymbol(prerequisite, symbols);
+                task.addPrerequisite(new Task(detached, name, SymbolTable.NULL, 0));
+            }
+            return task;
+        }
+
+        // Decodes the task and every task it reaches, then links their prerequisites
+        private Task materialize(int root) {
+            Task known = materialized.get(root);
+            if (known != null) {
+                return known;
+            }
+            List<Integer> created = new ArrayList<>();
+            Deque<Integer> pending = new ArrayDeque<>();
+            pending.push(root);
+            while (!pending.isEmpty()) {
+                int record = pending.pop();
+                if (materialized.containsKey(record)) {
+                    continue;
+                }
+                Task task = new Task(store, snapshot.nameSymbol(record), snapshot.descriptionSymbol(record),
+                        snapshot.duration(record));
+                task.setComposite(snapshot.isComposite(record));
+                materialized.put(record, task);
+                created.add(record);
+                for (int prerequisite : snapshot.prerequisites(record)) {
+                    pending.push(prerequisite);
+                }
+            }
+            for (int record : created) {
+                Task task = materialized.get(record);
+                for (int prerequisite : snapshot.prerequisites(record)) {
+                    task.addPrerequisite(materialized.get(prerequisite));
+                }
+            }
+            return materialized.get(root);
+        }
+
+        private class EntryIterator implements Iterator<Entry<String, Task>> {
+            private int record = 0;
+            private final Iterator<Entry<String, Task>> overlay = added.entrySet().iterator();
+            private Entry<String, Task> next;
+
+            @Override
+            public boolean hasNext() {
+                while (next == null && record < snapshot.getTaskCount()) {
+                    String key = snapshot.key(record);
+                    if (key != null && !masked.contains(key)) {
+                        next = new SimpleImmutableEntry<>(key, materialize(record));
+                    }
+                    record++;
+                }
+                if (next == null && overlay.hasNext()) {
+                    next = overlay.next();
+                }
+                return next != null;
+            }
+
+            @Override
+            public Entry<String, Task> next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                Entry<String, Task> result = next;
+                next = null;
+                return result;
+            }
+        }
+    }
+}
@@ -0,0 +1,46 @@
+package hk.edu.polyu.comp.comp2021.tms.model;
+
+/**
+ * Receives measurements from a TMS. The default, {@link #NONE}, records nothing and does not
+ * even read the clock, so an uninstrumented TMS pays one call per operation.
+ * {@link OperationMetrics} keeps histograms and publishes them over JMX and as text.
+ */
+interface Metrics {
+    enum Op { CREATE, CHANGE, DELETE, IMPORT, SEARCH, STORE, LOAD }
+
+    Metrics NONE = new Metrics() {
+        @Override
+        public long start() {
+            return 0;
+        }
+
+        @Override
+        public void record(Op op, long start) {
+        }
+
+        @Override
+        public void recordSearch(int matches, int candidates) {
+        }
+
+        @Override
+        public void recordGraph(CompactGraph graph) {
+        }
+
+        @Override
+        public void recordTaskCount(int tasks) {
+        }
+    };
+
+    /** The start of an operation, to be handed back to {@link #record}. */
+    long start();
+
+    void record(Op op, long start);
+
+    /** A search that matched the given number of tasks out of the ones it looked at. */
+    void recordSearch(int matches, int candidates);
+
+    /** Task, edge and depth figures of the graph as it is now. */
+    void recordGraph(CompactGraph graph);
+
+    void recordTaskCount(int tasks);
+}
@@ -0,0 +1,205 @@
+package hk.edu.polyu.comp.comp2021.tms.model;
+
+import javax.management.*;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Latency histograms per kind of operation, search selectivity and the size and depth of the
+ * task graph. The figures can be read as JMX attributes once {@link #register} has been
+ * called (for example in JConsole under hk.edu.polyu.comp.comp2021.tms), or written out as
+ * text every so often with {@link #startDump}. Latencies are reported in microseconds and
+ * selectivity as the share of the looked-at tasks that matched, in per mille.
+ */
+class OperationMetrics implements Metrics, DynamicMBean {
+    private static final String DOMAIN = "hk.edu.polyu.comp.comp2021.tms";
+
+    private final Map<Op, LatencyHistogram> latencies = new EnumMap<>(Op.class);
+    private final LatencyHistogram selectivity = new LatencyHistogram();
+    private final LongAdder matched = new LongAdder();
+    private final LongAdder examined = new LongAdder();
+    private volatile int tasks;
+    private volatile int edges;
+    private volatile int maxDepth;
+    private volatile double meanDepth;
+    private ScheduledExecutorService dumper;
+
+    public OperationMetrics() {
+        for (Op op : Op.values()) {
+            latencies.put(op, new LatencyHistogram());
+        }
+    }
+
+    @Override
+    public long start() {
+        return System.nanoTime();
+    }
+
+    @Override
+    public void record(Op op, long start) {
+        latencies.get(op).record(System.nanoTime() - start);
+    }
+
+    @Override
+    public void recordSearch(int matches, int candidates) {
+        selectivity.record(candidates == 0 ? 0 : matches * 1000L / candidates);
+        matched.add(matches);
+        examined.add(candidates);
+    }
+
+    @Override
+    public void recordGraph(CompactGraph graph) {
+        int named = 0;
+        long depthSum = 0;
+        int deepest = 0;
+        for (int id = 0; id < graph.size(); id++) {
+            if (graph.key(id) != null) {
+                named++;
+                depthSum += graph.depth(id);
+                deepest = Math.max(deepest, graph.depth(id));
+            }
+        }
+        tasks = named;
+        edges = graph.edgeCount();
+        maxDepth = deepest;
+        meanDepth = named == 0 ? 0 : (double) depthSum / named;
+    }
+
+    @Override
+    public void recordTaskCount(int tasks) {
+        this.tasks = tasks;
+    }
+
+    public LatencyHistogram getLatency(Op op) {
+        return latencies.get(op);
+    }
+
+    public LatencyHistogram getSelectivity() {
+        return selectivity;
+    }
+
+    /** Every figure by name, in a stable order; these are also the JMX attributes. */
+    public Map<String, Object> values() {
+        Map<String, Object> values = new LinkedHashMap<>();
+        for (Op op : Op.values()) {
+            LatencyHistogram histogram = latencies.get(op);
+            String prefix = op.name().toLowerCase();
+            values.put(prefix + "Count", histogram.getCount());
+            values.put(prefix + "MeanMicros", histogram.getMean() / 1e3);
+            values.put(prefix + "P50Micros", histogram.getValueAtPercentile(50) / 1e3);
+            values.put(prefix + "P99Micros", histogram.getValueAtPercentile(99) / 1e3);
+            values.put(prefix + "MaxMicros", histogram.getMax() / 1e3);
+        }
+        long looked = examined.sum();
+        values.put("searchSelectivityPerMille", looked == 0 ? 0.0 : matched.sum() * 1000.0 / looked);
+        values.put("searchSelectivityP50PerMille", selectivity.getValueAtPercentile(50));
+        values.put("searchSelectivityP99PerMille", selectivity.getValueAtPercentile(99));
+        values.put("tasks", tasks);
+        values.put("edges", edges);
+        values.put("maxDepth", maxDepth);
+        values.put("meanDepth", meanDepth);
+        return values;
+    }
+
+    /** One line per operation that has run, then the search and graph figures. */
+    public String dump() {
+        StringBuilder text = new StringBuilder();
+        for (Op op : Op.values()) {
+            LatencyHistogram histogram = latencies.get(op);
+            if (histogram.getCount() > 0) {
+                text.append(String.format("%-7s count=%d mean=%.1fus p50=%.1fus p99=%.1fus max=%.1fus%n",
+                        op.name().toLowerCase(), histogram.getCount(), histogram.getMean() / 1e3,
+                        histogram.getValueAtPercentile(50) / 1e3, histogram.getValueAtPercentile(99) / 1e3,
+                        histogram.getMax() / 1e3));
+            }
+        }
+        Map<String, Object> values = values();
+        text.append(String.format("search  selectivity=%.1f%% p99=%.1f%%%n",
+                (double) values.get("searchSelectivityPerMille") / 10,
+                (long) values.get("searchSelectivityP99PerMille") / 10.0));
+        text.append(String.format("graph   tasks=%d edges=%d maxDepth=%d meanDepth=%.1f%n",
+                tasks, edges, maxDepth, meanDepth));
+        return text.toString();
+    }
+
+    /** Writes {@link #dump} to out every intervalMillis from a background thread. */
+    public synchronized void startDump(PrintStream out, long intervalMillis) {
+        stopDump();
+        dumper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "tms-metrics-dump");
+            thread.setDaemon(true);
+            return thread;
+        });
+        dumper.scheduleAtFixedRate(() -> out.print(dump()), intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized void stopDump() {
+        if (dumper != null) {
+            dumper.shutdown();
+            dumper = null;
+        }
+    }
+
+    /** Registers these metrics with the platform MBean server under the given name. */
+    public ObjectName register(String name) throws JMException {
+        ObjectName objectName = new ObjectName(DOMAIN + ":type=Metrics,name=" + ObjectName.quote(name));
+        ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+        return objectName;
+    }
+
+    public void unregister(ObjectName objectName) throws JMException {
+        ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+    }
+
+    @Override
+    public Object getAttribute(String attribute) throws AttributeNotFoundException {
+        Object value = values().get(attribute);
+        if (value == null) {
+            throw new AttributeNotFoundException(attribute);
+        }
+        return value;
+    }
+
+    @Override
+    public AttributeList getAttributes(String[] attributes) {
+        Map<String, Object> values = values();
+        AttributeList list = new AttributeList();
+        for (String attribute : attributes) {
+            if (values.containsKey(attribute)) {
+                list.add(new Attribute(attribute, values.get(attribute)));
+            }
+        }
+        return list;
+    }
+
+    @Override
+    public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+        throw new AttributeNotFoundException(attribute.getName() + " is read-only");
+    }
+
+    @Override
+    public AttributeList setAttributes(AttributeList attributes) {
+        return new AttributeList();
+    }
+
+    @Override
+    public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException {
+        throw new ReflectionException(new NoSuchMethodException(actionName));
+    }
+
+    @Override
+    public MBeanInfo getMBeanInfo() {
+        List<MBeanAttributeInfo> attributes = new ArrayList<>();
+        for (Map.Entry<String, Object> value : values().entrySet()) {
+            attributes.add(new MBeanAttributeInfo(value.getKey(), value.getValue().getClass().getName(),
+                    value.getKey(), true, false, false));
+        }
+        return new MBeanInfo(getClass().getName(), "TMS operation metrics",
+                attributes.toArray(new MBeanAttributeInfo[0]), null, null, null);
+    }
+}
@@ -0,0 +1,90 @@
+package hk.edu.polyu.comp.comp2021.tms.model;
+
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.Predicate;
+
+/**
+ * Evaluates a compiled criterion over a task collection on a ForkJoinPool.
+ * Collections smaller than the threshold are filtered on the calling thread.
+ * The tasks must not be modified while a search is running.
+ */
+class ParallelSearch {
+    private static final int MIN_CHUNK = 1024;
+
+    private final ForkJoinPool pool;
+    private final int threshold;
+
+    public ParallelSearch(int parallelism, int threshold) {
+        this.pool = new ForkJoinPool(parallelism);
+        this.threshold = threshold;
+    }
+
+    public int getParallelism() {
+        return pool.getParallelism();
+    }
+
+    public int getThreshold() {
+        return threshold;
+    }
+
+    public List<Task> filter(Collection<Task> tasks, Predicate<Task> criterion) {
+        Task[] snapshot = tasks.toArray(new Task[0]);
+        if (snapshot.length < threshold || pool.getParallelism() == 1) {
+            List<Task> result = new ArrayList<>();
+            collect(snapshot, 0, snapshot.length, criterion, result);
+            return Collections.unmodifiableList(result);
+        }
+        // A few chunks per worker keeps the load balanced without making the leaves tiny
+        int chunk = Math.max(MIN_CHUNK, snapshot.length / (pool.getParallelism() * 4));
+        List<Task> result = pool.invoke(new FilterTask(snapshot, 0, snapshot.length, chunk, criterion));
+        return Collections.unmodifiableList(result);
+    }
+
+    public void shutdown() {
+        pool.shutdown();
+    }
+
+    private static void collect(Task[] tasks, int from, int to, Predicate<Task> criterion, List<Task> result) {
+        for (int i = from; i < to; i++) {
+            if (criterion.test(tasks[i])) {
+                result.add(tasks[i]);
+            }
+        }
+    }
+
+    private static class FilterTask extends RecursiveTask<List<Task>> {
+        private static final long serialVersionUID = 1L;
+
+        private final Task[] tasks;
+        private final int from;
+        private final int to;
+        private final int chunk;
+        private final Predicate<Task> criterion;
+
+        FilterTask(Task[] tasks, int from, int to, int chunk, Predicate<Task> criterion) {
+            this.tasks = tasks;
+            this.from = from;
+            this.to = to;
+            this.chunk = chunk;
+            this.criterion = criterion;
+        }
+
+        @Override
+        protected List<Task> compute() {
+            if (to - from <= chunk) {
+                List<Task> result = new ArrayList<>();
+                collect(tasks, from, to, criterion, result);
+                return result;
+            }
+            int mid = (from + to) >>> 1;
+            FilterTask left = new FilterTask(tasks, from, mid, chunk, criterion);
+            left.fork();
+            List<Task> right = new FilterTask(tasks, mid, to, chunk, criterion).compute();
+            List<Task> result = left.join();
+            result.addAll(right);
+            return result;
+        }
+    }
+}
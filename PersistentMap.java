@@ -0,0 +1,280 @@
+package hk.edu.polyu.comp.comp2021.tms.model;
+
+import java.util.*;
+import java.util.function.BiConsumer;
+
+/**
+ * An immutable hash map in which put and remove return a new map that shares all but one
+ * path of nodes with the old one, so keeping many versions costs little more than keeping
+ * one. It is a hash array mapped trie in the compressed (CHAMP) layout: each node uses five
+ * bits of the hash, and keeps a bitmap of the entries stored inline and one of the child
+ * nodes. Keys whose 32-bit hashes are equal end up together in a node searched linearly.
+ */
+final class PersistentMap<K, V> {
+    private static final PersistentMap<?, ?> EMPTY = new PersistentMap<>(Node.EMPTY, 0);
+
+    private final Node root;
+    private final int size;
+
+    private PersistentMap(Node root, int size) {
+        this.root = root;
+        this.size = size;
+    }
+
+    @SuppressWarnings("unchecked")
+    public static <K, V> PersistentMap<K, V> empty() {
+        return (PersistentMap<K, V>) EMPTY;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    @SuppressWarnings("unchecked")
+    public V get(Object key) {
+        return (V) root.get(key, hash(key), 0);
+    }
+
+    public boolean containsKey(Object key) {
+        return get(key) != null;
+    }
+
+    /** This map with the key mapped to the value; values may not be null. */
+    public PersistentMap<K, V> put(K key, V value) {
+        boolean[] added = new boolean[1];
+        Node newRoot = root.put(key, value, hash(key), 0, added);
+        return newRoot == root ? this : new PersistentMap<>(newRoot, added[0] ? size + 1 : size);
+    }
+
+    public PersistentMap<K, V> remove(Object key) {
+        Node newRoot = root.remove(key, hash(key), 0);
+        return newRoot == root ? this : new PersistentMap<>(newRoot, size - 1);
+    }
+
+    @SuppressWarnings("unchecked")
+    public void forEach(BiConsumer<? super K, ? super V> action) {
+        root.forEach((BiConsumer<Object, Object>) action);
+    }
+
+    /** A read-only java.util.Map view of this map. */
+    public Map<K, V> asMap() {
+        return new AbstractMap<K, V>() {
+            @Override
+            public V get(Object key) {
+                return PersistentMap.this.get(key);
+            }
+
+            @Override
+            public boolean containsKey(Object key) {
+                return PersistentMap.this.containsKey(key);
+            }
+
+            @Override
+            public int size() {
+                return size;
+            }
+
+            @Override
+            public Set<Entry<K, V>> entrySet() {
+                Map<K, V> copy = new LinkedHashMap<>();
+                PersistentMap.this.forEach(copy::put);
+                return Collections.unmodifiableMap(copy).entrySet();
+            }
+        };
+    }
+
+    private static int hash(Object key) {
+        int h = key.hashCode();
+        return h ^ (h >>> 16);
+    }
+
+    /*
+     * Inline entries come first in content as key, value pairs in bit order; child nodes follow
+     * from the end backwards. Below the last level (shift >= 32) both bitmaps are 0 and content
+     * holds only the pairs of colliding keys.
+     */
+    private static final class Node {
+        static final Node EMPTY = new Node(0, 0, new Object[0]);
+
+        final int dataMap;
+        final int nodeMap;
+        final Object[] content;
+
+        Node(int dataMap, int nodeMap, Object[] content) {
+            this.dataMap = dataMap;
+            this.nodeMap = nodeMap;
+            this.content = content;
+        }
+
+        int pairs() {
+            return (content.length - Integer.bitCount(nodeMap)) / 2;
+        }
+
+        Node child(int index) {
+            return (Node) content[content.length - 1 - index];
+        }
+
+        Object get(Object key, int hash, int shift) {
+            if (shift >= 32) {
+                for (int i = 0; i < content.length; i += 2) {
+                    if (content[i].equals(key)) {
+                        return content[i + 1];
+                    }
+                }
+                return null;
+            }
+            int bit = bit(hash, shift);
+            if ((dataMap & bit) != 0) {
+                int i = 2 * index(dataMap, bit);
+                return content[i].equals(key) ? content[i + 1] : null;
+            }
+            if ((nodeMap & bit) != 0) {
+                return child(index(nodeMap, bit)).get(key, hash, shift + 5);
+            }
+            return null;
+        }
+
+        Node put(Object key, Object value, int hash, int shift, boolean[] added) {
+            if (shift >= 32) {
+                for (int i = 0; i < content.length; i += 2) {
+                    if (content[i].equals(key)) {
+                        return content[i + 1] == value ? this : new Node(0, 0, with(content, i + 1, value));
+                    }
+                }
+                added[0] = true;
+                Object[] grown = Arrays.copyOf(content, content.length + 2);
+                grown[content.length] = key;
+                grown[content.length + 1] = value;
+                return new Node(0, 0, grown);
+            }
+            int bit = bit(hash, shift);
+            if ((dataMap & bit) != 0) {
+                int i = 2 * index(dataMap, bit);
+                Object existing = content[i];
+                if (existing.equals(key)) {
+                    return content[i + 1] == value ? this : new Node(dataMap, nodeMap, with(content, i + 1, value));
+                }
+                added[0] = true;
+                Node merged = merge(existing, content[i + 1], PersistentMap.hash(existing), key, value, hash, shift + 5);
+                return new Node(dataMap ^ bit, nodeMap | bit, dataToNode(bit, i, merged));
+            }
+            if ((nodeMap & bit) != 0) {
+                int j = index(nodeMap, bit);
+                Node child = child(j);
+                Node newChild = child.put(key, value, hash, shift + 5, added);
+                return newChild == child ? this
+                        : new Node(dataMap, nodeMap, with(content, content.length - 1 - j, newChild));
+            }
+            added[0] = true;
+            int i = 2 * index(dataMap, bit);
+            Object[] grown = new Object[content.length + 2];
+            System.arraycopy(content, 0, grown, 0, i);
+            grown[i] = key;
+            grown[i + 1] = value;
+            System.arraycopy(content, i, grown, i + 2, content.length - i);
+            return new Node(dataMap | bit, nodeMap, grown);
+        }
+
+        Node remove(Object key, int hash, int shift) {
+            if (shift >= 32) {
+                for (int i = 0; i < content.length; i += 2) {
+                    if (content[i].equals(key)) {
+                        Object[] shrunk = new Object[content.length - 2];
+                        System.arraycopy(content, 0, shrunk, 0, i);
+                        System.arraycopy(content, i + 2, shrunk, i, content.length - i - 2);
+                        return new Node(0, 0, shrunk);
+                    }
+                }
+                return this;
+            }
+            int bit = bit(hash, shift);
+            if ((dataMap & bit) != 0) {
+                int i = 2 * index(dataMap, bit);
+                if (!content[i].equals(key)) {
+                    return this;
+                }
+                Object[] shrunk = new Object[content.length - 2];
+                System.arraycopy(content, 0, shrunk, 0, i);
+                System.arraycopy(content, i + 2, shrunk, i, content.length - i - 2);
+                return new Node(dataMap ^ bit, nodeMap, shrunk);
+            }
+            if ((nodeMap & bit) != 0) {
+                int j = index(nodeMap, bit);
+                Node child = child(j);
+                Node newChild = child.remove(key, hash, shift + 5);
+                if (newChild == child) {
+                    return this;
+                }
+                if (newChild.nodeMap == 0 && newChild.pairs() == 1) {
+                    // A child down to one entry is folded back into this node
+                    return new Node(dataMap | bit, nodeMap ^ bit,
+                            nodeToData(bit, content.length - 1 - j, newChild.content[0], newChild.content[1]));
+                }
+                return new Node(dataMap, nodeMap, with(content, content.length - 1 - j, newChild));
+            }
+            return this;
+        }
+
+        void forEach(BiConsumer<Object, Object> action) {
+            int pairs = pairs();
+            for (int i = 0; i < pairs; i++) {
+                action.accept(content[2 * i], content[2 * i + 1]);
+            }
+            for (int j = 0; j < Integer.bitCount(nodeMap); j++) {
+                child(j).forEach(action);
+            }
+        }
+
+        // Replaces the pair at i by a child node, which goes where the bit puts it among the children
+        private Object[] dataToNode(int bit, int i, Node node) {
+            Object[] result = new Object[content.length - 1];
+            int nodeAt = content.length - 2 - index(nodeMap, bit);
+            System.arraycopy(content, 0, result, 0, i);
+            System.arraycopy(content, i + 2, result, i, nodeAt - i);
+            result[nodeAt] = node;
+            System.arraycopy(content, nodeAt + 2, result, nodeAt + 1, content.length - nodeAt - 2);
+            return result;
+        }
+
+        // Replaces the child at position nodeAt by a pair, which goes where the bit puts it among the pairs
+        private Object[] nodeToData(int bit, int nodeAt, Object key, Object value) {
+            Object[] result = new Object[content.length + 1];
+            int i = 2 * index(dataMap, bit);
+            System.arraycopy(content, 0, result, 0, i);
+            result[i] = key;
+            result[i + 1] = value;
+            System.arraycopy(content, i, result, i + 2, nodeAt - i);
+            System.arraycopy(content, nodeAt + 1, result, nodeAt + 2, content.length - nodeAt - 1);
+            return result;
+        }
+
+        private static Node merge(Object key1, Object value1, int hash1, Object key2, Object value2, int hash2,
+                                  int shift) {
+            if (shift >= 32) {
+                return new Node(0, 0, new Object[] {key1, value1, key2, value2});
+            }
+            int bit1 = bit(hash1, shift);
+            int bit2 = bit(hash2, shift);
+            if (bit1 == bit2) {
+                return new Node(0, bit1, new Object[] {merge(key1, value1, hash1, key2, value2, hash2, shift + 5)});
+            }
+            return Integer.compareUnsigned(bit1, bit2) < 0
+                    ? new Node(bit1 | bit2, 0, new Object[] {key1, value1, key2, value2})
+                    : new Node(bit1 | bit2, 0, new Object[] {key2, value2, key1, value1});
+        }
+
+        private static Object[] with(Object[] content, int i, Object value) {
+            Object[] copy = content.clone();
+            copy[i] = value;
+            return copy;
+        }
+
+        private static int bit(int hash, int shift) {
+            return 1 << ((hash >>> shift) & 31);
+        }
+
+        private static int index(int bitmap, int bit) {
+            return Integer.bitCount(bitmap & (bit - 1));
+        }
+    }
+}
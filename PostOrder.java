@@ -0,0 +1,69 @@
+package hk.edu.polyu.comp.comp2021.tms.model;
+
+import java.util.*;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+
+/**
+ * Post-order evaluation over a graph with an explicit stack instead of recursion, so that
+ * prerequisite chains and criterion trees of any depth are evaluated without a deep call
+ * stack. Each node is combined from the results of its children once; results are kept in
+ * the given memo, which callers may keep between walks.
+ */
+final class PostOrder {
+    private PostOrder() {
+    }
+
+    /**
+     * Evaluates root bottom-up. A child that is already on the path being walked (a cycle)
+     * contributes onCycle instead of being entered again.
+     */
+    public static <N, R> R fold(N root, Function<? super N, ? extends List<? extends N>> children,
+                                Map<N, R> memo, R onCycle, BiFunction<? super N, List<R>, R> combine) {
+        R known = memo.get(root);
+        if (known != null) {
+            return known;
+        }
+        Deque<Frame<N, R>> stack = new ArrayDeque<>();
+        Set<N> onPath = new HashSet<>();
+        stack.push(new Frame<>(root, children.apply(root)));
+        onPath.add(root);
+        while (true) {
+            Frame<N, R> frame = stack.peek();
+            if (frame.next < frame.children.size()) {
+                N child = frame.children.get(frame.next++);
+                R result = memo.get(child);
+                if (result != null) {
+                    frame.results.add(result);
+                } else if (onPath.contains(child)) {
+                    frame.results.add(onCycle);
+                } else {
+                    stack.push(new Frame<>(child, children.apply(child)));
+                    onPath.add(child);
+                }
+                continue;
+            }
+            stack.pop();
+            onPath.remove(frame.node);
+            R result = combine.apply(frame.node, frame.results);
+            memo.put(frame.node, result);
+            if (stack.isEmpty()) {
+                return result;
+            }
+            stack.peek().results.add(result);
+        }
+    }
+
+    private static class Frame<N, R> {
+        final N node;
+        final List<? extends N> children;
+        final List<R> results;
+        int next;
+
+        Frame(N node, List<? extends N> children) {
+            this.node = node;
+            this.children = children;
+            this.results = new ArrayList<>(children.size());
+        }
+    }
+}
@@ -0,0 +1,244 @@
+package hk.edu.polyu.comp.comp2021.tms.model;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A shard served by a {@link TMSServer}, usually in a process of its own started with
+ * {@link #launch}. Each call is one request and response on a single connection; errors the
+ * server reports are printed, as the TMS itself would print them, and a refused mutation
+ * returns false.
+ */
+class RemoteShard implements Shard {
+    private final SocketChannel channel;
+    private final BufferedReader in;
+    private final Writer out;
+    private final Process process;
+
+    public RemoteShard(SocketAddress address) throws IOException {
+        this(address, null);
+    }
+
+    private RemoteShard(SocketAddress address, Process process) throws IOException {
+        this.channel = address instanceof UnixDomainSocketAddress
+                ? SocketChannel.open(StandardProtocolFamily.UNIX)
+                : SocketChannel.open();
+        channel.connect(address);
+        this.in = new BufferedReader(new InputStreamReader(Channels.newInputStream(channel), StandardCharsets.UTF_8));
+        this.out = new BufferedWriter(new OutputStreamWriter(Channels.newOutputStream(channel), StandardCharsets.UTF_8));
+        this.process = process;
+    }
+
+    /**
+     * Starts a TMSServer in a new JVM with this process's class path and connects to it, over
+     * the Unix domain socket at socketPath or, if that is null, a free loopback port. The
+     * server's own output is copied to this process's; closing the shard stops it.
+     */
+    public static RemoteShard launch(String socketPath) throws IOException {
+        String java = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+        String address = socketPath != null ? "--unix=" + socketPath : "--port=0";
+        Process process = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+                TMSServer.class.getName(), address)
+                .redirectError(ProcessBuilder.Redirect.INHERIT)
+                .start();
+        BufferedReader output = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8));
+        String listening = output.readLine();
+        if (listening == null || !listening.startsWith("Listening on ")) {
+            process.destroyForcibly();
+            throw new IOException("The shard server did not start: " + listening);
+        }
+        // Keep draining what the server prints, or it blocks once the pipe is full
+        Thread copier = new Thread(() -> {
+            try {
+                String line;
+                while ((line = output.readLine()) != null) {
+                    System.out.println(line);
+                }
+            } catch (IOException e) {
+                // The process is gone
+            }
+        }, "tms-shard-output");
+        copier.setDaemon(true);
+        copier.start();
+        SocketAddress bound = socketPath != null ? UnixDomainSocketAddress.of(socketPath)
+                : new InetSocketAddress(InetAddress.getLoopbackAddress(),
+                        Integer.parseInt(listening.substring(listening.lastIndexOf(':') + 1)));
+        try {
+            return new RemoteShard(bound, process);
+        } catch (IOException e) {
+            process.destroyForcibly();
+            throw e;
+        }
+    }
+
+    @Override
+    public boolean createPrimitiveTask(String name, String description, double duration, List<String> prerequisites) {
+        return request("CreatePrimitiveTask " + name + " " + TMSServer.encode(description) + " " + duration + " " + list(prerequisites)) != null;
+    }
+
+    @Override
+    public boolean createCompositeTask(String name, String description, List<String> subtasks) {
+        return request("CreateCompositeTask " + name + " " + TMSServer.encode(description) + " " + list(subtasks)) != null;
+    }
+
+    @Override
+    public boolean changeTask(String name, String property, String newValue) {
+        String value = property.equalsIgnoreCase("description") ? TMSServer.encode(newValue) : newValue;
+        return request("ChangeTask " + name + " " + property + " " + value) != null;
+    }
+
+    @Override
+    public boolean deleteTask(String name) {
+        return request("DeleteTask " + name) != null;
+    }
+
+    @Override
+    public boolean defineBasicCriterion(String name, String property, String op, String value) {
+        return request("DefineBasicCriterion " + name + " " + property + " " + op + " " + value) != null;
+    }
+
+    @Override
+    public boolean defineNegatedCriterion(String name1, String name2) {
+        return request("DefineNegatedCriterion " + name1 + " " + name2) != null;
+    }
+
+    @Override
+    public boolean defineBinaryCriterion(String name1, String name2, String logicOp, String name3) {
+        return request("DefineBinaryCriterion " + name1 + " " + name2 + " " + logicOp + " " + name3) != null;
+    }
+
+    @Override
+    public List<String> search(String criterionName) {
+        String result = request("Search " + criterionName);
+        return result == null || result.isEmpty() ? new ArrayList<>() : new ArrayList<>(Arrays.asList(result.split(",")));
+    }
+
+    @Override
+    public TaskInfo describe(String name) {
+        String result = quietly("DescribeTask " + name);
+        if (result == null) {
+            return null;
+        }
+        // duration composite prerequisites description, the description encoded as one word
+        String[] fields = result.split(" ", 4);
+        List<String> prerequisites = new ArrayList<>();
+        for (String prerequisite : fields[2].split(",")) {
+            if (!prerequisite.isEmpty()) {
+                prerequisites.add(prerequisite);
+            }
+        }
+        return new TaskInfo(name, fields.length > 3 ? TMSServer.decode(fields[3]) : "", Double.parseDouble(fields[0]),
+                Boolean.parseBoolean(fields[1]), prerequisites);
+    }
+
+    @Override
+    public double getDuration(String name) {
+        // "Duration of task NAME: VALUE hours"
+        String result = quietly("ReportDuration " + name);
+        return result == null ? Double.NaN
+                : Double.parseDouble(result.substring(result.lastIndexOf(": ") + 2, result.lastIndexOf(" hours")));
+    }
+
+    @Override
+    public double getEarliestFinishTime(String name) {
+        String result = quietly("ReportEarliestFinishTime " + name);
+        return result == null ? Double.NaN : Double.parseDouble(result);
+    }
+
+    @Override
+    public Map<String, Partial> partials(List<String> names, Set<String> stubs, boolean finish) {
+        Map<String, Partial> partials = new HashMap<>();
+        String result = request("ReportPartials " + (finish ? "finish " : "duration ") + list(names) + " "
+                + list(new ArrayList<>(stubs)));
+        if (result == null || result.isEmpty()) {
+            return partials;
+        }
+        // name known count, then count pairs of stub offset, for each task
+        String[] words = result.trim().split(" ");
+        for (int i = 0; i < words.length; ) {
+            String name = words[i++];
+            double known = Double.parseDouble(words[i++]);
+            int count = Integer.parseInt(words[i++]);
+            Map<String, Double> offsets = new HashMap<>();
+            for (int j = 0; j < count; j++, i += 2) {
+                offsets.put(words[i], Double.parseDouble(words[i + 1]));
+            }
+            partials.put(name, new Partial(known, offsets));
+        }
+        return partials;
+    }
+
+    @Override
+    public synchronized void close() {
+        try {
+            if (channel.isOpen()) {
+                out.write("Quit\n");
+                out.flush();
+                in.readLine();
+                channel.close();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        if (process != null) {
+            try {
+                // The server exits once its standard input is closed
+                process.getOutputStream().close();
+                if (!process.waitFor(10, TimeUnit.SECONDS)) {
+                    process.destroyForcibly();
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            } catch (InterruptedException e) {
+                process.destroyForcibly();
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    // The text after OK, or null after printing the error
+    private String request(String request) {
+        String response = send(request);
+        if (response != null && response.startsWith("ERR")) {
+            System.out.println(response.substring(Math.min(4, response.length())));
+            return null;
+        }
+        return response == null ? null : response.substring(Math.min(3, response.length()));
+    }
+
+    // As request, for lookups where a missing task is an answer rather than an error
+    private String quietly(String request) {
+        String response = send(request);
+        return response == null || response.startsWith("ERR") ? null : response.substring(Math.min(3, response.length()));
+    }
+
+    private synchronized String send(String request) {
+        try {
+            out.write(request);
+            out.write('\n');
+            out.flush();
+            String response = in.readLine();
+            if (response == null) {
+                throw new EOFException("The shard closed the connection");
+            }
+            return response;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    private static String list(List<String> names) {
+        return names.isEmpty() ? "," : String.join(",", names);
+    }
+}
@@ -0,0 +1,153 @@
+package hk.edu.polyu.comp.comp2021.tms.model;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.util.*;
+
+/**
+ * Builds a complete text report in memory so that it can be written with a single flush.
+ */
+class ReportRenderer {
+    static final String SEPARATOR = "------------------------";
+
+    private final StringBuilder buffer = new StringBuilder();
+
+    public ReportRenderer line(String text) {
+        buffer.append(text).append(System.lineSeparator());
+        return this;
+    }
+
+    public ReportRenderer separator() {
+        return line(SEPARATOR);
+    }
+
+    public ReportRenderer task(Task task) {
+        buffer.append(describe(task)).append(System.lineSeparator());
+        return this;
+    }
+
+    public ReportRenderer tasks(Collection<Task> tasks) {
+        for (Task task : tasks) {
+            task(task);
+            separator();
+        }
+        return this;
+    }
+
+    public ReportRenderer search(String criterionName, Collection<Task> tasks, Collection<Task> matches) {
+        line("Tasks satisfying criterion " + criterionName + ":");
+        for (Task task : tasks) {
+            if (task != null) {
+                line("Task: " + task.getName());
+                if (matches.contains(task)) {
+                    line("- " + task.getName());
+                }
+            } else {
+                line("Encountered null task.");
+            }
+        }
+        return this;
+    }
+
+    public ReportRenderer criteria(Collection<CompositeCriterion> criteria) {
+        for (CompositeCriterion criterion : criteria) {
+            line("Criterion: " + criterion.getName());
+            criterionDetails(criterion, 1);
+            separator();
+        }
+        return this;
+    }
+
+    // Prints the criterion tree depth-first from an explicit stack. A criterion that is already
+    // being printed further up (possible after a load relinks criteria by name) is not expanded again
+    private void criterionDetails(CompositeCriterion root, int indentation) {
+        Deque<Detail> pending = new ArrayDeque<>();
+        Set<CompositeCriterion> onPath = Collections.newSetFromMap(new IdentityHashMap<>());
+        pending.push(new Detail(root, indentation, null));
+        while (!pending.isEmpty()) {
+            Detail detail = pending.pop();
+            if (detail.text != null) {
+                line(detail.text);
+                continue;
+            }
+            CompositeCriterion criterion = detail.criterion;
+            if (criterion == null) {
+                continue;  // Skip if the criterion is null
+            }
+            if (detail.indentation < 0) {
+                onPath.remove(criterion);
+                continue;
+            }
+
+            String spaces = " ".repeat(detail.indentation * 2);
+            line(spaces + "Criterion: " + criterion.getName());
+            line(spaces + "  LogicOp: " + criterion.getLogicOp());
+            if (!onPath.add(criterion)) {
+                continue;
+            }
+            // Pushed in reverse: the subcriteria come out first, then the negated criterion
+            pending.push(new Detail(criterion, -1, null));
+            if (criterion.getNegatedCriterion() != null) {
+                pending.push(new Detail(criterion.getNegatedCriterion(), detail.indentation + 1, null));
+                pending.push(new Detail(null, 0,
+                        spaces + "  Negated Criterion: " + criterion.getNegatedCriterion().getName()));
+            }
+            List<CompositeCriterion> subCriteria = criterion.getSubCriteria();
+            for (int i = subCriteria.size() - 1; i >= 0; i--) {
+                pending.push(new Detail(subCriteria.get(i), detail.indentation + 1, null));
+            }
+        }
+    }
+
+    // A criterion to print at an indentation (negative once its subtree is done), or a line of text
+    private static class Detail {
+        final CompositeCriterion criterion;
+        final int indentation;
+        final String text;
+
+        Detail(CompositeCriterion criterion, int indentation, String text) {
+            this.criterion = criterion;
+            this.indentation = indentation;
+            this.text = text;
+        }
+    }
+
+    public void flushTo(PrintStream out) {
+        out.print(buffer);
+        out.flush();
+        buffer.setLength(0);
+    }
+
+    public void flushTo(Writer out) {
+        try {
+            out.append(buffer);
+            out.flush();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        buffer.setLength(0);
+    }
+
+    @Override
+    public String toString() {
+        return buffer.toString();
+    }
+
+    static String describe(Task task) {
+        StringBuilder result = new StringBuilder("Task Information:\n");
+        result.append("Name: ").append(task.getName()).append("\n");
+        result.append("Description: ").append(task.getDescription()).append("\n");
+        result.append("Duration: ").append(task.getDuration()).append(" hours\n");
+        if (task.getPrerequisites().isEmpty()) {
+            result.append("Prerequisites: ");
+        } else {
+            result.append("Subtasks: ");
+            for (Task subtask : task.getPrerequisites()) {
+                result.append(subtask.getName()).append(", ");
+            }
+        }
+        return result.toString();
+    }
+}
@@ -0,0 +1,184 @@
+package hk.edu.polyu.comp.comp2021.tms.model;
+
+import java.util.*;
+
+/**
+ * Critical-path schedule of a task graph, computed once from a topological order.
+ * A task starts when all its prerequisites have finished. A composite task spans its
+ * subtasks, so it finishes with the last of them; without subtasks it takes its own duration.
+ * Tasks that lie on or behind a prerequisite cycle cannot be scheduled and are left out.
+ */
+class Schedule {
+    private static final double EPSILON = 1e-9;
+
+    private final Task[] order;
+    private final Map<Task, Integer> ids;
+    private final double[] earliestStart;
+    private final double[] earliestFinish;
+    private final double[] latestStart;
+    private final double[] latestFinish;
+    private final double projectFinish;
+
+    private Schedule(Task[] order, Map<Task, Integer> ids, double[] earliestStart, double[] earliestFinish,
+                     double[] latestStart, double[] latestFinish, double projectFinish) {
+        this.order = order;
+        this.ids = ids;
+        this.earliestStart = earliestStart;
+        this.earliestFinish = earliestFinish;
+        this.latestStart = latestStart;
+        this.latestFinish = latestFinish;
+        this.projectFinish = projectFinish;
+    }
+
+    public static Schedule of(Collection<Task> tasks) {
+        // Number the tasks and collect the successor lists
+        int n = tasks.size();
+        Task[] byId = tasks.toArray(new Task[0]);
+        Map<Task, Integer> ids = new IdentityHashMap<>(n * 2);
+        for (int i = 0; i < n; i++) {
+            ids.put(byId[i], i);
+        }
+        int[] inDegree = new int[n];
+        List<List<Integer>> successors = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) {
+            successors.add(new ArrayList<>(2));
+        }
+        for (int i = 0; i < n; i++) {
+            for (Task prerequisite : byId[i].getPrerequisites()) {
+                Integer p = ids.get(prerequisite);
+                if (p != null) {
+                    successors.get(p).add(i);
+                    inDegree[i]++;
+                }
+            }
+        }
+
+        // Kahn's algorithm; whatever is left over sits on or behind a cycle
+        int[] topo = new int[n];
+        int head = 0;
+        int tail = 0;
+        for (int i = 0; i < n; i++) {
+            if (inDegree[i] == 0) {
+                topo[tail++] = i;
+            }
+        }
+        while (head < tail) {
+            for (int s : successors.get(topo[head++])) {
+                if (--inDegree[s] == 0) {
+                    topo[tail++] = s;
+                }
+            }
+        }
+        int scheduled = tail;
+
+        // Forward pass: earliest start and finish
+        double[] es = new double[n];
+        double[] ef = new double[n];
+        double projectFinish = 0;
+        for (int k = 0; k < scheduled; k++) {
+            int i = topo[k];
+            ef[i] = es[i] + span(byId[i]);
+            projectFinish = Math.max(projectFinish, ef[i]);
+            for (int s : successors.get(i)) {
+                es[s] = Math.max(es[s], ef[i]);
+            }
+        }
+
+        // Backward pass: latest finish and start
+        double[] ls = new double[n];
+        double[] lf = new double[n];
+        Arrays.fill(lf, projectFinish);
+        for (int k = scheduled - 1; k >= 0; k--) {
+            int i = topo[k];
+            for (int s : successors.get(i)) {
+                lf[i] = Math.min(lf[i], ls[s]);
+            }
+            ls[i] = lf[i] - span(byId[i]);
+        }
+
+        Task[] order = new Task[scheduled];
+        Map<Task, Integer> scheduledIds = new IdentityHashMap<>(scheduled * 2);
+        for (int k = 0; k < scheduled; k++) {
+            order[k] = byId[topo[k]];
+            scheduledIds.put(order[k], topo[k]);
+        }
+        return new Schedule(order, scheduledIds, es, ef, ls, lf, projectFinish);
+    }
+
+    private static double span(Task task) {
+        return task.isComposite() && !task.getPrerequisites().isEmpty() ? 0 : task.getDuration();
+    }
+
+    public boolean contains(Task task) {
+        return ids.containsKey(task);
+    }
+
+    public double getEarliestStart(Task task) {
+        return earliestStart[ids.get(task)];
+    }
+
+    public double getEarliestFinish(Task task) {
+        return earliestFinish[ids.get(task)];
+    }
+
+    public double getLatestStart(Task task) {
+        return latestStart[ids.get(task)];
+    }
+
+    public double getLatestFinish(Task task) {
+        return latestFinish[ids.get(task)];
+    }
+
+    public double getSlack(Task task) {
+        int i = ids.get(task);
+        return latestStart[i] - earliestStart[i];
+    }
+
+    public double getProjectFinish() {
+        return projectFinish;
+    }
+
+    /** Scheduled tasks in topological order (prerequisites first). */
+    public List<Task> getOrder() {
+        return Collections.unmodifiableList(Arrays.asList(order));
+    }
+
+    public Map<String, Double> getEarliestFinishTimes() {
+        Map<String, Double> result = new LinkedHashMap<>(order.length * 2);
+        for (Task task : order) {
+            result.put(task.getName(), earliestFinish[ids.get(task)]);
+        }
+        return result;
+    }
+
+    /** The zero-slack chain that ends at the project finish, first task first. */
+    public List<Task> getCriticalPath() {
+        Task current = null;
+        for (int k = order.length - 1; k >= 0; k--) {
+            int i = ids.get(order[k]);
+            if (Math.abs(earliestFinish[i] - projectFinish) < EPSILON && isCritical(i)) {
+                current = order[k];
+                break;
+            }
+        }
+        LinkedList<Task> path = new LinkedList<>();
+        while (current != null) {
+            path.addFirst(current);
+            double start = earliestStart[ids.get(current)];
+            Task next = null;
+            for (Task prerequisite : current.getPrerequisites()) {
+                Integer p = ids.get(prerequisite);
+                if (p != null && isCritical(p) && Math.abs(earliestFinish[p] - start) < EPSILON) {
+                    next = prerequisite;
+                    break;
+                }
+            }
+            current = next;
+        }
+        return path;
+    }
+
+    private boolean isCritical(int i) {
+        return Math.abs(latestStart[i] - earliestStart[i]) < EPSILON;
+    }
+}
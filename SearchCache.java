@@ -0,0 +1,189 @@
+package hk.edu.polyu.comp.comp2021.tms.model;
+
+import java.util.*;
+
+/**
+ * Search results by criterion name, kept up to date as tasks change instead of being thrown
+ * away. The TMS reports each task it changes and each name whose task it replaces; the next
+ * lookup evaluates the cached criteria over just those tasks. Redefining a criterion drops the
+ * results of it and of the criteria built on it, and loads and rolled-back transactions drop
+ * everything. The least recently used results are evicted once there are more than maxEntries
+ * of them or they hold more than maxMatches tasks between them.
+ */
+class SearchCache {
+    private static class Entry {
+        final CriterionProgram.OnTasks program;
+        final Set<Task> matches;
+
+        Entry(CriterionProgram.OnTasks program, Set<Task> matches) {
+            this.program = program;
+            this.matches = matches;
+        }
+    }
+
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private int maxEntries = 64;
+    private long maxMatches = 1_000_000;
+    private long cachedMatches;
+    // The name every task is stored under; null while nothing is cached
+    private Map<Task, String> stored;
+    private final Set<Task> changed = Collections.newSetFromMap(new IdentityHashMap<>());
+    private final Map<String, Task> replaced = new HashMap<>();
+
+    private long hits;
+    private long misses;
+    private long evictions;
+    private long reevaluations;
+
+    /** The cached result for the criterion, brought up to date with the given tasks, or null. */
+    public Set<Task> get(String criterionName, Map<String, Task> tasks) {
+        Entry entry = entries.get(criterionName);
+        if (entry == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        update(tasks);
+        return entry.matches;
+    }
+
+    public void put(String criterionName, CriterionProgram.OnTasks program, Set<Task> matches, Map<String, Task> tasks) {
+        if (maxEntries == 0 || matches.size() > maxMatches) {
+            return;
+        }
+        if (stored == null) {
+            stored = new IdentityHashMap<>(tasks.size() * 2);
+            for (Map.Entry<String, Task> task : tasks.entrySet()) {
+                stored.put(task.getValue(), task.getKey());
+            }
+        } else {
+            update(tasks);
+        }
+        Set<Task> copy = Collections.newSetFromMap(new IdentityHashMap<>(matches.size() * 2));
+        copy.addAll(matches);
+        Entry old = entries.put(criterionName, new Entry(program, copy));
+        if (old != null) {
+            cachedMatches -= old.matches.size();
+        }
+        cachedMatches += copy.size();
+        evict();
+    }
+
+    /** The task's fields are about to change. */
+    public void changed(Task task) {
+        if (stored != null) {
+            changed.add(task);
+        }
+    }
+
+    /** The task stored under the name is about to be replaced or removed. */
+    public void replacing(String name, Task before) {
+        if (stored != null && !replaced.containsKey(name)) {
+            replaced.put(name, before);
+        }
+    }
+
+    /** Forgets the results of the given criteria. */
+    public void invalidate(Collection<String> criterionNames) {
+        for (String name : criterionNames) {
+            Entry old = entries.remove(name);
+            if (old != null) {
+                cachedMatches -= old.matches.size();
+            }
+        }
+    }
+
+    public void clear() {
+        entries.clear();
+        cachedMatches = 0;
+        stored = null;
+        changed.clear();
+        replaced.clear();
+    }
+
+    public void setLimits(int maxEntries, long maxMatches) {
+        if (maxEntries < 0 || maxMatches < 0) {
+            throw new IllegalArgumentException("Cache limits cannot be negative");
+        }
+        this.maxEntries = maxEntries;
+        this.maxMatches = maxMatches;
+        evict();
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    public long getHits() {
+        return hits;
+    }
+
+    public long getMisses() {
+        return misses;
+    }
+
+    public long getEvictions() {
+        return evictions;
+    }
+
+    /** How many times a cached criterion was evaluated again over a changed task. */
+    public long getReevaluations() {
+        return reevaluations;
+    }
+
+    public double getHitRatio() {
+        long lookups = hits + misses;
+        return lookups == 0 ? 0 : (double) hits / lookups;
+    }
+
+    // Applies the changes reported since the last lookup to every cached result
+    private void update(Map<String, Task> tasks) {
+        if (changed.isEmpty() && replaced.isEmpty()) {
+            return;
+        }
+        for (Map.Entry<String, Task> key : replaced.entrySet()) {
+            Task before = key.getValue();
+            Task after = tasks.get(key.getKey());
+            if (before != null && before != after) {
+                stored.remove(before);
+                for (Entry entry : entries.values()) {
+                    if (entry.matches.remove(before)) {
+                        cachedMatches--;
+                    }
+                }
+            }
+            if (after != null) {
+                stored.put(after, key.getKey());
+                changed.add(after);
+            }
+        }
+        for (Task task : changed) {
+            boolean isStored = stored.containsKey(task);
+            for (Entry entry : entries.values()) {
+                if (isStored && entry.program.test(task)) {
+                    if (entry.matches.add(task)) {
+                        cachedMatches++;
+                    }
+                } else if (entry.matches.remove(task)) {
+                    cachedMatches--;
+                }
+                reevaluations++;
+            }
+        }
+        changed.clear();
+        replaced.clear();
+        evict();
+    }
+
+    private void evict() {
+        Iterator<Entry> eldest = entries.values().iterator();
+        while (eldest.hasNext() && (entries.size() > maxEntries || cachedMatches > maxMatches)) {
+            cachedMatches -= eldest.next().matches.size();
+            eldest.remove();
+            evictions++;
+        }
+        if (entries.isEmpty()) {
+            clear();
+        }
+    }
+}
@@ -0,0 +1,206 @@
+package hk.edu.polyu.comp.comp2021.tms.model;
+
+import java.util.*;
+
+/**
+ * One partition of a {@link ShardedTMS}: a TMS in this process or, through {@link RemoteShard},
+ * one served by another. A shard only ever sees names, so tasks on different shards refer to
+ * each other by name.
+ */
+interface Shard extends AutoCloseable {
+    // Each mutation returns false if the shard refused it, having printed why
+
+    boolean createPrimitiveTask(String name, String description, double duration, List<String> prerequisites);
+
+    boolean createCompositeTask(String name, String description, List<String> subtasks);
+
+    boolean changeTask(String name, String property, String newValue);
+
+    boolean deleteTask(String name);
+
+    boolean defineBasicCriterion(String name, String property, String op, String value);
+
+    boolean defineNegatedCriterion(String name1, String name2);
+
+    boolean defineBinaryCriterion(String name1, String name2, String logicOp, String name3);
+
+    /** The names of the tasks on this shard that meet the criterion. */
+    List<String> search(String criterionName);
+
+    /** The task as stored on this shard, or null if the shard has no such task. */
+    TaskInfo describe(String name);
+
+    /** The duration the shard's TMS reports for the task, or NaN if there is no such task. */
+    double getDuration(String name);
+
+    /** The earliest finish time the shard's TMS computes for the task, or NaN. */
+    double getEarliestFinishTime(String name);
+
+    /**
+     * The duration, or with finish the earliest finish time, of each named task as far as
+     * this shard can tell, with the given tasks taken for stubs of tasks held elsewhere.
+     * Names the shard does not hold are left out.
+     */
+    Map<String, Partial> partials(List<String> names, Set<String> stubs, boolean finish);
+
+    @Override
+    void close();
+
+    /** A task's own fields, with its prerequisites (or subtasks) by name. */
+    final class TaskInfo {
+        final String name;
+        final String description;
+        final double duration;
+        final boolean composite;
+        final List<String> prerequisites;
+
+        TaskInfo(String name, String description, double duration, boolean composite, List<String> prerequisites) {
+            this.name = name;
+            this.description = description;
+            this.duration = duration;
+            this.composite = composite;
+            this.prerequisites = prerequisites;
+        }
+    }
+
+    /**
+     * A result folded over the prerequisites a shard holds, up to its stubs: the value is the
+     * larger of known and, for every stub, the stub's own value plus its offset.
+     */
+    final class Partial {
+        final double known;
+        final Map<String, Double> offsets;
+
+        Partial(double known, Map<String, Double> offsets) {
+            this.known = known;
+            this.offsets = offsets;
+        }
+
+        /** The partials of the named tasks of the TMS, by the rules of TMS durations and Schedule. */
+        static Map<String, Partial> of(TMS tms, List<String> names, Set<String> stubs, boolean finish) {
+            Map<String, Partial> partials = new HashMap<>();
+            Map<Task, Partial> memo = new HashMap<>();
+            Partial none = new Partial(0, Collections.emptyMap());
+            for (String name : names) {
+                Task root = tms.getTasks().get(name);
+                if (root != null) {
+                    partials.put(name, PostOrder.fold(root, Task::getPrerequisites, memo, none,
+                            (task, children) -> combine(task, children, stubs, finish)));
+                }
+            }
+            return partials;
+        }
+
+        private static Partial combine(Task task, List<Partial> children, Set<String> stubs, boolean finish) {
+            if (stubs.contains(task.getName())) {
+                return new Partial(Double.NEGATIVE_INFINITY, Collections.singletonMap(task.getName(), 0.0));
+            }
+            if (children.isEmpty()) {
+                return new Partial(task.getDuration(), Collections.emptyMap());
+            }
+            // A duration is the longest of the prerequisites'; a finish time adds the task's span
+            double known = finish ? 0 : Double.NEGATIVE_INFINITY;
+            Map<String, Double> offsets = new HashMap<>();
+            for (Partial child : children) {
+                known = Math.max(known, child.known);
+                child.offsets.forEach((stub, offset) -> offsets.merge(stub, offset, Math::max));
+            }
+            double span = !finish || task.isComposite() ? 0 : task.getDuration();
+            if (span != 0) {
+                offsets.replaceAll((stub, offset) -> offset + span);
+            }
+            return new Partial(known + span, offsets);
+        }
+    }
+
+    /** A shard backed by a TMS in this process. */
+    final class Local implements Shard {
+        private final TMS tms;
+
+        Local(TMS tms) {
+            this.tms = tms;
+        }
+
+        TMS getTMS() {
+            return tms;
+        }
+
+        @Override
+        public boolean createPrimitiveTask(String name, String description, double duration, List<String> prerequisites) {
+            return tms.createPrimitiveTask(name, description, duration, prerequisites);
+        }
+
+        @Override
+        public boolean createCompositeTask(String name, String description, List<String> subtasks) {
+            return tms.createCompositeTask(name, description, subtasks);
+        }
+
+        @Override
+        public boolean changeTask(String name, String property, String newValue) {
+            return tms.changeTask(name, property, newValue);
+        }
+
+        @Override
+        public boolean deleteTask(String name) {
+            return tms.deleteTask(name);
+        }
+
+        @Override
+        public boolean defineBasicCriterion(String name, String property, String op, String value) {
+            return tms.defineBasicCriterion(name, property, op, value);
+        }
+
+        @Override
+        public boolean defineNegatedCriterion(String name1, String name2) {
+            return tms.defineNegatedCriterion(name1, name2);
+        }
+
+        @Override
+        public boolean defineBinaryCriterion(String name1, String name2, String logicOp, String name3) {
+            return tms.defineBinaryCriterion(name1, name2, logicOp, name3);
+        }
+
+        @Override
+        public List<String> search(String criterionName) {
+            List<String> names = new ArrayList<>();
+            if (tms.getBasicCriteria().containsKey(criterionName) || tms.getCompositeCriteria().containsKey(criterionName)) {
+                for (Task task : tms.searchTasks(criterionName)) {
+                    names.add(task.getName());
+                }
+            }
+            return names;
+        }
+
+        @Override
+        public TaskInfo describe(String name) {
+            Task task = tms.getTasks().get(name);
+            if (task == null) {
+                return null;
+            }
+            List<String> prerequisites = new ArrayList<>();
+            for (Task prerequisite : task.getPrerequisites()) {
+                prerequisites.add(prerequisite.getName());
+            }
+            return new TaskInfo(name, task.getDescription(), task.getDuration(), task.isComposite(), prerequisites);
+        }
+
+        @Override
+        public double getDuration(String name) {
+            return tms.getDuration(name);
+        }
+
+        @Override
+        public double getEarliestFinishTime(String name) {
+            return tms.getEarliestFinishTime(name);
+        }
+
+        @Override
+        public Map<String, Partial> partials(List<String> names, Set<String> stubs, boolean finish) {
+            return Partial.of(tms, names, stubs, finish);
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
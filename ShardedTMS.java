@@ -0,0 +1,637 @@
+package hk.edu.polyu.comp.comp2021.tms.model;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Spreads the tasks of one task manager over several TMS shards and routes every command to
+ * the shards it concerns. Criteria are defined on every shard, and a search asks all shards
+ * at once and gathers what they find.
+ *
+ * <p>With {@link Partitioning#COMPONENT} each connected component of the prerequisite graph
+ * lives on one shard, so durations and earliest finish times are answered by the shard that
+ * holds the task. A new component goes to the shard with the fewest tasks; an edge between
+ * components on different shards moves the smaller ones over to the shard of the largest.
+ * Components are not split again when a deletion disconnects them.
+ *
+ * <p>With {@link Partitioning#HASH} a task lives on the shard its name hashes to. A
+ * prerequisite on another shard is stood in for by a stub of the same name: an empty
+ * composite task on the dependent's shard, which that shard's searches never report.
+ * A stub is deleted again once no task on its shard lists it. Durations and earliest finish
+ * times then follow prerequisites across shards: each shard folds what it holds up to its
+ * stubs, the owners of the stubs reached are asked next, and the partial results are joined
+ * here. The check that a change of prerequisites does not close a cycle is made here
+ * from the tasks the shards describe.
+ *
+ * <p>Tasks cannot be renamed in hash mode, where the name decides the shard, and a name that
+ * is already taken is refused rather than replacing the task. Like the TMS, each command
+ * returns false when it is refused, by the router or by a shard. A ShardedTMS is a Shard
+ * itself, so routers can be stacked.
+ */
+class ShardedTMS implements Shard {
+    enum Partitioning { COMPONENT, HASH }
+
+    private static final String STUB = "stub";
+
+    private final List<Shard> shards;
+    private final Partitioning partitioning;
+    private final ExecutorService scatter;
+    // The shard of every task
+    private final Map<String, Integer> owners = new HashMap<>();
+    private final int[] load;
+    // Component mode: the component of every task
+    private final Map<String, Component> components = new HashMap<>();
+    // Hash mode: the shards holding a stub for each task, with the tasks there that list it
+    private final Map<String, Map<Integer, Set<String>>> stubs = new HashMap<>();
+    // Hash mode: the stubs held on each shard, and the prerequisites of each task that are stubs
+    private final List<Set<String>> held = new ArrayList<>();
+    private final Map<String, List<String>> stubbed = new HashMap<>();
+
+    public ShardedTMS(List<? extends Shard> shards, Partitioning partitioning) {
+        this.shards = new ArrayList<>(shards);
+        this.partitioning = partitioning;
+        this.load = new int[shards.size()];
+        for (int i = 0; i < shards.size(); i++) {
+            held.add(new HashSet<>());
+        }
+        this.scatter = Executors.newFixedThreadPool(shards.size(), runnable -> {
+            Thread thread = new Thread(runnable, "tms-shard-scatter");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /** Shards on TMS instances in this process. */
+    public static ShardedTMS local(int count, Partitioning partitioning) {
+        List<Shard> shards = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            shards.add(new Shard.Local(new TMS()));
+        }
+        return new ShardedTMS(shards, partitioning);
+    }
+
+    /** Shards on TMS servers, each started in a process of its own on a loopback port. */
+    public static ShardedTMS processes(int count, Partitioning partitioning) throws IOException {
+        List<Shard> shards = new ArrayList<>();
+        try {
+            for (int i = 0; i < count; i++) {
+                shards.add(RemoteShard.launch(null));
+            }
+        } catch (IOException e) {
+            for (Shard shard : shards) {
+                shard.close();
+            }
+            throw e;
+        }
+        return new ShardedTMS(shards, partitioning);
+    }
+
+    public int getShardCount() {
+        return shards.size();
+    }
+
+    /** The index of the shard that holds the task, or -1 if there is no such task. */
+    public int getOwner(String name) {
+        return owners.getOrDefault(name, -1);
+    }
+
+    /** How many tasks each shard holds, not counting stubs. */
+    public int[] getLoad() {
+        return load.clone();
+    }
+
+    @Override
+    public boolean createPrimitiveTask(String name, String description, double d, List<String> prerequisiteNames) {
+        if (!TMS.isValidPrimitiveTask(name, description, d) || taken(name)) {
+            return false;
+        }
+        List<String> prerequisites = existing(prerequisiteNames);
+        int shard = place(name, prerequisites);
+        if (!shards.get(shard).createPrimitiveTask(name, description, d, prerequisites)) {
+            release(shard, prerequisites);
+            return false;
+        }
+        added(name, shard, prerequisites);
+        return true;
+    }
+
+    @Override
+    public boolean createCompositeTask(String name, String description, List<String> subtaskNames) {
+        if (taken(name)) {
+            return false;
+        }
+        List<String> subtasks = existing(subtaskNames);
+        int shard = place(name, subtasks);
+        if (!shards.get(shard).createCompositeTask(name, description, subtasks)) {
+            release(shard, subtasks);
+            return false;
+        }
+        added(name, shard, subtasks);
+        if (partitioning == Partitioning.HASH && !subtasks.isEmpty()) {
+            // The shard took its stubs for leaves; the duration a composite starts with is
+            // that of its longest subtask, as TMS.createCompositeTask computes it
+            double compositeDuration = 1;
+            for (Partial duration : fold(subtasks, Collections.emptySet(), false).values()) {
+                compositeDuration = Math.max(compositeDuration, duration.known);
+            }
+            return shards.get(shard).changeTask(name, "duration", Double.toString(compositeDuration));
+        }
+        return true;
+    }
+
+    @Override
+    public boolean changeTask(String name, String property, String newValue) {
+        Integer shard = owners.get(name);
+        if (shard == null) {
+            System.out.println("Task " + name + " not found.");
+            return false;
+        }
+        switch (property.toLowerCase()) {
+            case "name":
+                if (partitioning == Partitioning.HASH) {
+                    System.out.println("Task " + name + " cannot be renamed: its name decides its shard.");
+                    return false;
+                }
+                if (taken(newValue) || !shards.get(shard).changeTask(name, property, newValue)) {
+                    return false;
+                }
+                Component component = components.remove(name);
+                component.members.remove(name);
+                component.members.add(newValue);
+                components.put(newValue, component);
+                owners.put(newValue, owners.remove(name));
+                return true;
+            case "prerequisites":
+            case "subtasks":
+                List<String> prerequisites = existing(Arrays.asList(newValue.split(",")));
+                if (partitioning == Partitioning.HASH) {
+                    for (String prerequisite : prerequisites) {
+                        if (reaches(prerequisite, name)) {
+                            System.out.println("Task " + prerequisite + " cannot be a prerequisite of "
+                                    + name + ": it would form a cycle.");
+                            return false;
+                        }
+                    }
+                }
+                prerequisites.add(name);
+                int target = place(name, prerequisites);
+                prerequisites.remove(prerequisites.size() - 1);
+                if (!shards.get(target).changeTask(name, property, prerequisites.isEmpty() ? "," : String.join(",", prerequisites))) {
+                    release(target, prerequisites);
+                    return false;
+                }
+                if (partitioning == Partitioning.HASH) {
+                    linked(name, target, prerequisites);
+                }
+                return true;
+            default:
+                return shards.get(shard).changeTask(name, property, newValue);
+        }
+    }
+
+    @Override
+    public boolean deleteTask(String name) {
+        Integer shard = owners.get(name);
+        if (shard == null) {
+            System.out.println("Task " + name + " not found.");
+            return false;
+        }
+        if (!shards.get(shard).deleteTask(name)) {
+            return false;
+        }
+        owners.remove(name);
+        load[shard]--;
+        if (partitioning == Partitioning.COMPONENT) {
+            components.remove(name).members.remove(name);
+        } else {
+            // Deleting the stubs drops the task from the prerequisites of its dependents
+            for (Map.Entry<Integer, Set<String>> holder : stubs.getOrDefault(name, Collections.emptyMap()).entrySet()) {
+                shards.get(holder.getKey()).deleteTask(name);
+                held.get(holder.getKey()).remove(name);
+                for (String dependent : holder.getValue()) {
+                    stubbed.get(dependent).remove(name);
+                }
+            }
+            stubs.remove(name);
+            linked(name, shard, Collections.emptyList());
+        }
+        return true;
+    }
+
+    @Override
+    public boolean defineBasicCriterion(String criterionName, String property, String op, String value) {
+        // Every shard checks the definition the same way, so they all accept it or all refuse it
+        boolean defined = true;
+        for (Shard shard : shards) {
+            defined &= shard.defineBasicCriterion(criterionName, property, op, value);
+        }
+        return defined;
+    }
+
+    @Override
+    public boolean defineNegatedCriterion(String name1, String name2) {
+        // Every shard checks the definition the same way, so they all accept it or all refuse it
+        boolean defined = true;
+        for (Shard shard : shards) {
+            defined &= shard.defineNegatedCriterion(name1, name2);
+        }
+        return defined;
+    }
+
+    @Override
+    public boolean defineBinaryCriterion(String name1, String name2, String logicOp, String name3) {
+        // Every shard checks the definition the same way, so they all accept it or all refuse it
+        boolean defined = true;
+        for (Shard shard : shards) {
+            defined &= shard.defineBinaryCriterion(name1, name2, logicOp, name3);
+        }
+        return defined;
+    }
+
+    /** The names of the tasks that meet the criterion, searched on all shards in parallel. */
+    @Override
+    public List<String> search(String criterionName) {
+        List<Future<List<String>>> parts = new ArrayList<>();
+        for (Shard shard : shards) {
+            parts.add(scatter.submit(() -> shard.search(criterionName)));
+        }
+        List<String> names = new ArrayList<>();
+        try {
+            for (int i = 0; i < parts.size(); i++) {
+                for (String name : parts.get(i).get()) {
+                    // Stubs match as tasks of their own; only the owner's answer counts
+                    if (owners.getOrDefault(name, -1) == i) {
+                        names.add(name);
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            e.getCause().printStackTrace();
+        }
+        return names;
+    }
+
+    public String reportDuration(String name) {
+        if (!owners.containsKey(name)) {
+            return "Task " + name + " not found.";
+        }
+        return "Duration of task " + name + ": " + getDuration(name) + " hours";
+    }
+
+    @Override
+    public TaskInfo describe(String name) {
+        Integer shard = owners.get(name);
+        return shard == null ? null : shards.get(shard).describe(name);
+    }
+
+    /** The duration reportDuration reports for the task, or NaN if there is no such task. */
+    @Override
+    public double getDuration(String name) {
+        Integer shard = owners.get(name);
+        if (shard == null) {
+            return Double.NaN;
+        }
+        if (partitioning == Partitioning.COMPONENT) {
+            return shards.get(shard).getDuration(name);
+        }
+        return fold(Collections.singletonList(name), Collections.emptySet(), false).get(name).known;
+    }
+
+    /** The earliest finish time of the task, or NaN if there is no such task. */
+    @Override
+    public double getEarliestFinishTime(String name) {
+        Integer shard = owners.get(name);
+        if (shard == null) {
+            return Double.NaN;
+        }
+        if (partitioning == Partitioning.COMPONENT) {
+            return shards.get(shard).getEarliestFinishTime(name);
+        }
+        return fold(Collections.singletonList(name), Collections.emptySet(), true).get(name).known;
+    }
+
+    /**
+     * The partial results of the named tasks, up to the given stubs of tasks held outside this
+     * router: in hash mode folded over all shards, in component mode by the owner of each.
+     */
+    @Override
+    public Map<String, Partial> partials(List<String> names, Set<String> stubs, boolean finish) {
+        if (partitioning == Partitioning.HASH) {
+            return fold(names, stubs, finish);
+        }
+        Map<Integer, List<String>> byOwner = new HashMap<>();
+        for (String name : names) {
+            Integer owner = owners.get(name);
+            if (owner != null) {
+                byOwner.computeIfAbsent(owner, k -> new ArrayList<>()).add(name);
+            }
+        }
+        Map<String, Partial> partials = new HashMap<>();
+        byOwner.forEach((owner, owned) -> partials.putAll(shards.get(owner).partials(owned, stubs, finish)));
+        return partials;
+    }
+
+    /** Closes every shard, which stops the servers of shards started in processes of their own. */
+    @Override
+    public void close() {
+        scatter.shutdownNow();
+        for (Shard shard : shards) {
+            shard.close();
+        }
+    }
+
+    private boolean taken(String name) {
+        if (owners.containsKey(name)) {
+            System.out.println("Task " + name + " already exists.");
+            return true;
+        }
+        return false;
+    }
+
+    private List<String> existing(List<String> names) {
+        List<String> found = new ArrayList<>();
+        for (String name : names) {
+            String trimmed = name.trim();
+            if (owners.containsKey(trimmed) && !found.contains(trimmed)) {
+                found.add(trimmed);
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Picks the shard for a task that is about to be linked to the given tasks and gets it
+     * ready: in component mode the linked components are moved together first, in hash mode
+     * stubs are made for the tasks held elsewhere.
+     */
+    private int place(String name, List<String> linked) {
+        if (partitioning == Partitioning.HASH) {
+            int shard = Math.floorMod(name.hashCode(), shards.size());
+            for (String other : linked) {
+                int owner = owners.getOrDefault(other, shard);
+                if (owner != shard && stubs.computeIfAbsent(other, k -> new HashMap<>()).putIfAbsent(shard, new HashSet<>()) == null) {
+                    shards.get(shard).createCompositeTask(other, STUB, Collections.emptyList());
+                    held.get(shard).add(other);
+                }
+            }
+            return shard;
+        }
+        Component largest = null;
+        Set<Component> joined = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (String other : linked) {
+            Component component = components.get(other);
+            if (component != null && joined.add(component)
+                    && (largest == null || component.members.size() > largest.members.size())) {
+                largest = component;
+            }
+        }
+        if (largest == null) {
+            return leastLoaded();
+        }
+        for (Component component : joined) {
+            if (component != largest) {
+                if (component.shard != largest.shard) {
+                    move(component, largest.shard);
+                }
+                for (String member : component.members) {
+                    components.put(member, largest);
+                }
+                largest.members.addAll(component.members);
+            }
+        }
+        return largest.shard;
+    }
+
+    private void added(String name, int shard, List<String> linked) {
+        owners.put(name, shard);
+        load[shard]++;
+        if (partitioning == Partitioning.COMPONENT) {
+            // place has already joined the linked tasks into one component
+            Component component = linked.isEmpty() ? new Component(shard) : components.get(linked.get(0));
+            component.members.add(name);
+            components.put(name, component);
+        } else {
+            linked(name, shard, linked);
+        }
+    }
+
+    // Hash mode: records which stubs the task now lists, and deletes those no task lists any more
+    private void linked(String name, int shard, List<String> prerequisites) {
+        List<String> before = stubbed.getOrDefault(name, Collections.emptyList());
+        List<String> after = new ArrayList<>();
+        for (String prerequisite : prerequisites) {
+            Map<Integer, Set<String>> holders = stubs.get(prerequisite);
+            if (holders != null && holders.containsKey(shard)) {
+                holders.get(shard).add(name);
+                after.add(prerequisite);
+            }
+        }
+        for (String prerequisite : before) {
+            if (!after.contains(prerequisite)) {
+                stubs.get(prerequisite).get(shard).remove(name);
+            }
+        }
+        if (after.isEmpty()) {
+            stubbed.remove(name);
+        } else {
+            stubbed.put(name, after);
+        }
+        release(shard, before);
+    }
+
+    // Hash mode: deletes the shard's stubs of these tasks that no task there lists
+    private void release(int shard, List<String> names) {
+        for (String name : names) {
+            Map<Integer, Set<String>> holders = stubs.get(name);
+            if (holders != null && holders.containsKey(shard) && holders.get(shard).isEmpty()) {
+                holders.remove(shard);
+                if (holders.isEmpty()) {
+                    stubs.remove(name);
+                }
+                held.get(shard).remove(name);
+                shards.get(shard).deleteTask(name);
+            }
+        }
+    }
+
+    // Recreates the component's tasks on the target shard and then deletes them from their own
+    private void move(Component component, int target) {
+        Shard from = shards.get(component.shard);
+        Shard to = shards.get(target);
+        List<TaskInfo> moved = new ArrayList<>();
+        for (String member : component.members) {
+            TaskInfo info = from.describe(member);
+            if (info == null) {
+                continue;
+            }
+            moved.add(info);
+            // Created unlinked, so the order does not matter; edges and the stored duration follow
+            if (info.composite) {
+                to.createCompositeTask(info.name, info.description, Collections.emptyList());
+                to.changeTask(info.name, "duration", Double.toString(info.duration));
+            } else {
+                to.createPrimitiveTask(info.name, info.description, info.duration, Collections.emptyList());
+            }
+        }
+        for (TaskInfo info : moved) {
+            if (!info.prerequisites.isEmpty()) {
+                to.changeTask(info.name, "prerequisites", String.join(",", info.prerequisites));
+            }
+        }
+        for (TaskInfo info : moved) {
+            from.deleteTask(info.name);
+            owners.put(info.name, target);
+        }
+        load[component.shard] -= moved.size();
+        load[target] += moved.size();
+        component.shard = target;
+    }
+
+    private int leastLoaded() {
+        int best = 0;
+        for (int i = 1; i < load.length; i++) {
+            if (load[i] < load[best]) {
+                best = i;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Hash mode: the partial results of the named tasks this router holds. The owners of the
+     * named tasks are asked first, in parallel, then the owners of the stubs those results
+     * reach, and so on until no new stub turns up; the stubs in each shard's results are then
+     * filled in from those of their owners. Only the outer stubs are left open.
+     */
+    private Map<String, Partial> fold(Collection<String> names, Set<String> outer, boolean finish) {
+        Map<String, Partial> local = new HashMap<>();
+        Set<String> wanted = new HashSet<>();
+        Collection<String> next = names;
+        while (!next.isEmpty()) {
+            List<List<String>> asked = new ArrayList<>();
+            for (int i = 0; i < shards.size(); i++) {
+                asked.add(new ArrayList<>());
+            }
+            for (String name : next) {
+                Integer owner = owners.get(name);
+                if (owner != null && !outer.contains(name) && wanted.add(name)) {
+                    asked.get(owner).add(name);
+                }
+            }
+            List<Future<Map<String, Partial>>> parts = new ArrayList<>();
+            for (int i = 0; i < shards.size(); i++) {
+                Shard shard = shards.get(i);
+                List<String> shardNames = asked.get(i);
+                Set<String> shardStubs = new HashSet<>(outer);
+                shardStubs.addAll(held.get(i));
+                parts.add(shardNames.isEmpty() ? null : scatter.submit(() -> shard.partials(shardNames, shardStubs, finish)));
+            }
+            Set<String> reached = new HashSet<>();
+            try {
+                for (Future<Map<String, Partial>> part : parts) {
+                    if (part != null) {
+                        for (Map.Entry<String, Partial> entry : part.get().entrySet()) {
+                            local.put(entry.getKey(), entry.getValue());
+                            reached.addAll(entry.getValue().offsets.keySet());
+                        }
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            } catch (ExecutionException e) {
+                e.getCause().printStackTrace();
+                break;
+            }
+            reached.removeAll(wanted);
+            next = reached;
+        }
+        Map<String, Partial> folded = new HashMap<>();
+        Map<String, Partial> memo = new HashMap<>();
+        Partial none = new Partial(0, Collections.emptyMap());
+        for (String name : names) {
+            if (owners.containsKey(name)) {
+                folded.put(name, PostOrder.fold(name, task -> inner(local.get(task), outer), memo, none,
+                        (task, values) -> join(local.get(task), outer, values)));
+            }
+        }
+        return folded;
+    }
+
+    // The stubs of a shard's partial result that this router fills in
+    private static List<String> inner(Partial partial, Set<String> outer) {
+        List<String> inner = new ArrayList<>();
+        if (partial != null) {
+            for (String stub : partial.offsets.keySet()) {
+                if (!outer.contains(stub)) {
+                    inner.add(stub);
+                }
+            }
+        }
+        return inner;
+    }
+
+    // The partial result with its inner stubs replaced by theirs, given in the order of inner
+    private static Partial join(Partial partial, Set<String> outer, List<Partial> values) {
+        if (partial == null) {
+            return new Partial(0, Collections.emptyMap());
+        }
+        double known = partial.known;
+        Map<String, Double> offsets = new HashMap<>();
+        int next = 0;
+        for (Map.Entry<String, Double> entry : partial.offsets.entrySet()) {
+            double offset = entry.getValue();
+            if (outer.contains(entry.getKey())) {
+                offsets.merge(entry.getKey(), offset, Math::max);
+                continue;
+            }
+            Partial value = values.get(next++);
+            known = Math.max(known, value.known + offset);
+            value.offsets.forEach((stub, further) -> offsets.merge(stub, further + offset, Math::max));
+        }
+        return new Partial(known, offsets);
+    }
+
+    private List<String> prerequisites(String name, Map<String, TaskInfo> described) {
+        TaskInfo info = described.computeIfAbsent(name, task -> {
+            Integer owner = owners.get(task);
+            return owner == null ? null : shards.get(owner).describe(task);
+        });
+        return info == null ? Collections.emptyList() : info.prerequisites;
+    }
+
+    // Whether target is from itself or one of its prerequisites, transitively
+    private boolean reaches(String from, String target) {
+        Map<String, TaskInfo> described = new HashMap<>();
+        Set<String> seen = new HashSet<>();
+        Deque<String> pending = new ArrayDeque<>();
+        pending.push(from);
+        while (!pending.isEmpty()) {
+            String task = pending.pop();
+            if (task.equals(target)) {
+                return true;
+            }
+            if (seen.add(task)) {
+                for (String prerequisite : prerequisites(task, described)) {
+                    pending.push(prerequisite);
+                }
+            }
+        }
+        return false;
+    }
+
+    private static final class Component {
+        int shard;
+        final Set<String> members = new HashSet<>();
+
+        Component(int shard) {
+            this.shard = shard;
+        }
+    }
+}
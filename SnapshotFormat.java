@@ -0,0 +1,471 @@
+package hk.edu.polyu.comp.comp2021.tms.model;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+/**
+ * Versioned binary snapshot of the tasks and criteria of a TMS.
+ *
+ * <pre>
+ * header    magic, version, stringCount, taskCount, edgeCount, basicCount, compositeCount, indexSlots (ints)
+ *           stringsOffset, tasksOffset, edgesOffset, criteriaOffset, indexOffset, keyCount, journalSequence (longs)
+ * strings   stringCount offsets relative to the end of this table, then per string: length, UTF-8 bytes
+ * tasks     taskCount records of TASK_RECORD bytes:
+ *           key (-1 if not registered under a name), name, description, flags, duration, firstEdge, edgeCount
+ * edges     edgeCount prerequisite task indexes
+ * criteria  basicCount records of name, property, op, value;
+ *           then compositeCount records of name, logicOp (-1 if none), negated, operandCount, operands
+ * index     indexSlots task indexes (-1 if empty): an open-addressing table on the task keys,
+ *           probed linearly from {@link #slot}, so one task can be found without reading the others
+ * </pre>
+ * journalSequence is the last journal record already reflected in the snapshot (see {@link Journal}).
+ * Version 1 files have a 64-byte header without the index fields and no index section;
+ * version 2 files have an 80-byte header without journalSequence.
+ * Every string is stored once in the string table and referred to by its index.
+ * Tasks that are only reachable as prerequisites are stored too, with key -1.
+ */
+class SnapshotFormat {
+    static final int MAGIC = 0x544D5321;  // "TMS!"
+    static final int VERSION = 3;
+    static final int HEADER_SIZE_V1 = 64;
+    static final int HEADER_SIZE_V2 = 80;
+    static final int HEADER_SIZE = 88;
+    static final int TASK_RECORD = 32;
+    static final int FLAG_COMPOSITE = 1;
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    /** The maps read back from a snapshot. */
+    static class Contents {
+        // The table the tasks' names and descriptions are in, and the store holding the tasks
+        final SymbolTable symbols = new SymbolTable();
+        final TaskStore store = new TaskStore(symbols);
+        final Map<String, Task> tasks = new TaskTable(symbols);
+        final Map<String, CompositeCriterion> compositeCriteria = new HashMap<>();
+        final Map<String, BasicCriterion> basicCriteria = new HashMap<>();
+        long journalSequence;
+    }
+
+    public static void write(Path path, Map<String, Task> tasks, Map<String, CompositeCriterion> compositeCriteria,
+                             Map<String, BasicCriterion> basicCriteria) throws IOException {
+        write(path, tasks, compositeCriteria, basicCriteria, 0);
+    }
+
+    public static void write(Path path, Map<String, Task> tasks, Map<String, CompositeCriterion> compositeCriteria,
+                             Map<String, BasicCriterion> basicCriteria, long journalSequence) throws IOException {
+        // Number every task reachable from the map, without recursion
+        Map<Task, Integer> ids = new IdentityHashMap<>();
+        List<Task> records = new ArrayList<>();
+        Map<Task, String> keys = new IdentityHashMap<>();
+        for (Map.Entry<String, Task> entry : tasks.entrySet()) {
+            keys.put(entry.getValue(), entry.getKey());
+            if (ids.putIfAbsent(entry.getValue(), records.size()) == null) {
+                records.add(entry.getValue());
+            }
+        }
+        int edgeCount = 0;
+        for (int i = 0; i < records.size(); i++) {
+            for (Task prerequisite : records.get(i).getPrerequisites()) {
+                edgeCount++;
+                if (ids.putIfAbsent(prerequisite, records.size()) == null) {
+                    records.add(prerequisite);
+                }
+            }
+        }
+
+        StringTable strings = new StringTable();
+        for (Task task : records) {
+            strings.id(keys.get(task));
+            strings.symbol(task.getSymbols(), task.getNameSymbol());
+            strings.symbol(task.getSymbols(), task.getDescriptionSymbol());
+        }
+        for (BasicCriterion criterion : basicCriteria.values()) {
+            strings.id(criterion.getName());
+            strings.id(criterion.getProperty());
+            strings.id(criterion.getOp());
+            strings.id(criterion.getValue());
+        }
+        long compositeBytes = 0;
+        for (CompositeCriterion criterion : compositeCriteria.values()) {
+            strings.id(criterion.getName());
+            strings.id(criterion.getLogicOp());
+            for (String operand : criterion.getOperandNames()) {
+                strings.id(operand);
+            }
+            compositeBytes += 16 + 4L * criterion.getOperandNames().size();
+        }
+        int indexSlots = Math.max(2, Integer.highestOneBit(Math.max(1, tasks.size())) * 4);
+        int[] index = new int[indexSlots];
+        Arrays.fill(index, -1);
+        for (int i = 0; i < records.size(); i++) {
+            String key = keys.get(records.get(i));
+            if (key != null) {
+                int slot = slot(key, indexSlots);
+                while (index[slot] >= 0) {
+                    slot = (slot + 1) & (indexSlots - 1);
+                }
+                index[slot] = i;
+            }
+        }
+
+        long stringsOffset = HEADER_SIZE;
+        long tasksOffset = stringsOffset + 4L * strings.size() + strings.dataSize();
+        long edgesOffset = tasksOffset + (long) TASK_RECORD * records.size();
+        long criteriaOffset = edgesOffset + 4L * edgeCount;
+        long indexOffset = criteriaOffset + 16L * basicCriteria.size() + compositeBytes;
+
+        // Write beside the target and move it into place, so that a process that has the old
+        // file mapped keeps reading the old contents
+        Path temporary = path.resolveSibling(path.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            Output out = new Output(channel);
+            out.putInt(MAGIC);
+            out.putInt(VERSION);
+            out.putInt(strings.size());
+            out.putInt(records.size());
+            out.putInt(edgeCount);
+            out.putInt(basicCriteria.size());
+            out.putInt(compositeCriteria.size());
+            out.putInt(indexSlots);
+            out.putLong(stringsOffset);
+            out.putLong(tasksOffset);
+            out.putLong(edgesOffset);
+            out.putLong(criteriaOffset);
+            out.putLong(indexOffset);
+            out.putLong(tasks.size());
+            out.putLong(journalSequence);
+
+            int offset = 0;
+            for (int id = 0; id < strings.size(); id++) {
+                out.putInt(offset);
+                offset += 4 + strings.symbols.length(id);
+            }
+            for (int id = 0; id < strings.size(); id++) {
+                out.putInt(strings.symbols.length(id));
+                out.putBytes(strings.symbols.bytes(id));
+            }
+
+            int firstEdge = 0;
+            for (Task task : records) {
+                String key = keys.get(task);
+                out.putInt(key == null ? -1 : strings.id(key));
+                out.putInt(strings.symbol(task.getSymbols(), task.getNameSymbol()));
+                out.putInt(strings.symbol(task.getSymbols(), task.getDescriptionSymbol()));
+                out.putInt(task.isComposite() ? FLAG_COMPOSITE : 0);
+                out.putDouble(task.getDuration());
+                out.putInt(firstEdge);
+                out.putInt(task.getPrerequisites().size());
+                firstEdge += task.getPrerequisites().size();
+            }
+            for (Task task : records) {
+                for (Task prerequisite : task.getPrerequisites()) {
+                    out.putInt(ids.get(prerequisite));
+                }
+            }
+
+            for (BasicCriterion criterion : basicCriteria.values()) {
+                out.putInt(strings.id(criterion.getName()));
+                out.putInt(strings.id(criterion.getProperty()));
+                out.putInt(strings.id(criterion.getOp()));
+                out.putInt(strings.id(criterion.getValue()));
+            }
+            for (CompositeCriterion criterion : compositeCriteria.values()) {
+                out.putInt(strings.id(criterion.getName()));
+                out.putInt(criterion.getLogicOp() == null ? -1 : strings.id(criterion.getLogicOp()));
+                out.putInt(criterion.getNegatedCriterion() != null ? 1 : 0);
+                out.putInt(criterion.getOperandNames().size());
+                for (String operand : criterion.getOperandNames()) {
+                    out.putInt(operand == null ? -1 : strings.id(operand));
+                }
+            }
+            for (int slot : index) {
+                out.putInt(slot);
+            }
+            out.flush();
+            if (channel.position() != indexOffset + 4L * indexSlots) {
+                throw new IllegalStateException("Snapshot size does not match its header");
+            }
+            // On disk before it replaces the old snapshot, since callers then drop their journal
+            channel.force(true);
+        }
+        Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        syncDirectory(path.toAbsolutePath().getParent());
+    }
+
+    /** Makes the renames in the directory durable, on file systems that let a directory be forced. */
+    static void syncDirectory(Path directory) throws IOException {
+        try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (AccessDeniedException | UnsupportedOperationException e) {
+            // Windows cannot open a directory; its renames are durable once they return
+        }
+    }
+
+    static int slot(String key, int slots) {
+        int h = key.hashCode();
+        return (h ^ (h >>> 16)) & (slots - 1);
+    }
+
+    public static boolean isSnapshot(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            ByteBuffer magic = ByteBuffer.allocate(4);
+            while (magic.hasRemaining() && channel.read(magic) >= 0) {
+                // keep reading until four bytes are in
+            }
+            return !magic.hasRemaining() && magic.getInt(0) == MAGIC;
+        }
+    }
+
+    public static Contents read(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            Input in = new Input(channel);
+            if (in.getInt() != MAGIC) {
+                throw new IOException(path + " is not a TMS snapshot");
+            }
+            int version = in.getInt();
+            if (version < 1 || version > VERSION) {
+                throw new IOException("Unsupported snapshot version " + version);
+            }
+            int stringCount = in.getInt();
+            int taskCount = in.getInt();
+            int edgeCount = in.getInt();
+            int basicCount = in.getInt();
+            int compositeCount = in.getInt();
+            in.getInt();
+            // Section offsets; the sections follow each other in order
+            Contents contents = new Contents();
+            if (version == 1) {
+                in.skip(HEADER_SIZE_V1 - 32);
+            } else {
+                in.skip(HEADER_SIZE_V2 - 32);
+                if (version >= 3) {
+                    contents.journalSequence = in.getLong();
+                }
+            }
+
+            in.skip(4L * stringCount);
+            // Interned from the bytes as stored; only keys and criteria are decoded
+            int[] symbols = new int[stringCount];
+            String[] strings = new String[stringCount];
+            for (int i = 0; i < stringCount; i++) {
+                byte[] bytes = in.getBytes(in.getInt());
+                symbols[i] = contents.symbols.intern(bytes, 0, bytes.length);
+                strings[i] = contents.symbols.get(symbols[i]);
+            }
+
+            Task[] records = new Task[taskCount];
+            int[] edgeCounts = new int[taskCount];
+            for (int i = 0; i < taskCount; i++) {
+                int key = in.getInt();
+                int name = in.getInt();
+                int description = in.getInt();
+                // A null name or description is written as -1
+                Task task = new Task(contents.store, name < 0 ? SymbolTable.NULL : symbols[name],
+                        description < 0 ? SymbolTable.NULL : symbols[description], 0);
+                task.setComposite((in.getInt() & FLAG_COMPOSITE) != 0);
+                task.setDuration(in.getDouble());
+                in.getInt();
+                edgeCounts[i] = in.getInt();
+                records[i] = task;
+                if (key >= 0) {
+                    contents.tasks.put(strings[key], task);
+                }
+            }
+            int edgesRead = 0;
+            for (int i = 0; i < taskCount; i++) {
+                for (int e = 0; e < edgeCounts[i]; e++) {
+                    records[i].addPrerequisite(records[in.getInt()]);
+                }
+                edgesRead += edgeCounts[i];
+            }
+            if (edgesRead != edgeCount) {
+                throw new IOException("Corrupt snapshot: expected " + edgeCount + " edges");
+            }
+
+            for (int i = 0; i < basicCount; i++) {
+                BasicCriterion criterion = new BasicCriterion(strings[in.getInt()], strings[in.getInt()],
+                        strings[in.getInt()], strings[in.getInt()]);
+                contents.basicCriteria.put(criterion.getName(), criterion);
+            }
+            List<CompositeCriterion> negated = new ArrayList<>();
+            for (int i = 0; i < compositeCount; i++) {
+                CompositeCriterion criterion = new CompositeCriterion(strings[in.getInt()]);
+                int logicOp = in.getInt();
+                criterion.setLogicOp(logicOp < 0 ? null : strings[logicOp]);
+                if (in.getInt() != 0) {
+                    negated.add(criterion);
+                }
+                List<String> operands = new ArrayList<>();
+                for (int n = in.getInt(); n > 0; n--) {
+                    int operand = in.getInt();
+                    operands.add(operand < 0 ? null : strings[operand]);
+                }
+                criterion.setOperandNames(operands);
+                contents.compositeCriteria.put(criterion.getName(), criterion);
+            }
+            linkComposites(contents.compositeCriteria, negated);
+            return contents;
+        }
+    }
+
+    // Restores the object links that printAllCriteria walks, from the operand names
+    static void linkComposites(Map<String, CompositeCriterion> compositeCriteria, List<CompositeCriterion> negated) {
+        Set<CompositeCriterion> isNegated = Collections.newSetFromMap(new IdentityHashMap<>());
+        isNegated.addAll(negated);
+        for (CompositeCriterion criterion : compositeCriteria.values()) {
+            List<String> operands = criterion.getOperandNames();
+            if (isNegated.contains(criterion)) {
+                String operand = operands.isEmpty() ? null : operands.get(0);
+                CompositeCriterion target = compositeCriteria.get(operand);
+                criterion.setNegatedCriterion(target != null ? target : new CompositeCriterion(operand));
+            } else {
+                List<CompositeCriterion> subCriteria = new ArrayList<>();
+                for (String operand : operands) {
+                    subCriteria.add(compositeCriteria.get(operand));
+                }
+                criterion.setSubCriteria(subCriteria);
+            }
+        }
+    }
+
+    // Every string the file holds, interned into a table of its own so that a handle there is
+    // the string's id in the file; the bytes are written out as the table holds them
+    private static class StringTable {
+        final SymbolTable symbols = new SymbolTable();
+
+        int id(String value) {
+            return value == null ? -1 : symbols.intern(value);
+        }
+
+        int symbol(SymbolTable from, int symbol) {
+            return symbol == SymbolTable.NULL ? -1 : from.transfer(symbol, symbols);
+        }
+
+        int size() {
+            return symbols.size();
+        }
+
+        long dataSize() {
+            long dataSize = 0;
+            for (int id = 0; id < symbols.size(); id++) {
+                dataSize += 4 + symbols.length(id);
+            }
+            return dataSize;
+        }
+    }
+
+    private static class Output {
+        private final FileChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+
+        Output(FileChannel channel) {
+            this.channel = channel;
+        }
+
+        void putInt(int value) throws IOException {
+            reserve(4);
+            buffer.putInt(value);
+        }
+
+        void putLong(long value) throws IOException {
+            reserve(8);
+            buffer.putLong(value);
+        }
+
+        void putDouble(double value) throws IOException {
+            reserve(8);
+            buffer.putDouble(value);
+        }
+
+        void putBytes(byte[] bytes) throws IOException {
+            int written = 0;
+            while (written < bytes.length) {
+                reserve(1);
+                int n = Math.min(buffer.remaining(), bytes.length - written);
+                buffer.put(bytes, written, n);
+                written += n;
+            }
+        }
+
+        private void reserve(int bytes) throws IOException {
+            if (buffer.remaining() < bytes) {
+                flush();
+            }
+        }
+
+        void flush() throws IOException {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            buffer.clear();
+        }
+    }
+
+    private static class Input {
+        private final FileChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+
+        Input(FileChannel channel) {
+            this.channel = channel;
+            buffer.flip();
+        }
+
+        int getInt() throws IOException {
+            require(4);
+            return buffer.getInt();
+        }
+
+        long getLong() throws IOException {
+            require(8);
+            return buffer.getLong();
+        }
+
+        double getDouble() throws IOException {
+            require(8);
+            return buffer.getDouble();
+        }
+
+        byte[] getBytes(int length) throws IOException {
+            byte[] bytes = new byte[length];
+            int read = 0;
+            while (read < length) {
+                require(1);
+                int n = Math.min(buffer.remaining(), length - read);
+                buffer.get(bytes, read, n);
+                read += n;
+            }
+            return bytes;
+        }
+
+        void skip(long bytes) throws IOException {
+            while (bytes > 0) {
+                require(1);
+                int n = (int) Math.min(buffer.remaining(), bytes);
+                buffer.position(buffer.position() + n);
+                bytes -= n;
+            }
+        }
+
+        private void require(int bytes) throws IOException {
+            if (buffer.remaining() >= bytes) {
+                return;
+            }
+            buffer.compact();
+            while (buffer.position() < bytes) {
+                if (channel.read(buffer) < 0) {
+                    throw new EOFException("Truncated snapshot");
+                }
+            }
+            buffer.flip();
+        }
+    }
+}
@@ -0,0 +1,265 @@
+package hk.edu.polyu.comp.comp2021.tms.model;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Deduplicated strings stored as UTF-8 bytes in one array and referred to by int handles.
+ * Interning the same text twice gives the same handle, so two names or descriptions in the
+ * same table are equal exactly when their handles are. Tasks keep handles instead of String
+ * objects; snapshots copy the bytes out unchanged and search tests them without decoding.
+ * Each TMS has a table of its own. Symbols are never removed from a table; a TMS whose tasks
+ * were renamed often enough copies the text still in use into a fresh table instead.
+ * Interning is synchronized; reading a symbol whose handle the reader was given needs no lock.
+ */
+class SymbolTable {
+    /** The handle of null. */
+    static final int NULL = -1;
+
+    private volatile byte[] bytes;
+    private int used;
+    // Symbol h occupies bytes[offsets[h]] .. bytes[offsets[h + 1] - 1]
+    private volatile int[] offsets;
+    private int[] hashes;
+    private volatile int count;
+    // Open-addressing table of handle + 1, 0 marking an empty slot
+    private int[] slots;
+
+    public SymbolTable() {
+        this(1 << 8);
+    }
+
+    /** A table sized for about the given number of symbols before it has to grow. */
+    public SymbolTable(int capacity) {
+        int symbols = Integer.highestOneBit(Math.max(2, capacity - 1)) * 2;
+        bytes = new byte[symbols * 16];
+        offsets = new int[symbols];
+        hashes = new int[symbols];
+        slots = new int[symbols * 2];
+    }
+
+    public synchronized int intern(String text) {
+        if (text == null) {
+            return NULL;
+        }
+        if (!isAscii(text)) {
+            byte[] encoded = text.getBytes(StandardCharsets.UTF_8);
+            return intern(encoded, 0, encoded.length);
+        }
+        int hash = hash(text);
+        int slot = slot(hash);
+        while (slots[slot] != 0) {
+            int handle = slots[slot] - 1;
+            if (hashes[handle] == hash && equalsAscii(handle, text)) {
+                return handle;
+            }
+            slot = (slot + 1) & (slots.length - 1);
+        }
+        int length = text.length();
+        ensureBytes(length);
+        for (int i = 0; i < length; i++) {
+            bytes[used + i] = (byte) text.charAt(i);
+        }
+        return add(hash, length, slot);
+    }
+
+    /** Interns the UTF-8 text in the given range without decoding it. */
+    public synchronized int intern(byte[] text, int from, int length) {
+        int hash = 0x811c9dc5;
+        for (int i = from; i < from + length; i++) {
+            hash = (hash ^ (text[i] & 0xff)) * 0x01000193;
+        }
+        int slot = slot(hash);
+        while (slots[slot] != 0) {
+            int handle = slots[slot] - 1;
+            if (hashes[handle] == hash && equalsBytes(handle, text, from, length)) {
+                return handle;
+            }
+            slot = (slot + 1) & (slots.length - 1);
+        }
+        ensureBytes(length);
+        System.arraycopy(text, from, bytes, used, length);
+        return add(hash, length, slot);
+    }
+
+    /** The handle of the text if it has been interned, otherwise NULL. */
+    public synchronized int find(String text) {
+        if (text == null) {
+            return NULL;
+        }
+        byte[] encoded = text.getBytes(StandardCharsets.UTF_8);
+        int hash = 0x811c9dc5;
+        for (byte b : encoded) {
+            hash = (hash ^ (b & 0xff)) * 0x01000193;
+        }
+        for (int slot = slot(hash); slots[slot] != 0; slot = (slot + 1) & (slots.length - 1)) {
+            int handle = slots[slot] - 1;
+            if (hashes[handle] == hash && equalsBytes(handle, encoded, 0, encoded.length)) {
+                return handle;
+            }
+        }
+        return NULL;
+    }
+
+    /** Interns the symbol into the other table and returns its handle there. */
+    public int transfer(int handle, SymbolTable to) {
+        if (handle == NULL) {
+            return NULL;
+        }
+        if (to == this) {
+            return handle;
+        }
+        byte[] text = bytes;
+        int[] at = offsets;
+        return to.intern(text, at[handle], at[handle + 1] - at[handle]);
+    }
+
+    public String get(int handle) {
+        if (handle == NULL) {
+            return null;
+        }
+        int[] at = offsets;
+        return new String(bytes, at[handle], at[handle + 1] - at[handle], StandardCharsets.UTF_8);
+    }
+
+    /** The UTF-8 encoding of the symbol. */
+    public byte[] bytes(int handle) {
+        int[] at = offsets;
+        return Arrays.copyOfRange(bytes, at[handle], at[handle + 1]);
+    }
+
+    /** Copies the UTF-8 encoding of the symbol to the start of into, which holds at least length(handle) bytes. */
+    public void copy(int handle, byte[] into) {
+        byte[] text = bytes;
+        int[] at = offsets;
+        System.arraycopy(text, at[handle], into, 0, at[handle + 1] - at[handle]);
+    }
+
+    /** Whether the symbol is the given text, without decoding the symbol. */
+    public boolean matches(int handle, String text) {
+        if (handle == NULL || text == null) {
+            return handle == NULL && text == null;
+        }
+        int[] at = offsets;
+        byte[] stored = bytes;
+        int from = at[handle];
+        int length = at[handle + 1] - from;
+        if (!isAscii(text)) {
+            byte[] encoded = text.getBytes(StandardCharsets.UTF_8);
+            return Arrays.equals(stored, from, from + length, encoded, 0, encoded.length);
+        }
+        if (length != text.length()) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (stored[from + i] != (byte) text.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public int length(int handle) {
+        int[] at = offsets;
+        return at[handle + 1] - at[handle];
+    }
+
+    /** Whether the symbol contains the UTF-8 encoded needle; for UTF-8 this is String.contains. */
+    public boolean contains(int handle, byte[] needle) {
+        if (handle == NULL) {
+            return false;
+        }
+        int[] at = offsets;
+        byte[] text = bytes;
+        int last = at[handle + 1] - needle.length;
+        outer:
+        for (int start = at[handle]; start <= last; start++) {
+            for (int k = 0; k < needle.length; k++) {
+                if (text[start + k] != needle[k]) {
+                    continue outer;
+                }
+            }
+            return true;
+        }
+        return false;
+    }
+
+    public int size() {
+        return count;
+    }
+
+    private int add(int hash, int length, int slot) {
+        int handle = count;
+        if (handle + 2 > offsets.length) {
+            offsets = Arrays.copyOf(offsets, offsets.length * 2);
+            hashes = Arrays.copyOf(hashes, hashes.length * 2);
+        }
+        used += length;
+        offsets[handle + 1] = used;
+        hashes[handle] = hash;
+        slots[slot] = handle + 1;
+        count = handle + 1;
+        if (count * 2 > slots.length) {
+            rehash();
+        }
+        return handle;
+    }
+
+    private void ensureBytes(int length) {
+        if (used + length > bytes.length) {
+            bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, used + length));
+        }
+    }
+
+    private void rehash() {
+        slots = new int[slots.length * 2];
+        for (int handle = 0; handle < count; handle++) {
+            int slot = slot(hashes[handle]);
+            while (slots[slot] != 0) {
+                slot = (slot + 1) & (slots.length - 1);
+            }
+            slots[slot] = handle + 1;
+        }
+    }
+
+    private int slot(int hash) {
+        return (hash ^ (hash >>> 16)) & (slots.length - 1);
+    }
+
+    // FNV-1a over the bytes of an ASCII string, the same as over its UTF-8 encoding
+    private static int hash(String ascii) {
+        int hash = 0x811c9dc5;
+        for (int i = 0; i < ascii.length(); i++) {
+            hash = (hash ^ ascii.charAt(i)) * 0x01000193;
+        }
+        return hash;
+    }
+
+    private static boolean isAscii(String text) {
+        for (int i = 0; i < text.length(); i++) {
+            if (text.charAt(i) >= 0x80) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean equalsAscii(int handle, String text) {
+        int from = offsets[handle];
+        if (offsets[handle + 1] - from != text.length()) {
+            return false;
+        }
+        for (int i = 0; i < text.length(); i++) {
+            if (bytes[from + i] != (byte) text.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean equalsBytes(int handle, byte[] text, int from, int length) {
+        int start = offsets[handle];
+        return offsets[handle + 1] - start == length
+                && Arrays.equals(bytes, start, start + length, text, from, from + length);
+    }
+}
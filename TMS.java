@@ -1,16 +1,73 @@
 package hk.edu.polyu.comp.comp2021.tms.model;
 
 import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 class TMS implements Serializable {
     private static final long serialVersionUID = 1L;
+    // The symbol table is not compacted while it holds fewer symbols than this
+    private static final int MIN_SYMBOLS_TO_COMPACT = 1 << 12;
+    // Nor the task store while it holds fewer tasks than this
+    private static final int MIN_TASKS_TO_COMPACT = 1 << 10;
 
     private Map<String, Task> tasks;
     private Map<String, CompositeCriterion> compositeCriteria;
     private Map<String, BasicCriterion> basicCriteria;
 
+    // Names and descriptions of the tasks; text that renames left behind is dropped by
+    // copying what is still in use into a fresh table once the table reaches compactSymbolsAt
+    private transient SymbolTable symbols;
+    private transient int compactSymbolsAt;
+    // The fields of every task, by id; the slots of deleted tasks are dropped the same way,
+    // with the symbols, once the store reaches compactTasksAt
+    private transient TaskStore store;
+    private transient int compactTasksAt;
+    // Reverse prerequisite edges (task -> tasks that list it as a prerequisite or subtask)
+    private transient Map<Task, Set<Task>> dependents;
+    // Keeps prerequisites ahead of their dependents so that cycle-forming edits are refused
+    private transient TopologicalOrder order;
+    // Memoized results of calculateDuration, dropped for the ancestors of a changed task
+    private transient Map<Task, Double> durationCache;
+    // Critical-path schedule of the whole graph, rebuilt lazily after a mutation
+    private transient Schedule schedule;
+    // Array-based copy of the graph for whole-graph queries, rebuilt lazily after a mutation
+    private transient CompactGraph compactGraph;
+    // Criteria compiled into predicates, cached by name
+    private transient CriterionCompiler criteria;
+    // Duration and name/description indexes used to answer searches without a full scan
+    private transient TaskIndex index;
+    // Results of recent searches, updated for the tasks each mutation changes
+    private transient SearchCache searchCache;
+    // Lazily started worker pool for searchParallel
+    private transient ParallelSearch parallelSearch;
+    private int searchParallelism = Runtime.getRuntime().availableProcessors();
+    private int parallelSearchThreshold = 10_000;
+    private transient Metrics metrics = Metrics.NONE;
+    // Write-ahead journal of mutations, kept beside the snapshot it continues
+    private transient Journal journal;
+    private transient Path journalSnapshot;
+    private transient long journalSequence;
+    private transient long journalFlushInterval;
+    private transient Future<?> compaction;
+    // The transaction being applied, which records what each mutation is about to change
+    private transient Transaction committing;
+    private transient VersionHistory history;
+    // Why the last mutation that returned false was not applied
+    private transient String lastError;
+
     public Map<String, Task> getTasks() {
         return tasks;
     }
@@ -22,145 +79,406 @@ class TMS implements Serializable {
     }
 
     public TMS() {
-        this.tasks = new HashMap<>();
+        this.symbols = new SymbolTable();
+        this.compactSymbolsAt = MIN_SYMBOLS_TO_COMPACT;
+        this.store = new TaskStore(symbols);
+        this.compactTasksAt = MIN_TASKS_TO_COMPACT;
+        this.tasks = new TaskTable(symbols);
         this.compositeCriteria = new HashMap<>();
         this.basicCriteria = new HashMap<>();
+        this.dependents = new HashMap<>();
+        this.order = new TopologicalOrder(dependents);
+        this.durationCache = new HashMap<>();
+        this.criteria = new CriterionCompiler(basicCriteria, compositeCriteria, symbols);
+        this.index = new TaskIndex(symbols);
+        this.history = new VersionHistory();
+        this.searchCache = new SearchCache();
+    }
+
+    /** Returns false, having printed why, if the fields are invalid. */
+    public boolean createPrimitiveTask(String name, String description, double d, List<String> prerequisiteNames) {
+        long start = metrics.start();
+        try {
+            String error = primitiveTaskError(name, description, d);
+            if (error != null) {
+                return refuse(error);
+            }
+            if (!log(Journal.CREATE_PRIMITIVE, withList(prerequisiteNames, name, description, Double.toString(d)))) {
+                return fail("The task could not be written to the journal.");
+            }
+            ensureIndexed();
+            // Built only once accepted, so a refused task leaves no names or row in the store
+            Task newTask = new Task(store, name, description, 0);
+
+            saveKey(name);
+            index.remove(tasks.get(name));
+            tasks.put(name, newTask);
+            order.add(newTask);
+            graphChanged();
+            if (d > 0) {
+                newTask.setDuration(d);
+            }
+            index.add(newTask);
+
+            for (String prerequisiteName : prerequisiteNames) {
+                Task prerequisite = tasks.get(prerequisiteName);
+                if (prerequisite != null) {
+                    addPrerequisite(newTask, prerequisite);
+                }
+            }
+            return true;
+        } finally {
+            recordMutation(Metrics.Op.CREATE, start);
+        }
+    }
+
+    // Prints what is wrong and returns false if the fields are not in the correct format
+    static boolean isValidPrimitiveTask(String name, String description, double d) {
+        String error = primitiveTaskError(name, description, d);
+        if (error != null) {
+            System.out.println(error);
+            return false;
+        }
+        return true;
     }
 
-    public void createPrimitiveTask(String name, String description, double d, List<String> prerequisiteNames) {
-        Task newTask = new Task(name, description, 0);
+    // Describes what is wrong with the fields, or returns null if they are in the correct format
+    static String primitiveTaskError(String name, String description, double d) {
+        String nameRules = "Name must be at least 8 characters long,\nMust contain only letters and digits,\nAnd must not start with a Digit";
 
         //check if the name is in the correct format
-        boolean nameCheck = true;
         for (int i = 0; i < name.length(); i++){
             if (!(Character.isDigit(name.charAt(i)) || Character.isLetter(name.charAt(i)))){
-                System.out.println("Not digit or letter");
-                nameCheck = false;
-                break;
+                return "Not digit or letter\n" + nameRules;
             }
         }
-        if (nameCheck == true){
-            nameCheck = (name.length() < 8) && !Character.isDigit(name.charAt(0));
-        }
-        if (nameCheck == false){
-            System.out.println("Name must be at least 8 characters long,\nMust contain only letters and digits,\nAnd must not start with a Digit");
-            return;
+        if (name.isEmpty() || name.length() >= 8 || Character.isDigit(name.charAt(0))){
+            return nameRules;
         }
 
         //check if the duration is in the correct format
         if (d < 0){
-            System.out.println("Duration cannot be negative");
-            return;
+            return "Duration cannot be negative";
         }
 
-        //check if the description is in the correct format
-        for (int i = 0; i < description.length(); i++){
+        //check if the description is in the correct format; a task read back may have none
+        for (int i = 0; description != null && i < description.length(); i++){
             if (!(Character.isDigit(description.charAt(i)) || Character.isLetter(description.charAt(i)) || description.charAt(i) == '-')) {
-                System.out.println("Not digit or letter or a hyphen");
-                return;
+                return "Not digit or letter or a hyphen";
             }
         }
+        return null;
+    }
 
-        tasks.put(name, newTask);
-        if (d > 0) {
-            newTask.setDuration(d);
+    public boolean createCompositeTask(String name, String description, List<String> subtaskNames) {
+        long start = metrics.start();
+        try {
+            if (!log(Journal.CREATE_COMPOSITE, withList(subtaskNames, name, description))) {
+                return fail("The task could not be written to the journal.");
+            }
+            ensureIndexed();
+            Task newTask = new Task(store, name, description, 0); // Duration for composite tasks is initially set to 0
+            newTask.setComposite(true);
+
+            // Calculate duration based on the durations of subtasks
+            double compositeDuration = 1;
+            for (String subtaskName : subtaskNames) {
+                Task subtask = tasks.get(subtaskName);
+                if (subtask != null) {
+                    addPrerequisite(newTask, subtask);
+                    compositeDuration = Math.max(compositeDuration, calculateDuration(subtask));
+                }
+            }
+            newTask.setDuration(compositeDuration); // Set the duration of the composite task
+            saveKey(name);
+            index.remove(tasks.get(name));
+            tasks.put(name, newTask);
+            index.add(newTask);
+            order.add(newTask);
+            graphChanged();
+            return true;
+        } finally {
+            recordMutation(Metrics.Op.CREATE, start);
         }
+    }
 
-        for (String prerequisiteName : prerequisiteNames) {
-            Task prerequisite = tasks.get(prerequisiteName);
-            if (prerequisite != null) {
-                newTask.addPrerequisite(prerequisite);
+    /**
+     * Adds a batch of tasks at once. Prerequisites may refer to tasks later in the batch;
+     * tasks that fail validation or form a cycle are left out and reported in the result.
+     */
+    public BulkImporter.Result importTasks(List<BulkImporter.TaskSpec> specs) {
+        long start = metrics.start();
+        try {
+            if (!log(Journal.IMPORT, BulkImporter.format(specs))) {
+                BulkImporter.Result failed = new BulkImporter.Result();
+                failed.getErrors().add("The batch could not be written to the journal");
+                return failed;
             }
+            ensureIndexed();
+            BulkImporter.Batch batch = BulkImporter.prepare(specs, store, tasks::get, this::calculateDuration);
+            for (int i = 0; i < batch.tasks.size(); i++) {
+                Task task = batch.tasks.get(i);
+                saveKey(task.getName());
+                index.remove(tasks.put(task.getName(), task));
+                index.add(task);
+                order.add(task);  // the batch comes in topological order
+                for (Task prerequisite : task.getPrerequisites()) {
+                    dependents.computeIfAbsent(prerequisite, k -> new HashSet<>()).add(task);
+                }
+                durationCache.put(task, batch.durations.get(i));
+            }
+            graphChanged();
+            return batch.result;
+        } finally {
+            recordMutation(Metrics.Op.IMPORT, start);
         }
     }
 
-    public void createCompositeTask(String name, String description, List<String> subtaskNames) {
-        Task newTask = new Task(name, description, 0); // Duration for composite tasks is initially set to 0
-
-        // Calculate duration based on the durations of subtasks
-        double compositeDuration = 1;
-        for (String subtaskName : subtaskNames) {
-            Task subtask = tasks.get(subtaskName);
-            if (subtask != null) {
-                newTask.addPrerequisite(subtask);
-                compositeDuration = Math.max(compositeDuration, calculateDuration(subtask));
-            }
+    /** Imports the tasks of a file in the line format described in {@link BulkImporter}. */
+    public BulkImporter.Result importFile(String path) {
+        List<String> parseErrors = new ArrayList<>();
+        List<BulkImporter.TaskSpec> specs;
+        try (BufferedReader reader = Files.newBufferedReader(Paths.get(path))) {
+            specs = BulkImporter.parse(reader, parseErrors);
+        } catch (IOException e) {
+            e.printStackTrace();
+            specs = Collections.emptyList();
+            parseErrors.add(e.toString());
         }
-        newTask.setDuration(compositeDuration); // Set the duration of the composite task
-        tasks.put(name, newTask);
+        BulkImporter.Result result = importTasks(specs);
+        result.getErrors().addAll(0, parseErrors);
+        return result;
     }
 
-    public void deleteTask(String name) {
-        Task taskToDelete = tasks.get(name);
-        if (taskToDelete != null) {
-            tasks.remove(name);
+    public boolean deleteTask(String name) {
+        return deleteTasks(Collections.singletonList(name));
+    }
 
-            for (Task task : tasks.values()) {
-                task.removePrerequisite(taskToDelete);
+    /** Returns false if none of the tasks exists. */
+    public boolean deleteTasks(Collection<String> names) {
+        long start = metrics.start();
+        try {
+            if (names.stream().noneMatch(tasks::containsKey)) {
+                return fail(names.size() == 1 ? "Task " + names.iterator().next() + " not found." : "No such tasks.");
+            }
+            if (!log(Journal.DELETE, names.toArray(new String[0]))) {
+                return fail("The deletion could not be written to the journal.");
             }
+            ensureIndexed();
+            Set<Task> deleted = new HashSet<>();
+            for (String name : names) {
+                saveKey(name);
+                Task taskToDelete = tasks.remove(name);
+                if (taskToDelete != null) {
+                    deleted.add(taskToDelete);
+                }
+            }
+            if (deleted.isEmpty()) {
+                return false;
+            }
+
+            // Only the tasks that reference a deleted task need their prerequisites rewritten
+            Set<Task> affected = new HashSet<>();
+            for (Task taskToDelete : deleted) {
+                Set<Task> parents = dependents.remove(taskToDelete);
+                if (parents != null) {
+                    affected.addAll(parents);
+                }
+                for (Task prerequisite : taskToDelete.getPrerequisites()) {
+                    Set<Task> siblings = dependents.get(prerequisite);
+                    if (siblings != null) {
+                        siblings.remove(taskToDelete);
+                    }
+                }
+                durationCache.remove(taskToDelete);
+                index.remove(taskToDelete);
+                order.remove(taskToDelete);
+            }
+            affected.removeAll(deleted);
+            for (Task task : affected) {
+                save(task);
+                task.removePrerequisites(deleted);
+                invalidateDuration(task);
+            }
+            graphChanged();
+            return true;
+        } finally {
+            recordMutation(Metrics.Op.DELETE, start);
         }
     }
 
-    public void changeTask(String name, String property, String newValue) {
-        Task taskToChange = tasks.get(name);
-        if (taskToChange != null) {
+    /** Returns false if there is no such task or the change was refused. */
+    public boolean changeTask(String name, String property, String newValue) {
+        long start = metrics.start();
+        try {
+            ensureIndexed();
+            Task taskToChange = tasks.get(name);
+            if (taskToChange == null) {
+                return fail("Task " + name + " not found.");
+            }
+            // Everything is checked before the change is journaled, so replay never meets a bad record
+            double newDuration = 0;
+            List<Task> newPrerequisites = null;
             switch (property.toLowerCase()) {
                 case "name":
-                    taskToChange.setName(newValue);
-                    break;
                 case "description":
-                    taskToChange.setDescription(newValue);
                     break;
                 case "duration":
-                    taskToChange.setDuration(Double.parseDouble(newValue));
+                    try {
+                        newDuration = Double.parseDouble(newValue);
+                    } catch (NumberFormatException e) {
+                        return refuse("Duration must be a number, not " + newValue);
+                    }
                     break;
                 case "prerequisites":
-                    List<Task> newPrerequisites = Arrays.asList(newValue.split(",")).stream()
+                case "subtasks":
+                    newPrerequisites = Arrays.asList(newValue.split(",")).stream()
                             .map(prerequisiteName -> tasks.get(prerequisiteName.trim()))
                             .filter(Objects::nonNull)
                             .collect(Collectors.toList());
-                    taskToChange.setPrerequisites(newPrerequisites);
+                    String cycle = cycleError(taskToChange, newPrerequisites);
+                    if (cycle != null) {
+                        return refuse(cycle);
+                    }
                     break;
-                case "subtasks":
-                    List<Task> newSubtasks = Arrays.asList(newValue.split(",")).stream()
-                            .map(subtaskName -> tasks.get(subtaskName.trim()))
-                            .filter(Objects::nonNull)
-                            .collect(Collectors.toList());
-                    taskToChange.setPrerequisites(newSubtasks);
+                default:
+                    return refuse("Unknown property " + property);
+            }
+            if (!log(Journal.CHANGE, name, property, newValue)) {
+                return fail("The change could not be written to the journal.");
+            }
+            save(taskToChange);
+            switch (property.toLowerCase()) {
+                case "name":
+                    // Criteria on prerequisite names see the new name in every dependent
+                    for (Task parent : dependents.getOrDefault(taskToChange, Collections.emptySet())) {
+                        searchCache.changed(parent);
+                    }
+                    index.remove(taskToChange);
+                    taskToChange.setName(newValue);
+                    index.add(taskToChange);
+                    graphChanged();
+                    break;
+                case "description":
+                    index.remove(taskToChange);
+                    taskToChange.setDescription(newValue);
+                    index.add(taskToChange);
+                    graphChanged();
+                    break;
+                case "duration":
+                    index.remove(taskToChange);
+                    taskToChange.setDuration(newDuration);
+                    index.add(taskToChange);
+                    invalidateDuration(taskToChange);
+                    graphChanged();
                     break;
+                default:
+                    setPrerequisites(taskToChange, newPrerequisites);
+                    break;
+            }
+            return true;
+        } finally {
+            recordMutation(Metrics.Op.CHANGE, start);
+        }
+    }
+
+    private void addPrerequisite(Task task, Task prerequisite) {
+        task.addPrerequisite(prerequisite);
+        dependents.computeIfAbsent(prerequisite, k -> new HashSet<>()).add(task);
+    }
+
+    // Describes the first edge that would close a cycle, or returns null if there is none.
+    // Moving tasks in the order for edges that are then not made still leaves it a valid order.
+    private String cycleError(Task task, List<Task> prerequisites) {
+        for (Task prerequisite : prerequisites) {
+            if (!order.addEdge(prerequisite, task)) {
+                return "Task " + prerequisite.getName() + " cannot be a prerequisite of "
+                        + task.getName() + ": it would form a cycle.";
+            }
+        }
+        return null;
+    }
+
+    // The edges must already have passed cycleError
+    private void setPrerequisites(Task task, List<Task> prerequisites) {
+        for (Task old : task.getPrerequisites()) {
+            Set<Task> siblings = dependents.get(old);
+            if (siblings != null) {
+                siblings.remove(task);
+            }
+        }
+        task.setPrerequisites(new ArrayList<>());
+        for (Task prerequisite : prerequisites) {
+            addPrerequisite(task, prerequisite);
+        }
+        invalidateDuration(task);
+        graphChanged();
+    }
+
+    /**
+     * Drops the cached duration of the given task and of every task that depends on it.
+     * A cached task always has cached prerequisites, so the walk stops at the first
+     * ancestor that is already dirty.
+     */
+    private void invalidateDuration(Task task) {
+        Deque<Task> dirty = new ArrayDeque<>();
+        dirty.push(task);
+        while (!dirty.isEmpty()) {
+            Task current = dirty.pop();
+            if (durationCache.remove(current) == null && current != task) {
+                continue;
+            }
+            Set<Task> parents = dependents.get(current);
+            if (parents != null) {
+                for (Task parent : parents) {
+                    dirty.push(parent);
+                }
+            }
+        }
+    }
+
+    // After loadMapped the reverse index and the search indexes are only built when first needed
+    private void ensureIndexed() {
+        if (index == null) {
+            rebuildDependencyIndex();
+        }
+    }
+
+    private void rebuildDependencyIndex() {
+        dependents = new HashMap<>();
+        durationCache = new HashMap<>();
+        graphChanged();
+        index = new TaskIndex(symbols);
+        for (Task task : tasks.values()) {
+            index.add(task);
+        }
+        // Tasks replaced under their name may still be prerequisites, so walk every reachable task
+        Set<Task> reachable = Collections.newSetFromMap(new IdentityHashMap<>());
+        Deque<Task> pending = new ArrayDeque<>(tasks.values());
+        while (!pending.isEmpty()) {
+            Task task = pending.pop();
+            if (!reachable.add(task)) {
+                continue;
+            }
+            for (Task prerequisite : task.getPrerequisites()) {
+                dependents.computeIfAbsent(prerequisite, k -> new HashSet<>()).add(task);
+                pending.push(prerequisite);
             }
         }
+        order = TopologicalOrder.of(reachable, dependents);
     }
 
     public String printTask(String name) {
         Task task = tasks.get(name);
         if (task != null) {
-            StringBuilder result = new StringBuilder("Task Information:\n");
-            result.append("Name: ").append(task.getName()).append("\n");
-            result.append("Description: ").append(task.getDescription()).append("\n");
-            result.append("Duration: ").append(task.getDuration()).append(" hours\n");
-            if (evaluateIsPrimitive(name)) {
-                result.append("Prerequisites: ");
-                for (Task prerequisite : task.getPrerequisites()) {
-                    result.append(prerequisite.getName()).append(", ");
-                }
-            } else {
-                result.append("Subtasks: ");
-                for (Task subtask : task.getPrerequisites()) {
-                    result.append(subtask.getName()).append(", ");
-                }
-            }
-            return result.toString();
+            return ReportRenderer.describe(task);
         } else {
             return "Task " + name + " not found.";
         }
     }
 
     public void printAllTasks() {
-        for (Task task : tasks.values()) {
-            printTask(task.getName());
-            System.out.println("------------------------");
-        }
+        new ReportRenderer().tasks(tasks.values()).flushTo(System.out);
     }
 
     public String reportDuration(String name) {
@@ -173,42 +491,300 @@ class TMS implements Serializable {
         }
     }
 
+    /** The duration reportDuration reports for the task, or NaN if there is no such task. */
+    public double getDuration(String name) {
+        Task task = tasks.get(name);
+        return task != null ? calculateDuration(task) : Double.NaN;
+    }
+
     private double calculateDuration(Task task) {
-        if (task.getPrerequisites().isEmpty()) {
-            return task.getDuration();  // For simple tasks
-        } else {
-            double maxSubtaskDuration = 0;
-            for (Task subtask : task.getPrerequisites()) {
-                double subtaskDuration = calculateDuration(subtask);
-                if (subtaskDuration > maxSubtaskDuration) {
-                    maxSubtaskDuration = subtaskDuration;
-                }
+        return PostOrder.fold(task, Task::getPrerequisites, durationCache, 0.0, TMS::combineDuration);
+    }
+
+    // Without prerequisites a task takes its own duration, otherwise as long as the longest of them
+    static double combineDuration(Task task, List<Double> prerequisiteDurations) {
+        if (prerequisiteDurations.isEmpty()) {
+            return task.getDuration();
+        }
+        double maxSubtaskDuration = 0;
+        for (double subtaskDuration : prerequisiteDurations) {
+            if (subtaskDuration > maxSubtaskDuration) {
+                maxSubtaskDuration = subtaskDuration;
             }
-            return maxSubtaskDuration;
         }
+        return maxSubtaskDuration;
     }
 
     public void reportEarliestFinishTime(String name) {
         Task task = tasks.get(name);
         if (task != null) {
-            double earliestFinishTime = calculateEarliestFinishTime(task);
-            System.out.println("Earliest finish time of task " + name + ": " + earliestFinishTime + " hours");
+            if (getSchedule().contains(task)) {
+                System.out.println("Earliest finish time of task " + name + ": " + getEarliestFinishTime(name) + " hours");
+            } else {
+                System.out.println("Task " + name + " depends on a prerequisite cycle.");
+            }
+        }
+    }
+
+    /** The earliest finish time of the task, or NaN if it is unknown or cannot be scheduled. */
+    public double getEarliestFinishTime(String name) {
+        Task task = tasks.get(name);
+        Schedule current = getSchedule();
+        return task != null && current.contains(task) ? current.getEarliestFinish(task) : Double.NaN;
+    }
+
+    public Map<String, Double> reportEarliestFinishTimes() {
+        return getSchedule().getEarliestFinishTimes();
+    }
+
+    public List<String> reportCriticalPath() {
+        return getSchedule().getCriticalPath().stream()
+                .map(Task::getName)
+                .collect(Collectors.toList());
+    }
+
+    public Schedule getSchedule() {
+        if (schedule == null) {
+            schedule = Schedule.of(tasks.values());
+        }
+        return schedule;
+    }
+
+    /**
+     * The tasks as a {@link CompactGraph}. It is built on first use and dropped by the next
+     * mutation, so repeated queries between changes share one copy. It is a frozen copy of
+     * the task store; to query a stored graph without a TMS, open the snapshot with CompactGraph.read.
+     */
+    public CompactGraph getCompactGraph() {
+        if (compactGraph == null) {
+            compactGraph = CompactGraph.of(tasks, symbols);
+        }
+        return compactGraph;
+    }
+
+    /** Where operation latencies, search selectivity and graph figures are reported; none by default. */
+    public void setMetrics(Metrics metrics) {
+        this.metrics = metrics != null ? metrics : Metrics.NONE;
+        this.metrics.recordTaskCount(tasks.size());
+    }
+
+    public Metrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Reports the edge count and depth of the graph to the metrics. These take a pass over the
+     * whole graph, so unlike the other figures they are only taken when this is called.
+     */
+    public void sampleGraphMetrics() {
+        if (metrics != Metrics.NONE) {
+            metrics.recordGraph(getCompactGraph());
+        }
+    }
+
+    private void recordMutation(Metrics.Op op, long start) {
+        mutated();
+        metrics.record(op, start);
+        metrics.recordTaskCount(tasks.size());
+    }
+
+    private void recordSearch(long start, int matches) {
+        metrics.record(Metrics.Op.SEARCH, start);
+        metrics.recordSearch(matches, tasks.size());
+    }
+
+    /**
+     * Starts a batch of task mutations that its commit applies all at once or not at all.
+     * Mutations still come from one thread at a time, committed or not.
+     */
+    public Transaction begin() {
+        return new Transaction(this);
+    }
+
+    /**
+     * The tasks and criteria as the last published version holds them. Versions never change,
+     * so other threads may search them and report durations without locking. Every commit
+     * publishes a version; changes made outside a transaction show in the next one, unless
+     * versions are being kept, in which case every mutation publishes one.
+     */
+    public GraphVersion getVersion() {
+        return history.current();
+    }
+
+    /** A version kept under the retention set by {@link #setVersionRetention}, or null if evicted. */
+    public GraphVersion getVersion(long number) {
+        return history.get(number);
+    }
+
+    /** The version that was current at the given time, if it is still kept, or null. */
+    public GraphVersion getVersionAsOf(long epochMillis) {
+        return history.asOf(epochMillis);
+    }
+
+    public List<GraphVersion> getVersions() {
+        return history.versions();
+    }
+
+    /**
+     * Keeps up to maxVersions versions, none older than maxAgeMillis, for time-travel queries.
+     * With more than one, every mutation publishes a version. Versions share the tasks they did
+     * not change, so each costs about what its mutation changed.
+     */
+    public void setVersionRetention(int maxVersions, long maxAgeMillis) {
+        history.setRetention(maxVersions, maxAgeMillis);
+        if (history.isKeepingHistory() && history.hasChanges()) {
+            history.publish(tasks, basicCriteria, compositeCriteria, symbols);
+        }
+    }
+
+    // With versions kept, each mutation outside a transaction publishes one
+    private void mutated() {
+        if (committing == null) {
+            compactSymbols();
+        }
+        if (committing == null && history.isKeepingHistory() && history.hasChanges()) {
+            history.publish(tasks, basicCriteria, compositeCriteria, symbols);
+        }
+    }
+
+    // Applies a transaction; if one of its operations is refused, everything it did is undone
+    boolean commit(Transaction transaction) {
+        ensureIndexed();
+        committing = transaction;
+        try {
+            for (Journal.Entry entry : transaction.getStaged()) {
+                apply(entry);
+                if (transaction.isRefused()) {
+                    break;
+                }
+            }
+        } finally {
+            committing = null;
+        }
+        if (transaction.isRefused()
+                || !log(Journal.BATCH, Journal.formatBatch(transaction.getStaged()))) {
+            transaction.undo(tasks);
+            rebuildDependencyIndex();
+            history.reset();
+            searchCache.clear();
+            System.out.println("Transaction rolled back.");
+            return false;
+        }
+        compactSymbols();
+        history.publish(tasks, basicCriteria, compositeCriteria, symbols);
+        return true;
+    }
+
+    // Called before a mutation changes a task or the task stored under a name
+    private void save(Task task) {
+        if (committing != null) {
+            committing.save(task);
+        }
+        history.touch(task);
+        searchCache.changed(task);
+    }
+
+    private void saveKey(String name) {
+        if (committing != null) {
+            committing.saveKey(name, tasks.get(name));
         }
+        history.touchKey(name);
+        searchCache.replacing(name, tasks.get(name));
+    }
+
+    // Prints why a mutation is refused, then fails it
+    private boolean refuse(String reason) {
+        System.out.println(reason);
+        return fail(reason);
+    }
+
+    // A mutation that fails also makes a transaction being committed roll back
+    private boolean fail(String reason) {
+        if (committing != null) {
+            committing.refuse();
+        }
+        lastError = reason;
+        return false;
+    }
+
+    /** Why the last mutation that returned false was not applied. */
+    public String getLastError() {
+        return lastError;
+    }
+
+    /** The table the names and descriptions of the tasks are interned in. */
+    SymbolTable getSymbols() {
+        return symbols;
     }
 
+    /*
+     * Renaming or redescribing a task leaves its old text in the table, and deleting one leaves
+     * its slot in the store. Once either has doubled since it last held only live entries,
+     * every reachable task moves into a fresh store over a fresh table, and everything holding
+     * handles (the compiled criteria, the search index and the compact graph) is rebuilt; the
+     * old store and table are dropped with whatever still refers to them.
+     */
+    private void compactSymbols() {
+        if ((symbols.size() < compactSymbolsAt && store.size() < compactTasksAt) || index == null) {
+            return;
+        }
+        SymbolTable live = new SymbolTable(symbols.size() / 2);
+        Set<Task> reachable = reachable(tasks.values());
+        TaskStore moved = new TaskStore(live, reachable.size());
+        moved.adopt(reachable);
+        if (tasks instanceof TaskTable) {
+            ((TaskTable) tasks).moveSymbols(live);
+        } else if (tasks instanceof MappedSnapshot.TaskMap) {
+            ((MappedSnapshot.TaskMap) tasks).setStore(moved);
+        }
+        symbols = live;
+        store = moved;
+        compactSymbolsAt = Math.max(MIN_SYMBOLS_TO_COMPACT, 2 * live.size());
+        compactTasksAt = Math.max(MIN_TASKS_TO_COMPACT, 2 * moved.size());
+        criteria = new CriterionCompiler(basicCriteria, compositeCriteria, symbols);
+        searchCache.clear();
+        graphChanged();
+        index = new TaskIndex(symbols);
+        for (Task task : tasks.values()) {
+            index.add(task);
+        }
+    }
 
-    private double calculateEarliestFinishTime(Task task) {
-        double earliestFinishTime = task.getDuration();
-        for (Task prerequisite : task.getPrerequisites()) {
-            double prerequisiteFinishTime = calculateEarliestFinishTime(prerequisite);
-            if (prerequisiteFinishTime > earliestFinishTime) {
-                earliestFinishTime = prerequisiteFinishTime;
+    // The tasks and everything they transitively depend on
+    private static Set<Task> reachable(Collection<Task> roots) {
+        Set<Task> reachable = Collections.newSetFromMap(new IdentityHashMap<>());
+        Deque<Task> pending = new ArrayDeque<>(roots);
+        while (!pending.isEmpty()) {
+            Task task = pending.pop();
+            if (reachable.add(task)) {
+                pending.addAll(task.getPrerequisites());
             }
         }
-        return earliestFinishTime;
+        return reachable;
     }
 
-    public void defineBasicCriterion(String criterionName, String property, String op, String value) {
+    private void graphChanged() {
+        schedule = null;
+        compactGraph = null;
+    }
+
+    /** Returns false if the operator or value does not suit the property. */
+    public boolean defineBasicCriterion(String criterionName, String property, String op, String value) {
+        BasicCriterion basicCriterion = newBasicCriterion(criterionName, property, op, value);
+        if (basicCriterion == null) {
+            return fail("Invalid criterion " + criterionName + ": " + property + " " + op + " " + value);
+        }
+        if (!log(Journal.DEFINE_BASIC, criterionName, property, op, value)) {
+            return fail("The criterion could not be written to the journal.");
+        }
+        compositeCriteria.remove(criterionName);
+        basicCriteria.put(criterionName, basicCriterion);
+        redefined(criterionName);
+        return true;
+    }
+
+    // Returns null if the operator or value does not suit the property
+    static BasicCriterion newBasicCriterion(String criterionName, String property, String op, String value) {
         BasicCriterion basicCriterion = null;
 
         switch (property.toLowerCase()) {
@@ -230,22 +806,19 @@ class TMS implements Serializable {
                 }
                 break;
         }
-
-        if (basicCriterion != null) {
-            basicCriteria.put(criterionName, basicCriterion);
-        }
+        return basicCriterion;
     }
 
 
-    private boolean isValidDurationOperator(String op) {
+    private static boolean isValidDurationOperator(String op) {
         String[] validOperators = { ">", "<", ">=", "<=", "==", "!=" };
         return Arrays.asList(validOperators).contains(op);
     }
 
-    private boolean isValidRealValue(String value) {
+    private static boolean isValidRealValue(String value) {
         try {
-            Double.parseDouble(value);
-            return true;
+            // "NaN" parses, but no duration compares with it
+            return !Double.isNaN(Double.parseDouble(value));
         } catch (NumberFormatException e) {
             return false;
         }
@@ -259,129 +832,579 @@ class TMS implements Serializable {
 
 
 
-    public void defineNegatedCriterion(String name1, String name2) {
+    /**
+     * Returns false if the operand is not defined. The criterion is defined all the same and
+     * matches every task until the operand is.
+     */
+    public boolean defineNegatedCriterion(String name1, String name2) {
+        if (!log(Journal.DEFINE_NEGATED, name1, name2)) {
+            return fail("The criterion could not be written to the journal.");
+        }
+        boolean defined = criteria.isDefined(name2);
         CompositeCriterion criterion2 = compositeCriteria.get(name2);
+        CompositeCriterion negatedCriterion = new CompositeCriterion(name1);
+        negatedCriterion.setOperandNames(Collections.singletonList(name2));
         if (criterion2 != null) {
-            CompositeCriterion negatedCriterion = new CompositeCriterion(name1);
             negatedCriterion.setNegatedCriterion(criterion2);
-            compositeCriteria.put(name1, negatedCriterion);
         } else {
-            // If the base criterion is not found, create a negated criterion with a placeholder name
-            CompositeCriterion negatedCriterion = new CompositeCriterion(name1);
-            negatedCriterion.setNegatedCriterion(new CompositeCriterion("Placeholder"));
-            compositeCriteria.put(name1, negatedCriterion);
-            System.out.println("Base Criterion " + name2 + " not found.");
+            // Basic (or not yet defined) operands are resolved by name when the criterion is compiled
+            negatedCriterion.setNegatedCriterion(new CompositeCriterion(name2));
+            if (!defined) {
+                System.out.println("Base Criterion " + name2 + " not found.");
+            }
         }
+        basicCriteria.remove(name1);
+        compositeCriteria.put(name1, negatedCriterion);
+        redefined(name1);
+        return defined || fail("Base Criterion " + name2 + " not found.");
     }
 
 
 
-    public void defineBinaryCriterion(String name1, String name2, String logicOp, String name3) {
+    /**
+     * Returns false if an operand is not defined or the operator is neither && nor ||. The
+     * criterion is defined all the same; a missing operand matches no task until it is defined,
+     * and with an unknown operator the criterion matches none.
+     */
+    public boolean defineBinaryCriterion(String name1, String name2, String logicOp, String name3) {
+        if (!log(Journal.DEFINE_BINARY, name1, name2, logicOp, name3)) {
+            return fail("The criterion could not be written to the journal.");
+        }
         CompositeCriterion criterion2 = compositeCriteria.get(name2);
         CompositeCriterion criterion3 = compositeCriteria.get(name3);
 
         CompositeCriterion binaryCriterion = new CompositeCriterion(name1);
         binaryCriterion.setLogicOp(logicOp);
         binaryCriterion.setSubCriteria(Arrays.asList(criterion2, criterion3));
+        binaryCriterion.setOperandNames(Arrays.asList(name2, name3));
+        basicCriteria.remove(name1);
         compositeCriteria.put(name1, binaryCriterion);
+        redefined(name1);
+        for (String operand : Arrays.asList(name2, name3)) {
+            if (!criteria.isDefined(operand)) {
+                return fail("Criterion " + operand + " not found.");
+            }
+        }
+        return logicOp.trim().equals("&&") || logicOp.trim().equals("||") || fail("Unknown operator " + logicOp);
+    }
+
+    // A (re)defined criterion, and the criteria built on it, are compiled on next use
+    private void redefined(String criterionName) {
+        searchCache.invalidate(criteria.invalidate(criterionName));
+        history.touchCriterion(criterionName);
+        mutated();
     }
 
 
 
     public void printAllCriteria() {
-        for (CompositeCriterion criterion : compositeCriteria.values()) {
-            System.out.println("Criterion: " + criterion.getName());
-            printCriterionDetails(criterion, 1);
-            System.out.println("------------------------"); // Add a separator for better readability
+        new ReportRenderer().criteria(compositeCriteria.values()).flushTo(System.out);
+    }
+
+
+
+
+    public void search(String criterionName) {
+        if (criteria.isDefined(criterionName)) {
+            long start = metrics.start();
+            Set<Task> matches = select(criterionName);
+            recordSearch(start, matches.size());
+            new ReportRenderer().search(criterionName, tasks.values(), matches).flushTo(System.out);
+        } else {
+            System.out.println("Criterion " + criterionName + " not found.");
         }
     }
 
-    private void printCriterionDetails(CompositeCriterion criterion, int indentation) {
-        if (criterion == null) {
-            return;  // Skip if the criterion is null
+    /** The tasks satisfying the criterion, in no particular order. */
+    public List<Task> searchTasks(String criterionName) {
+        if (!criteria.isDefined(criterionName)) {
+            return Collections.emptyList();
         }
+        long start = metrics.start();
+        Set<Task> matches = select(criterionName);
+        recordSearch(start, matches.size());
+        return Collections.unmodifiableList(new ArrayList<>(matches));
+    }
 
-        String spaces = " ".repeat(indentation * 2);
-        System.out.println(spaces + "Criterion: " + criterion.getName());
-        System.out.println(spaces + "  LogicOp: " + criterion.getLogicOp()); // Print logical operator for all criteria
+    // The tasks satisfying a defined criterion, from the search cache when it has them
+    private Set<Task> select(String criterionName) {
+        ensureIndexed();
+        Set<Task> matches = searchCache.get(criterionName, tasks);
+        if (matches == null) {
+            matches = criteria.select(criterionName, index, tasks.values());
+            searchCache.put(criterionName, criteria.compile(criterionName), matches, tasks);
+        }
+        return matches;
+    }
 
-        for (CompositeCriterion subCriterion : criterion.getSubCriteria()) {
-            printCriterionDetails(subCriterion, indentation + 1);
+    /** Lazily evaluates the criterion over the tasks; nothing is collected up front. */
+    public Stream<Task> searchStream(String criterionName) {
+        if (!criteria.isDefined(criterionName)) {
+            return Stream.empty();
         }
+        return tasks.values().stream().filter(criteria.compile(criterionName));
+    }
 
-        if (criterion.getNegatedCriterion() != null) {
-            System.out.println(spaces + "  Negated Criterion: " + criterion.getNegatedCriterion().getName());
-            printCriterionDetails(criterion.getNegatedCriterion(), indentation + 1);
+    /** Hands every task satisfying the criterion to the sink as it is found. */
+    public void search(String criterionName, Consumer<? super Task> sink) {
+        if (criteria.isDefined(criterionName)) {
+            long start = metrics.start();
+            Set<Task> matches = select(criterionName);
+            recordSearch(start, matches.size());
+            for (Task task : matches) {
+                sink.accept(task);
+            }
         }
     }
 
+    /**
+     * Evaluates the criterion over all tasks on a fork/join pool and returns the matching
+     * tasks. Below the parallel search threshold the tasks are filtered sequentially.
+     */
+    public List<Task> searchParallel(String criterionName) {
+        if (!criteria.isDefined(criterionName)) {
+            return Collections.emptyList();
+        }
+        long start = metrics.start();
+        if (parallelSearch == null) {
+            parallelSearch = new ParallelSearch(searchParallelism, parallelSearchThreshold);
+        }
+        List<Task> matches = parallelSearch.filter(tasks.values(), criteria.compile(criterionName));
+        recordSearch(start, matches.size());
+        return matches;
+    }
 
+    /** Hit, miss and eviction counts of the search result cache. */
+    public SearchCache getSearchCache() {
+        return searchCache;
+    }
 
+    /**
+     * Bounds the search result cache to maxEntries criteria holding at most maxMatches tasks
+     * between them; a maxEntries of 0 turns it off.
+     */
+    public void setSearchCacheLimits(int maxEntries, long maxMatches) {
+        searchCache.setLimits(maxEntries, maxMatches);
+    }
 
-    public void search(String criterionName) {
-        CompositeCriterion criterion = compositeCriteria.get(criterionName);
-        if (criterion != null) {
-            System.out.println("Tasks satisfying criterion " + criterionName + ":");
-            for (Task task : tasks.values()) {
-                if (task != null) {
-                    System.out.println("Task: " + task.getName());  // Add this line for debugging
-                    if (satisfiesCriterion(task, criterion)) {
-                        System.out.println("- " + task.getName());
-                    }
-                } else {
-                    System.out.println("Encountered null task.");
-                }
-            }
-        } else {
-            System.out.println("Criterion " + criterionName + " not found.");
+    public void setSearchParallelism(int parallelism) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("Parallelism must be at least 1");
+        }
+        searchParallelism = parallelism;
+        resetParallelSearch();
+    }
+
+    public void setParallelSearchThreshold(int threshold) {
+        parallelSearchThreshold = threshold;
+        resetParallelSearch();
+    }
+
+    private void resetParallelSearch() {
+        if (parallelSearch != null) {
+            parallelSearch.shutdown();
+            parallelSearch = null;
         }
     }
 
+    /** Writes every task to the file as jsonl, csv or dot; see {@link TaskExporter}. */
+    public void exportTasks(String path, String format) {
+        exportTo(path, format, (out, exportFormat) -> exportTasks(out, exportFormat));
+    }
+
+    /** Writes the tasks satisfying the criterion to the file as jsonl, csv or dot. */
+    public void exportSearch(String criterionName, String path, String format) {
+        exportTo(path, format, (out, exportFormat) -> exportSearch(criterionName, out, exportFormat));
+    }
 
+    /** Writes the named task and everything it depends on to the file as jsonl, csv or dot. */
+    public void exportSubgraph(String name, String path, String format) {
+        exportTo(path, format, (out, exportFormat) -> exportSubgraph(name, out, exportFormat));
+    }
 
-    private boolean satisfiesCriterion(Task task, CompositeCriterion criterion) {
-        if (criterion == null) {
-            return false;  // If the criterion is null, consider it not satisfied
+    /** Streams every task to the channel and returns how many were written. */
+    public long exportTasks(WritableByteChannel out, TaskExporter.Format format) throws IOException {
+        TaskExporter exporter = new TaskExporter(out, format);
+        for (Task task : exported(new SymbolTable())) {
+            exporter.task(task);
         }
+        exporter.finish();
+        return exporter.getWritten();
+    }
 
-        if (criterion.getNegatedCriterion() != null) {
-            return !satisfiesCriterion(task, criterion.getNegatedCriterion());
+    // A mapped snapshot's tasks are read from their records rather than all materialized; the
+    // names and descriptions of those read go into the given table, dropped after the export
+    private Iterable<Task> exported(SymbolTable exportSymbols) {
+        return tasks instanceof MappedSnapshot.TaskMap ? ((MappedSnapshot.TaskMap) tasks).detached(exportSymbols)
+                : tasks.values();
+    }
+
+    /**
+     * Streams the tasks satisfying the criterion to the channel as they are found, without
+     * collecting them first, and returns how many were written.
+     */
+    public long exportSearch(String criterionName, WritableByteChannel out, TaskExporter.Format format)
+            throws IOException {
+        if (!criteria.isDefined(criterionName)) {
+            System.out.println("Criterion " + criterionName + " not found.");
+            return 0;
+        }
+        CriterionProgram.OnTasks program;
+        Iterable<Task> candidates;
+        if (tasks instanceof MappedSnapshot.TaskMap) {
+            SymbolTable exportSymbols = new SymbolTable();
+            program = CriterionCompiler.compile(criterionName, basicCriteria, compositeCriteria,
+                    basic -> CriterionProgram.ofTask(basic.toPredicate(exportSymbols)), CriterionProgram.OnTasks.NEVER);
+            candidates = exported(exportSymbols);
         } else {
-            boolean result = false;
-            for (CompositeCriterion subCriterion : criterion.getSubCriteria()) {
-                boolean subResult = satisfiesCriterion(task, subCriterion);
-                if (criterion.getLogicOp().equals("&&")) {
-                    result = result && subResult;
-                } else if (criterion.getLogicOp().equals("||")) {
-                    result = result || subResult;
-                }
+            program = criteria.compile(criterionName);
+            candidates = tasks.values();
+        }
+        TaskExporter exporter = new TaskExporter(out, format);
+        for (Task task : candidates) {
+            if (program.test(task)) {
+                exporter.task(task);
             }
-            return result;
         }
+        exporter.finish();
+        return exporter.getWritten();
     }
 
+    /**
+     * Streams the named task, then every task it transitively depends on (the subtasks of a
+     * composite, the prerequisites of a primitive), each once, and returns how many were
+     * written. Only the tasks already visited are remembered.
+     */
+    public long exportSubgraph(String name, WritableByteChannel out, TaskExporter.Format format)
+            throws IOException {
+        Task root = tasks.get(name);
+        if (root == null) {
+            System.out.println("Task " + name + " not found.");
+            return 0;
+        }
+        TaskExporter exporter = new TaskExporter(out, format);
+        Set<Task> visited = Collections.newSetFromMap(new IdentityHashMap<>());
+        Deque<Task> pending = new ArrayDeque<>();
+        pending.push(root);
+        while (!pending.isEmpty()) {
+            Task task = pending.pop();
+            if (!visited.add(task)) {
+                continue;
+            }
+            exporter.task(task);
+            List<Task> prerequisites = task.getPrerequisites();
+            for (int i = prerequisites.size() - 1; i >= 0; i--) {
+                pending.push(prerequisites.get(i));
+            }
+        }
+        exporter.finish();
+        return exporter.getWritten();
+    }
+
+    private interface Export {
+        long to(WritableByteChannel out, TaskExporter.Format format) throws IOException;
+    }
+
+    private void exportTo(String path, String format, Export export) {
+        TaskExporter.Format exportFormat = TaskExporter.format(format);
+        if (exportFormat == null) {
+            System.out.println("Unknown export format " + format + "; use jsonl, csv or dot.");
+            return;
+        }
+        try (FileChannel out = FileChannel.open(Paths.get(path), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            export.to(out, exportFormat);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
 
     public void store(String path) {
-        try (ObjectOutputStream oos = new ObjectOutputStream(new FileOutputStream(path))) {
-            oos.writeObject(tasks);
-            oos.writeObject(compositeCriteria);
-            oos.writeObject(basicCriteria);
+        long start = metrics.start();
+        try {
+            Path target = Paths.get(path);
+            boolean foldsJournal = journal != null && target.equals(journalSnapshot);
+            if (foldsJournal) {
+                awaitCompaction();
+            }
+            SnapshotFormat.write(target, tasks, compositeCriteria, basicCriteria, journalSequence);
+            if (foldsJournal) {
+                journal.truncate();  // everything it held is in the snapshot now
+            }
         } catch (IOException e) {
             e.printStackTrace();
+        } finally {
+            metrics.record(Metrics.Op.STORE, start);
         }
     }
 
-    @SuppressWarnings("unchecked")
     public void load(String path) {
-        try (ObjectInputStream ois = new ObjectInputStream(new FileInputStream(path))) {
-            tasks = (Map<String, Task>) ois.readObject();
-            compositeCriteria = (Map<String, CompositeCriterion>) ois.readObject();
-            basicCriteria = (Map<String, BasicCriterion>) ois.readObject();
+        long start = metrics.start();
+        try {
+            long snapshotSequence = 0;
+            if (SnapshotFormat.isSnapshot(Paths.get(path))) {
+                SnapshotFormat.Contents contents = SnapshotFormat.read(Paths.get(path));
+                install(contents.tasks, contents.compositeCriteria, contents.basicCriteria, contents.store);
+                snapshotSequence = contents.journalSequence;
+            } else {
+                loadSerialized(path);
+            }
+            recover(Paths.get(path), snapshotSequence);
         } catch (IOException | ClassNotFoundException e) {
             e.printStackTrace();
+        } finally {
+            recordMutation(Metrics.Op.LOAD, start);
+        }
+    }
+
+    /**
+     * Maps a snapshot written by store into memory instead of reading it. Tasks are decoded
+     * when first looked up, so printTask and reportDuration can answer straight away.
+     * The file is read in place, so it must not be modified while this TMS uses it.
+     */
+    public void loadMapped(String path) {
+        long start = metrics.start();
+        try {
+            MappedSnapshot snapshot = MappedSnapshot.open(Paths.get(path));
+            symbols = snapshot.getSymbols();
+            compactSymbolsAt = MIN_SYMBOLS_TO_COMPACT;
+            store = new TaskStore(symbols);
+            compactTasksAt = MIN_TASKS_TO_COMPACT;
+            tasks = new MappedSnapshot.TaskMap(snapshot, store);
+            compositeCriteria = snapshot.getCompositeCriteria();
+            basicCriteria = snapshot.getBasicCriteria();
+            criteria = new CriterionCompiler(basicCriteria, compositeCriteria, symbols);
+            history.reset();
+            searchCache.clear();
+            dependents = null;
+            order = null;
+            durationCache = new HashMap<>();
+            graphChanged();
+            index = null;
+            recover(Paths.get(path), snapshot.getJournalSequence());
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            recordMutation(Metrics.Op.LOAD, start);
         }
     }
 
+    // Files written with Java serialization before the snapshot format existed
+    @SuppressWarnings("unchecked")
+    private void loadSerialized(String path) throws IOException, ClassNotFoundException {
+        try (ObjectInputStream ois = new ObjectInputStream(new FileInputStream(path))) {
+            Map<String, Task> loadedTasks = (Map<String, Task>) ois.readObject();
+            Map<String, CompositeCriterion> loadedComposites = (Map<String, CompositeCriterion>) ois.readObject();
+            Map<String, BasicCriterion> loadedBasics = (Map<String, BasicCriterion>) ois.readObject();
+            // Each task was read with a store of its own; gather them into one
+            TaskStore loadedStore = new TaskStore(new SymbolTable(loadedTasks.size() * 2), loadedTasks.size());
+            loadedStore.adopt(reachable(loadedTasks.values()));
+            Map<String, Task> table = new TaskTable(loadedStore.getSymbols(), loadedTasks.size());
+            table.putAll(loadedTasks);
+            install(table, loadedComposites, loadedBasics, loadedStore);
+        }
+    }
+
+    private void install(Map<String, Task> loadedTasks, Map<String, CompositeCriterion> loadedComposites,
+                         Map<String, BasicCriterion> loadedBasics, TaskStore loadedStore) {
+        tasks = loadedTasks;
+        compositeCriteria = loadedComposites;
+        basicCriteria = loadedBasics;
+        store = loadedStore;
+        symbols = loadedStore.getSymbols();
+        compactSymbolsAt = Math.max(MIN_SYMBOLS_TO_COMPACT, 2 * symbols.size());
+        compactTasksAt = Math.max(MIN_TASKS_TO_COMPACT, 2 * store.size());
+        criteria = new CriterionCompiler(basicCriteria, compositeCriteria, symbols);
+        history.reset();
+        searchCache.clear();
+        rebuildDependencyIndex();
+    }
+
+    /**
+     * Stores a snapshot at the given path and from then on appends every mutation to a journal
+     * beside it, so that a later load(path) replays them. With a flush interval of 0 every
+     * mutation is forced to disk before it is applied; otherwise the journal is forced in the
+     * background every flushIntervalMillis, so a crash loses at most that much work.
+     */
+    public void enableJournal(String path, long flushIntervalMillis) {
+        try {
+            closeJournal();
+            journalSnapshot = Paths.get(path);
+            SnapshotFormat.write(journalSnapshot, tasks, compositeCriteria, basicCriteria, journalSequence);
+            Files.deleteIfExists(journalPath(journalSnapshot));
+            Files.deleteIfExists(sealedJournalPath(journalSnapshot));
+            journalFlushInterval = flushIntervalMillis;
+            journal = Journal.open(journalPath(journalSnapshot), journalSequence + 1, flushIntervalMillis);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    public void closeJournal() throws IOException {
+        awaitCompaction();
+        if (journal != null) {
+            journal.close();
+            journal = null;
+        }
+    }
+
+    /**
+     * Folds the journal into a new snapshot on a background thread. The current journal is
+     * sealed and a fresh one started; the sealed records are replayed onto the last snapshot
+     * by a separate TMS, so the live one is not touched. If a sealed journal is left from a
+     * compaction that failed, that one is folded instead and the current journal stays open.
+     */
+    public Future<?> compactJournal() {
+        if (journal == null) {
+            return CompletableFuture.completedFuture(null);
+        }
+        try {
+            awaitCompaction();
+            Path current = journalPath(journalSnapshot);
+            Path sealed = sealedJournalPath(journalSnapshot);
+            if (!Files.exists(sealed)) {
+                long flushInterval = journal.getFlushIntervalMillis();
+                journal.close();
+                Files.move(current, sealed, StandardCopyOption.ATOMIC_MOVE);
+                SnapshotFormat.syncDirectory(sealed.toAbsolutePath().getParent());
+                journal = Journal.open(current, journalSequence + 1, flushInterval);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            return CompletableFuture.completedFuture(null);
+        }
+
+        Path snapshot = journalSnapshot;
+        compaction = CompletableFuture.runAsync(() -> {
+            try {
+                SnapshotFormat.Contents contents = SnapshotFormat.read(snapshot);
+                TMS folded = new TMS();
+                folded.install(contents.tasks, contents.compositeCriteria, contents.basicCriteria, contents.store);
+                folded.journalSequence = contents.journalSequence;
+                Path sealedJournal = sealedJournalPath(snapshot);
+                folded.replay(sealedJournal, contents.journalSequence);
+                SnapshotFormat.write(snapshot, folded.tasks, folded.compositeCriteria, folded.basicCriteria,
+                        folded.journalSequence);
+                Files.delete(sealedJournal);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+        return compaction;
+    }
+
+    private void awaitCompaction() throws IOException {
+        if (compaction != null) {
+            try {
+                compaction.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while compacting the journal");
+            } catch (ExecutionException e) {
+                throw new IOException("Journal compaction failed", e.getCause());
+            } finally {
+                compaction = null;
+            }
+        }
+    }
+
+    // Appends a mutation to the journal, if there is one; false if it could not be logged
+    private boolean log(byte op, String... args) {
+        if (journal == null || committing != null) {
+            return true;
+        }
+        try {
+            journalSequence = journal.append(op, args);
+            return true;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    private static String[] withList(List<String> list, String... fixed) {
+        String[] args = Arrays.copyOf(fixed, fixed.length + list.size());
+        for (int i = 0; i < list.size(); i++) {
+            args[fixed.length + i] = list.get(i);
+        }
+        return args;
+    }
+
+    // Replays the journals beside a snapshot that was just loaded, and keeps appending to them
+    private void recover(Path snapshot, long snapshotSequence) throws IOException {
+        closeJournal();
+        journalSequence = snapshotSequence;
+        Path sealed = sealedJournalPath(snapshot);
+        Path current = journalPath(snapshot);
+        if (Files.exists(sealed)) {
+            replay(sealed, snapshotSequence);
+        }
+        if (Files.exists(current)) {
+            replay(current, snapshotSequence);
+            journalSnapshot = snapshot;
+            journal = Journal.open(current, journalSequence + 1, journalFlushInterval);
+        }
+    }
+
+    private void replay(Path path, long after) throws IOException {
+        for (Journal.Entry entry : Journal.read(path)) {
+            if (entry.sequence > after) {
+                try {
+                    apply(entry);
+                } catch (RuntimeException e) {
+                    // Journals written before changes were checked ahead of logging may hold one
+                    System.out.println("Skipped journal record " + entry.sequence + ": " + e);
+                }
+                journalSequence = Math.max(journalSequence, entry.sequence);
+            }
+        }
+    }
+
+    private void apply(Journal.Entry entry) {
+        String[] a = entry.args;
+        switch (entry.op) {
+            case Journal.CREATE_PRIMITIVE:
+                createPrimitiveTask(a[0], a[1], Double.parseDouble(a[2]), Arrays.asList(a).subList(3, a.length));
+                break;
+            case Journal.CREATE_COMPOSITE:
+                createCompositeTask(a[0], a[1], Arrays.asList(a).subList(2, a.length));
+                break;
+            case Journal.CHANGE:
+                changeTask(a[0], a[1], a[2]);
+                break;
+            case Journal.DELETE:
+                deleteTasks(Arrays.asList(a));
+                break;
+            case Journal.DEFINE_BASIC:
+                defineBasicCriterion(a[0], a[1], a[2], a[3]);
+                break;
+            case Journal.DEFINE_NEGATED:
+                defineNegatedCriterion(a[0], a[1]);
+                break;
+            case Journal.DEFINE_BINARY:
+                defineBinaryCriterion(a[0], a[1], a[2], a[3]);
+                break;
+            case Journal.IMPORT:
+                importTasks(BulkImporter.parse(a[0]));
+                break;
+            case Journal.BATCH:
+                for (Journal.Entry staged : Journal.parseBatch(a[0])) {
+                    apply(staged);
+                }
+                break;
+            default:
+                throw new IllegalStateException("Unknown journal operation " + entry.op);
+        }
+    }
+
+    private static Path journalPath(Path snapshot) {
+        return snapshot.resolveSibling(snapshot.getFileName() + ".journal");
+    }
+
+    private static Path sealedJournalPath(Path snapshot) {
+        return snapshot.resolveSibling(snapshot.getFileName() + ".journal.sealed");
+    }
+
     public void quit() {
         System.out.println("Exiting the Task Management System. Goodbye!");
         System.exit(0);
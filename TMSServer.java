@@ -0,0 +1,432 @@
+package hk.edu.polyu.comp.comp2021.tms.model;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Serves a TMS over a local TCP or Unix domain socket, one request per line and one response
+ * line per request, in order. Requests are the TMS commands with their arguments separated by
+ * spaces, the command name in any case:
+ * <pre>
+ * CreatePrimitiveTask name description duration prerequisite,prerequisite,...
+ * CreateCompositeTask name description subtask,subtask,...
+ * ChangeTask name property newValue
+ * DeleteTask name
+ * DefineBasicCriterion name property op value
+ * DefineNegatedCriterion name1 name2
+ * DefineBinaryCriterion name1 name2 logicOp name3
+ * Search criterionName
+ * ReportDuration name
+ * ReportEarliestFinishTime name
+ * DescribeTask name
+ * ReportPartials duration|finish name,name,... stub,stub,...
+ * Store fileName
+ * Quit
+ * </pre>
+ * A lone "," stands for an empty list. Descriptions, in requests and in DescribeTask answers,
+ * have whitespace, commas and "%" written as "%" and the hex of their UTF-8 bytes; a lone
+ * "%" stands for no description and "%%" for an empty one. Responses start with OK, followed by the result if
+ * there is one (search results are comma-separated names), or with ERR and the reason.
+ * DescribeTask answers with the task's own duration, whether it is composite, its
+ * prerequisites and its description, so a client can rebuild or walk the task. ReportPartials
+ * answers, for each named task held, "name known count" followed by count pairs of "stub
+ * offset", the {@link Shard.Partial} of the task with the given tasks taken for stubs. A mutation
+ * the TMS refuses (a prerequisite cycle, an undefined criterion operand) answers ERR and
+ * changes nothing. Store writes into the directory given to {@link #setStoreDirectory} and
+ * is refused on servers that have none.
+ *
+ * <p>Clients may pipeline: send many requests without waiting for the responses. Every
+ * complete request already received on a connection is run as one batch under the TMS lock,
+ * and the batch's responses are written back with a single flush. Each connection has its own
+ * thread: a virtual thread on runtimes that have them (Java 21 and later), a platform thread
+ * otherwise. Code that uses the TMS while it is served should synchronize on it too.
+ */
+class TMSServer implements AutoCloseable {
+    private static final int MAX_BATCH = 256;
+
+    private final TMS tms;
+    private final ServerSocketChannel server;
+    private final SocketAddress address;
+    private final ExecutorService connections = threadPerConnection();
+    private final Set<SocketChannel> open = ConcurrentHashMap.newKeySet();
+    private volatile boolean closed;
+    // Where Store may write snapshots; null while Store is disabled
+    private volatile Path storeDirectory;
+
+    /** Serves the TMS at the address, a UnixDomainSocketAddress or an InetSocketAddress. */
+    public TMSServer(TMS tms, SocketAddress address) throws IOException {
+        this.tms = tms;
+        this.server = address instanceof UnixDomainSocketAddress
+                ? ServerSocketChannel.open(StandardProtocolFamily.UNIX)
+                : ServerSocketChannel.open();
+        server.bind(address);
+        this.address = server.getLocalAddress();
+        Thread acceptor = new Thread(this::accept, "tms-server-accept");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    /** Serves the TMS on the loopback interface; port 0 picks a free port. */
+    public static TMSServer listen(TMS tms, int port) throws IOException {
+        return new TMSServer(tms, new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+    }
+
+    /**
+     * Lets clients store snapshots, under a plain file name, in the given directory. Store is
+     * refused until this is called, as any local process that can connect could use it.
+     */
+    public void setStoreDirectory(Path directory) {
+        storeDirectory = directory.toAbsolutePath().normalize();
+    }
+
+    /** The address the server is bound to, with the actual port for TCP. */
+    public SocketAddress getAddress() {
+        return address;
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        server.close();
+        for (SocketChannel channel : open) {
+            channel.close();
+        }
+        connections.shutdownNow();
+        if (address instanceof UnixDomainSocketAddress) {
+            Files.deleteIfExists(((UnixDomainSocketAddress) address).getPath());
+        }
+    }
+
+    private void accept() {
+        try {
+            while (!closed) {
+                SocketChannel channel = server.accept();
+                open.add(channel);
+                connections.execute(() -> serve(channel));
+            }
+        } catch (IOException e) {
+            if (!closed) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private void serve(SocketChannel channel) {
+        try (SocketChannel connection = channel;
+             BufferedReader in = new BufferedReader(new InputStreamReader(
+                     Channels.newInputStream(connection), StandardCharsets.UTF_8), 1 << 16);
+             Writer out = new OutputStreamWriter(Channels.newOutputStream(connection), StandardCharsets.UTF_8)) {
+            List<String> batch = new ArrayList<>();
+            StringBuilder responses = new StringBuilder();
+            String line;
+            while ((line = in.readLine()) != null) {
+                // Whatever else the client has already sent joins this batch
+                batch.add(line);
+                while (batch.size() < MAX_BATCH && in.ready() && (line = in.readLine()) != null) {
+                    batch.add(line);
+                }
+                boolean quit = false;
+                synchronized (tms) {
+                    for (String request : batch) {
+                        if (request.trim().equalsIgnoreCase("quit")) {
+                            responses.append("OK bye\n");
+                            quit = true;
+                            break;
+                        }
+                        responses.append(handle(request)).append('\n');
+                    }
+                }
+                out.write(responses.toString());
+                out.flush();
+                batch.clear();
+                responses.setLength(0);
+                if (quit) {
+                    return;
+                }
+            }
+        } catch (IOException e) {
+            if (!closed) {
+                e.printStackTrace();
+            }
+        } finally {
+            open.remove(channel);
+        }
+    }
+
+    // Runs one request; the caller holds the TMS lock
+    String handle(String request) {
+        String[] words = request.trim().split("\\s+");
+        try {
+            switch (words[0].toLowerCase()) {
+                case "createprimitivetask": {
+                    if (words.length != 5) {
+                        return usage("CreatePrimitiveTask name description duration prerequisites");
+                    }
+                    return result(tms.createPrimitiveTask(words[1], decode(words[2]), Double.parseDouble(words[3]), list(words[4])));
+                }
+                case "createcompositetask":
+                    if (words.length != 4) {
+                        return usage("CreateCompositeTask name description subtasks");
+                    }
+                    return result(tms.createCompositeTask(words[1], decode(words[2]), list(words[3])));
+                case "changetask":
+                    if (words.length != 4) {
+                        return usage("ChangeTask name property newValue");
+                    }
+                    if (words[2].equalsIgnoreCase("duration")) {
+                        Double.parseDouble(words[3]);
+                    }
+                    String newValue = words[2].equalsIgnoreCase("description") ? decode(words[3]) : words[3];
+                    return result(tms.changeTask(words[1], words[2], newValue));
+                case "deletetask":
+                    if (words.length != 2) {
+                        return usage("DeleteTask name");
+                    }
+                    return result(tms.deleteTask(words[1]));
+                case "definebasiccriterion":
+                    if (words.length != 5) {
+                        return usage("DefineBasicCriterion name property op value");
+                    }
+                    return result(tms.defineBasicCriterion(words[1], words[2], words[3], words[4]));
+                case "definenegatedcriterion":
+                    if (words.length != 3) {
+                        return usage("DefineNegatedCriterion name1 name2");
+                    }
+                    // The TMS defines criteria on missing operands anyway; here they are refused outright
+                    if (!defined(words[2])) {
+                        return "ERR Criterion " + words[2] + " not found.";
+                    }
+                    return result(tms.defineNegatedCriterion(words[1], words[2]));
+                case "definebinarycriterion":
+                    if (words.length != 5) {
+                        return usage("DefineBinaryCriterion name1 name2 logicOp name3");
+                    }
+                    for (String operand : new String[] {words[2], words[4]}) {
+                        if (!defined(operand)) {
+                            return "ERR Criterion " + operand + " not found.";
+                        }
+                    }
+                    if (!words[3].equals("&&") && !words[3].equals("||")) {
+                        return "ERR Unknown operator " + words[3];
+                    }
+                    return result(tms.defineBinaryCriterion(words[1], words[2], words[3], words[4]));
+                case "search": {
+                    if (words.length != 2) {
+                        return usage("Search criterionName");
+                    }
+                    if (!defined(words[1])) {
+                        return "ERR Criterion " + words[1] + " not found.";
+                    }
+                    StringBuilder names = new StringBuilder("OK ");
+                    for (Task task : tms.searchTasks(words[1])) {
+                        names.append(task.getName()).append(',');
+                    }
+                    names.setLength(names.length() - 1);
+                    return names.toString();
+                }
+                case "reportduration":
+                    if (words.length != 2) {
+                        return usage("ReportDuration name");
+                    }
+                    if (!tms.getTasks().containsKey(words[1])) {
+                        return "ERR Task " + words[1] + " not found.";
+                    }
+                    return "OK " + tms.reportDuration(words[1]);
+                case "reportearliestfinishtime":
+                    if (words.length != 2) {
+                        return usage("ReportEarliestFinishTime name");
+                    }
+                    if (!tms.getTasks().containsKey(words[1])) {
+                        return "ERR Task " + words[1] + " not found.";
+                    }
+                    return "OK " + tms.getEarliestFinishTime(words[1]);
+                case "describetask": {
+                    if (words.length != 2) {
+                        return usage("DescribeTask name");
+                    }
+                    Task task = tms.getTasks().get(words[1]);
+                    if (task == null) {
+                        return "ERR Task " + words[1] + " not found.";
+                    }
+                    StringBuilder description = new StringBuilder("OK ").append(task.getDuration()).append(' ')
+                            .append(task.isComposite()).append(' ');
+                    for (Task prerequisite : task.getPrerequisites()) {
+                        description.append(prerequisite.getName()).append(',');
+                    }
+                    if (task.getPrerequisites().isEmpty()) {
+                        description.append(',');
+                    } else {
+                        description.setLength(description.length() - 1);
+                    }
+                    return description.append(' ').append(encode(task.getDescription())).toString();
+                }
+                case "reportpartials": {
+                    if (words.length != 4 || !words[1].equals("duration") && !words[1].equals("finish")) {
+                        return usage("ReportPartials duration|finish name,name,... stub,stub,...");
+                    }
+                    Map<String, Shard.Partial> partials = Shard.Partial.of(tms, list(words[2]),
+                            new HashSet<>(list(words[3])), words[1].equals("finish"));
+                    StringBuilder response = new StringBuilder("OK");
+                    partials.forEach((name, partial) -> {
+                        response.append(' ').append(name).append(' ').append(partial.known)
+                                .append(' ').append(partial.offsets.size());
+                        partial.offsets.forEach((stub, offset) -> response.append(' ').append(stub).append(' ').append(offset));
+                    });
+                    return response.toString();
+                }
+                case "store": {
+                    if (words.length != 2) {
+                        return usage("Store fileName");
+                    }
+                    if (storeDirectory == null) {
+                        return "ERR Store is not enabled on this server.";
+                    }
+                    // Only a plain file name, so a client cannot write outside the directory
+                    Path target = storeDirectory.resolve(words[1]).normalize();
+                    if (words[1].contains("/") || words[1].contains("\\") || words[1].startsWith(".")
+                            || !storeDirectory.equals(target.getParent())) {
+                        return "ERR Store takes a file name, not a path.";
+                    }
+                    tms.store(target.toString());
+                    return "OK";
+                }
+                default:
+                    return "ERR Unknown command " + words[0];
+            }
+        } catch (NumberFormatException e) {
+            return "ERR Not a number: " + e.getMessage();
+        }
+    }
+
+    private boolean defined(String criterionName) {
+        return tms.getBasicCriteria().containsKey(criterionName) || tms.getCompositeCriteria().containsKey(criterionName);
+    }
+
+    // OK, or ERR with the reason the TMS gave for refusing the mutation
+    private String result(boolean applied) {
+        return applied ? "OK" : "ERR " + tms.getLastError().replace('\n', ' ');
+    }
+
+    private static String usage(String form) {
+        return "ERR Usage: " + form;
+    }
+
+    /** A description as one word of a request or response line. */
+    static String encode(String description) {
+        if (description == null) {
+            return "%";
+        }
+        if (description.isEmpty()) {
+            return "%%";
+        }
+        StringBuilder encoded = new StringBuilder(description.length());
+        for (int i = 0; i < description.length(); ) {
+            int c = description.codePointAt(i);
+            int next = i + Character.charCount(c);
+            if (Character.isWhitespace(c) || Character.isISOControl(c) || Character.isSpaceChar(c) || c == ',' || c == '%') {
+                for (byte b : description.substring(i, next).getBytes(StandardCharsets.UTF_8)) {
+                    encoded.append('%').append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+                }
+            } else {
+                encoded.appendCodePoint(c);
+            }
+            i = next;
+        }
+        return encoded.toString();
+    }
+
+    /** The description that encode wrote as the word. */
+    static String decode(String word) {
+        if (word.equals("%")) {
+            return null;
+        }
+        if (word.equals("%%")) {
+            return "";
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(word.length());
+        for (int i = 0; i < word.length(); ) {
+            if (word.charAt(i) == '%' && i + 2 < word.length() && Character.digit(word.charAt(i + 1), 16) >= 0
+                    && Character.digit(word.charAt(i + 2), 16) >= 0) {
+                bytes.write(Character.digit(word.charAt(i + 1), 16) << 4 | Character.digit(word.charAt(i + 2), 16));
+                i += 3;
+            } else {
+                int next = i + Character.charCount(word.codePointAt(i));
+                byte[] literal = word.substring(i, next).getBytes(StandardCharsets.UTF_8);
+                bytes.write(literal, 0, literal.length);
+                i = next;
+            }
+        }
+        return new String(bytes.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    private static List<String> list(String names) {
+        List<String> list = new ArrayList<>();
+        for (String name : names.split(",")) {
+            if (!name.isEmpty()) {
+                list.add(name);
+            }
+        }
+        return list;
+    }
+
+    /**
+     * Serves a new, empty TMS on the loopback interface (--port=N, by default a free port) or at
+     * a Unix domain socket (--unix=PATH), with Store enabled into --store=DIRECTORY if given,
+     * printing "Listening on ADDRESS" once it accepts
+     * connections. It runs until its standard input is closed, so a parent process that started
+     * it stops it by closing the pipe or exiting.
+     */
+    public static void main(String[] args) throws IOException {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            if (!arg.startsWith("--") || eq < 0) {
+                throw new IllegalArgumentException("Expected --option=value, got " + arg);
+            }
+            options.put(arg.substring(2, eq), arg.substring(eq + 1));
+        }
+        TMS tms = new TMS();
+        try (TMSServer server = options.containsKey("unix")
+                ? new TMSServer(tms, UnixDomainSocketAddress.of(options.get("unix")))
+                : listen(tms, Integer.parseInt(options.getOrDefault("port", "0")))) {
+            if (options.containsKey("store")) {
+                server.setStoreDirectory(Paths.get(options.get("store")));
+            }
+            System.out.println("Listening on " + server.getAddress());
+            System.out.flush();
+            while (System.in.read() >= 0) {
+                // Only the end of the input matters
+            }
+        }
+    }
+
+    // Virtual threads where the runtime has them, otherwise a platform thread per connection
+    private static ExecutorService threadPerConnection() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            AtomicInteger count = new AtomicInteger();
+            return Executors.newCachedThreadPool(runnable -> {
+                Thread thread = new Thread(runnable, "tms-server-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+}
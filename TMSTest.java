@@ -5,9 +5,18 @@ import org.junit.Before;
 import org.junit.Test;
 
 import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.PrintStream;
+import java.nio.channels.Channels;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
 
 import static org.junit.Assert.*;
 import org.junit.Rule;
@@ -284,4 +293,1133 @@ public class TMSTest {
         assertEquals(expectedOutput, outContent.toString());
     }
     
+    @Test
+    public void testReportDurationAfterChange() {
+        taskManager.createPrimitiveTask("Task1", "boil-water", 0.3, Collections.emptyList());
+        taskManager.createPrimitiveTask("Task2", "pour-water", 0.2, Collections.emptyList());
+        taskManager.createCompositeTask("comp1", "make-tea", Arrays.asList("Task1", "Task2"));
+        taskManager.createCompositeTask("comp2", "tea-break", Arrays.asList("comp1"));
+        assertEquals("Duration of task comp2: 0.3 hours", taskManager.reportDuration("comp2"));
+
+        // Changing a leaf must be visible through every cached ancestor
+        taskManager.changeTask("Task2", "duration", "2.5");
+        assertEquals("Duration of task comp1: 2.5 hours", taskManager.reportDuration("comp1"));
+        assertEquals("Duration of task comp2: 2.5 hours", taskManager.reportDuration("comp2"));
+
+        // Deleting it removes it from the subtasks of comp1
+        taskManager.deleteTask("Task2");
+        assertEquals("Duration of task comp2: 0.3 hours", taskManager.reportDuration("comp2"));
+
+        taskManager.changeTask("comp1", "subtasks", "Task1");
+        taskManager.changeTask("Task1", "duration", "4");
+        assertEquals("Duration of task comp2: 4.0 hours", taskManager.reportDuration("comp2"));
+    }
+
+    @Test
+    public void testScheduleRunsPrerequisitesInSequence() {
+        taskManager.createPrimitiveTask("TaskA", "boil-water", 2, Collections.emptyList());
+        taskManager.createPrimitiveTask("TaskB", "brew-tea", 3, Collections.singletonList("TaskA"));
+        taskManager.createPrimitiveTask("TaskC", "get-cup", 1, Collections.emptyList());
+        taskManager.createCompositeTask("comp1", "make-tea", Arrays.asList("TaskB", "TaskC"));
+
+        Map<String, Double> finishTimes = taskManager.reportEarliestFinishTimes();
+        assertEquals(4, finishTimes.size());
+        assertEquals(2.0, finishTimes.get("TaskA"), 0.001);
+        assertEquals(5.0, finishTimes.get("TaskB"), 0.001);
+        assertEquals(5.0, finishTimes.get("comp1"), 0.001);
+
+        Schedule schedule = taskManager.getSchedule();
+        Task taskC = taskManager.getTasks().get("TaskC");
+        assertEquals(4.0, schedule.getSlack(taskC), 0.001);
+        assertEquals(4.0, schedule.getLatestStart(taskC), 0.001);
+        assertEquals(Arrays.asList("TaskA", "TaskB", "comp1"), taskManager.reportCriticalPath());
+
+        taskManager.changeTask("TaskC", "duration", "6");
+        assertEquals(6.0, taskManager.reportEarliestFinishTimes().get("comp1"), 0.001);
+        assertEquals(Arrays.asList("TaskC", "comp1"), taskManager.reportCriticalPath());
+    }
+
+    @Test
+    public void testDeleteTasks() {
+        taskManager.createPrimitiveTask("Task1", "boil-water", 0.3, Collections.emptyList());
+        taskManager.createPrimitiveTask("Task2", "pour-water", 0.2, Collections.singletonList("Task1"));
+        taskManager.createPrimitiveTask("Task3", "stir", 0.1, Arrays.asList("Task1", "Task2"));
+        taskManager.createCompositeTask("comp1", "make-tea", Arrays.asList("Task2", "Task3"));
+
+        taskManager.deleteTasks(Arrays.asList("Task1", "Task2", "NonExistentTask"));
+
+        assertNull(taskManager.getTasks().get("Task1"));
+        assertNull(taskManager.getTasks().get("Task2"));
+        Task task3 = taskManager.getTasks().get("Task3");
+        assertEquals(0, task3.getPrerequisites().size());
+        Task comp1 = taskManager.getTasks().get("comp1");
+        assertEquals(Collections.singletonList(task3), comp1.getPrerequisites());
+        assertEquals("Duration of task comp1: 0.1 hours", taskManager.reportDuration("comp1"));
+    }
+
+    @Test
+    public void testSearchWithCompiledCriteria() {
+        taskManager.createPrimitiveTask("Task1", "boil-water", 0.3, Collections.emptyList());
+        taskManager.createPrimitiveTask("Task2", "boil-milk", 2, Collections.emptyList());
+        taskManager.createPrimitiveTask("Task3", "pour-water", 5, Collections.singletonList("Task1"));
+        taskManager.defineBasicCriterion("water", "description", "contains", "\"water\"");
+        taskManager.defineBasicCriterion("long", "duration", ">=", "2");
+        taskManager.defineBinaryCriterion("longWater", "water", "&&", "long");
+        taskManager.defineNegatedCriterion("notLongWater", "longWater");
+        assertEquals(Collections.singletonList("longWater"),
+                taskManager.getCompositeCriteria().get("notLongWater").getOperandNames());
+
+        outContent.reset();
+        taskManager.search("longWater");
+        String output = outContent.toString();
+        assertTrue(output.contains("- Task3"));
+        assertFalse(output.contains("- Task1"));
+        assertFalse(output.contains("- Task2"));
+
+        outContent.reset();
+        taskManager.search("notLongWater");
+        output = outContent.toString();
+        assertTrue(output.contains("- Task1"));
+        assertTrue(output.contains("- Task2"));
+        assertFalse(output.contains("- Task3"));
+
+        // Redefining an operand recompiles every criterion built on it
+        taskManager.defineBasicCriterion("long", "duration", "<", "1");
+        outContent.reset();
+        taskManager.search("longWater");
+        output = outContent.toString();
+        assertTrue(output.contains("- Task1"));
+        assertFalse(output.contains("- Task3"));
+
+        taskManager.defineBasicCriterion("afterTask1", "prerequisites", "contains", "Task1");
+        outContent.reset();
+        taskManager.search("afterTask1");
+        output = outContent.toString();
+        assertTrue(output.contains("- Task3"));
+        assertFalse(output.contains("- Task1"));
+    }
+
+    @Test
+    public void testIndexedSearchFollowsChanges() {
+        taskManager.createPrimitiveTask("Task1", "boil-water", 0.3, Collections.emptyList());
+        taskManager.createPrimitiveTask("Task2", "boil-milk", 2, Collections.emptyList());
+        taskManager.createPrimitiveTask("Task3", "pour-water", 5, Collections.emptyList());
+        taskManager.defineBasicCriterion("boil", "description", "contains", "\"boil-\"");
+        taskManager.defineBasicCriterion("short", "duration", "<=", "2");
+        taskManager.defineBasicCriterion("t", "name", "contains", "\"k3\"");
+        taskManager.defineBinaryCriterion("quickBoil", "boil", "&&", "short");
+        taskManager.defineBinaryCriterion("quickBoilOrT3", "quickBoil", "||", "t");
+
+        outContent.reset();
+        taskManager.search("quickBoilOrT3");
+        String output = outContent.toString();
+        assertTrue(output.contains("- Task1"));
+        assertTrue(output.contains("- Task2"));
+        assertTrue(output.contains("- Task3"));
+
+        taskManager.changeTask("Task2", "duration", "2.5");
+        taskManager.changeTask("Task3", "description", "boil-tea");
+        taskManager.changeTask("Task3", "duration", "1");
+        taskManager.deleteTask("Task1");
+        outContent.reset();
+        taskManager.search("quickBoil");
+        output = outContent.toString();
+        assertFalse(output.contains("- Task1"));
+        assertFalse(output.contains("- Task2"));
+        assertTrue(output.contains("- Task3"));
+    }
+
+    @Test
+    public void testSearchParallel() {
+        for (int i = 0; i < 5000; i++) {
+            taskManager.createPrimitiveTask("t" + i, i % 2 == 0 ? "even" : "odd", i, Collections.emptyList());
+        }
+        taskManager.defineBasicCriterion("even", "description", "contains", "\"even\"");
+        taskManager.defineBasicCriterion("big", "duration", ">=", "4000");
+        taskManager.defineBinaryCriterion("bigEven", "even", "&&", "big");
+        taskManager.setSearchParallelism(4);
+        taskManager.setParallelSearchThreshold(100);
+
+        List<Task> result = taskManager.searchParallel("bigEven");
+        assertEquals(500, result.size());
+        for (Task task : result) {
+            assertTrue(task.getDuration() >= 4000 && task.getDescription().equals("even"));
+        }
+
+        // Below the threshold the same answer comes from the calling thread
+        taskManager.setParallelSearchThreshold(Integer.MAX_VALUE);
+        assertEquals(result, taskManager.searchParallel("bigEven"));
+        assertTrue(taskManager.searchParallel("undefined").isEmpty());
+
+        // No duration compares with NaN, so it is not a threshold
+        assertFalse(taskManager.defineBasicCriterion("odd", "duration", "<", "NaN"));
+        assertFalse(taskManager.getBasicCriteria().containsKey("odd"));
+    }
+
+    @Test
+    public void testStructuredSearchResults() {
+        taskManager.createPrimitiveTask("Task1", "boil-water", 0.3, Collections.emptyList());
+        taskManager.createPrimitiveTask("Task2", "boil-milk", 2, Collections.emptyList());
+        taskManager.defineBasicCriterion("milk", "description", "contains", "\"milk\"");
+        Task task2 = taskManager.getTasks().get("Task2");
+
+        assertEquals(Collections.singletonList(task2), taskManager.searchTasks("milk"));
+        assertEquals(Collections.singletonList(task2), taskManager.searchStream("milk").collect(Collectors.toList()));
+        List<Task> sink = new ArrayList<>();
+        taskManager.search("milk", sink::add);
+        assertEquals(Collections.singletonList(task2), sink);
+        assertTrue(taskManager.searchTasks("undefined").isEmpty());
+        assertEquals(2.0, taskManager.getEarliestFinishTime("Task2"), 0.001);
+
+        outContent.reset();
+        taskManager.printAllTasks();
+        String output = outContent.toString();
+        assertTrue(output.contains("Name: Task1"));
+        assertTrue(output.contains("Description: boil-milk"));
+    }
+
+    @Test
+    public void testStoreAndLoadSnapshot() throws Exception {
+        File file = File.createTempFile("tms", ".snapshot");
+        file.deleteOnExit();
+        taskManager.createPrimitiveTask("Task1", "boil-water", 0.3, Collections.emptyList());
+        taskManager.createPrimitiveTask("Task2", "boil-milk", 2, Collections.singletonList("Task1"));
+        taskManager.createCompositeTask("comp1", "make-tea", Arrays.asList("Task1", "Task2"));
+        taskManager.defineBasicCriterion("milk", "description", "contains", "\"milk\"");
+        taskManager.defineNegatedCriterion("noMilk", "milk");
+        taskManager.store(file.getPath());
+
+        TMS loaded = new TMS();
+        loaded.load(file.getPath());
+        assertEquals(3, loaded.getTasks().size());
+        Task comp1 = loaded.getTasks().get("comp1");
+        assertTrue(comp1.isComposite());
+        assertSame(loaded.getTasks().get("Task2"), comp1.getPrerequisites().get(1));
+        assertSame(loaded.getTasks().get("Task1"), loaded.getTasks().get("Task2").getPrerequisites().get(0));
+        assertEquals(2.0, loaded.getTasks().get("Task2").getDuration(), 0.001);
+        assertEquals("\"milk\"", loaded.getBasicCriteria().get("milk").getValue());
+        assertEquals(2, loaded.searchTasks("noMilk").size());
+        assertEquals(taskManager.reportEarliestFinishTimes(), loaded.reportEarliestFinishTimes());
+    }
+
+    @Test
+    public void testSnapshotKeepsNullDescription() throws Exception {
+        File file = File.createTempFile("tms", ".snapshot");
+        file.deleteOnExit();
+        taskManager.createPrimitiveTask("Task1", "boil-water", 0.3, Collections.emptyList());
+        taskManager.createCompositeTask("comp1", null, Collections.singletonList("Task1"));
+        taskManager.store(file.getPath());
+
+        TMS loaded = new TMS();
+        loaded.load(file.getPath());
+        assertNull(loaded.getTasks().get("comp1").getDescription());
+        assertEquals("boil-water", loaded.getTasks().get("Task1").getDescription());
+        TMS mapped = new TMS();
+        mapped.loadMapped(file.getPath());
+        assertNull(mapped.getTasks().get("comp1").getDescription());
+        assertEquals(taskManager.printTask("comp1"), mapped.printTask("comp1"));
+        CompactGraph stored = CompactGraph.read(file.toPath());
+        assertEquals("comp1", stored.name(stored.id("comp1")));
+    }
+
+    @Test
+    public void testLoadMappedSnapshot() throws Exception {
+        File file = File.createTempFile("tms", ".snapshot");
+        file.deleteOnExit();
+        taskManager.createPrimitiveTask("Task1", "boil-water", 0.3, Collections.emptyList());
+        taskManager.createPrimitiveTask("Task2", "boil-milk", 2, Collections.singletonList("Task1"));
+        taskManager.createCompositeTask("comp1", "make-tea", Arrays.asList("Task1", "Task2"));
+        taskManager.defineBasicCriterion("milk", "description", "contains", "\"milk\"");
+        taskManager.store(file.getPath());
+
+        TMS mapped = new TMS();
+        mapped.loadMapped(file.getPath());
+        assertEquals(taskManager.printTask("comp1"), mapped.printTask("comp1"));
+        assertEquals(taskManager.reportDuration("comp1"), mapped.reportDuration("comp1"));
+        assertEquals("Task Task9 not found.", mapped.printTask("Task9"));
+        assertEquals(3, mapped.getTasks().size());
+
+        // Changes live on top of the mapped file
+        mapped.createPrimitiveTask("Task3", "more-milk", 4, Collections.emptyList());
+        mapped.changeTask("comp1", "subtasks", "Task1,Task3");
+        mapped.deleteTask("Task2");
+        assertEquals(3, mapped.getTasks().size());
+        assertEquals("Duration of task comp1: 4.0 hours", mapped.reportDuration("comp1"));
+        assertEquals(Collections.singletonList(mapped.getTasks().get("Task3")), mapped.searchTasks("milk"));
+
+        // Storing over the mapped file leaves the mapping readable
+        mapped.store(file.getPath());
+        TMS reloaded = new TMS();
+        reloaded.load(file.getPath());
+        assertEquals(3, reloaded.getTasks().size());
+        assertNull(reloaded.getTasks().get("Task2"));
+    }
+
+    @Test
+    public void testJournalReplayAndCompaction() throws Exception {
+        File file = File.createTempFile("tms", ".snapshot");
+        File journalFile = new File(file.getPath() + ".journal");
+        file.deleteOnExit();
+        journalFile.deleteOnExit();
+        taskManager.createPrimitiveTask("Task1", "boil-water", 0.3, Collections.emptyList());
+        taskManager.enableJournal(file.getPath(), 0);
+        taskManager.createPrimitiveTask("Task2", "boil-milk", 2, Collections.singletonList("Task1"));
+        taskManager.createCompositeTask("comp1", "make-tea", Arrays.asList("Task1", "Task2"));
+        taskManager.changeTask("Task1", "duration", "0.5");
+        taskManager.defineBasicCriterion("milk", "description", "contains", "\"milk\"");
+        assertTrue(journalFile.length() > 0);
+        // Refused changes never reach the journal, so they cannot break a later load
+        long journaled = journalFile.length();
+        taskManager.changeTask("Task1", "duration", "abc");
+        taskManager.changeTask("Task1", "prerequisites", "comp1");
+        taskManager.changeTask("Nothing", "duration", "1");
+        assertEquals(journaled, journalFile.length());
+
+        // A torn record at the end, as left by a crash mid-write, is ignored
+        try (FileOutputStream out = new FileOutputStream(journalFile, true)) {
+            out.write(new byte[] {0, 0, 0, 40, 1, 2});
+        }
+        TMS recovered = new TMS();
+        recovered.load(file.getPath());
+        assertEquals(3, recovered.getTasks().size());
+        assertEquals(0.5, recovered.getTasks().get("Task1").getDuration(), 0.001);
+        assertEquals(1, recovered.searchTasks("milk").size());
+
+        // The recovered TMS keeps journaling; compaction folds that into the snapshot
+        recovered.deleteTask("Task2");
+        recovered.compactJournal().get();
+        recovered.changeTask("Task1", "description", "heat-water");
+        recovered.closeJournal();
+        assertFalse(new File(file.getPath() + ".journal.sealed").exists());
+
+        TMS restarted = new TMS();
+        restarted.load(file.getPath());
+        assertNull(restarted.getTasks().get("Task2"));
+        assertEquals("heat-water", restarted.getTasks().get("Task1").getDescription());
+        assertEquals(1, restarted.getTasks().get("comp1").getPrerequisites().size());
+        restarted.closeJournal();
+        taskManager.closeJournal();
+    }
+
+    @Test
+    public void testJournalRecordWithManyArguments() throws Exception {
+        File file = File.createTempFile("tms", ".journal");
+        file.deleteOnExit();
+        String[] names = new String[70000];
+        for (int i = 0; i < names.length; i++) {
+            names[i] = "t" + i;
+        }
+        try (Journal journal = Journal.open(file.toPath(), 1, 0)) {
+            journal.append(Journal.DELETE, names);
+        }
+        List<Journal.Entry> entries = Journal.read(file.toPath());
+        assertEquals(1, entries.size());
+        assertArrayEquals(names, entries.get(0).args);
+
+        // Once a batch fails to be written, no later record is reported durable
+        Journal journal = Journal.open(file.toPath(), 2, 0);
+        journal.close();
+        for (int i = 0; i < 2; i++) {
+            try {
+                journal.append(Journal.DELETE, "t0");
+                fail("appended to a journal that cannot be written");
+            } catch (IOException e) {
+                // expected
+            }
+        }
+        assertEquals(1, Journal.read(file.toPath()).size());
+    }
+
+    @Test
+    public void testCompactionKeepsJournalSealedByFailedOne() throws Exception {
+        File file = File.createTempFile("tms", ".snapshot");
+        file.deleteOnExit();
+        new File(file.getPath() + ".journal").deleteOnExit();
+        new File(file.getPath() + ".journal.sealed").deleteOnExit();
+        taskManager.enableJournal(file.getPath(), 0);
+        taskManager.createPrimitiveTask("Task1", "boil-water", 0.3, Collections.emptyList());
+
+        // The snapshot cannot be read, so compaction fails after sealing the journal
+        byte[] snapshot = java.nio.file.Files.readAllBytes(file.toPath());
+        java.nio.file.Files.write(file.toPath(), new byte[] {1, 2, 3});
+        try {
+            taskManager.compactJournal().get();
+            fail("compaction read a damaged snapshot");
+        } catch (java.util.concurrent.ExecutionException e) {
+            // expected
+        }
+        java.nio.file.Files.write(file.toPath(), snapshot);
+        taskManager.createPrimitiveTask("Task2", "boil-milk", 2, Collections.emptyList());
+        taskManager.compactJournal();
+        taskManager.compactJournal().get();
+        taskManager.compactJournal().get();
+        taskManager.closeJournal();
+
+        TMS restarted = new TMS();
+        restarted.load(file.getPath());
+        assertEquals(2, restarted.getTasks().size());
+        restarted.closeJournal();
+    }
+
+    @Test
+    public void testImportFileWithForwardReferences() throws Exception {
+        File file = File.createTempFile("tms", ".csv");
+        file.deleteOnExit();
+        try (PrintStream out = new PrintStream(file)) {
+            out.println("# tasks may refer to tasks further down");
+            out.println("composite,comp1,make-tea,Task2;Task1");
+            out.println("primitive,Task2,pour-water,2,Task1");
+            out.println("primitive,Task1,boil-water,0.5,");
+            out.println("primitive,Cyc1,loop,1,Cyc2");
+            out.println("primitive,Cyc2,loop,1,Cyc1");
+            out.println("primitive,Bad$,oops,1,");
+            out.println("primitive,Task3,oops,abc,");
+        }
+        taskManager.createPrimitiveTask("Task0", "get-cup", 3, Collections.emptyList());
+
+        BulkImporter.Result result = taskManager.importFile(file.getPath());
+        assertEquals(3, result.getImported());
+        assertEquals(4, result.getErrors().size());
+        Task comp1 = taskManager.getTasks().get("comp1");
+        Task task2 = taskManager.getTasks().get("Task2");
+        assertEquals(Arrays.asList(task2, taskManager.getTasks().get("Task1")), comp1.getPrerequisites());
+        assertEquals(1.0, comp1.getDuration(), 0.001);
+        assertNull(taskManager.getTasks().get("Cyc1"));
+        assertEquals("Duration of task comp1: 0.5 hours", taskManager.reportDuration("comp1"));
+        assertEquals(2.5, taskManager.getEarliestFinishTime("comp1"), 0.001);
+
+        // Batches can also refer to tasks that are already defined
+        taskManager.importTasks(Collections.singletonList(
+                BulkImporter.TaskSpec.composite("comp2", "tea-break", Arrays.asList("comp1", "Task0"))));
+        assertEquals(3.0, taskManager.getTasks().get("comp2").getDuration(), 0.001);
+
+        // A prerequisite name the line format cannot hold is rejected, and left out of the record
+        List<BulkImporter.TaskSpec> specs = Arrays.asList(
+                BulkImporter.TaskSpec.primitive("Task4", "stir", 1, Collections.singletonList("Task0,Task1")),
+                BulkImporter.TaskSpec.primitive("Task5", "serve", 1, Collections.singletonList("Task0")));
+        assertEquals("primitive,Task5,serve,1.0,Task0\n", BulkImporter.format(specs));
+        result = taskManager.importTasks(specs);
+        assertEquals(1, result.getImported());
+        assertNull(taskManager.getTasks().get("Task4"));
+    }
+
+    @Test
+    public void testCompactGraphMatchesTasks() throws Exception {
+        taskManager.createPrimitiveTask("Task1", "boil-water", 0.3, Collections.emptyList());
+        taskManager.createPrimitiveTask("Task2", "boil-milk", 2, Collections.singletonList("Task1"));
+        taskManager.createPrimitiveTask("Task3", "add-tea", 1, Collections.emptyList());
+        taskManager.createCompositeTask("comp1", "make-tea", Arrays.asList("Task2", "Task3"));
+        taskManager.defineBasicCriterion("milk", "description", "contains", "\"milk\"");
+        taskManager.defineBasicCriterion("long", "duration", ">=", "1");
+        taskManager.defineBasicCriterion("tea", "subtasks", "contains", "Task2,Task3");
+        taskManager.defineNegatedCriterion("noMilk", "milk");
+        taskManager.defineBinaryCriterion("longNoMilk", "long", "&&", "noMilk");
+        taskManager.defineBinaryCriterion("teaOrMilk", "tea", "||", "milk");
+
+        CompactGraph graph = taskManager.getCompactGraph();
+        assertEquals(4, graph.size());
+        assertEquals(3, graph.edgeCount());
+        assertEquals(-1, graph.id("Task9"));
+        for (String name : taskManager.getTasks().keySet()) {
+            int id = graph.id(name);
+            assertEquals(name, graph.key(id));
+            assertEquals(taskManager.reportDuration(name), "Duration of task " + name + ": " + graph.duration(id) + " hours");
+            assertEquals(taskManager.getEarliestFinishTime(name), graph.earliestFinish(id), 0.001);
+        }
+        for (String criterion : Arrays.asList("milk", "long", "tea", "noMilk", "longNoMilk", "teaOrMilk")) {
+            List<String> expected = taskManager.searchTasks(criterion).stream()
+                    .map(Task::getName).sorted().collect(Collectors.toList());
+            List<String> actual = Arrays.stream(graph.select(graph.compile(criterion,
+                    taskManager.getBasicCriteria(), taskManager.getCompositeCriteria())))
+                    .mapToObj(graph::name).sorted().collect(Collectors.toList());
+            assertEquals(criterion, expected, actual);
+        }
+
+        // A mutation drops the copy; a stored snapshot reads back without Task objects
+        taskManager.changeTask("Task1", "duration", "4");
+        assertNotSame(graph, taskManager.getCompactGraph());
+        File file = File.createTempFile("tms", ".snapshot");
+        file.deleteOnExit();
+        taskManager.store(file.getPath());
+        CompactGraph stored = CompactGraph.read(file.toPath());
+        assertEquals(4.0, stored.duration(stored.id("comp1")), 0.001);
+        assertEquals(taskManager.getEarliestFinishTime("comp1"), stored.earliestFinish(stored.id("comp1")), 0.001);
+    }
+
+    @Test
+    public void testCompactGraphSearchesManyPrerequisiteNames() {
+        List<String> names = new ArrayList<>();
+        for (int i = 0; i < 65; i++) {
+            taskManager.createPrimitiveTask("P" + i, "part", 1, Collections.emptyList());
+            names.add("P" + i);
+        }
+        taskManager.createPrimitiveTask("All", "whole", 1, names);
+        taskManager.createPrimitiveTask("AllButOne", "whole", 1, names.subList(1, 65));
+        taskManager.defineBasicCriterion("afterAll", "prerequisites", "contains", "\"" + String.join(",", names) + "\"");
+
+        assertEquals(Arrays.asList("All"), taskManager.searchStream("afterAll").map(Task::getName).collect(Collectors.toList()));
+        CompactGraph graph = taskManager.getCompactGraph();
+        int[] found = graph.select(graph.compile("afterAll", taskManager.getBasicCriteria(),
+                taskManager.getCompositeCriteria()));
+        assertArrayEquals(new int[] {graph.id("All")}, found);
+    }
+
+    @Test
+    public void testChangeRefusesPrerequisiteCycle() {
+        taskManager.createPrimitiveTask("Task1", "boil-water", 0.3, Collections.emptyList());
+        taskManager.createPrimitiveTask("Task2", "boil-milk", 2, Collections.singletonList("Task1"));
+        taskManager.createPrimitiveTask("Task3", "add-tea", 1, Collections.singletonList("Task2"));
+        taskManager.createCompositeTask("comp1", "make-tea", Arrays.asList("Task3"));
+        outContent.reset();
+
+        taskManager.changeTask("Task1", "prerequisites", "Task3");
+        assertTrue(outContent.toString().contains("Task Task3 cannot be a prerequisite of Task1: it would form a cycle."));
+        assertTrue(taskManager.getTasks().get("Task1").getPrerequisites().isEmpty());
+        taskManager.changeTask("Task2", "prerequisites", "Task2");
+        assertEquals(1, taskManager.getTasks().get("Task2").getPrerequisites().size());
+        taskManager.changeTask("Task3", "prerequisites", "comp1");
+        assertEquals("Task2", taskManager.getTasks().get("Task3").getPrerequisites().get(0).getName());
+        assertEquals("Duration of task comp1: 0.3 hours", taskManager.reportDuration("comp1"));
+
+        // A task created later can still become a prerequisite of an earlier one
+        taskManager.createPrimitiveTask("Task4", "fetch-cup", 5, Collections.emptyList());
+        taskManager.changeTask("Task1", "prerequisites", "Task4");
+        assertEquals("Duration of task comp1: 5.0 hours", taskManager.reportDuration("comp1"));
+        taskManager.changeTask("Task4", "prerequisites", "Task2");
+        assertTrue(taskManager.getTasks().get("Task4").getPrerequisites().isEmpty());
+        taskManager.changeTask("comp1", "subtasks", "Task1,Task4");
+        assertEquals(2, taskManager.getTasks().get("comp1").getPrerequisites().size());
+    }
+
+    @Test
+    public void testDeepChainsDoNotOverflowTheStack() {
+        int depth = 100_000;
+        taskManager.createPrimitiveTask("T0", "start", 2.5, Collections.emptyList());
+        for (int i = 1; i < depth; i++) {
+            taskManager.createPrimitiveTask("T" + i, "step", 1, Collections.singletonList("T" + (i - 1)));
+        }
+        assertEquals("Duration of task T99999: 2.5 hours", taskManager.reportDuration("T" + (depth - 1)));
+        taskManager.createCompositeTask("comp", "all", Collections.singletonList("T" + (depth - 1)));
+        assertEquals(2.5, taskManager.getTasks().get("comp").getDuration(), 0.001);
+
+        // A criterion negated fifty thousand times, then once more
+        taskManager.defineBasicCriterion("c0", "duration", ">", "2");
+        for (int i = 1; i <= 50_000; i++) {
+            taskManager.defineNegatedCriterion("c" + i, "c" + (i - 1));
+        }
+        assertEquals(2, taskManager.searchStream("c50000").limit(2).count());
+        assertTrue(taskManager.searchTasks("c50000").contains(taskManager.getTasks().get("T0")));
+        taskManager.defineNegatedCriterion("c50001", "c50000");
+        assertEquals(depth - 1, taskManager.searchTasks("c50001").size());
+    }
+
+    @Test
+    public void testSharedCriterionOperandsAreCompiledOnce() {
+        taskManager.createPrimitiveTask("Task1", "boil-water", 0.3, Collections.emptyList());
+        taskManager.createPrimitiveTask("Task2", "make-tea", 3, Collections.emptyList());
+        taskManager.createPrimitiveTask("Task3", "make-coffee", 2, Collections.emptyList());
+        taskManager.defineBasicCriterion("c0", "duration", ">", "1");
+        taskManager.defineBasicCriterion("tea", "description", "contains", "\"tea\"");
+        // Each level uses the one below twice; copied operands would double at every level
+        for (int i = 1; i <= 60; i++) {
+            taskManager.defineBinaryCriterion("c" + i, "c" + (i - 1), i % 2 == 0 ? "||" : "&&", "c" + (i - 1));
+        }
+        taskManager.defineBinaryCriterion("longTea", "c60", "&&", "tea");
+        taskManager.defineNegatedCriterion("notLongTea", "longTea");
+
+        List<String> longTasks = taskManager.searchStream("c60").map(Task::getName).sorted().collect(Collectors.toList());
+        assertEquals(Arrays.asList("Task2", "Task3"), longTasks);
+        assertEquals(Arrays.asList("Task2"), taskManager.searchStream("longTea").map(Task::getName).collect(Collectors.toList()));
+        assertEquals(2, taskManager.searchTasks("notLongTea").size());
+
+        CompactGraph graph = taskManager.getCompactGraph();
+        CriterionProgram.OnIds program = graph.compile("notLongTea", taskManager.getBasicCriteria(),
+                taskManager.getCompositeCriteria());
+        assertTrue(program.size() <= 2);
+        assertTrue(program.test(graph.id("Task1")));
+        assertFalse(program.test(graph.id("Task2")));
+        // A sub-program called twice for one task is run once
+        assertTrue(program.steps(graph.id("Task1")) < 10);
+        assertTrue(program.steps(graph.id("Task2")) < 10);
+    }
+
+    @Test
+    public void testOperationMetrics() throws Exception {
+        OperationMetrics metrics = new OperationMetrics();
+        taskManager.setMetrics(metrics);
+        taskManager.createPrimitiveTask("Task1", "boil-water", 0.3, Collections.emptyList());
+        taskManager.createPrimitiveTask("Task2", "boil-milk", 2, Collections.singletonList("Task1"));
+        taskManager.createCompositeTask("comp1", "make-tea", Arrays.asList("Task1", "Task2"));
+        taskManager.changeTask("Task1", "duration", "1");
+        taskManager.defineBasicCriterion("milk", "description", "contains", "\"milk\"");
+        taskManager.searchTasks("milk");
+        taskManager.search("milk");
+        taskManager.sampleGraphMetrics();
+
+        assertEquals(3, metrics.getLatency(Metrics.Op.CREATE).getCount());
+        assertEquals(1, metrics.getLatency(Metrics.Op.CHANGE).getCount());
+        assertEquals(2, metrics.getLatency(Metrics.Op.SEARCH).getCount());
+        assertEquals(0, metrics.getLatency(Metrics.Op.DELETE).getCount());
+        Map<String, Object> values = metrics.values();
+        assertEquals(3, values.get("tasks"));
+        assertEquals(3, values.get("edges"));
+        assertEquals(3, values.get("maxDepth"));
+        assertEquals(333.3, (double) values.get("searchSelectivityPerMille"), 0.1);
+        assertTrue(metrics.dump().contains("graph   tasks=3 edges=3 maxDepth=3"));
+
+        javax.management.ObjectName name = metrics.register("testOperationMetrics");
+        try {
+            assertEquals(3L, java.lang.management.ManagementFactory.getPlatformMBeanServer()
+                    .getAttribute(name, "createCount"));
+        } finally {
+            metrics.unregister(name);
+        }
+
+        // Percentiles are within the resolution of the buckets
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 100_000; i++) {
+            histogram.record(i);
+        }
+        assertEquals(50_000, histogram.getValueAtPercentile(50), 50_000 * 0.04);
+        assertEquals(99_000, histogram.getValueAtPercentile(99), 99_000 * 0.04);
+        assertEquals(100_000, histogram.getMax());
+        assertEquals(50_000.5, histogram.getMean(), 0.001);
+    }
+
+    @Test
+    public void testNamesAndDescriptionsAreInterned() throws Exception {
+        taskManager.createPrimitiveTask("Task1", "boil-water", 0.3, Collections.emptyList());
+        taskManager.createPrimitiveTask("Task2", "boil-water", 2, Collections.singletonList("Task1"));
+        taskManager.createCompositeTask("comp1", "make-tea", Arrays.asList("Task1", "Task2"));
+        Task task1 = taskManager.getTasks().get("Task1");
+        Task task2 = taskManager.getTasks().get("Task2");
+        assertEquals(task1.getDescriptionSymbol(), task2.getDescriptionSymbol());
+        assertNotEquals(task1.getNameSymbol(), task2.getNameSymbol());
+
+        SymbolTable symbols = new SymbolTable();
+        int tea = symbols.intern("caf\u00e9-\u8336");
+        byte[] encoded = "caf\u00e9-\u8336".getBytes(java.nio.charset.StandardCharsets.UTF_8);
+        assertEquals(tea, symbols.intern(encoded, 0, encoded.length));
+        assertEquals(tea, symbols.find("caf\u00e9-\u8336"));
+        assertEquals("caf\u00e9-\u8336", symbols.get(tea));
+        assertTrue(symbols.contains(tea, "\u00e9-".getBytes(java.nio.charset.StandardCharsets.UTF_8)));
+        assertEquals(SymbolTable.NULL, symbols.find("never-interned-" + System.nanoTime()));
+
+        // Searches, renames and snapshots all go through the symbols
+        taskManager.defineBasicCriterion("water", "description", "contains", "\"water\"");
+        taskManager.defineBasicCriterion("afterTask1", "prerequisites", "contains", "\"Task1\"");
+        assertEquals(2, taskManager.searchTasks("water").size());
+        assertEquals(1, taskManager.searchTasks("afterTask1").size());
+        taskManager.changeTask("Task2", "description", "boil-milk");
+        assertEquals(1, taskManager.searchTasks("water").size());
+        File file = File.createTempFile("tms", ".snapshot");
+        file.deleteOnExit();
+        taskManager.store(file.getPath());
+        TMS loaded = new TMS();
+        loaded.load(file.getPath());
+        assertNotSame(taskManager.getSymbols(), loaded.getSymbols());
+        assertSame(loaded.getSymbols(), loaded.getTasks().get("Task2").getSymbols());
+        assertEquals("boil-milk", loaded.getTasks().get("Task2").getDescription());
+        assertEquals(1, loaded.searchTasks("afterTask1").size());
+    }
+
+    @Test
+    public void testRenamesDoNotGrowSymbolTable() {
+        taskManager.setVersionRetention(3, Long.MAX_VALUE);
+        taskManager.createPrimitiveTask("Task1", "boil-water", 0.3, Collections.emptyList());
+        taskManager.createPrimitiveTask("Task2", "boil-milk", 2, Collections.singletonList("Task1"));
+        taskManager.defineBasicCriterion("afterTask1", "prerequisites", "contains", "\"Task1\"");
+        taskManager.defineBasicCriterion("water", "description", "contains", "\"water\"");
+        taskManager.createPrimitiveTask("Task3", "boil-water", 1, Collections.emptyList());
+        for (int i = 0; i < 20_000; i++) {
+            taskManager.changeTask("Task2", "description", "step-" + i);
+            taskManager.changeTask("Task3", "name", "Renamed" + i);
+        }
+        assertTrue(taskManager.getSymbols().size() < 10_000);
+        Task task2 = taskManager.getTasks().get("Task2");
+        assertSame(taskManager.getSymbols(), task2.getSymbols());
+        assertEquals("step-19999", task2.getDescription());
+        assertEquals(1, taskManager.searchTasks("afterTask1").size());
+        assertEquals(2, taskManager.searchTasks("water").size());
+        assertEquals(Arrays.asList("Task2"), taskManager.getVersion().searchTasks("afterTask1"));
+        assertEquals("Renamed19999", taskManager.getTasks().get("Task3").getName());
+    }
+
+    @Test
+    public void testDeletedTasksLeaveTheStore() {
+        Map<String, Integer> sameHistory = new HashMap<>();
+        taskManager.createPrimitiveTask("Base", "first", 2, Collections.emptyList());
+        sameHistory.put("Base", 0);
+        for (int i = 0; i < 5000; i++) {
+            taskManager.createPrimitiveTask("T" + i, "step", 1, Collections.singletonList(i < 2 ? "Base" : "T" + (i - 2)));
+            sameHistory.put("T" + i, 0);
+            if (i % 2 == 1) {
+                taskManager.deleteTask("T" + i);
+                sameHistory.remove("T" + i);
+            }
+        }
+        Task last = taskManager.getTasks().get("T4998");
+        assertTrue(last.getStore().size() < 2 * taskManager.getTasks().size());
+        assertEquals(2, taskManager.getDuration("T4998"), 0.0001);
+        assertEquals("T4996", last.getPrerequisites().get(0).getName());
+        // Reports list the tasks in the order they always have
+        assertEquals(new ArrayList<>(sameHistory.keySet()), new ArrayList<>(taskManager.getTasks().keySet()));
+
+        // A refused task never reaches the store
+        int ids = last.getStore().size();
+        int symbols = taskManager.getSymbols().size();
+        assertFalse(taskManager.createPrimitiveTask("9garbage", "never-stored", 1, Collections.emptyList()));
+        assertEquals(ids, last.getStore().size());
+        assertEquals(symbols, taskManager.getSymbols().size());
+    }
+
+    @Test
+    public void testTransactionsCommitAtomically() throws Exception {
+        taskManager.createPrimitiveTask("Task1", "boil-water", 0.3, Collections.emptyList());
+        taskManager.createPrimitiveTask("Task2", "boil-milk", 2, Collections.singletonList("Task1"));
+        taskManager.defineBasicCriterion("milk", "description", "contains", "\"milk\"");
+        assertTrue(taskManager.begin().commit());
+        GraphVersion before = taskManager.getVersion();
+        assertEquals(1, before.getNumber());
+
+        Transaction transaction = taskManager.begin();
+        transaction.createPrimitiveTask("Task3", "add-milk", 1, Collections.singletonList("Task2"));
+        transaction.changeTask("Task1", "duration", "5");
+        transaction.changeTask("Task2", "description", "pour-water");
+        assertFalse(transaction.changeTask("Task1", "duration", "long"));
+        assertEquals(3, transaction.size());
+        assertNull(taskManager.getTasks().get("Task3"));
+        assertTrue(transaction.commit());
+
+        GraphVersion after = taskManager.getVersion();
+        assertEquals(2, after.getNumber());
+        assertEquals("Duration of task Task3: 5.0 hours", after.reportDuration("Task3"));
+        assertEquals(taskManager.reportDuration("Task3"), after.reportDuration("Task3"));
+        assertEquals(Collections.singletonList("Task3"), after.searchTasks("milk"));
+        // The earlier version still answers as it did
+        assertFalse(before.contains("Task3"));
+        assertEquals("Duration of task Task2: 0.3 hours", before.reportDuration("Task2"));
+        assertEquals(Collections.singletonList("Task2"), before.searchTasks("milk"));
+
+        // A refused operation undoes the whole batch
+        taskManager.createPrimitiveTask("Spare", "spare", 1, Collections.emptyList());
+        Transaction cyclic = taskManager.begin();
+        cyclic.createPrimitiveTask("Task4", "stir", 1, Collections.singletonList("Task3"));
+        cyclic.deleteTask("Spare");
+        cyclic.changeTask("Task2", "duration", "9");
+        cyclic.changeTask("Task1", "name", "Renamed");
+        cyclic.changeTask("Task1", "prerequisites", "Task4");
+        outContent.reset();
+        assertFalse(cyclic.commit());
+        assertTrue(outContent.toString().contains("Transaction rolled back."));
+        assertNull(taskManager.getTasks().get("Task4"));
+        assertNotNull(taskManager.getTasks().get("Spare"));
+        assertEquals(2.0, taskManager.getTasks().get("Task2").getDuration(), 0.001);
+        assertEquals("Task1", taskManager.getTasks().get("Task1").getName());
+        assertSame(taskManager.getTasks().get("Task2"), taskManager.getTasks().get("Task3").getPrerequisites().get(0));
+        assertSame(taskManager.getTasks().get("Task1"), taskManager.getTasks().get("Task2").getPrerequisites().get(0));
+        assertEquals("Duration of task Task3: 5.0 hours", taskManager.reportDuration("Task3"));
+        assertEquals(after, taskManager.getVersion());
+        taskManager.deleteTask("Task1");
+        assertEquals("Duration of task Task3: 2.0 hours", taskManager.reportDuration("Task3"));
+        // So does an operation on a task that does not exist
+        Transaction missing = taskManager.begin();
+        missing.changeTask("Task2", "duration", "7");
+        missing.changeTask("Ghost", "description", "haunt");
+        assertFalse(missing.commit());
+        assertEquals(2.0, taskManager.getTasks().get("Task2").getDuration(), 0.001);
+        assertEquals("Task Ghost not found.", taskManager.getLastError());
+        try {
+            cyclic.commit();
+            fail("A transaction commits only once");
+        } catch (IllegalStateException expected) {
+        }
+
+        // A committed batch is one journal record and replays whole
+        File file = File.createTempFile("tms", ".snapshot");
+        file.deleteOnExit();
+        new File(file.getPath() + ".journal").deleteOnExit();
+        taskManager.enableJournal(file.getPath(), 0);
+        Transaction journaled = taskManager.begin();
+        journaled.createCompositeTask("comp1", "make-tea", Arrays.asList("Task2", "Task3"));
+        journaled.changeTask("Task3", "description", "stir, then: pour");
+        assertTrue(journaled.commit());
+        taskManager.closeJournal();
+        TMS recovered = new TMS();
+        recovered.load(file.getPath());
+        assertEquals(2, recovered.getTasks().get("comp1").getPrerequisites().size());
+        assertEquals("stir, then: pour", recovered.getTasks().get("Task3").getDescription());
+        recovered.closeJournal();
+    }
+
+    @Test
+    public void testTimeTravelOverRetainedVersions() {
+        taskManager.createPrimitiveTask("Task1", "boil-water", 0.3, Collections.emptyList());
+        taskManager.setVersionRetention(4, Long.MAX_VALUE);
+        long first = taskManager.getVersion().getNumber();
+        taskManager.createPrimitiveTask("Task2", "boil-milk", 2, Collections.singletonList("Task1"));
+        taskManager.createCompositeTask("comp1", "make-tea", Arrays.asList("Task1", "Task2"));
+        taskManager.defineBasicCriterion("milk", "description", "contains", "\"milk\"");
+        GraphVersion planned = taskManager.getVersion();
+        taskManager.changeTask("Task1", "duration", "3");
+        taskManager.changeTask("Task2", "description", "boil-water");
+
+        GraphVersion now = taskManager.getVersion();
+        assertEquals(planned.getNumber() + 2, now.getNumber());
+        assertEquals("Duration of task comp1: 0.3 hours", planned.reportDuration("comp1"));
+        assertEquals("Duration of task comp1: 3.0 hours", now.reportDuration("comp1"));
+        assertEquals(taskManager.reportDuration("comp1"), now.reportDuration("comp1"));
+        assertEquals(Arrays.asList("Task1", "Task2", "comp1"), planned.getCriticalPath("comp1"));
+        assertEquals(2.3, planned.getEarliestFinishTime("comp1"), 0.001);
+        assertEquals(Collections.singletonList("Task2"), planned.searchTasks("milk"));
+        assertTrue(now.searchTasks("milk").isEmpty());
+        assertSame(planned, taskManager.getVersion(planned.getNumber()));
+        assertSame(now, taskManager.getVersionAsOf(now.getTimestamp()));
+
+        // Unchanged tasks are shared between versions, and old versions are evicted
+        int comp1 = now.getKeys().get("comp1");
+        assertSame(planned.getTaskStates().get(comp1), now.getTaskStates().get(comp1));
+        assertEquals(4, taskManager.getVersions().size());
+        assertNull(taskManager.getVersion(first));
+        taskManager.deleteTask("Task2");
+        assertFalse(taskManager.getVersion().contains("Task2"));
+        assertTrue(now.contains("Task2"));
+        assertEquals(2, taskManager.getVersion().size());
+        assertEquals(taskManager.reportDuration("comp1"), taskManager.getVersion().reportDuration("comp1"));
+
+        // A deleted or replaced task leaves no state behind, and only the current version keeps its graph
+        assertEquals(2, taskManager.getVersion().getTaskStates().size());
+        for (int i = 0; i < 3; i++) {
+            taskManager.createPrimitiveTask("Task9", "boil-" + i, 1, Collections.emptyList());
+        }
+        assertEquals(3, taskManager.getVersion().getTaskStates().size());
+        GraphVersion latest = taskManager.getVersion();
+        CompactGraph graph = latest.getGraph();
+        assertSame(graph, latest.getGraph());
+        taskManager.deleteTask("Task9");
+        assertEquals(2, taskManager.getVersion().getTaskStates().size());
+        assertNotSame(graph, latest.getGraph());
+        assertEquals(1.0, latest.getEarliestFinishTime("Task9"), 0.001);
+    }
+
+    @Test
+    public void testSearchCacheFollowsMutations() {
+        taskManager.createPrimitiveTask("Task1", "boil-water", 0.3, Collections.emptyList());
+        taskManager.createPrimitiveTask("Task2", "boil-milk", 2, Collections.singletonList("Task1"));
+        taskManager.defineBasicCriterion("long", "duration", ">", "1");
+        taskManager.defineBasicCriterion("afterT1", "prerequisites", "contains", "Task1");
+        taskManager.defineNegatedCriterion("short", "long");
+        SearchCache cache = taskManager.getSearchCache();
+
+        assertEquals(Collections.singletonList("Task2"), names(taskManager.searchTasks("long")));
+        assertEquals(Collections.singletonList("Task2"), names(taskManager.searchTasks("long")));
+        assertEquals(1, cache.getHits());
+        assertEquals(1, cache.getMisses());
+        taskManager.searchTasks("short");
+        taskManager.searchTasks("afterT1");
+
+        // Only the changed task is evaluated again, against each cached criterion
+        taskManager.changeTask("Task1", "duration", "5");
+        assertEquals(Arrays.asList("Task1", "Task2"), names(taskManager.searchTasks("long")));
+        assertEquals(3, cache.getReevaluations());
+        assertTrue(taskManager.searchTasks("short").isEmpty());
+        taskManager.changeTask("Task1", "name", "Boil1");
+        assertTrue(taskManager.searchTasks("afterT1").isEmpty());
+        taskManager.createPrimitiveTask("Task2", "boil-milk", 0.5, Collections.emptyList());
+        assertEquals(Collections.singletonList("Boil1"), names(taskManager.searchTasks("long")));
+        assertEquals(Collections.singletonList("Task2"), names(taskManager.searchTasks("short")));
+        taskManager.deleteTask("Task1");
+        assertEquals(Collections.singletonList("Task2"), names(taskManager.searchTasks("short")));
+        assertTrue(taskManager.searchTasks("long").isEmpty());
+
+        // Redefining an operand drops the criteria built on it, and the limits evict the rest
+        taskManager.defineBasicCriterion("long", "duration", ">", "0.1");
+        long misses = cache.getMisses();
+        assertTrue(taskManager.searchTasks("short").isEmpty());
+        assertEquals(misses + 1, cache.getMisses());
+        taskManager.setSearchCacheLimits(1, 100);
+        assertEquals(1, cache.size());
+        assertTrue(cache.getEvictions() > 0);
+    }
+
+    @Test
+    public void testBitmapSearchMatchesProgram() {
+        for (int i = 0; i < 40; i++) {
+            taskManager.createPrimitiveTask("T" + i, i % 3 == 0 ? "boil-water" : "boil-milk", i % 7,
+                    i > 0 ? Collections.singletonList("T" + (i - 1)) : Collections.emptyList());
+        }
+        taskManager.defineBasicCriterion("long", "duration", ">", "3");
+        taskManager.defineBasicCriterion("milk", "description", "contains", "\"milk\"");
+        taskManager.defineBasicCriterion("afterT5", "prerequisites", "contains", "T5");
+        taskManager.defineBinaryCriterion("longMilk", "long", "&&", "milk");
+        taskManager.defineNegatedCriterion("notLongMilk", "longMilk");
+        taskManager.defineBinaryCriterion("either", "notLongMilk", "||", "afterT5");
+        taskManager.defineBinaryCriterion("broken", "either", "&&", "undefined");
+
+        CompactGraph graph = taskManager.getCompactGraph();
+        for (String criterion : Arrays.asList("long", "longMilk", "notLongMilk", "either", "broken")) {
+            CriterionProgram.OnIds program = graph.compile(criterion, taskManager.getBasicCriteria(),
+                    taskManager.getCompositeCriteria());
+            TaskBitmap bitmap = graph.bitmap(criterion, taskManager.getBasicCriteria(),
+                    taskManager.getCompositeCriteria());
+            assertArrayEquals(graph.select(program), bitmap.toArray());
+            assertEquals(taskManager.searchTasks(criterion).size(), bitmap.cardinality());
+        }
+
+        // Sparse and dense chunks combine like sets
+        TaskBitmap sparse = TaskBitmap.of(200_000, id -> id % 1000 == 0);
+        TaskBitmap dense = TaskBitmap.of(200_000, id -> id % 2 == 0);
+        assertEquals(200, sparse.and(dense).cardinality());
+        assertEquals(100_000, sparse.or(dense).cardinality());
+        assertEquals(0, sparse.andNot(dense).cardinality());
+        assertEquals(99_800, dense.andNot(sparse).cardinality());
+        assertTrue(dense.contains(131_072));
+        assertFalse(dense.andNot(sparse).contains(131_000));
+    }
+
+    @Test
+    public void testStreamingExport() throws Exception {
+        taskManager.createPrimitiveTask("Task1", "boil-water", 0.3, Collections.emptyList());
+        taskManager.createPrimitiveTask("Task2", "boil-milk", 2, Collections.singletonList("Task1"));
+        taskManager.createPrimitiveTask("Spare", "spare", 1, Collections.emptyList());
+        taskManager.createCompositeTask("comp1", "make-tea", Arrays.asList("Task1", "Task2"));
+        taskManager.changeTask("Spare", "description", "a,\"quoted\" one");
+        taskManager.defineBasicCriterion("milk", "description", "contains", "\"milk\"");
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        assertEquals(3, taskManager.exportSubgraph("comp1", Channels.newChannel(bytes), TaskExporter.Format.JSONL));
+        assertEquals("{\"name\":\"comp1\",\"description\":\"make-tea\",\"duration\":1.0,\"composite\":true,"
+                        + "\"prerequisites\":[\"Task1\",\"Task2\"]}\n"
+                        + "{\"name\":\"Task1\",\"description\":\"boil-water\",\"duration\":0.3,\"composite\":false,"
+                        + "\"prerequisites\":[]}\n"
+                        + "{\"name\":\"Task2\",\"description\":\"boil-milk\",\"duration\":2.0,\"composite\":false,"
+                        + "\"prerequisites\":[\"Task1\"]}\n",
+                bytes.toString("UTF-8"));
+
+        bytes.reset();
+        assertEquals(1, taskManager.exportSearch("milk", Channels.newChannel(bytes), TaskExporter.Format.CSV));
+        assertEquals("name,description,duration,composite,prerequisites\nTask2,boil-milk,2.0,false,Task1\n",
+                bytes.toString("UTF-8"));
+
+        bytes.reset();
+        taskManager.exportSubgraph("Task2", Channels.newChannel(bytes), TaskExporter.Format.DOT);
+        assertEquals("digraph tasks {\n  \"Task2\" [label=\"Task2\\n2.0h\"];\n  \"Task1\" -> \"Task2\";\n"
+                + "  \"Task1\" [label=\"Task1\\n0.3h\"];\n}\n", bytes.toString("UTF-8"));
+
+        // Everything, through a file; fields are escaped for the format
+        File file = File.createTempFile("tms", ".csv");
+        file.deleteOnExit();
+        taskManager.exportTasks(file.getPath(), "csv");
+        List<String> lines = java.nio.file.Files.readAllLines(file.toPath());
+        assertEquals(5, lines.size());
+        assertTrue(lines.contains("Spare,\"a,\"\"quoted\"\" one\",1.0,false,"));
+        taskManager.exportTasks(file.getPath(), "jsonl");
+        assertTrue(java.nio.file.Files.readAllLines(file.toPath()).contains(
+                "{\"name\":\"Spare\",\"description\":\"a,\\\"quoted\\\" one\",\"duration\":1.0,"
+                        + "\"composite\":false,\"prerequisites\":[]}"));
+
+        // A mapped snapshot exports straight from its records, decoding no task into the TMS
+        File snapshot = File.createTempFile("tms", ".snapshot");
+        snapshot.deleteOnExit();
+        taskManager.store(snapshot.getPath());
+        TMS mapped = new TMS();
+        mapped.loadMapped(snapshot.getPath());
+        bytes.reset();
+        taskManager.exportTasks(Channels.newChannel(bytes), TaskExporter.Format.JSONL);
+        String expected = bytes.toString("UTF-8");
+        bytes.reset();
+        assertEquals(4, mapped.exportTasks(Channels.newChannel(bytes), TaskExporter.Format.JSONL));
+        assertEquals(expected, bytes.toString("UTF-8"));
+        bytes.reset();
+        assertEquals(1, mapped.exportSearch("milk", Channels.newChannel(bytes), TaskExporter.Format.CSV));
+        assertEquals("name,description,duration,composite,prerequisites\nTask2,boil-milk,2.0,false,Task1\n",
+                bytes.toString("UTF-8"));
+        assertEquals(0, mapped.getSymbols().size());
+    }
+
+    @Test
+    public void testServerAnswersPipelinedRequests() throws Exception {
+        try (TMSServer server = TMSServer.listen(taskManager, 0);
+             java.net.Socket socket = new java.net.Socket()) {
+            socket.connect(server.getAddress());
+            java.io.Writer out = new java.io.OutputStreamWriter(socket.getOutputStream(), "UTF-8");
+            java.io.BufferedReader in = new java.io.BufferedReader(
+                    new java.io.InputStreamReader(socket.getInputStream(), "UTF-8"));
+            // Sent in one go; the responses come back in order
+            out.write("CreatePrimitiveTask Task1 boil-water 0.3 ,\n"
+                    + "createprimitivetask Task2 boil-milk 2 Task1\n"
+                    + "CreatePrimitiveTask 9bad boil 1 ,\n"
+                    + "CreateCompositeTask comp1 make-tea Task1,Task2\n"
+                    + "ChangeTask Task1 duration many\n"
+                    + "ChangeTask Task1 prerequisites comp1\n"
+                    + "DefineNegatedCriterion nothing missing\n"
+                    + "Store ../../etc/passwd\n"
+                    + "DefineBasicCriterion milk description contains \"milk\"\n"
+                    + "Search milk\n"
+                    + "ReportDuration comp1\n"
+                    + "DeleteTask Nothing\n"
+                    + "Fly away\n"
+                    + "Quit\n");
+            out.flush();
+            assertEquals("OK", in.readLine());
+            assertEquals("OK", in.readLine());
+            assertTrue(in.readLine().startsWith("ERR Name must be at least 8 characters long"));
+            assertEquals("OK", in.readLine());
+            assertEquals("ERR Not a number: For input string: \"many\"", in.readLine());
+            // Refused mutations answer ERR, and Store is off unless a directory was given
+            assertEquals("ERR Task comp1 cannot be a prerequisite of Task1: it would form a cycle.", in.readLine());
+            assertEquals("ERR Criterion missing not found.", in.readLine());
+            assertEquals("ERR Store is not enabled on this server.", in.readLine());
+            assertEquals("OK", in.readLine());
+            assertEquals("OK Task2", in.readLine());
+            assertEquals("OK Duration of task comp1: 0.3 hours", in.readLine());
+            assertEquals("ERR Task Nothing not found.", in.readLine());
+            assertEquals("ERR Unknown command Fly", in.readLine());
+            assertEquals("OK bye", in.readLine());
+            assertNull(in.readLine());
+
+            File directory = java.nio.file.Files.createTempDirectory("tms").toFile();
+            directory.deleteOnExit();
+            server.setStoreDirectory(directory.toPath());
+            assertEquals("ERR Store takes a file name, not a path.", server.handle("Store ../escaped"));
+            assertEquals("OK", server.handle("Store snapshot"));
+            File stored = new File(directory, "snapshot");
+            stored.deleteOnExit();
+            assertTrue(stored.exists());
+
+            // Descriptions travel as one word, and a missing one is not read back as "null"
+            assertEquals("OK", server.handle("CreateCompositeTask comp2 make%20hot%2ctea Task1"));
+            assertEquals("make hot,tea", taskManager.getTasks().get("comp2").getDescription());
+            assertEquals("OK 1.0 true Task1 make%20hot%2ctea", server.handle("DescribeTask comp2"));
+            assertEquals("OK", server.handle("ChangeTask comp2 description %"));
+            assertEquals("OK 1.0 true Task1 %", server.handle("DescribeTask comp2"));
+            assertEquals("OK", server.handle("DeleteTask comp2"));
+            for (String description : Arrays.asList(null, "", "%", "%%", "tea for\ttwo, 100% \u00e9\u00a0\ud83c\udf75")) {
+                assertEquals(description, TMSServer.decode(TMSServer.encode(description)));
+            }
+        }
+        assertEquals(3, taskManager.getTasks().size());
+        assertNull(taskManager.getCompositeCriteria().get("nothing"));
+    }
+
+    @Test
+    public void testShardedTMSMatchesOneTMS() {
+        for (ShardedTMS.Partitioning partitioning : ShardedTMS.Partitioning.values()) {
+            try (ShardedTMS sharded = ShardedTMS.local(3, partitioning)) {
+                List<String> names = shardScenario(new Shard.Local(taskManager), sharded, 60);
+                assertShardedLike(taskManager, sharded, names);
+                int used = 0;
+                for (int load : sharded.getLoad()) {
+                    used += load > 0 ? 1 : 0;
+                }
+                assertTrue(partitioning + " spreads the tasks", used > 1);
+            }
+            taskManager = new TMS();
+        }
+
+        // A component joined to one on another shard is moved over whole
+        try (ShardedTMS sharded = ShardedTMS.local(2, ShardedTMS.Partitioning.COMPONENT)) {
+            sharded.createPrimitiveTask("Task1", "boil-water", 0.3, Collections.emptyList());
+            sharded.createPrimitiveTask("Task2", "boil-milk", 2, Collections.emptyList());
+            assertNotEquals(sharded.getOwner("Task1"), sharded.getOwner("Task2"));
+            sharded.createCompositeTask("comp1", "make-tea", Arrays.asList("Task1", "Task2"));
+            assertEquals(sharded.getOwner("Task1"), sharded.getOwner("Task2"));
+            assertEquals(sharded.getOwner("Task1"), sharded.getOwner("comp1"));
+            assertArrayEquals(new int[] {3, 0}, sharded.getLoad());
+        }
+
+        // A stub is dropped once no task on its shard lists it
+        List<TMS> held = Arrays.asList(new TMS(), new TMS());
+        try (ShardedTMS sharded = new ShardedTMS(Arrays.asList(new Shard.Local(held.get(0)), new Shard.Local(held.get(1))),
+                ShardedTMS.Partitioning.HASH)) {
+            sharded.createPrimitiveTask("Task1", "boil-water", 0.3, Collections.emptyList());
+            sharded.createPrimitiveTask("Task2", "boil-milk", 2, Collections.singletonList("Task1"));
+            TMS stubbing = held.get(sharded.getOwner("Task2"));
+            assertNotSame(held.get(sharded.getOwner("Task1")), stubbing);
+            assertTrue(stubbing.getTasks().containsKey("Task1"));
+            assertEquals(0.3, sharded.getDuration("Task2"), 1e-9);
+            sharded.changeTask("Task2", "prerequisites", "");
+            assertFalse(stubbing.getTasks().containsKey("Task1"));
+            assertEquals(2, sharded.getDuration("Task2"), 1e-9);
+        }
+    }
+
+    @Test
+    public void testShardedTMSOverProcesses() throws Exception {
+        try (ShardedTMS sharded = ShardedTMS.processes(2, ShardedTMS.Partitioning.HASH)) {
+            List<String> names = shardScenario(new Shard.Local(taskManager), sharded, 20);
+            assertShardedLike(taskManager, sharded, names);
+        }
+    }
+
+    // Runs the same random commands on both, checking that both accept or refuse each, and
+    // returns the names of the tasks created
+    private static List<String> shardScenario(Shard expected, Shard sharded, int size) {
+        java.util.Random random = new java.util.Random(42);
+        List<String> names = new ArrayList<>();
+        for (Shard shard : Arrays.asList(expected, sharded)) {
+            assertTrue(shard.defineBasicCriterion("long", "duration", ">", "3"));
+            assertTrue(shard.defineBasicCriterion("ones", "name", "contains", "\"1\""));
+            assertTrue(shard.defineNegatedCriterion("short", "long"));
+            assertTrue(shard.defineBinaryCriterion("both", "short", "||", "ones"));
+            assertFalse(shard.defineNegatedCriterion("none", "missing"));
+        }
+        for (int i = 0; i < size; i++) {
+            String name = "T" + i;
+            names.add(name);
+            List<String> linked = new ArrayList<>();
+            for (int j = random.nextInt(3); j > 0 && i > 0; j--) {
+                linked.add(names.get(random.nextInt(i)));
+            }
+            // Mostly small components, so that component mode has several to place
+            if (i % 10 == 0) {
+                linked.clear();
+            }
+            boolean composite = random.nextInt(5) == 0;
+            double duration = random.nextInt(12) / 2.0;
+            for (Shard shard : Arrays.asList(expected, sharded)) {
+                if (composite) {
+                    assertTrue(name, shard.createCompositeTask(name, "task-" + i, linked));
+                } else {
+                    assertTrue(name, shard.createPrimitiveTask(name, "task-" + i, duration, linked));
+                }
+            }
+        }
+        for (int i = 0; i < size / 4; i++) {
+            String name = names.get(random.nextInt(size));
+            String other = names.get(random.nextInt(size));
+            String change = random.nextInt(4) == 0 ? "delete" : random.nextBoolean() ? "duration" : "prerequisites";
+            String value = change.equals("duration") ? Double.toString(random.nextInt(12) / 2.0) : other;
+            boolean[] applied = new boolean[2];
+            for (int s = 0; s < 2; s++) {
+                Shard shard = s == 0 ? expected : sharded;
+                applied[s] = change.equals("delete") ? shard.deleteTask(name) : shard.changeTask(name, change, value);
+            }
+            assertEquals(change + " " + name + " " + value, applied[0], applied[1]);
+        }
+        return names;
+    }
+
+    private static void assertShardedLike(TMS expected, ShardedTMS sharded, List<String> names) {
+        for (String name : names) {
+            assertEquals(name, expected.getDuration(name), sharded.getDuration(name), 1e-9);
+            assertEquals(name, expected.getEarliestFinishTime(name), sharded.getEarliestFinishTime(name), 1e-9);
+            assertEquals(name, expected.reportDuration(name), sharded.reportDuration(name));
+        }
+        for (String criterion : Arrays.asList("long", "ones", "short", "both")) {
+            List<String> found = sharded.search(criterion);
+            Collections.sort(found);
+            assertEquals(criterion, names(expected.searchTasks(criterion)), found);
+        }
+    }
+
+    private static List<String> names(List<Task> tasks) {
+        List<String> names = new ArrayList<>();
+        for (Task task : tasks) {
+            names.add(task.getName());
+        }
+        Collections.sort(names);
+        return names;
+    }
+
 }
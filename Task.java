@@ -5,56 +5,149 @@ import java.util.*;
 class Task implements Serializable {
     private static final long serialVersionUID = 1L;
 
-    private String name;
-    private String description;
-    private double duration;
-    private List<Task> prerequisites;
+    // Streams carry the name and description as strings, as they always have, so older files still load
+    private static final ObjectStreamField[] serialPersistentFields = {
+            new ObjectStreamField("name", String.class),
+            new ObjectStreamField("description", String.class),
+            new ObjectStreamField("duration", double.class),
+            new ObjectStreamField("prerequisites", List.class),
+            new ObjectStreamField("composite", boolean.class)
+    };
 
-    public Task(String name, String description, double duration) {
-        this.name = name;
-        this.description = description;
-        this.duration = duration;
-        this.prerequisites = new ArrayList<>();
+    // A handle on one id of a store, which holds the fields; volatile so that ConcurrentTMS
+    // readers see a task moved by the TMS that owns it
+    private transient volatile TaskStore store;
+    private transient volatile int id;
+    // The prerequisites read from a stream, until the TMS loading the task adopts it into its store
+    private transient List<Task> streamed;
+
+    public Task(TaskStore store, String name, String description, double duration) {
+        this(store, store.getSymbols().intern(name), store.getSymbols().intern(description), duration);
+    }
+
+    Task(TaskStore store, int nameSymbol, int descriptionSymbol, double duration) {
+        this.store = store;
+        this.id = store.add(this, nameSymbol, descriptionSymbol, duration);
     }
 
     public String getName() {
-        return name;
+        TaskStore at = store;
+        return at.getSymbols().get(at.name(id));
     }
 
     public String getDescription() {
-        return description;
+        TaskStore at = store;
+        return at.getSymbols().get(at.description(id));
+    }
+
+    /** The table the name and description symbols belong to. */
+    public SymbolTable getSymbols() {
+        return store.getSymbols();
+    }
+
+    /** The store holding the fields of the task, under {@link #getId}. */
+    TaskStore getStore() {
+        return store;
+    }
+
+    int getId() {
+        return id;
+    }
+
+    // Only TaskStore.adopt moves a task
+    void bind(TaskStore store, int id) {
+        this.id = id;
+        this.store = store;
+        streamed = null;
+    }
+
+    public int getNameSymbol() {
+        return store.name(id);
+    }
+
+    public int getDescriptionSymbol() {
+        return store.description(id);
     }
 
     public double getDuration() {
-        return duration;
+        return store.duration(id);
     }
 
+    public boolean isComposite() {
+        return store.isComposite(id);
+    }
+
+    /** The prerequisites as they are now; the list is not changed by later mutations. */
     public List<Task> getPrerequisites() {
-        return prerequisites;
+        List<Task> read = streamed;
+        return read != null ? read : store.prerequisites(id);
+    }
+
+    public int getPrerequisiteCount() {
+        List<Task> read = streamed;
+        return read != null ? read.size() : store.prerequisiteCount(id);
+    }
+
+    public Task getPrerequisite(int index) {
+        List<Task> read = streamed;
+        return read != null ? read.get(index) : store.prerequisite(id, index);
     }
 
     public void setName(String newName) {
-        this.name = newName;
+        TaskStore at = store;
+        at.setName(id, at.getSymbols().intern(newName));
     }
 
     public void setDescription(String newDescription) {
-        this.description = newDescription;
+        TaskStore at = store;
+        at.setDescription(id, at.getSymbols().intern(newDescription));
     }
 
     public void setDuration(double newDuration) {
-        this.duration = newDuration;
+        store.setDuration(id, newDuration);
+    }
+
+    public void setComposite(boolean composite) {
+        store.setComposite(id, composite);
     }
 
+    /** Every prerequisite must be held in the same store as this task. */
     public void setPrerequisites(List<Task> prerequisites) {
-        this.prerequisites = prerequisites;
+        store.setPrerequisites(id, prerequisites);
     }
 
     public void addPrerequisite(Task prerequisite) {
-        prerequisites.add(prerequisite);
+        store.addPrerequisite(id, prerequisite);
     }
 
     public void removePrerequisite(Task prerequisite) {
-        prerequisites.remove(prerequisite);
+        store.removePrerequisite(id, prerequisite);
+    }
+
+    public void removePrerequisites(Collection<Task> removed) {
+        store.removePrerequisites(id, removed);
+    }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        ObjectOutputStream.PutField fields = out.putFields();
+        fields.put("name", getName());
+        fields.put("description", getDescription());
+        fields.put("duration", getDuration());
+        fields.put("prerequisites", new ArrayList<>(getPrerequisites()));
+        fields.put("composite", isComposite());
+        out.writeFields();
+    }
+
+    @SuppressWarnings("unchecked")
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        ObjectInputStream.GetField fields = in.readFields();
+        // A store of the task's own until the TMS loading it adopts the task into its store
+        SymbolTable symbols = new SymbolTable(2);
+        store = new TaskStore(symbols, 1);
+        id = store.add(this, symbols.intern((String) fields.get("name", null)),
+                symbols.intern((String) fields.get("description", null)), fields.get("duration", 0.0));
+        store.setComposite(id, fields.get("composite", false));
+        streamed = (List<Task>) fields.get("prerequisites", null);
     }
 }
 
@@ -0,0 +1,299 @@
+package hk.edu.polyu.comp.comp2021.tms.model;
+
+import java.util.Arrays;
+import java.util.function.IntPredicate;
+
+/**
+ * An immutable set of task ids compressed the way Roaring bitmaps are. Ids are split by their
+ * high 16 bits into chunks; a chunk holding up to 4096 ids keeps them as a sorted char array,
+ * a fuller one as a 1024-word bitmap. So sparse and dense sets both stay small, and AND, OR
+ * and AND NOT work a chunk at a time, mostly 64 ids per word operation.
+ */
+final class TaskBitmap {
+    static final TaskBitmap EMPTY = new TaskBitmap(new char[0], new Object[0], 0);
+
+    private static final int ARRAY_MAX = 4096;
+    private static final int WORDS = 1024;
+
+    // High 16 bits of each chunk, ascending, and its ids as char[] or long[]
+    private final char[] keys;
+    private final Object[] chunks;
+    private final int cardinality;
+
+    private TaskBitmap(char[] keys, Object[] chunks, int cardinality) {
+        this.keys = keys;
+        this.chunks = chunks;
+        this.cardinality = cardinality;
+    }
+
+    /** The ids in [0, size) that satisfy the predicate. */
+    public static TaskBitmap of(int size, IntPredicate predicate) {
+        Builder builder = new Builder();
+        for (int id = 0; id < size; id++) {
+            if (predicate.test(id)) {
+                builder.add(id);
+            }
+        }
+        return builder.build();
+    }
+
+    public int cardinality() {
+        return cardinality;
+    }
+
+    public boolean contains(int id) {
+        int k = Arrays.binarySearch(keys, (char) (id >>> 16));
+        if (k < 0) {
+            return false;
+        }
+        char low = (char) id;
+        Object chunk = chunks[k];
+        return chunk instanceof long[] ? (((long[]) chunk)[low >>> 6] & (1L << low)) != 0
+                : Arrays.binarySearch((char[]) chunk, low) >= 0;
+    }
+
+    public int[] toArray() {
+        int[] ids = new int[cardinality];
+        int count = 0;
+        for (int k = 0; k < keys.length; k++) {
+            int high = keys[k] << 16;
+            if (chunks[k] instanceof long[]) {
+                long[] words = (long[]) chunks[k];
+                for (int w = 0; w < WORDS; w++) {
+                    long word = words[w];
+                    while (word != 0) {
+                        ids[count++] = high | (w << 6) | Long.numberOfTrailingZeros(word);
+                        word &= word - 1;
+                    }
+                }
+            } else {
+                for (char low : (char[]) chunks[k]) {
+                    ids[count++] = high | low;
+                }
+            }
+        }
+        return ids;
+    }
+
+    public TaskBitmap and(TaskBitmap other) {
+        Builder result = new Builder();
+        int i = 0;
+        int j = 0;
+        while (i < keys.length && j < other.keys.length) {
+            if (keys[i] < other.keys[j]) {
+                i++;
+            } else if (keys[i] > other.keys[j]) {
+                j++;
+            } else {
+                result.chunk(keys[i], and(chunks[i++], other.chunks[j++]));
+            }
+        }
+        return result.build();
+    }
+
+    public TaskBitmap or(TaskBitmap other) {
+        Builder result = new Builder();
+        int i = 0;
+        int j = 0;
+        while (i < keys.length || j < other.keys.length) {
+            if (j == other.keys.length || i < keys.length && keys[i] < other.keys[j]) {
+                result.chunk(keys[i], chunks[i++]);
+            } else if (i == keys.length || keys[i] > other.keys[j]) {
+                result.chunk(other.keys[j], other.chunks[j++]);
+            } else {
+                result.chunk(keys[i], or(chunks[i++], other.chunks[j++]));
+            }
+        }
+        return result.build();
+    }
+
+    /** The ids in this set and not in the other. */
+    public TaskBitmap andNot(TaskBitmap other) {
+        Builder result = new Builder();
+        int j = 0;
+        for (int i = 0; i < keys.length; i++) {
+            while (j < other.keys.length && other.keys[j] < keys[i]) {
+                j++;
+            }
+            if (j < other.keys.length && other.keys[j] == keys[i]) {
+                result.chunk(keys[i], andNot(chunks[i], other.chunks[j]));
+            } else {
+                result.chunk(keys[i], chunks[i]);
+            }
+        }
+        return result.build();
+    }
+
+    private static Object and(Object a, Object b) {
+        if (a instanceof char[] || b instanceof char[]) {
+            // The sparse side decides; each of its ids is looked up in the other
+            char[] sparse = (char[]) (a instanceof char[] ? a : b);
+            Object other = sparse == a ? b : a;
+            char[] result = new char[sparse.length];
+            int count = 0;
+            for (char low : sparse) {
+                if (contains(other, low)) {
+                    result[count++] = low;
+                }
+            }
+            return Arrays.copyOf(result, count);
+        }
+        long[] x = (long[]) a;
+        long[] y = (long[]) b;
+        long[] words = new long[WORDS];
+        for (int w = 0; w < WORDS; w++) {
+            words[w] = x[w] & y[w];
+        }
+        return words;
+    }
+
+    private static Object or(Object a, Object b) {
+        if (a instanceof char[] && b instanceof char[]) {
+            char[] x = (char[]) a;
+            char[] y = (char[]) b;
+            char[] result = new char[x.length + y.length];
+            int count = 0;
+            int i = 0;
+            int j = 0;
+            while (i < x.length || j < y.length) {
+                if (j == y.length || i < x.length && x[i] < y[j]) {
+                    result[count++] = x[i++];
+                } else if (i == x.length || x[i] > y[j]) {
+                    result[count++] = y[j++];
+                } else {
+                    result[count++] = x[i++];
+                    j++;
+                }
+            }
+            return Arrays.copyOf(result, count);
+        }
+        long[] words = a instanceof long[] ? ((long[]) a).clone() : toWords((char[]) a);
+        if (b instanceof long[]) {
+            long[] y = (long[]) b;
+            for (int w = 0; w < WORDS; w++) {
+                words[w] |= y[w];
+            }
+        } else {
+            for (char low : (char[]) b) {
+                words[low >>> 6] |= 1L << low;
+            }
+        }
+        return words;
+    }
+
+    private static Object andNot(Object a, Object b) {
+        if (a instanceof char[]) {
+            char[] x = (char[]) a;
+            char[] result = new char[x.length];
+            int count = 0;
+            for (char low : x) {
+                if (!contains(b, low)) {
+                    result[count++] = low;
+                }
+            }
+            return Arrays.copyOf(result, count);
+        }
+        long[] words = ((long[]) a).clone();
+        if (b instanceof long[]) {
+            long[] y = (long[]) b;
+            for (int w = 0; w < WORDS; w++) {
+                words[w] &= ~y[w];
+            }
+        } else {
+            for (char low : (char[]) b) {
+                words[low >>> 6] &= ~(1L << low);
+            }
+        }
+        return words;
+    }
+
+    private static boolean contains(Object chunk, char low) {
+        return chunk instanceof long[] ? (((long[]) chunk)[low >>> 6] & (1L << low)) != 0
+                : Arrays.binarySearch((char[]) chunk, low) >= 0;
+    }
+
+    private static long[] toWords(char[] lows) {
+        long[] words = new long[WORDS];
+        for (char low : lows) {
+            words[low >>> 6] |= 1L << low;
+        }
+        return words;
+    }
+
+    private static int count(Object chunk) {
+        if (chunk instanceof char[]) {
+            return ((char[]) chunk).length;
+        }
+        int count = 0;
+        for (long word : (long[]) chunk) {
+            count += Long.bitCount(word);
+        }
+        return count;
+    }
+
+    // Collects chunks in key order, dropping empty ones and storing each in its smaller form
+    private static final class Builder {
+        private char[] keys = new char[4];
+        private Object[] chunks = new Object[4];
+        private int size;
+        private int cardinality;
+        // The chunk being filled by add
+        private char[] pending = new char[16];
+        private int pendingCount;
+        private int pendingKey = -1;
+
+        void add(int id) {
+            int key = id >>> 16;
+            if (key != pendingKey) {
+                flush();
+                pendingKey = key;
+            }
+            if (pendingCount == pending.length) {
+                pending = Arrays.copyOf(pending, pendingCount * 2);
+            }
+            pending[pendingCount++] = (char) id;
+        }
+
+        void chunk(char key, Object chunk) {
+            int count = count(chunk);
+            if (count == 0) {
+                return;
+            }
+            if (chunk instanceof long[] && count <= ARRAY_MAX) {
+                char[] lows = new char[count];
+                int n = 0;
+                long[] words = (long[]) chunk;
+                for (int w = 0; w < WORDS; w++) {
+                    long word = words[w];
+                    while (word != 0) {
+                        lows[n++] = (char) ((w << 6) | Long.numberOfTrailingZeros(word));
+                        word &= word - 1;
+                    }
+                }
+                chunk = lows;
+            } else if (chunk instanceof char[] && count > ARRAY_MAX) {
+                chunk = toWords((char[]) chunk);
+            }
+            if (size == keys.length) {
+                keys = Arrays.copyOf(keys, size * 2);
+                chunks = Arrays.copyOf(chunks, size * 2);
+            }
+            keys[size] = key;
+            chunks[size++] = chunk;
+            cardinality += count;
+        }
+
+        TaskBitmap build() {
+            flush();
+            return size == 0 ? EMPTY : new TaskBitmap(Arrays.copyOf(keys, size), Arrays.copyOf(chunks, size),
+                    cardinality);
+        }
+
+        private void flush() {
+            if (pendingCount > 0) {
+                chunk((char) pendingKey, Arrays.copyOf(pending, pendingCount));
+                pendingCount = 0;
+            }
+        }
+    }
+}
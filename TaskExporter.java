@@ -0,0 +1,243 @@
+package hk.edu.polyu.comp.comp2021.tms.model;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * Writes tasks one at a time as JSON Lines, CSV or a Graphviz DOT graph. Names and descriptions
+ * are copied as UTF-8 straight from the task's SymbolTable, escaped on the way, into one fixed-size
+ * buffer that is handed to the channel whenever it fills. A blocking channel holds the exporter
+ * up until it has taken the previous buffer, so a slow reader slows the export down instead of
+ * letting output pile up, and memory use stays the same however many tasks are written.
+ *
+ * <p>Each task is written with its name, description, duration, whether it is composite and
+ * the names of its prerequisites (or subtasks). In DOT every task is a node, boxed if it is
+ * composite, with an edge from each prerequisite to the tasks that need it.
+ */
+class TaskExporter implements AutoCloseable {
+    enum Format { JSONL, CSV, DOT }
+
+    private static final int BUFFER_SIZE = 1 << 16;
+    private static final byte[] HEX = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+
+    private final WritableByteChannel channel;
+    private final Format format;
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    private byte[] scratch = new byte[256];
+    private long written;
+
+    public TaskExporter(WritableByteChannel channel, Format format) throws IOException {
+        this.channel = channel;
+        this.format = format;
+        if (format == Format.CSV) {
+            ascii("name,description,duration,composite,prerequisites\n");
+        } else if (format == Format.DOT) {
+            ascii("digraph tasks {\n");
+        }
+    }
+
+    /** The format named case-insensitively, or null if there is no such format. */
+    public static Format format(String name) {
+        for (Format format : Format.values()) {
+            if (format.name().equalsIgnoreCase(name)) {
+                return format;
+            }
+        }
+        return null;
+    }
+
+    public void task(Task task) throws IOException {
+        switch (format) {
+            case JSONL:
+                ascii("{\"name\":\"");
+                name(task);
+                ascii("\",\"description\":\"");
+                description(task);
+                ascii("\",\"duration\":");
+                ascii(Double.toString(task.getDuration()));
+                ascii(task.isComposite() ? ",\"composite\":true,\"prerequisites\":[" : ",\"composite\":false,\"prerequisites\":[");
+                List<Task> prerequisites = task.getPrerequisites();
+                for (int i = 0; i < prerequisites.size(); i++) {
+                    ascii(i == 0 ? "\"" : ",\"");
+                    name(prerequisites.get(i));
+                    ascii("\"");
+                }
+                ascii("]}\n");
+                break;
+            case CSV:
+                name(task);
+                ascii(",");
+                description(task);
+                ascii(",");
+                ascii(Double.toString(task.getDuration()));
+                ascii(task.isComposite() ? ",true," : ",false,");
+                // Prerequisite names are joined with ; as in the BulkImporter line format
+                csvList(task.getPrerequisites());
+                ascii("\n");
+                break;
+            case DOT:
+                ascii("  \"");
+                name(task);
+                ascii("\" [label=\"");
+                name(task);
+                ascii("\\n");
+                ascii(Double.toString(task.getDuration()));
+                ascii(task.isComposite() ? "h\", shape=box];\n" : "h\"];\n");
+                for (Task prerequisite : task.getPrerequisites()) {
+                    ascii("  \"");
+                    name(prerequisite);
+                    ascii("\" -> \"");
+                    name(task);
+                    ascii("\";\n");
+                }
+                break;
+        }
+        written++;
+    }
+
+    /** The number of tasks written so far. */
+    public long getWritten() {
+        return written;
+    }
+
+    /** Ends the output and hands everything still buffered to the channel; the channel stays open. */
+    public void finish() throws IOException {
+        if (format == Format.DOT) {
+            ascii("}\n");
+        }
+        drain();
+    }
+
+    /** Finishes the output and closes the channel. */
+    @Override
+    public void close() throws IOException {
+        try {
+            finish();
+        } finally {
+            channel.close();
+        }
+    }
+
+    private void csvList(List<Task> tasks) throws IOException {
+        boolean quoted = false;
+        for (Task task : tasks) {
+            quoted |= needsQuotes(task.getSymbols(), task.getNameSymbol());
+        }
+        if (quoted) {
+            put((byte) '"');
+        }
+        for (int i = 0; i < tasks.size(); i++) {
+            if (i > 0) {
+                put((byte) ';');
+            }
+            escaped(tasks.get(i).getSymbols(), tasks.get(i).getNameSymbol(), quoted);
+        }
+        if (quoted) {
+            put((byte) '"');
+        }
+    }
+
+    private void name(Task task) throws IOException {
+        symbol(task.getSymbols(), task.getNameSymbol());
+    }
+
+    private void description(Task task) throws IOException {
+        symbol(task.getSymbols(), task.getDescriptionSymbol());
+    }
+
+    // Writes a name or description escaped for the format; for CSV it is quoted only if it must be
+    private void symbol(SymbolTable symbols, int handle) throws IOException {
+        if (handle == SymbolTable.NULL) {
+            return;
+        }
+        if (format == Format.CSV) {
+            boolean quoted = needsQuotes(symbols, handle);
+            if (quoted) {
+                put((byte) '"');
+            }
+            escaped(symbols, handle, quoted);
+            if (quoted) {
+                put((byte) '"');
+            }
+        } else {
+            escaped(symbols, handle, false);
+        }
+    }
+
+    private boolean needsQuotes(SymbolTable symbols, int handle) {
+        int length = load(symbols, handle);
+        for (int i = 0; i < length; i++) {
+            byte b = scratch[i];
+            if (b == ',' || b == '"' || b == ';' || b == '\n' || b == '\r') {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Bytes of 0x80 and up belong to multi-byte UTF-8 sequences and pass through unchanged
+    private void escaped(SymbolTable symbols, int handle, boolean csvQuoted) throws IOException {
+        int length = load(symbols, handle);
+        for (int i = 0; i < length; i++) {
+            byte b = scratch[i];
+            if (format == Format.CSV) {
+                if (b == '"' && csvQuoted) {
+                    put((byte) '"');
+                }
+                put(b);
+            } else if (b == '"' || b == '\\') {
+                put((byte) '\\');
+                put(b);
+            } else if (b == '\n') {
+                put((byte) '\\');
+                put((byte) 'n');
+            } else if (b >= 0 && b < 0x20) {
+                if (format == Format.DOT) {
+                    put((byte) ' ');
+                } else {
+                    ascii("\\u00");
+                    put(HEX[b >> 4]);
+                    put(HEX[b & 0xf]);
+                }
+            } else {
+                put(b);
+            }
+        }
+    }
+
+    private int load(SymbolTable symbols, int handle) {
+        int length = symbols.length(handle);
+        if (length > scratch.length) {
+            scratch = new byte[Math.max(length, scratch.length * 2)];
+        }
+        symbols.copy(handle, scratch);
+        return length;
+    }
+
+    private void ascii(String text) throws IOException {
+        for (int i = 0; i < text.length(); i++) {
+            put((byte) text.charAt(i));
+        }
+    }
+
+    private void put(byte b) throws IOException {
+        if (!buffer.hasRemaining()) {
+            drain();
+        }
+        buffer.put(b);
+    }
+
+    private void drain() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            if (channel.write(buffer) == 0) {
+                // A non-blocking channel that is full; wait for the reader to catch up
+                Thread.onSpinWait();
+            }
+        }
+        buffer.clear();
+    }
+}
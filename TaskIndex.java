@@ -0,0 +1,178 @@
+package hk.edu.polyu.comp.comp2021.tms.model;
+
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * Secondary indexes over the tasks of a TMS: a sorted index on duration and an
+ * n-gram index on name and description. Every substring of up to {@link #GRAM}
+ * characters is indexed, so short needles are answered by a single lookup and
+ * longer ones by intersecting their n-grams and checking the few candidates left.
+ * The n-grams point at symbols rather than tasks, so a description shared by many
+ * tasks is split into n-grams and checked against a needle only once.
+ */
+class TaskIndex {
+    private static final int GRAM = 3;
+
+    // The table of the indexed tasks' symbols
+    private final SymbolTable symbols;
+    private final NavigableMap<Double, Set<Task>> byDuration = new TreeMap<>();
+    private final Text names = new Text();
+    private final Text descriptions = new Text();
+    private final Set<Task> all = new HashSet<>();
+
+    TaskIndex(SymbolTable symbols) {
+        this.symbols = symbols;
+    }
+
+    /** The n-grams of the symbols in use and the tasks using each symbol. */
+    private class Text {
+        final Map<String, Set<Integer>> grams = new HashMap<>();
+        final Map<Integer, Set<Task>> bySymbol = new HashMap<>();
+
+        void add(int symbol, Task task) {
+            Set<Task> tasks = bySymbol.get(symbol);
+            if (tasks == null) {
+                tasks = new HashSet<>();
+                bySymbol.put(symbol, tasks);
+                for (String gram : grams(symbols.get(symbol))) {
+                    grams.computeIfAbsent(gram, k -> new HashSet<>()).add(symbol);
+                }
+            }
+            tasks.add(task);
+        }
+
+        void remove(int symbol, Task task) {
+            Set<Task> tasks = bySymbol.get(symbol);
+            if (tasks == null || !tasks.remove(task) || !tasks.isEmpty()) {
+                return;
+            }
+            bySymbol.remove(symbol);
+            for (String gram : grams(symbols.get(symbol))) {
+                removeFrom(grams, gram, symbol);
+            }
+        }
+    }
+
+    public void add(Task task) {
+        all.add(task);
+        byDuration.computeIfAbsent(key(task.getDuration()), k -> new HashSet<>()).add(task);
+        names.add(task.getNameSymbol(), task);
+        descriptions.add(task.getDescriptionSymbol(), task);
+    }
+
+    public void remove(Task task) {
+        if (!all.remove(task)) {
+            return;
+        }
+        removeFrom(byDuration, key(task.getDuration()), task);
+        names.remove(task.getNameSymbol(), task);
+        descriptions.remove(task.getDescriptionSymbol(), task);
+    }
+
+    /**
+     * Returns the tasks satisfying the given criterion, or null if the criterion
+     * cannot be answered from these indexes.
+     */
+    public Set<Task> lookup(BasicCriterion criterion) {
+        switch (BasicCriterion.Property.valueOf(criterion.getProperty().toUpperCase())) {
+            case NAME:
+                return containing(names, BasicCriterion.unquote(criterion.getValue()));
+            case DESCRIPTION:
+                return containing(descriptions, BasicCriterion.unquote(criterion.getValue()));
+            case DURATION:
+                return inRange(BasicCriterion.Op.parse(criterion.getOp()), key(Double.parseDouble(criterion.getValue())));
+            default:
+                return null;
+        }
+    }
+
+    private Set<Task> inRange(BasicCriterion.Op op, double threshold) {
+        // As the predicate compares: nothing equals or is ordered against NaN
+        if (Double.isNaN(threshold)) {
+            return op == BasicCriterion.Op.NE ? new HashSet<>(all) : new HashSet<>();
+        }
+        switch (op) {
+            case GT: return union(byDuration.tailMap(threshold, false).values());
+            case GE: return union(byDuration.tailMap(threshold, true).values());
+            case LT: return union(byDuration.headMap(threshold, false).values());
+            case LE: return union(byDuration.headMap(threshold, true).values());
+            case EQ: return union(byDuration.subMap(threshold, true, threshold, true).values());
+            case NE: {
+                Set<Task> result = union(byDuration.headMap(threshold, false).values());
+                result.addAll(union(byDuration.tailMap(threshold, false).values()));
+                return result;
+            }
+            default:
+                return null;
+        }
+    }
+
+    private Set<Task> containing(Text text, String needle) {
+        if (needle.isEmpty()) {
+            return new HashSet<>(all);
+        }
+        Set<Task> result = new HashSet<>();
+        if (needle.length() <= GRAM) {
+            Set<Integer> symbols = text.grams.get(needle);
+            if (symbols != null) {
+                for (int symbol : symbols) {
+                    result.addAll(text.bySymbol.get(symbol));
+                }
+            }
+            return result;
+        }
+
+        // Intersect the postings of every n-gram, smallest first, then verify the surviving symbols
+        List<Set<Integer>> postings = new ArrayList<>();
+        for (int i = 0; i + GRAM <= needle.length(); i++) {
+            Set<Integer> gramPostings = text.grams.get(needle.substring(i, i + GRAM));
+            if (gramPostings == null) {
+                return result;
+            }
+            postings.add(gramPostings);
+        }
+        postings.sort(Comparator.comparingInt(Set::size));
+        byte[] encoded = needle.getBytes(StandardCharsets.UTF_8);
+        for (int symbol : postings.get(0)) {
+            if (symbols.contains(symbol, encoded)) {
+                result.addAll(text.bySymbol.get(symbol));
+            }
+        }
+        return result;
+    }
+
+    private static Set<Task> union(Collection<Set<Task>> sets) {
+        Set<Task> result = new HashSet<>();
+        for (Set<Task> set : sets) {
+            result.addAll(set);
+        }
+        return result;
+    }
+
+    // A null description has no grams; it contains nothing
+    private static Set<String> grams(String text) {
+        Set<String> grams = new HashSet<>();
+        for (int i = 0; text != null && i < text.length(); i++) {
+            for (int length = 1; length <= GRAM && i + length <= text.length(); length++) {
+                grams.add(text.substring(i, i + length));
+            }
+        }
+        return grams;
+    }
+
+    private static <K, V> void removeFrom(Map<K, Set<V>> index, K key, V value) {
+        Set<V> postings = index.get(key);
+        if (postings != null) {
+            postings.remove(value);
+            if (postings.isEmpty()) {
+                index.remove(key);
+            }
+        }
+    }
+
+    // -0.0 and 0.0 compare equal for ==, but not as TreeMap keys
+    private static double key(double duration) {
+        return duration == 0 ? 0.0 : duration;
+    }
+}
@@ -0,0 +1,335 @@
+package hk.edu.polyu.comp.comp2021.tms.model;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.*;
+
+/**
+ * The fields of tasks held in primitive columns indexed by dense int ids, the way
+ * {@link CompactGraph} lays out a frozen graph, but open to mutation. A Task is a handle on
+ * one id: its name and description are symbols in the store's table, its duration a slot of
+ * a double[], and its prerequisites a block of ids in one shared int[] heap. A block is its
+ * capacity, its length, then the ids; appending fills spare capacity in place, while
+ * removing or replacing prerequisites writes a new block. Blocks left behind are reclaimed
+ * by copying the live ones into a fresh heap once they outnumber them.
+ *
+ * <p>Writes are synchronized. Readers take no lock, as with SymbolTable: every slot is
+ * written and read with volatile semantics, a block's ids are written before its length or
+ * its start is published, and arrays that grow are replaced whole, so a reader sees either
+ * the old prerequisites of a task or the new ones, never part of a change.
+ */
+final class TaskStore {
+    private static final VarHandle INTS = MethodHandles.arrayElementVarHandle(int[].class);
+    private static final VarHandle DOUBLES = MethodHandles.arrayElementVarHandle(double[].class);
+    private static final VarHandle BOOLEANS = MethodHandles.arrayElementVarHandle(boolean[].class);
+    // The heap is not compacted while it holds fewer ints than this
+    private static final int MIN_HEAP_TO_COMPACT = 1 << 10;
+    // Start of a task without prerequisites, which has no block
+    private static final int NONE = -1;
+    private static final int HEADER = 2;
+
+    private final SymbolTable symbols;
+    private volatile Columns columns;
+    private int size;
+    // Ints of the heap handed out, and those in blocks still in use
+    private int used;
+    private int live;
+
+    private static final class Columns {
+        final Task[] tasks;
+        final int[] names;
+        final int[] descriptions;
+        final double[] durations;
+        final boolean[] composite;
+        final int[] starts;
+        final int[] heap;
+
+        Columns(Task[] tasks, int[] names, int[] descriptions, double[] durations, boolean[] composite,
+                int[] starts, int[] heap) {
+            this.tasks = tasks;
+            this.names = names;
+            this.descriptions = descriptions;
+            this.durations = durations;
+            this.composite = composite;
+            this.starts = starts;
+            this.heap = heap;
+        }
+    }
+
+    public TaskStore(SymbolTable symbols) {
+        this(symbols, 1 << 8);
+    }
+
+    /** A store sized for about the given number of tasks before it has to grow. */
+    public TaskStore(SymbolTable symbols, int capacity) {
+        this.symbols = symbols;
+        int tasks = Math.max(2, capacity);
+        int[] starts = new int[tasks];
+        Arrays.fill(starts, NONE);
+        columns = new Columns(new Task[tasks], new int[tasks], new int[tasks], new double[tasks], new boolean[tasks],
+                starts, new int[tasks * 2]);
+    }
+
+    /** The table the name and description symbols are handles into. */
+    public SymbolTable getSymbols() {
+        return symbols;
+    }
+
+    /** Ids handed out so far, including those of tasks no longer referred to. */
+    public synchronized int size() {
+        return size;
+    }
+
+    synchronized int add(Task task, int name, int description, double duration) {
+        Columns c = columns;
+        if (size == c.tasks.length) {
+            int grown = c.tasks.length * 2;
+            int[] starts = Arrays.copyOf(c.starts, grown);
+            Arrays.fill(starts, size, grown, NONE);
+            c = new Columns(Arrays.copyOf(c.tasks, grown), Arrays.copyOf(c.names, grown),
+                    Arrays.copyOf(c.descriptions, grown), Arrays.copyOf(c.durations, grown),
+                    Arrays.copyOf(c.composite, grown), starts, c.heap);
+        }
+        int id = size++;
+        c.tasks[id] = task;
+        c.names[id] = name;
+        c.descriptions[id] = description;
+        c.durations[id] = duration;
+        columns = c;
+        return id;
+    }
+
+    Task task(int id) {
+        return columns.tasks[id];
+    }
+
+    int name(int id) {
+        return (int) INTS.getVolatile(columns.names, id);
+    }
+
+    int description(int id) {
+        return (int) INTS.getVolatile(columns.descriptions, id);
+    }
+
+    double duration(int id) {
+        return (double) DOUBLES.getVolatile(columns.durations, id);
+    }
+
+    boolean isComposite(int id) {
+        return (boolean) BOOLEANS.getVolatile(columns.composite, id);
+    }
+
+    synchronized void setName(int id, int name) {
+        INTS.setVolatile(columns.names, id, name);
+    }
+
+    synchronized void setDescription(int id, int description) {
+        INTS.setVolatile(columns.descriptions, id, description);
+    }
+
+    synchronized void setDuration(int id, double duration) {
+        DOUBLES.setVolatile(columns.durations, id, duration);
+    }
+
+    synchronized void setComposite(int id, boolean composite) {
+        BOOLEANS.setVolatile(columns.composite, id, composite);
+    }
+
+    int prerequisiteCount(int id) {
+        Columns c = columns;
+        int start = (int) INTS.getVolatile(c.starts, id);
+        return start == NONE ? 0 : (int) INTS.getVolatile(c.heap, start + 1);
+    }
+
+    Task prerequisite(int id, int index) {
+        Columns c = columns;
+        int start = (int) INTS.getVolatile(c.starts, id);
+        if (start == NONE || index < 0 || index >= (int) INTS.getVolatile(c.heap, start + 1)) {
+            throw new IndexOutOfBoundsException("Index " + index + " out of bounds for prerequisites of " + id);
+        }
+        return c.tasks[c.heap[start + HEADER + index]];
+    }
+
+    /** The prerequisites as they are now; later changes are not seen through the list. */
+    List<Task> prerequisites(int id) {
+        Columns c = columns;
+        int start = (int) INTS.getVolatile(c.starts, id);
+        if (start == NONE) {
+            return Collections.emptyList();
+        }
+        return new Prerequisites(c.tasks, c.heap, start + HEADER, (int) INTS.getVolatile(c.heap, start + 1));
+    }
+
+    synchronized void addPrerequisite(int id, Task prerequisite) {
+        int target = idOf(prerequisite);
+        Columns c = columns;
+        int start = c.starts[id];
+        int count = start == NONE ? 0 : c.heap[start + 1];
+        if (start != NONE && count < c.heap[start]) {
+            c.heap[start + HEADER + count] = target;
+            INTS.setVolatile(c.heap, start + 1, count + 1);
+            return;
+        }
+        int[] ids = new int[count + 1];
+        if (count > 0) {
+            System.arraycopy(c.heap, start + HEADER, ids, 0, count);
+        }
+        ids[count] = target;
+        place(id, ids, ids.length, Math.max(2, count * 2));
+    }
+
+    /** Removes the first occurrence of the prerequisite, if there is one. */
+    synchronized void removePrerequisite(int id, Task prerequisite) {
+        if (prerequisite.getStore() != this) {
+            return;
+        }
+        int target = prerequisite.getId();
+        int[] ids = ids(id);
+        for (int i = 0; i < ids.length; i++) {
+            if (ids[i] == target) {
+                System.arraycopy(ids, i + 1, ids, i, ids.length - i - 1);
+                place(id, ids, ids.length - 1, ids.length - 1);
+                return;
+            }
+        }
+    }
+
+    synchronized void removePrerequisites(int id, Collection<Task> removed) {
+        Columns c = columns;
+        int[] ids = ids(id);
+        int kept = 0;
+        for (int target : ids) {
+            if (!removed.contains(c.tasks[target])) {
+                ids[kept++] = target;
+            }
+        }
+        if (kept < ids.length) {
+            place(id, ids, kept, kept);
+        }
+    }
+
+    synchronized void setPrerequisites(int id, List<Task> prerequisites) {
+        int[] ids = new int[prerequisites.size()];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = idOf(prerequisites.get(i));
+        }
+        place(id, ids, ids.length, ids.length);
+    }
+
+    /**
+     * Moves the tasks into this store, keeping each Task object. The tasks must include every
+     * prerequisite of each; their names and descriptions are interned into this store's table.
+     */
+    synchronized void adopt(Collection<Task> moved) {
+        List<List<Task>> prerequisites = new ArrayList<>(moved.size());
+        for (Task task : moved) {
+            prerequisites.add(task.getPrerequisites());
+            TaskStore from = task.getStore();
+            int at = task.getId();
+            int id = add(task, from.symbols.transfer(from.name(at), symbols),
+                    from.symbols.transfer(from.description(at), symbols), from.duration(at));
+            columns.composite[id] = from.isComposite(at);
+            task.bind(this, id);
+        }
+        Iterator<List<Task>> each = prerequisites.iterator();
+        for (Task task : moved) {
+            setPrerequisites(task.getId(), each.next());
+        }
+    }
+
+    private int idOf(Task task) {
+        if (task.getStore() != this) {
+            throw new IllegalArgumentException("Task " + task.getName() + " belongs to another store");
+        }
+        return task.getId();
+    }
+
+    private int[] ids(int id) {
+        Columns c = columns;
+        int start = c.starts[id];
+        return start == NONE ? new int[0] : Arrays.copyOfRange(c.heap, start + HEADER, start + HEADER + c.heap[start + 1]);
+    }
+
+    // Writes the first count ids as a new block and points the task at it
+    private void place(int id, int[] ids, int count, int capacity) {
+        Columns c = columns;
+        int old = c.starts[id];
+        if (old != NONE) {
+            live -= HEADER + c.heap[old];
+        }
+        if (count == 0) {
+            INTS.setVolatile(c.starts, id, NONE);
+            compactIfSparse();
+            return;
+        }
+        int length = HEADER + capacity;
+        if (used + length > c.heap.length) {
+            c = new Columns(c.tasks, c.names, c.descriptions, c.durations, c.composite, c.starts.clone(),
+                    Arrays.copyOf(c.heap, Math.max(c.heap.length * 2, used + length)));
+        }
+        int start = used;
+        c.heap[start] = capacity;
+        c.heap[start + 1] = count;
+        System.arraycopy(ids, 0, c.heap, start + HEADER, count);
+        used += length;
+        live += length;
+        INTS.setVolatile(c.starts, id, start);
+        columns = c;
+        compactIfSparse();
+    }
+
+    // Copies the live blocks into a fresh heap, each trimmed to its length
+    private void compactIfSparse() {
+        if (used < MIN_HEAP_TO_COMPACT || used < 2 * live) {
+            return;
+        }
+        Columns c = columns;
+        int[] starts = new int[c.starts.length];
+        Arrays.fill(starts, NONE);
+        int[] heap = new int[Math.max(MIN_HEAP_TO_COMPACT, live * 2)];
+        int at = 0;
+        for (int id = 0; id < size; id++) {
+            int start = c.starts[id];
+            if (start == NONE) {
+                continue;
+            }
+            int count = c.heap[start + 1];
+            heap[at] = count;
+            heap[at + 1] = count;
+            System.arraycopy(c.heap, start + HEADER, heap, at + HEADER, count);
+            starts[id] = at;
+            at += HEADER + count;
+        }
+        used = at;
+        live = at;
+        columns = new Columns(c.tasks, c.names, c.descriptions, c.durations, c.composite, starts, heap);
+    }
+
+    // A block as a list; the heap never changes under it, since blocks are only appended past their length
+    private static final class Prerequisites extends AbstractList<Task> implements RandomAccess {
+        private final Task[] tasks;
+        private final int[] heap;
+        private final int from;
+        private final int size;
+
+        Prerequisites(Task[] tasks, int[] heap, int from, int size) {
+            this.tasks = tasks;
+            this.heap = heap;
+            this.from = from;
+            this.size = size;
+        }
+
+        @Override
+        public Task get(int index) {
+            if (index < 0 || index >= size) {
+                throw new IndexOutOfBoundsException("Index " + index + " out of bounds for length " + size);
+            }
+            return tasks[heap[from + index]];
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+    }
+}
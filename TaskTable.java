@@ -0,0 +1,273 @@
+package hk.edu.polyu.comp.comp2021.tms.model;
+
+import java.util.*;
+
+/**
+ * The tasks of a TMS by name, as an open-addressing table instead of a HashMap. Names are
+ * interned into the symbol table of the TMS, so a slot holds the name's symbol and hash
+ * beside its task and no entry object or String key is kept per task.
+ *
+ * <p>Tasks are iterated in the order a HashMap would iterate them, which printed reports have
+ * always followed: a name's home slot is its HashMap bucket, the buckets grow as a HashMap's
+ * do, and each run of slots is kept sorted by home with later insertions after earlier ones
+ * (Robin Hood probing), so walking the slots walks the buckets in order.
+ */
+class TaskTable extends AbstractMap<String, Task> {
+    // HashMap's default capacity and load factor
+    private static final int MIN_BUCKETS = 16;
+    private static final float LOAD_FACTOR = 0.75f;
+
+    private SymbolTable symbols;
+    private int buckets;
+    // Two slots per bucket; symbol of the name + 1, 0 marking an empty slot
+    private int[] keys;
+    private int[] hashes;
+    private Task[] values;
+    private int size;
+    private int modifications;
+
+    public TaskTable(SymbolTable symbols) {
+        this.symbols = symbols;
+        allocate(MIN_BUCKETS);
+    }
+
+    /** A table sized as a HashMap read back with the given number of tasks. */
+    public TaskTable(SymbolTable symbols, int expected) {
+        this.symbols = symbols;
+        int wanted = (int) Math.min(1 << 30, (long) (expected / LOAD_FACTOR) + 1);
+        allocate(Math.max(MIN_BUCKETS, Integer.highestOneBit(Math.max(1, wanted - 1)) * 2));
+    }
+
+    /** Re-interns the names into the other table and keeps them there from now on. */
+    void moveSymbols(SymbolTable to) {
+        for (int slot = 0; slot < keys.length; slot++) {
+            if (keys[slot] != 0) {
+                keys[slot] = symbols.transfer(keys[slot] - 1, to) + 1;
+            }
+        }
+        symbols = to;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return key instanceof String && find((String) key) >= 0;
+    }
+
+    @Override
+    public Task get(Object key) {
+        int slot = key instanceof String ? find((String) key) : -1;
+        return slot < 0 ? null : values[slot];
+    }
+
+    @Override
+    public Task put(String key, Task task) {
+        Objects.requireNonNull(task);
+        int slot = find(Objects.requireNonNull(key));
+        if (slot >= 0) {
+            Task old = values[slot];
+            values[slot] = task;
+            return old;
+        }
+        if (size + 1 > buckets * LOAD_FACTOR) {
+            grow();
+        }
+        insert(symbols.intern(key) + 1, hash(key), task);
+        return null;
+    }
+
+    @Override
+    public Task remove(Object key) {
+        int slot = key instanceof String ? find((String) key) : -1;
+        if (slot < 0) {
+            return null;
+        }
+        Task old = values[slot];
+        removeAt(slot);
+        return old;
+    }
+
+    @Override
+    public void clear() {
+        Arrays.fill(keys, 0);
+        Arrays.fill(values, null);
+        size = 0;
+        modifications++;
+    }
+
+    @Override
+    public Set<Entry<String, Task>> entrySet() {
+        return new AbstractSet<Entry<String, Task>>() {
+            @Override
+            public Iterator<Entry<String, Task>> iterator() {
+                return new SlotIterator<Entry<String, Task>>() {
+                    @Override
+                    Entry<String, Task> at(int slot) {
+                        return new SimpleImmutableEntry<>(symbols.get(keys[slot] - 1), values[slot]);
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return size;
+            }
+        };
+    }
+
+    @Override
+    public Collection<Task> values() {
+        return new AbstractCollection<Task>() {
+            @Override
+            public Iterator<Task> iterator() {
+                return new SlotIterator<Task>() {
+                    @Override
+                    Task at(int slot) {
+                        return values[slot];
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return size;
+            }
+        };
+    }
+
+    private void allocate(int bucketCount) {
+        buckets = bucketCount;
+        keys = new int[bucketCount * 2];
+        hashes = new int[bucketCount * 2];
+        values = new Task[bucketCount * 2];
+    }
+
+    private int find(String key) {
+        int hash = hash(key);
+        int home = home(hash);
+        int mask = keys.length - 1;
+        for (int slot = home; keys[slot] != 0; slot = (slot + 1) & mask) {
+            // The run is sorted by home, so past a task nearer its home than this one would be, it is absent
+            if (distance(slot) < ((slot - home) & mask)) {
+                return -1;
+            }
+            if (hashes[slot] == hash && symbols.matches(keys[slot] - 1, key)) {
+                return slot;
+            }
+        }
+        return -1;
+    }
+
+    // Places the task after every task whose home is not after its own, shifting the rest of the run along
+    private void insert(int key, int hash, Task task) {
+        int home = home(hash);
+        int mask = keys.length - 1;
+        int slot = home;
+        while (keys[slot] != 0 && distance(slot) >= ((slot - home) & mask)) {
+            slot = (slot + 1) & mask;
+        }
+        while (keys[slot] != 0) {
+            int shiftedKey = keys[slot];
+            int shiftedHash = hashes[slot];
+            Task shifted = values[slot];
+            keys[slot] = key;
+            hashes[slot] = hash;
+            values[slot] = task;
+            key = shiftedKey;
+            hash = shiftedHash;
+            task = shifted;
+            slot = (slot + 1) & mask;
+        }
+        keys[slot] = key;
+        hashes[slot] = hash;
+        values[slot] = task;
+        size++;
+        modifications++;
+    }
+
+    // Backward-shift deletion, which keeps runs sorted and leaves no tombstones
+    private void removeAt(int slot) {
+        int mask = keys.length - 1;
+        int hole = slot;
+        for (int next = (hole + 1) & mask; keys[next] != 0 && distance(next) > 0; next = (next + 1) & mask) {
+            keys[hole] = keys[next];
+            hashes[hole] = hashes[next];
+            values[hole] = values[next];
+            hole = next;
+        }
+        keys[hole] = 0;
+        values[hole] = null;
+        size--;
+        modifications++;
+    }
+
+    // Reinserting in iteration order keeps each bucket's tasks in order, as HashMap's split does
+    private void grow() {
+        int[] oldKeys = keys;
+        int[] oldHashes = hashes;
+        Task[] oldValues = values;
+        int first = firstSlot();
+        allocate(buckets * 2);
+        size = 0;
+        for (int i = 0; i < oldKeys.length; i++) {
+            int slot = (first + i) & (oldKeys.length - 1);
+            if (oldKeys[slot] != 0) {
+                insert(oldKeys[slot], oldHashes[slot], oldValues[slot]);
+            }
+        }
+    }
+
+    // Where iteration starts: past the tasks that a run wrapping around the end pushed to the front
+    private int firstSlot() {
+        int slot = 0;
+        while (slot < keys.length && keys[slot] != 0 && home(hashes[slot]) > slot) {
+            slot++;
+        }
+        return slot;
+    }
+
+    private int distance(int slot) {
+        return (slot - home(hashes[slot])) & (keys.length - 1);
+    }
+
+    private int home(int hash) {
+        return (hash & (buckets - 1)) << 1;
+    }
+
+    // HashMap's hash of the key
+    private static int hash(String key) {
+        int h = key.hashCode();
+        return h ^ (h >>> 16);
+    }
+
+    private abstract class SlotIterator<E> implements Iterator<E> {
+        private final int first = firstSlot();
+        private final int expected = modifications;
+        private int visited;
+
+        abstract E at(int slot);
+
+        @Override
+        public boolean hasNext() {
+            while (visited < keys.length && keys[(first + visited) & (keys.length - 1)] == 0) {
+                visited++;
+            }
+            return visited < keys.length;
+        }
+
+        @Override
+        public E next() {
+            if (expected != modifications) {
+                throw new ConcurrentModificationException();
+            }
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            return at((first + visited++) & (keys.length - 1));
+        }
+    }
+}
@@ -0,0 +1,146 @@
+package hk.edu.polyu.comp.comp2021.tms.model;
+
+import java.util.*;
+
+/**
+ * A topological order of the task graph kept up to date as edges are added, so that an
+ * edge which would close a prerequisite cycle can be refused before it is made.
+ * Every task has a position and every prerequisite sits before the tasks that use it.
+ * An edge that already agrees with the order costs one comparison; otherwise only the tasks
+ * whose positions lie between its two ends are searched and reordered (Pearce and Kelly's
+ * dynamic topological sort), instead of walking the whole graph on every edit.
+ */
+class TopologicalOrder {
+    private final Map<Task, Integer> position = new IdentityHashMap<>();
+    private final Map<Task, Set<Task>> dependents;
+    private int next;
+
+    /** The order reads the reverse edges from the given map, which the caller keeps current. */
+    public TopologicalOrder(Map<Task, Set<Task>> dependents) {
+        this.dependents = dependents;
+    }
+
+    /**
+     * Builds the order of an existing graph. Tasks on or behind a cycle (from files written
+     * before cycles were refused) are placed last, in no particular order.
+     */
+    public static TopologicalOrder of(Collection<Task> tasks, Map<Task, Set<Task>> dependents) {
+        TopologicalOrder order = new TopologicalOrder(dependents);
+        Schedule schedule = Schedule.of(tasks);
+        for (Task task : schedule.getOrder()) {
+            order.add(task);
+        }
+        for (Task task : tasks) {
+            order.add(task);
+        }
+        return order;
+    }
+
+    /** Places a task after every task placed so far; a no-op for a task already placed. */
+    public void add(Task task) {
+        if (!position.containsKey(task)) {
+            position.put(task, next++);
+        }
+    }
+
+    public void remove(Task task) {
+        position.remove(task);
+    }
+
+    /**
+     * Moves tasks as needed so that prerequisite comes before task, and returns true; or
+     * returns false, changing nothing, if task is already needed (directly or indirectly)
+     * by prerequisite, so that the edge would close a cycle.
+     */
+    public boolean addEdge(Task prerequisite, Task task) {
+        add(prerequisite);
+        add(task);
+        if (prerequisite == task) {
+            return false;
+        }
+        int lower = position.get(task);
+        int upper = position.get(prerequisite);
+        if (upper < lower) {
+            return true;
+        }
+
+        // Tasks after task that lie no later than prerequisite; reaching it means a cycle
+        List<Task> forward = new ArrayList<>();
+        if (!collectDependents(task, prerequisite, upper, forward)) {
+            return false;
+        }
+        // Tasks before prerequisite that lie no earlier than task
+        List<Task> backward = new ArrayList<>();
+        collectPrerequisites(prerequisite, lower, backward);
+
+        // Hand the positions they held back out: the backward set first, then the forward set
+        Comparator<Task> byPosition = Comparator.comparingInt(position::get);
+        forward.sort(byPosition);
+        backward.sort(byPosition);
+        int[] slots = new int[forward.size() + backward.size()];
+        int k = 0;
+        for (Task moved : backward) {
+            slots[k++] = position.get(moved);
+        }
+        for (Task moved : forward) {
+            slots[k++] = position.get(moved);
+        }
+        Arrays.sort(slots);
+        k = 0;
+        for (Task moved : backward) {
+            position.put(moved, slots[k++]);
+        }
+        for (Task moved : forward) {
+            position.put(moved, slots[k++]);
+        }
+        return true;
+    }
+
+    // Depth-first over the dependents; returns false as soon as the target is reached
+    private boolean collectDependents(Task start, Task target, int upper, List<Task> visited) {
+        Set<Task> seen = Collections.newSetFromMap(new IdentityHashMap<>());
+        Deque<Task> pending = new ArrayDeque<>();
+        pending.push(start);
+        seen.add(start);
+        while (!pending.isEmpty()) {
+            Task current = pending.pop();
+            visited.add(current);
+            Set<Task> next = dependents.get(current);
+            if (next == null) {
+                continue;
+            }
+            for (Task dependent : next) {
+                if (dependent == target) {
+                    return false;
+                }
+                Integer at = position.get(dependent);
+                if (at != null && at < upper && seen.add(dependent)) {
+                    pending.push(dependent);
+                }
+            }
+        }
+        return true;
+    }
+
+    private void collectPrerequisites(Task start, int lower, List<Task> visited) {
+        Set<Task> seen = Collections.newSetFromMap(new IdentityHashMap<>());
+        Deque<Task> pending = new ArrayDeque<>();
+        pending.push(start);
+        seen.add(start);
+        while (!pending.isEmpty()) {
+            Task current = pending.pop();
+            visited.add(current);
+            for (Task prerequisite : current.getPrerequisites()) {
+                Integer at = position.get(prerequisite);
+                if (at != null && at > lower && seen.add(prerequisite)) {
+                    pending.push(prerequisite);
+                }
+            }
+        }
+    }
+
+    /** Whether a comes before b; both must have been placed. */
+    public boolean precedes(Task a, Task b) {
+        return position.get(a) < position.get(b);
+    }
+}
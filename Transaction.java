@@ -0,0 +1,161 @@
+package hk.edu.polyu.comp.comp2021.tms.model;
+
+import java.util.*;
+
+/**
+ * A batch of task mutations that {@link #commit} applies to its TMS all at once or not at all.
+ * Operations are checked as they are staged and kept in journal form; nothing reaches the TMS
+ * before commit. Commit applies them in order, saving the prior state of whatever they touch,
+ * and undoes them all if one is refused (a prerequisite cycle, for instance). A successful
+ * commit publishes one new {@link GraphVersion}, so derived state is rebuilt once per batch
+ * and readers of the previous version never see a half-applied one.
+ */
+class Transaction {
+    private final TMS tms;
+    private final List<Journal.Entry> staged = new ArrayList<>();
+    private boolean finished;
+
+    // Filled in while committing: what the tasks and the task map held before they were touched
+    private final Map<Task, Saved> saved = new IdentityHashMap<>();
+    private final Map<String, Task> replaced = new HashMap<>();
+    private boolean refused;
+
+    private static class Saved {
+        final String name;
+        final String description;
+        final double duration;
+        final boolean composite;
+        final List<Task> prerequisites;
+
+        Saved(Task task) {
+            name = task.getName();
+            description = task.getDescription();
+            duration = task.getDuration();
+            composite = task.isComposite();
+            prerequisites = new ArrayList<>(task.getPrerequisites());
+        }
+    }
+
+    Transaction(TMS tms) {
+        this.tms = tms;
+    }
+
+    /** Stages a primitive task; prints what is wrong and returns false if its fields are invalid. */
+    public boolean createPrimitiveTask(String name, String description, double d, List<String> prerequisiteNames) {
+        if (!TMS.isValidPrimitiveTask(name, description, d)) {
+            return false;
+        }
+        String[] args = new String[3 + prerequisiteNames.size()];
+        args[0] = name;
+        args[1] = description;
+        args[2] = Double.toString(d);
+        for (int i = 0; i < prerequisiteNames.size(); i++) {
+            args[3 + i] = prerequisiteNames.get(i);
+        }
+        return stage(Journal.CREATE_PRIMITIVE, args);
+    }
+
+    public boolean createCompositeTask(String name, String description, List<String> subtaskNames) {
+        List<String> args = new ArrayList<>(Arrays.asList(name, description));
+        args.addAll(subtaskNames);
+        return stage(Journal.CREATE_COMPOSITE, args.toArray(new String[0]));
+    }
+
+    /** Stages a change; prints what is wrong and returns false if a new duration is not a number. */
+    public boolean changeTask(String name, String property, String newValue) {
+        if (property.equalsIgnoreCase("duration")) {
+            try {
+                Double.parseDouble(newValue);
+            } catch (NumberFormatException e) {
+                System.out.println("Duration must be a number, not " + newValue);
+                return false;
+            }
+        }
+        return stage(Journal.CHANGE, name, property, newValue);
+    }
+
+    public boolean deleteTask(String name) {
+        return stage(Journal.DELETE, name);
+    }
+
+    public boolean deleteTasks(Collection<String> names) {
+        return stage(Journal.DELETE, names.toArray(new String[0]));
+    }
+
+    /** The number of operations staged so far. */
+    public int size() {
+        return staged.size();
+    }
+
+    /**
+     * Applies the staged operations and publishes the result as the TMS's new version.
+     * Returns false, having changed nothing, if any of them was refused.
+     */
+    public boolean commit() {
+        finish();
+        return tms.commit(this);
+    }
+
+    /** Drops the staged operations. */
+    public void rollback() {
+        finish();
+    }
+
+    private boolean stage(byte op, String... args) {
+        if (finished) {
+            throw new IllegalStateException("The transaction has already been committed or rolled back");
+        }
+        staged.add(new Journal.Entry(0, op, args));
+        return true;
+    }
+
+    private void finish() {
+        if (finished) {
+            throw new IllegalStateException("The transaction has already been committed or rolled back");
+        }
+        finished = true;
+    }
+
+    List<Journal.Entry> getStaged() {
+        return staged;
+    }
+
+    // Called by the TMS before it changes a task or the task stored under a name
+    void save(Task task) {
+        saved.computeIfAbsent(task, Saved::new);
+    }
+
+    void saveKey(String name, Task current) {
+        if (!replaced.containsKey(name)) {
+            replaced.put(name, current);
+        }
+    }
+
+    void refuse() {
+        refused = true;
+    }
+
+    boolean isRefused() {
+        return refused;
+    }
+
+    /** Puts back every saved task field and map entry; the TMS rebuilds its derived state afterwards. */
+    void undo(Map<String, Task> tasks) {
+        for (Map.Entry<Task, Saved> entry : saved.entrySet()) {
+            Task task = entry.getKey();
+            Saved before = entry.getValue();
+            task.setName(before.name);
+            task.setDescription(before.description);
+            task.setDuration(before.duration);
+            task.setComposite(before.composite);
+            task.setPrerequisites(before.prerequisites);
+        }
+        for (Map.Entry<String, Task> entry : replaced.entrySet()) {
+            if (entry.getValue() == null) {
+                tasks.remove(entry.getKey());
+            } else {
+                tasks.put(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+}
@@ -0,0 +1,240 @@
+package hk.edu.polyu.comp.comp2021.tms.model;
+
+import java.util.*;
+
+/**
+ * The versions a TMS has published and what it takes to publish the next one. The TMS reports
+ * every task and name a mutation is about to change; publishing then updates only those
+ * entries of the last version's maps, so a version costs time and memory in proportion to
+ * what changed. Versions are kept for time-travel queries until there are more than
+ * maxVersions of them or they are older than maxAgeMillis; the current one is always kept.
+ * A task state is dropped once no key and no other state refers to it, so a replaced or
+ * deleted task leaves the next version. Only the current version keeps the graph it builds
+ * for queries.
+ */
+class VersionHistory {
+    // Stable ids of the tasks the last version holds; a Task keeps its id while it lives
+    private final Map<Task, Integer> ids = new IdentityHashMap<>();
+    private final Map<Integer, Task> tasksById = new HashMap<>();
+    // How many keys and states of the last version refer to each id
+    private final Map<Integer, Integer> references = new HashMap<>();
+    private int nextId;
+    private final Set<Task> touched = Collections.newSetFromMap(new IdentityHashMap<>());
+    private final Set<String> touchedKeys = new HashSet<>();
+    private final Set<String> touchedCriteria = new HashSet<>();
+    // Until the first version, and after a load, the next version is built from scratch
+    private boolean rebuild = true;
+
+    private final Deque<GraphVersion> retained = new ArrayDeque<>();
+    private volatile GraphVersion current = GraphVersion.EMPTY;
+    private int maxVersions = 1;
+    private long maxAgeMillis = Long.MAX_VALUE;
+
+    public void touch(Task task) {
+        if (!rebuild) {
+            touched.add(task);
+        }
+    }
+
+    public void touchKey(String name) {
+        if (!rebuild) {
+            touchedKeys.add(name);
+        }
+    }
+
+    public void touchCriterion(String name) {
+        if (!rebuild) {
+            touchedCriteria.add(name);
+        }
+    }
+
+    /** Everything may have changed; the next version is built from the whole TMS. */
+    public void reset() {
+        rebuild = true;
+        touched.clear();
+        touchedKeys.clear();
+        touchedCriteria.clear();
+    }
+
+    public boolean hasChanges() {
+        return rebuild || !touched.isEmpty() || !touchedKeys.isEmpty() || !touchedCriteria.isEmpty();
+    }
+
+    public boolean isKeepingHistory() {
+        return maxVersions > 1;
+    }
+
+    public synchronized void setRetention(int maxVersions, long maxAgeMillis) {
+        if (maxVersions < 1) {
+            throw new IllegalArgumentException("At least the current version is kept");
+        }
+        this.maxVersions = maxVersions;
+        this.maxAgeMillis = maxAgeMillis;
+        evict();
+    }
+
+    public GraphVersion current() {
+        return current;
+    }
+
+    /** The retained version with the given number, or null if it has been evicted. */
+    public synchronized GraphVersion get(long number) {
+        for (GraphVersion version : retained) {
+            if (version.getNumber() == number) {
+                return version;
+            }
+        }
+        return null;
+    }
+
+    /** The latest retained version published at or before the given time, or null. */
+    public synchronized GraphVersion asOf(long epochMillis) {
+        GraphVersion found = null;
+        for (GraphVersion version : retained) {
+            if (version.getTimestamp() <= epochMillis) {
+                found = version;
+            }
+        }
+        return found;
+    }
+
+    public synchronized List<GraphVersion> versions() {
+        return new ArrayList<>(retained);
+    }
+
+    /** Publishes the tasks, whose symbols are in the given table, as the next version. */
+    public synchronized GraphVersion publish(Map<String, Task> tasks, Map<String, BasicCriterion> basicCriteria,
+                                             Map<String, CompositeCriterion> compositeCriteria, SymbolTable symbols) {
+        GraphVersion last = current;
+        PersistentMap<String, Integer> keys = last.getKeys();
+        PersistentMap<Integer, GraphVersion.TaskState> states = last.getTaskStates();
+        PersistentMap<String, BasicCriterion> basics = last.getBasicCriteria();
+        PersistentMap<String, CompositeCriterion> composites = last.getCompositeCriteria();
+        Collection<String> changedKeys = touchedKeys;
+        Collection<String> changedCriteria = touchedCriteria;
+        // States hold handles into one table, so a TMS that moved to another starts over
+        if (rebuild || symbols != last.getSymbols()) {
+            ids.clear();
+            tasksById.clear();
+            references.clear();
+            keys = PersistentMap.empty();
+            states = PersistentMap.empty();
+            basics = PersistentMap.empty();
+            composites = PersistentMap.empty();
+            changedKeys = tasks.keySet();
+            changedCriteria = new HashSet<>(basicCriteria.keySet());
+            changedCriteria.addAll(compositeCriteria.keySet());
+        }
+
+        // Ids that lost their last reference; they are dropped if nothing refers to them again
+        Deque<Integer> unreferenced = new ArrayDeque<>();
+        Deque<Task> pending = new ArrayDeque<>();
+        for (String key : changedKeys) {
+            Task task = tasks.get(key);
+            Integer old = keys.get(key);
+            if (task == null) {
+                keys = keys.remove(key);
+            } else {
+                int id = id(task);
+                keys = keys.put(key, id);
+                reference(id, 1, unreferenced);
+                pending.push(task);
+            }
+            if (old != null) {
+                reference(old, -1, unreferenced);
+            }
+        }
+        for (Task task : touched) {
+            Integer id = ids.get(task);
+            if (id != null) {
+                pending.push(task);
+                if (!references.containsKey(id)) {
+                    unreferenced.push(id);
+                }
+            }
+        }
+        // A task's state names its prerequisites by id, so new prerequisites get states too
+        Set<Task> done = Collections.newSetFromMap(new IdentityHashMap<>());
+        while (!pending.isEmpty()) {
+            Task task = pending.pop();
+            if (!done.add(task)) {
+                continue;
+            }
+            List<Task> prerequisites = task.getPrerequisites();
+            int[] prerequisiteIds = new int[prerequisites.size()];
+            for (int i = 0; i < prerequisiteIds.length; i++) {
+                Task prerequisite = prerequisites.get(i);
+                if (!ids.containsKey(prerequisite)) {
+                    pending.push(prerequisite);
+                }
+                prerequisiteIds[i] = id(prerequisite);
+                reference(prerequisiteIds[i], 1, unreferenced);
+            }
+            int id = id(task);
+            GraphVersion.TaskState old = states.get(id);
+            if (old != null) {
+                for (int prerequisite : old.prerequisites) {
+                    reference(prerequisite, -1, unreferenced);
+                }
+            }
+            states = states.put(id, new GraphVersion.TaskState(task, prerequisiteIds));
+        }
+        while (!unreferenced.isEmpty()) {
+            int id = unreferenced.pop();
+            GraphVersion.TaskState state = states.get(id);
+            if (references.containsKey(id) || state == null) {
+                continue;
+            }
+            states = states.remove(id);
+            ids.remove(tasksById.remove(id));
+            for (int prerequisite : state.prerequisites) {
+                reference(prerequisite, -1, unreferenced);
+            }
+        }
+        for (String name : changedCriteria) {
+            BasicCriterion basic = basicCriteria.get(name);
+            basics = basic != null ? basics.put(name, basic) : basics.remove(name);
+            CompositeCriterion composite = compositeCriteria.get(name);
+            composites = composite != null ? composites.put(name, composite) : composites.remove(name);
+        }
+
+        rebuild = false;
+        touched.clear();
+        touchedKeys.clear();
+        touchedCriteria.clear();
+        GraphVersion version = new GraphVersion(last.getNumber() + 1, System.currentTimeMillis(), symbols, keys,
+                states, basics, composites);
+        last.release();
+        current = version;
+        retained.addLast(version);
+        evict();
+        return version;
+    }
+
+    private int id(Task task) {
+        Integer id = ids.get(task);
+        if (id == null) {
+            id = nextId++;
+            ids.put(task, id);
+            tasksById.put(id, task);
+        }
+        return id;
+    }
+
+    private void reference(int id, int delta, Deque<Integer> unreferenced) {
+        int count = references.getOrDefault(id, 0) + delta;
+        if (count > 0) {
+            references.put(id, count);
+        } else {
+            references.remove(id);
+            unreferenced.push(id);
+        }
+    }
+
+    private void evict() {
+        long oldest = maxAgeMillis == Long.MAX_VALUE ? Long.MIN_VALUE : System.currentTimeMillis() - maxAgeMillis;
+        while (retained.size() > 1 && (retained.size() > maxVersions || retained.peekFirst().getTimestamp() < oldest)) {
+            retained.removeFirst().release();
+        }
+    }
+}
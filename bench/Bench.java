@@ -0,0 +1,71 @@
+package hk.edu.polyu.comp.comp2021.tms.model;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+
+/**
+ * A small benchmark harness with no dependencies. Each benchmark runs a number of warm-up
+ * iterations, then timed ones; it reports the mean, median and 99th percentile time and the
+ * bytes the benchmark thread allocated per operation (what JMH's -prof gc reports as
+ * gc.alloc.rate.norm). Work done on other threads, as in searchParallel, is not counted.
+ * Everything the model prints is discarded while a benchmark runs.
+ */
+class Bench {
+    interface Op {
+        Object run(int iteration) throws Exception;
+    }
+
+    private static final PrintStream DISCARD = new PrintStream(OutputStream.nullOutputStream());
+    private static final com.sun.management.ThreadMXBean THREADS =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    private final PrintStream report;
+    private final int warmup;
+    private final int iterations;
+    private final String filter;
+    // Results are folded in here so that the JIT cannot drop the work that produced them
+    private static volatile int sink;
+
+    Bench(PrintStream report, int warmup, int iterations, String filter) {
+        this.report = report;
+        this.warmup = warmup;
+        this.iterations = iterations;
+        this.filter = filter;
+        report.printf("%-34s %12s %12s %12s %14s%n", "benchmark", "mean us/op", "p50 us/op", "p99 us/op", "bytes/op");
+    }
+
+    /** Runs the benchmark unless it is filtered out; heavy ones run a tenth of the iterations. */
+    public void run(String name, boolean heavy, Op op) throws Exception {
+        if (filter != null && !name.matches(filter)) {
+            return;
+        }
+        int warm = heavy ? Math.max(1, warmup / 10) : warmup;
+        int timed = heavy ? Math.max(1, iterations / 10) : iterations;
+        PrintStream out = System.out;
+        System.setOut(DISCARD);
+        try {
+            for (int i = 0; i < warm; i++) {
+                consume(op.run(i));
+            }
+            long[] times = new long[timed];
+            long allocated = THREADS.getCurrentThreadAllocatedBytes();
+            for (int i = 0; i < timed; i++) {
+                long start = System.nanoTime();
+                consume(op.run(warm + i));
+                times[i] = System.nanoTime() - start;
+            }
+            allocated = THREADS.getCurrentThreadAllocatedBytes() - allocated;
+            Arrays.sort(times);
+            report.printf("%-34s %12.2f %12.2f %12.2f %14d%n", name, Arrays.stream(times).average().orElse(0) / 1e3,
+                    times[timed / 2] / 1e3, times[Math.min(timed - 1, (int) (timed * 0.99))] / 1e3, allocated / timed);
+        } finally {
+            System.setOut(out);
+        }
+    }
+
+    private static void consume(Object result) {
+        sink += System.identityHashCode(result);
+    }
+}
@@ -0,0 +1,52 @@
+package hk.edu.polyu.comp.comp2021.tms.model;
+
+import java.util.Random;
+
+/**
+ * Defines criterion trees of a given depth on a TMS. Every level combines the tree so far
+ * with a new basic criterion, alternating && and ||, and every third level is negated.
+ * The basic criteria test duration, description and name, so the index, the compiled
+ * programs and the scans all get exercised.
+ */
+class CriterionGenerator {
+    private final Random random;
+    private int defined;
+
+    CriterionGenerator(long seed) {
+        this.random = new Random(seed);
+    }
+
+    /** Defines a tree of the given depth and returns the name of its root. */
+    public String define(TMS tms, int depth) {
+        String root = basic(tms);
+        for (int level = 1; level < depth; level++) {
+            String name = "q" + defined++;
+            tms.defineBinaryCriterion(name, root, level % 2 == 0 ? "||" : "&&", basic(tms));
+            root = name;
+            if (level % 3 == 0) {
+                String negated = "q" + defined++;
+                tms.defineNegatedCriterion(negated, root);
+                root = negated;
+            }
+        }
+        return root;
+    }
+
+    public String basic(TMS tms) {
+        String name = "q" + defined++;
+        switch (random.nextInt(3)) {
+            case 0:
+                tms.defineBasicCriterion(name, "duration", random.nextBoolean() ? ">" : "<=",
+                        Double.toString(1 + random.nextInt(10)));
+                break;
+            case 1:
+                String word = TaskGraphGenerator.DESCRIPTIONS[random.nextInt(TaskGraphGenerator.DESCRIPTIONS.length)];
+                tms.defineBasicCriterion(name, "description", "contains", "\"" + word.substring(0, 3) + "\"");
+                break;
+            default:
+                tms.defineBasicCriterion(name, "name", "contains", "\"" + Integer.toString(random.nextInt(36), 36) + "\"");
+                break;
+        }
+        return name;
+    }
+}
@@ -0,0 +1,102 @@
+package hk.edu.polyu.comp.comp2021.tms.model;
+
+import java.util.*;
+
+/**
+ * Compares the cost of refusing cycle-forming edges with {@link TopologicalOrder} against a
+ * full depth-first search per inserted edge, on a random acyclic graph of about 1M edges.
+ * The edges are inserted in random order, so the dynamic order has to move tasks around.
+ * Both checks see the same insertion sequence; the naive one, too slow to run on every edge,
+ * is timed on naiveSamples edges spread evenly over it and extrapolated.
+ *
+ * Usage: java ...CycleCheckBenchmark [tasks] [edges] [naiveSamples]
+ */
+public class CycleCheckBenchmark {
+    public static void main(String[] args) {
+        int taskCount = args.length > 0 ? Integer.parseInt(args[0]) : 200_000;
+        int edgeCount = args.length > 1 ? Integer.parseInt(args[1]) : 1_000_000;
+        int naiveSamples = args.length > 2 ? Integer.parseInt(args[2]) : 200;
+        Random random = new Random(42);
+
+        // A hidden rank makes every edge point from a lower rank to a higher one, so the graph stays acyclic
+        TaskStore store = new TaskStore(new SymbolTable(taskCount), taskCount);
+        Task[] tasks = new Task[taskCount];
+        for (int i = 0; i < taskCount; i++) {
+            tasks[i] = new Task(store, "T" + i, "bench", 1);
+        }
+        int[][] edges = new int[edgeCount][];
+        for (int e = 0; e < edgeCount; e++) {
+            int a = random.nextInt(taskCount);
+            int b = random.nextInt(taskCount - 1);
+            b = b >= a ? b + 1 : b;
+            edges[e] = new int[] {Math.min(a, b), Math.max(a, b)};
+        }
+        Integer[] shuffled = new Integer[taskCount];
+        for (int i = 0; i < taskCount; i++) {
+            shuffled[i] = i;
+        }
+        Collections.shuffle(Arrays.asList(shuffled), random);
+
+        Map<Task, Set<Task>> dependents = new HashMap<>();
+        TopologicalOrder order = new TopologicalOrder(dependents);
+        // Placed in shuffled order, so the initial positions disagree with the ranks
+        for (int i : shuffled) {
+            order.add(tasks[i]);
+        }
+
+        long start = System.nanoTime();
+        int rejected = 0;
+        for (int[] edge : edges) {
+            Task prerequisite = tasks[edge[0]];
+            Task task = tasks[edge[1]];
+            if (order.addEdge(prerequisite, task)) {
+                task.addPrerequisite(prerequisite);
+                dependents.computeIfAbsent(prerequisite, k -> new HashSet<>()).add(task);
+            } else {
+                rejected++;
+            }
+        }
+        long incremental = System.nanoTime() - start;
+        System.out.printf("dynamic order: %d edges in %.1f ms (%.2f us/edge, %d rejected)%n",
+                edgeCount, incremental / 1e6, incremental / 1e3 / edgeCount, rejected);
+
+        // The naive check searches everything reachable from the task for the prerequisite. Its
+        // cost grows with the graph, so it is sampled at even steps of the same insertion
+        // sequence, each time against the graph as the dynamic order saw it at that edge
+        Map<Task, Set<Task>> growing = new HashMap<>();
+        int stride = Math.max(1, edgeCount / Math.max(1, naiveSamples));
+        int sampled = 0;
+        long naive = 0;
+        for (int e = 0; e < edgeCount; e++) {
+            Task prerequisite = tasks[edges[e][0]];
+            Task task = tasks[edges[e][1]];
+            if (e % stride == 0) {
+                start = System.nanoTime();
+                reaches(task, prerequisite, growing);
+                naive += System.nanoTime() - start;
+                sampled++;
+            }
+            growing.computeIfAbsent(prerequisite, k -> new HashSet<>()).add(task);
+        }
+        System.out.printf("naive DFS:     %d checks in %.1f ms (%.2f us/edge, ~%.0f s for all edges)%n",
+                sampled, naive / 1e6, naive / 1e3 / sampled, naive / 1e9 / sampled * edgeCount);
+    }
+
+    private static boolean reaches(Task from, Task target, Map<Task, Set<Task>> dependents) {
+        Set<Task> seen = Collections.newSetFromMap(new IdentityHashMap<>());
+        Deque<Task> pending = new ArrayDeque<>();
+        pending.push(from);
+        while (!pending.isEmpty()) {
+            Task current = pending.pop();
+            if (current == target) {
+                return true;
+            }
+            for (Task next : dependents.getOrDefault(current, Collections.emptySet())) {
+                if (seen.add(next)) {
+                    pending.push(next);
+                }
+            }
+        }
+        return false;
+    }
+}
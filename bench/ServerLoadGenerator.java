@@ -0,0 +1,194 @@
+package hk.edu.polyu.comp.comp2021.tms.model;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Drives a {@link TMSServer} from a number of client connections and reports the throughput
+ * and the latency of requests, from being sent to the response arriving.
+ *
+ * Usage: java ...ServerLoadGenerator [--connections=N] [--requests=N] [--pipeline=N]
+ *        [--size=N] [--writes=PERCENT] [--searches=PERCENT] [--unix=true] [--seed=N]
+ *        [--connect=HOST:PORT | --connect=SOCKET_PATH]
+ *
+ * Without --connect a server is started in this process, over TCP or with --unix=true over a
+ * Unix domain socket. Either way it is first given a generated graph of --size tasks and a
+ * criterion, through the protocol. Each connection then sends --requests requests, keeping up
+ * to --pipeline of them in flight: ChangeTask durations (--writes percent), searches
+ * (--searches percent) and ReportDuration for the rest.
+ */
+public class ServerLoadGenerator {
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            if (!arg.startsWith("--") || eq < 0) {
+                throw new IllegalArgumentException("Expected --option=value, got " + arg);
+            }
+            options.put(arg.substring(2, eq), arg.substring(eq + 1));
+        }
+        int connections = Integer.parseInt(options.getOrDefault("connections", "16"));
+        int requests = Integer.parseInt(options.getOrDefault("requests", "20000"));
+        int pipeline = Integer.parseInt(options.getOrDefault("pipeline", "8"));
+        int size = Integer.parseInt(options.getOrDefault("size", "10000"));
+        int writes = Integer.parseInt(options.getOrDefault("writes", "10"));
+        int searches = Integer.parseInt(options.getOrDefault("searches", "1"));
+        long seed = Long.parseLong(options.getOrDefault("seed", "42"));
+
+        TMSServer server = null;
+        SocketAddress address;
+        String connect = options.get("connect");
+        if (connect != null) {
+            int colon = connect.lastIndexOf(':');
+            address = colon < 0 ? UnixDomainSocketAddress.of(connect)
+                    : new InetSocketAddress(connect.substring(0, colon), Integer.parseInt(connect.substring(colon + 1)));
+        } else if (Boolean.parseBoolean(options.getOrDefault("unix", "false"))) {
+            File socket = File.createTempFile("tms", ".sock");
+            socket.delete();
+            server = new TMSServer(new TMS(), UnixDomainSocketAddress.of(socket.toPath()));
+            address = server.getAddress();
+        } else {
+            server = TMSServer.listen(new TMS(), 0);
+            address = server.getAddress();
+        }
+        PrintStream report = System.out;
+        // The model prints warnings of its own; keep them out of the report
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+
+        // Load the graph over one connection, pipelined a thousand requests at a time
+        try (Client loader = new Client(address)) {
+            List<String> setup = new ArrayList<>();
+            for (BulkImporter.TaskSpec spec : new TaskGraphGenerator(size, 3, 50, 0.2, seed).generate()) {
+                String names = spec.prerequisites.isEmpty() ? "," : String.join(",", spec.prerequisites);
+                setup.add(spec.composite
+                        ? "CreateCompositeTask " + spec.name + " " + spec.description + " " + names
+                        : "CreatePrimitiveTask " + spec.name + " " + spec.description + " " + spec.duration + " " + names);
+            }
+            setup.add("DefineBasicCriterion loadLong duration > 9");
+            setup.add("DefineBasicCriterion loadDocs description contains \"docs\"");
+            setup.add("DefineBinaryCriterion loadQuery loadLong && loadDocs");
+            for (int from = 0; from < setup.size(); from += 1000) {
+                List<String> chunk = setup.subList(from, Math.min(setup.size(), from + 1000));
+                for (String request : chunk) {
+                    loader.send(request);
+                }
+                loader.flush();
+                for (String request : chunk) {
+                    String response = loader.receive();
+                    if (!response.startsWith("OK")) {
+                        report.println(request + ": " + response);
+                    }
+                }
+            }
+        }
+
+        report.printf("server %s, %d tasks, %d connections x %d requests, pipeline %d, %d%% writes, %d%% searches%n",
+                address, size, connections, requests, pipeline, writes, searches);
+        LatencyHistogram latency = new LatencyHistogram();
+        LongAdder errors = new LongAdder();
+        List<Thread> clients = new ArrayList<>();
+        long start = System.nanoTime();
+        for (int c = 0; c < connections; c++) {
+            Random random = new Random(seed + c);
+            Thread client = new Thread(() -> {
+                try (Client connection = new Client(address)) {
+                    long[] sentAt = new long[pipeline];
+                    int sent = 0;
+                    int received = 0;
+                    while (received < requests) {
+                        while (sent < requests && sent - received < pipeline) {
+                            connection.send(request(random, size, writes, searches));
+                            sentAt[sent++ % pipeline] = System.nanoTime();
+                        }
+                        connection.flush();
+                        String response = connection.receive();
+                        latency.record(System.nanoTime() - sentAt[received++ % pipeline]);
+                        if (!response.startsWith("OK")) {
+                            errors.increment();
+                        }
+                    }
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }, "load-" + c);
+            clients.add(client);
+            client.start();
+        }
+        for (Thread client : clients) {
+            client.join();
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        long total = latency.getCount();
+        report.printf("%d requests in %.2fs: %.0f requests/s, %d errors%n", total, seconds, total / seconds, errors.sum());
+        report.printf("latency us: mean=%.1f p50=%.1f p99=%.1f p99.9=%.1f max=%.1f%n",
+                latency.getMean() / 1e3, latency.getValueAtPercentile(50) / 1e3,
+                latency.getValueAtPercentile(99) / 1e3, latency.getValueAtPercentile(99.9) / 1e3,
+                latency.getMax() / 1e3);
+        if (server != null) {
+            server.close();
+        }
+    }
+
+    private static String request(Random random, int size, int writes, int searches) {
+        String task = TaskGraphGenerator.name(random.nextInt(size));
+        int roll = random.nextInt(100);
+        if (roll < writes) {
+            return "ChangeTask " + task + " duration " + (1 + random.nextInt(40) / 4.0);
+        } else if (roll < writes + searches) {
+            return "Search loadQuery";
+        }
+        return "ReportDuration " + task;
+    }
+
+    // One connection; requests are buffered until flush
+    private static class Client implements Closeable {
+        private final SocketChannel channel;
+        private final BufferedReader in;
+        private final Writer out;
+
+        Client(SocketAddress address) throws IOException {
+            channel = address instanceof UnixDomainSocketAddress
+                    ? SocketChannel.open(StandardProtocolFamily.UNIX)
+                    : SocketChannel.open();
+            channel.connect(address);
+            in = new BufferedReader(new InputStreamReader(Channels.newInputStream(channel), StandardCharsets.UTF_8),
+                    1 << 16);
+            out = new BufferedWriter(new OutputStreamWriter(Channels.newOutputStream(channel), StandardCharsets.UTF_8),
+                    1 << 16);
+        }
+
+        void send(String request) throws IOException {
+            out.write(request);
+            out.write('\n');
+        }
+
+        void flush() throws IOException {
+            out.flush();
+        }
+
+        String receive() throws IOException {
+            String response = in.readLine();
+            if (response == null) {
+                throw new EOFException("The server closed the connection");
+            }
+            return response;
+        }
+
+        @Override
+        public void close() throws IOException {
+            send("Quit");
+            flush();
+            in.readLine();
+            channel.close();
+        }
+    }
+}
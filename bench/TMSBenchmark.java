@@ -0,0 +1,195 @@
+package hk.edu.polyu.comp.comp2021.tms.model;
+
+import java.io.File;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.*;
+
+/**
+ * Benchmarks every public TMS operation on a generated task graph.
+ *
+ * Usage: java ...TMSBenchmark [--size=N] [--fanout=N] [--depth=N] [--sharing=P]
+ *        [--criteria=DEPTH] [--warmup=N] [--iterations=N] [--filter=REGEX] [--seed=N]
+ *
+ * All benchmarks share one graph. Those that add, change or delete tasks mostly work on
+ * tasks created for them, so the generated part of the graph keeps its shape throughout.
+ */
+public class TMSBenchmark {
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            if (!arg.startsWith("--") || eq < 0) {
+                throw new IllegalArgumentException("Expected --option=value, got " + arg);
+            }
+            options.put(arg.substring(2, eq), arg.substring(eq + 1));
+        }
+        int size = Integer.parseInt(options.getOrDefault("size", "20000"));
+        int fanOut = Integer.parseInt(options.getOrDefault("fanout", "3"));
+        int depth = Integer.parseInt(options.getOrDefault("depth", "50"));
+        double sharing = Double.parseDouble(options.getOrDefault("sharing", "0.2"));
+        int criterionDepth = Integer.parseInt(options.getOrDefault("criteria", "8"));
+        int warmup = Integer.parseInt(options.getOrDefault("warmup", "2000"));
+        int iterations = Integer.parseInt(options.getOrDefault("iterations", "2000"));
+        long seed = Long.parseLong(options.getOrDefault("seed", "42"));
+
+        PrintStream report = System.out;
+        TaskGraphGenerator generator = new TaskGraphGenerator(size, fanOut, depth, sharing, seed);
+        report.println("graph: " + generator + ", criterion depth=" + criterionDepth);
+        List<BulkImporter.TaskSpec> specs = generator.generate();
+        TMS tms = new TMS();
+        tms.importTasks(specs);
+        String criterion = new CriterionGenerator(seed).define(tms, criterionDepth);
+        Random random = new Random(seed);
+        String deepest = TaskGraphGenerator.name(size - 1);
+
+        Bench bench = new Bench(report, warmup, iterations, options.get("filter"));
+
+        // Lookups and reports
+        bench.run("printTask", false, i -> tms.printTask(randomTask(random, size)));
+        bench.run("evaluateIsPrimitive", false, i -> tms.evaluateIsPrimitive(randomTask(random, size)));
+        bench.run("reportDuration", false, i -> tms.reportDuration(randomTask(random, size)));
+        bench.run("reportDuration.afterChange", false, i -> {
+            tms.changeTask(TaskGraphGenerator.name(0), "duration", Integer.toString(1 + i % 7));
+            return tms.reportDuration(deepest);
+        });
+        bench.run("reportEarliestFinishTime", false, i -> {
+            tms.reportEarliestFinishTime(randomTask(random, size));
+            return null;
+        });
+        bench.run("getEarliestFinishTime", false, i -> tms.getEarliestFinishTime(randomTask(random, size)));
+        bench.run("getSchedule.afterChange", true, i -> {
+            tms.changeTask(TaskGraphGenerator.name(0), "duration", Integer.toString(1 + i % 7));
+            return tms.getSchedule();
+        });
+        bench.run("reportEarliestFinishTimes", true, i -> tms.reportEarliestFinishTimes());
+        bench.run("reportCriticalPath", true, i -> tms.reportCriticalPath());
+        bench.run("getCompactGraph.afterChange", true, i -> {
+            tms.changeTask(TaskGraphGenerator.name(0), "duration", Integer.toString(1 + i % 7));
+            return tms.getCompactGraph();
+        });
+        bench.run("printAllTasks", true, i -> {
+            tms.printAllTasks();
+            return null;
+        });
+        bench.run("printAllCriteria", true, i -> {
+            tms.printAllCriteria();
+            return null;
+        });
+
+        // Searches over the generated criterion tree
+        bench.run("search", true, i -> {
+            tms.search(criterion);
+            return null;
+        });
+        bench.run("searchTasks", true, i -> tms.searchTasks(criterion));
+        bench.run("searchStream", true, i -> tms.searchStream(criterion).count());
+        bench.run("search.consumer", true, i -> {
+            int[] count = new int[1];
+            tms.search(criterion, task -> count[0]++);
+            return count[0];
+        });
+        bench.run("searchParallel", true, i -> tms.searchParallel(criterion));
+
+        // The same criterion over CompactGraph ids: the per-task program against bitmaps, whose
+        // leaves are cached after the first run, and the strategy select picks between them
+        CompactGraph graph = tms.getCompactGraph();
+        CriterionProgram.OnIds program = graph.compile(criterion, tms.getBasicCriteria(), tms.getCompositeCriteria());
+        bench.run("compactSearch.program", true, i -> graph.select(program));
+        bench.run("compactSearch.bitmaps", true, i ->
+                graph.bitmap(criterion, tms.getBasicCriteria(), tms.getCompositeCriteria()).toArray());
+        bench.run("compactSearch.auto", true, i ->
+                graph.select(criterion, tms.getBasicCriteria(), tms.getCompositeCriteria(), program));
+
+        // Criteria; redefining drops the compiled form of every criterion built on it
+        CriterionGenerator criteria = new CriterionGenerator(seed + 1);
+        String operand = criteria.basic(tms);
+        bench.run("defineBasicCriterion", false, i -> {
+            tms.defineBasicCriterion("b" + i, "duration", ">", Integer.toString(i % 10));
+            return null;
+        });
+        bench.run("defineNegatedCriterion", false, i -> {
+            tms.defineNegatedCriterion("n" + i, operand);
+            return null;
+        });
+        bench.run("defineBinaryCriterion", false, i -> {
+            tms.defineBinaryCriterion("a" + i, operand, i % 2 == 0 ? "&&" : "||", criterion);
+            return null;
+        });
+
+        // Mutations, on tasks created for them
+        bench.run("createPrimitiveTask", false, i -> {
+            tms.createPrimitiveTask("P" + Integer.toString(i, 36), "bench", 1 + i % 5,
+                    Arrays.asList(randomTask(random, size), randomTask(random, size)));
+            return null;
+        });
+        bench.run("createCompositeTask", false, i -> {
+            tms.createCompositeTask("C" + Integer.toString(i, 36), "bench",
+                    Arrays.asList(randomTask(random, size), randomTask(random, size)));
+            return null;
+        });
+        bench.run("changeTask.duration", false, i -> {
+            tms.changeTask("P" + Integer.toString(i % iterations, 36), "duration", Integer.toString(i % 9));
+            return null;
+        });
+        bench.run("changeTask.prerequisites", false, i -> {
+            tms.changeTask("P" + Integer.toString(i % iterations, 36), "prerequisites",
+                    randomTask(random, size) + "," + randomTask(random, size));
+            return null;
+        });
+        bench.run("changeTask.description", false, i -> {
+            tms.changeTask("P" + Integer.toString(i % iterations, 36), "description", "renamed" + i % 3);
+            return null;
+        });
+        bench.run("deleteTask", false, i -> {
+            tms.deleteTask("C" + Integer.toString(i, 36));
+            return null;
+        });
+        bench.run("deleteTasks", false, i -> {
+            tms.deleteTasks(Collections.singletonList("P" + Integer.toString(i, 36)));
+            return null;
+        });
+
+        // Bulk loading and persistence, each on a fresh TMS
+        bench.run("importTasks", true, i -> new TMS().importTasks(specs));
+        File snapshot = File.createTempFile("tms-bench", ".snapshot");
+        snapshot.deleteOnExit();
+        bench.run("store", true, i -> {
+            tms.store(snapshot.getPath());
+            return null;
+        });
+        WritableByteChannel discard = Channels.newChannel(OutputStream.nullOutputStream());
+        bench.run("exportTasks.jsonl", true, i -> tms.exportTasks(discard, TaskExporter.Format.JSONL));
+        bench.run("exportTasks.dot", true, i -> tms.exportTasks(discard, TaskExporter.Format.DOT));
+        bench.run("exportSearch.csv", true, i -> tms.exportSearch(criterion, discard, TaskExporter.Format.CSV));
+        bench.run("load", true, i -> {
+            TMS loaded = new TMS();
+            loaded.load(snapshot.getPath());
+            return loaded;
+        });
+        bench.run("loadMapped", true, i -> {
+            TMS mapped = new TMS();
+            mapped.loadMapped(snapshot.getPath());
+            return mapped.reportDuration(deepest);
+        });
+        File journaled = File.createTempFile("tms-bench", ".journaled");
+        journaled.deleteOnExit();
+        TMS durable = new TMS();
+        durable.importTasks(specs);
+        durable.enableJournal(journaled.getPath(), 10);
+        bench.run("changeTask.journaled", false, i -> {
+            durable.changeTask(TaskGraphGenerator.name(i % size), "duration", Integer.toString(1 + i % 7));
+            return null;
+        });
+        bench.run("compactJournal", true, i -> durable.compactJournal().get());
+        durable.closeJournal();
+        new File(journaled.getPath() + ".journal").delete();
+        new File(journaled.getPath() + ".journal.sealed").delete();
+    }
+
+    private static String randomTask(Random random, int size) {
+        return TaskGraphGenerator.name(random.nextInt(size));
+    }
+}
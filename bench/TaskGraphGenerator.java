@@ -0,0 +1,81 @@
+package hk.edu.polyu.comp.comp2021.tms.model;
+
+import java.util.*;
+
+/**
+ * Generates task DAGs shaped like real projects, as batches for {@link TMS#importTasks}.
+ * The tasks are spread over depth layers; every task above the first layer takes fanOut
+ * prerequisites, each drawn with probability sharing from a small pool of popular tasks
+ * (setup steps that much of the project waits for) and otherwise from the layer just below.
+ * About one task in ten is a composite. Prerequisites always come from earlier tasks, so
+ * the graph is acyclic and listed in topological order.
+ */
+class TaskGraphGenerator {
+    static final String[] DESCRIPTIONS = {
+        "design", "review", "build-app", "write-tests", "deploy", "fix-bugs", "plan-sprint", "update-docs"
+    };
+
+    private final int size;
+    private final int fanOut;
+    private final int depth;
+    private final double sharing;
+    private final long seed;
+
+    TaskGraphGenerator(int size, int fanOut, int depth, double sharing, long seed) {
+        if (size < 1 || fanOut < 0 || depth < 1 || sharing < 0 || sharing > 1) {
+            throw new IllegalArgumentException("Invalid graph shape");
+        }
+        this.size = size;
+        this.fanOut = fanOut;
+        this.depth = Math.min(depth, size);
+        this.sharing = sharing;
+        this.seed = seed;
+    }
+
+    /** A valid task name for the i-th generated task: a letter followed by base-36 digits. */
+    static String name(int i) {
+        return "T" + Integer.toString(i, 36);
+    }
+
+    public List<BulkImporter.TaskSpec> generate() {
+        Random random = new Random(seed);
+        int layerSize = (size + depth - 1) / depth;
+        int popular = Math.max(1, Math.min(layerSize, size / 100));
+        List<BulkImporter.TaskSpec> specs = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            int layer = i / layerSize;
+            String description = DESCRIPTIONS[random.nextInt(DESCRIPTIONS.length)];
+            if (layer == 0) {
+                specs.add(BulkImporter.TaskSpec.primitive(name(i), description, 1 + random.nextInt(40) / 4.0,
+                        Collections.emptyList()));
+                continue;
+            }
+            int below = (layer - 1) * layerSize;
+            Set<String> prerequisites = new LinkedHashSet<>();
+            for (int k = 0; k < fanOut; k++) {
+                int target = random.nextDouble() < sharing
+                        ? random.nextInt(popular)
+                        : below + random.nextInt(layerSize);
+                prerequisites.add(name(target));
+            }
+            List<String> names = new ArrayList<>(prerequisites);
+            if (random.nextInt(10) == 0 && !names.isEmpty()) {
+                specs.add(BulkImporter.TaskSpec.composite(name(i), description, names));
+            } else {
+                specs.add(BulkImporter.TaskSpec.primitive(name(i), description, 1 + random.nextInt(40) / 4.0, names));
+            }
+        }
+        return specs;
+    }
+
+    public TMS build() {
+        TMS tms = new TMS();
+        tms.importTasks(generate());
+        return tms;
+    }
+
+    @Override
+    public String toString() {
+        return "size=" + size + " fanOut=" + fanOut + " depth=" + depth + " sharing=" + sharing;
+    }
+}